@@ -5,15 +5,13 @@ import client.service.ManageClientService;
 import client.view.LoginView;
 import client.view.MainChatView;
 import client.view.RegisterDialog;
+import common.FrameConnection;
 import common.Message;
 import common.MessageType;
 import common.User;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 
 /**
@@ -128,18 +126,17 @@ public class ClientMain {
 						String ip = "127.0.0.1";
 						Socket socket = new Socket(ip, port);
 
-						ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-						ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
+						FrameConnection connection = new FrameConnection(socket);
 
 						// 构建注册消息，content格式: "昵称|密码|性别"
 						Message registerMsg = new Message.Builder()
 								.mesType(MessageType.MESSAGE_REGISTER)
 								.content(nickname + "|" + password + "|" + gender)
 								.build();
-						oos.writeObject(registerMsg);
+						connection.writeMessage(registerMsg);
 
 						// 接收服务器响应
-						Message response = (Message) ois.readObject();
+						Message response = connection.readMessage();
 						if (MessageType.MESSAGE_REGISTER_SUCCEED.equals(response.getMesType())) {
 							// 注册成功 - 显示分配的UserID
 							String userId = response.getContent();
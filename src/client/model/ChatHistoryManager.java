@@ -4,125 +4,507 @@ import common.Message;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 聊天记录管理器 - 负责聊天记录的持久化存储和加载
  * <p>
  * 【核心作用】
- * 1. 将聊天记录序列化保存到本地文件
- * 2. 从文件加载历史聊天记录
- * 3. 提供内存缓存加速读取性能
+ * 1. 将聊天记录追加保存到本地文件
+ * 2. 从文件加载历史聊天记录（整个聊天，或按序号游标分页加载）
+ * 3. 提供有内存预算的缓存加速读取性能（见ConversationCache）
  * <p>
  * 【存储结构】
  * - 基础目录：chathistory/{UserID}/
- * - 文件格式：chat_{聊天标识}.ser（Java序列化格式）
- * - 聊天标识：用户ID、"世界聊天"、"群聊:成员1,成员2,..."
+ * - 每个聊天一个目录：chat_{聊天标识}/，其中是只追加的分段日志（见HistoryLog）
+ * - 聊天标识：用户ID、"世界聊天"、群地址"群#群ID"
+ * - 旧版本的 chat_{聊天标识}.ser（整个聊天的Java序列化）在第一次打开时导入日志后删除
+ * <p>
+ * 【写入开销】
+ * 原先每条新消息都要把整个聊天重新序列化写一遍，5万条的世界聊天每收一条就要写几MB。
+ * 现在新消息只在日志末尾追加一条记录，开销与已有记录的多少无关
+ * <p>
+ * 【后台写入】
+ * addMessage()只更新缓存并把消息放入写入队列，接收消息的线程不做文件I/O。
+ * 后台线程history-writer批量取出各个聊天的消息追加到日志，
+ * 攒够 chat.history.flushBatch 条（默认256）或距上次刷盘超过 chat.history.flushMillis（默认200ms）时，
+ * 对本批写过的每个日志各fsync一次（组提交）；退出时close()写完队列中的消息再关闭。
+ * 从文件加载、删除和整体替换前先等队列中已有的消息写完，读到的总是完整的记录
+ * <p>
+ * 【分页加载】
+ * 聊天面板不再一次加载整个聊天：loadPage()按序号游标读取"某个序号之前的最后N条"，
+ * 由日志的稀疏索引定位，打开一个很长的聊天与打开一个很短的聊天耗时相同
+ * <p>
+ * 【后台整理】
+ * 线程history-compactor每隔 chat.history.compactMillis（默认60秒）整理一遍：
+ * - 把不再写入的旧分段（最后一个和最近 chat.history.hotSegments 个分段除外）改写为压缩分段（见CompressedSegment）
+ * - deleteHistory()只把聊天目录改名为 deleted_ 开头，由整理线程删除文件，删除一个很长的聊天不阻塞界面
+ * - 统计压缩率和整理吞吐量，附在describe()中
  * <p>
  * 【缓存策略】
- * - 使用ConcurrentHashMap作为内存缓存
- * - 读取时先查缓存，未命中再从文件加载
- * - 保存时同时更新缓存和文件
- * 
+ * - 客户端只有这一份内存中的聊天记录：ConversationCache，每个聊天保存最新的一段，总大小不超过内存预算
+ * - 读取时先查缓存，未命中再从文件按页读取并放入缓存（窗口向前扩展）
+ * - 追加时同时更新缓存和写入队列；缓存与日志的序号一致，由appendLock保证
+ * - 返回的消息列表是缓存的只读视图，不复制
+ *
  * @author ChatRoom Team
  */
 public class ChatHistoryManager {
 
     private static final String STORAGE_BASE_DIR = "chathistory";
+    /** 刷盘间隔（毫秒） */
+    private static final long FLUSH_MILLIS = Long.getLong("chat.history.flushMillis", 200);
+    /** 攒够多少条就刷盘 */
+    private static final int FLUSH_BATCH = Integer.getInteger("chat.history.flushBatch", 256);
+    /** 写入队列的容量，写满时addMessage等待 */
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chat.history.queueMax", 10000);
+    /** 后台整理的间隔（毫秒） */
+    private static final long COMPACT_MILLIS = Long.getLong("chat.history.compactMillis", 60000);
+    /** 最近几个已封存的分段保持原样（翻看最近的记录时不用解压） */
+    private static final int HOT_SEGMENTS = Integer.getInteger("chat.history.hotSegments", 1);
+    /** 已删除的聊天目录的前缀，由整理线程删除 */
+    private static final String DELETED_PREFIX = "deleted_";
+
+    /**
+     * 聊天记录的一页：序号在 [from, to) 范围内的消息，按时间顺序排列
+     */
+    public static final class Page {
+        private final List<Message> messages;
+        private final long from;
+        private final long to;
+
+        Page(List<Message> messages, long from, long to) {
+            this.messages = messages;
+            this.from = from;
+            this.to = to;
+        }
+
+        public List<Message> getMessages() {
+            return messages;
+        }
+
+        /** 本页第一条消息的序号，作为加载更早一页的游标 */
+        public long getFrom() {
+            return from;
+        }
+
+        public long getTo() {
+            return to;
+        }
+
+        /** 本页之前还有更早的消息 */
+        public boolean hasOlder() {
+            return from > 0;
+        }
+    }
+
+    /** 写入队列中的一条消息 */
+    private static final class PendingWrite {
+        final String chatKey;
+        final Message message;
+
+        PendingWrite(String chatKey, Message message) {
+            this.chatKey = chatKey;
+            this.message = message;
+        }
+    }
+
     private final String userStorageDir;
-    private final ConcurrentHashMap<String, List<Message>> cache;
+    private final ConversationCache cache = new ConversationCache();
+    /**
+     * 追加消息与从日志读取后放入缓存互斥：读取前先写完队列，读到的日志长度就是缓存窗口的末尾，
+     * 不会漏掉读取期间新到的消息
+     */
+    private final Object appendLock = new Object();
+    /** 已打开的聊天日志，key为目录名 */
+    private final ConcurrentHashMap<String, HistoryLog> logs = new ConcurrentHashMap<>();
+    /**
+     * 整理线程为整理而临时打开的目录 → 是否有人在等待打开它（由logs保护）；
+     * 有人等待时整理完当前分段就让出
+     */
+    private final Map<String, Boolean> compacting = new HashMap<>();
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "history-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private volatile boolean running = true;
+    /** 放入队列的条数 / 已追加到日志的条数，flush()据此等待，由progress保护 */
+    private final Object progress = new Object();
+    private long enqueued;
+    private long written;
+
+    // 指标
+    private volatile long batches;
+    private volatile long batchedMessages;
+    private volatile long syncs;
+    private volatile long syncNanos;
+    private volatile long lastSyncNanos;
+    private volatile long compactedSegments;
+    private volatile long compactedRecords;
+    private volatile long compactRawBytes;
+    private volatile long compactPackedBytes;
+    private volatile long compactNanos;
+    private volatile long droppedChats;
 
     /**
      * 构造函数
-     * 
+     *
      * @param userId 当前登录用户ID
      */
     public ChatHistoryManager(String userId) {
         this.userStorageDir = STORAGE_BASE_DIR + File.separator + userId;
-        this.cache = new ConcurrentHashMap<>();
 
         // 创建存储目录
         File dir = new File(userStorageDir);
         if (!dir.exists()) {
             dir.mkdirs();
         }
+
+        writer = new Thread(this::writeLoop, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+        compactor.scheduleWithFixedDelay(this::compactPass, Math.min(10000, COMPACT_MILLIS), COMPACT_MILLIS,
+                TimeUnit.MILLISECONDS);
     }
 
     /**
-     * 保存聊天记录到文件
-     * 
-     * @param chatKey  聊天标识（用户ID、"世界聊天"、"群聊:..."）
+     * 用给定的消息列表替换整个聊天的记录
+     * 【注意】会重写整个聊天，只用于批量导入；新消息请用addMessage()追加
+     *
+     * @param chatKey  聊天标识（用户ID、"世界聊天"、群地址）
      * @param messages 消息列表
      */
     public void saveMessages(String chatKey, List<Message> messages) {
         if (chatKey == null || messages == null) {
             return;
         }
+        synchronized (appendLock) {
+            deleteHistory(chatKey);
+            try {
+                HistoryLog log = log(chatKey);
+                for (Message message : messages) {
+                    log.append(message);
+                }
+                log.sync();
+                cache.put(chatKey, 0, messages, true);
+                System.out.println("聊天记录已保存: " + getDirname(chatKey) + " (" + messages.size() + "条)");
+            } catch (IOException e) {
+                System.err.println("保存聊天记录失败: " + getDirname(chatKey));
+                e.printStackTrace();
+            }
+        }
+    }
 
-        // 更新缓存
-        cache.put(chatKey, new ArrayList<>(messages));
-
-        // 保存到文件
-        String filename = getFilename(chatKey);
-        File file = new File(userStorageDir, filename);
+    /**
+     * 加载整个聊天的记录
+     * 【注意】整个聊天都会读入内存（超出缓存预算的部分不留在缓存中），显示聊天记录请用loadPage()
+     *
+     * @param chatKey 聊天标识
+     * @return 只读的消息列表，如果文件不存在或读取失败返回空列表
+     */
+    public List<Message> loadMessages(String chatKey) {
+        return loadPage(chatKey, -1, Integer.MAX_VALUE).getMessages();
+    }
 
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
-            oos.writeObject(new ArrayList<>(messages));
-            System.out.println("聊天记录已保存: " + filename + " (" + messages.size() + "条)");
-        } catch (IOException e) {
-            System.err.println("保存聊天记录失败: " + filename);
-            e.printStackTrace();
+    /**
+     * 按页加载聊天记录：序号小于before的最后max条消息
+     * <p>
+     * 【说明】通过日志的稀疏索引直接定位到这一页，只解码这一页的消息，
+     * 耗时与整个聊天有多少记录无关；不经过也不填充整个聊天的缓存
+     *
+     * @param chatKey 聊天标识
+     * @param before  游标（上一页的getFrom()），小于0表示从最新的消息开始
+     * @param max     每页最多的条数
+     * @return 一页消息，没有记录时返回空页
+     */
+    public Page loadPage(String chatKey, long before, int max) {
+        if (chatKey == null || max <= 0) {
+            return new Page(Collections.emptyList(), 0, 0);
+        }
+        Page cached = cache.page(chatKey, before, max);
+        if (cached != null) {
+            return cached;
+        }
+        synchronized (appendLock) {
+            // 等队列中已有的消息写完，日志的长度就是聊天的最新位置
+            flush();
+            if (!new File(userStorageDir, getDirname(chatKey)).isDirectory()
+                    && !new File(userStorageDir, getFilename(chatKey)).exists()) {
+                // 还没有记录：放入一个空窗口，之后的消息直接追加到缓存
+                cache.put(chatKey, 0, Collections.emptyList(), true);
+                return new Page(Collections.emptyList(), 0, 0);
+            }
+            try {
+                HistoryLog log = log(chatKey);
+                long size = log.size();
+                long to = before < 0 ? size : Math.min(before, size);
+                long from = Math.max(0, to - max);
+                long base = cache.base(chatKey);
+                if (base < 0) {
+                    // 不在缓存中：最新的一段读入后作为缓存窗口，更早的页只读不缓存
+                    List<Message> messages = log.read(from, to);
+                    cache.put(chatKey, from, messages, to == size);
+                    return new Page(messages, from, to);
+                }
+                if (to >= base) {
+                    // 窗口向前扩展到from
+                    cache.put(chatKey, from, log.read(from, base), false);
+                    List<Message> messages = cache.get(chatKey, from, to);
+                    if (messages != null) {
+                        return new Page(messages, from, to);
+                    }
+                }
+                return new Page(log.read(from, to), from, to);
+            } catch (IOException e) {
+                System.err.println("加载聊天记录失败: " + getDirname(chatKey));
+                e.printStackTrace();
+                return new Page(Collections.emptyList(), 0, 0);
+            }
         }
     }
 
     /**
-     * 从文件加载聊天记录
-     * 
+     * 追加单条消息：放入写入队列（由后台线程写入文件），聊天在缓存中时追加到缓存
+     *
      * @param chatKey 聊天标识
-     * @return 消息列表，如果文件不存在或读取失败返回空列表
+     * @param message 消息
      */
-    @SuppressWarnings("unchecked")
-    public List<Message> loadMessages(String chatKey) {
-        if (chatKey == null) {
-            return new ArrayList<>();
+    public void addMessage(String chatKey, Message message) {
+        if (chatKey == null || message == null) {
+            return;
+        }
+        synchronized (appendLock) {
+            synchronized (progress) {
+                enqueued++;
+            }
+            try {
+                queue.put(new PendingWrite(chatKey, message));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                synchronized (progress) {
+                    enqueued--;
+                }
+                return;
+            }
+            cache.append(chatKey, message);
+        }
+    }
+
+    /**
+     * 等待调用前放入队列的消息都已追加到日志（不等待fsync）
+     */
+    public void flush() {
+        synchronized (progress) {
+            long target = enqueued;
+            while (written < target && writer.isAlive()) {
+                try {
+                    progress.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
         }
+    }
 
-        // 先检查缓存
-        if (cache.containsKey(chatKey)) {
-            return new ArrayList<>(cache.get(chatKey));
+    /**
+     * 后台写入：批量追加，按条数或时间阈值对写过的日志各fsync一次
+     */
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        Set<HistoryLog> unsynced = Collections.newSetFromMap(new IdentityHashMap<>());
+        int unsyncedCount = 0;
+        long firstUnsynced = 0;
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, FLUSH_BATCH - 1);
+                }
+            } catch (InterruptedException e) {
+                // 不会被中断，继续写完队列
+            }
+            for (PendingWrite write : batch) {
+                try {
+                    HistoryLog log = log(write.chatKey);
+                    log.append(write.message);
+                    unsynced.add(log);
+                } catch (IOException e) {
+                    System.err.println("保存聊天记录失败: " + getDirname(write.chatKey));
+                    e.printStackTrace();
+                }
+            }
+            if (!batch.isEmpty()) {
+                if (unsyncedCount == 0) {
+                    firstUnsynced = System.nanoTime();
+                }
+                unsyncedCount += batch.size();
+                batches++;
+                batchedMessages += batch.size();
+                synchronized (progress) {
+                    written += batch.size();
+                    progress.notifyAll();
+                }
+                batch.clear();
+            }
+            boolean due = unsyncedCount >= FLUSH_BATCH
+                    || System.nanoTime() - firstUnsynced >= TimeUnit.MILLISECONDS.toNanos(FLUSH_MILLIS)
+                    || !running;
+            if (!unsynced.isEmpty() && due) {
+                long start = System.nanoTime();
+                for (HistoryLog log : unsynced) {
+                    try {
+                        log.sync();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                lastSyncNanos = System.nanoTime() - start;
+                syncNanos += lastSyncNanos;
+                syncs++;
+                unsynced.clear();
+                unsyncedCount = 0;
+            }
         }
+    }
 
-        // 从文件加载
-        String filename = getFilename(chatKey);
-        File file = new File(userStorageDir, filename);
+    /**
+     * 写入指标：队列深度、平均每批条数、刷盘耗时
+     */
+    public String describe() {
+        long b = batches;
+        long s = syncs;
+        return String.format("待写 %d | 批次 %d 平均 %.1f条 | 刷盘 %d 次 平均 %.1fms 最近 %.1fms | %s", queue.size(), b,
+                b == 0 ? 0.0 : batchedMessages / (double) b, s, s == 0 ? 0.0 : syncNanos / 1e6 / s,
+                lastSyncNanos / 1e6, cache.describe()) + " | " + describeCompaction();
+    }
 
-        if (!file.exists()) {
-            return new ArrayList<>();
+    /**
+     * 整理指标：压缩的分段数和条数、压缩率、吞吐量、清理的已删除聊天数
+     */
+    public String describeCompaction() {
+        long raw = compactRawBytes;
+        long nanos = compactNanos;
+        return String.format("整理 %d 段 %d 条 | 压缩率 %.1f%% (%.1fMB → %.1fMB) | 吞吐 %.1fMB/s | 清理已删除聊天 %d",
+                compactedSegments, compactedRecords, raw == 0 ? 0.0 : compactPackedBytes * 100.0 / raw,
+                raw / 1048576.0, compactPackedBytes / 1048576.0, nanos == 0 ? 0.0 : raw / 1048576.0 / (nanos / 1e9),
+                droppedChats);
+    }
+
+    /**
+     * 整理一遍：删除已删除聊天的目录，把各聊天的冷分段改写为压缩分段
+     */
+    private void compactPass() {
+        File[] dirs = new File(userStorageDir).listFiles(File::isDirectory);
+        if (dirs == null) {
+            return;
         }
+        for (File dir : dirs) {
+            if (!running) {
+                return;
+            }
+            String name = dir.getName();
+            if (name.startsWith(DELETED_PREFIX)) {
+                deleteTree(dir);
+                droppedChats++;
+            } else if (name.startsWith("chat_") && HistoryLog.hasColdSegments(dir, HOT_SEGMENTS)) {
+                try {
+                    compactDir(name);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("整理聊天记录失败: " + name);
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-            List<Message> messages = (List<Message>) ois.readObject();
-            cache.put(chatKey, messages);
-            System.out.println("聊天记录已加载: " + filename + " (" + messages.size() + "条)");
-            return new ArrayList<>(messages);
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("加载聊天记录失败: " + filename);
-            e.printStackTrace();
-            return new ArrayList<>();
+    /**
+     * 整理一个聊天目录：已打开的直接整理；未打开的临时打开，期间其他线程要打开它时等待当前分段整理完
+     */
+    private void compactDir(String name) throws IOException {
+        HistoryLog log;
+        boolean borrowed = false;
+        synchronized (logs) {
+            log = logs.get(name);
+            if (log == null) {
+                compacting.put(name, false);
+                borrowed = true;
+            }
+        }
+        try {
+            if (borrowed) {
+                log = new HistoryLog(new File(userStorageDir, name));
+            }
+            while (running && !yieldRequested(name)) {
+                long start = System.nanoTime();
+                HistoryLog.Compaction result = log.compactNext(HOT_SEGMENTS);
+                if (result == null) {
+                    break;
+                }
+                compactNanos += System.nanoTime() - start;
+                compactedSegments++;
+                compactedRecords += result.getRecords();
+                compactRawBytes += result.getRawBytes();
+                compactPackedBytes += result.getCompressedBytes();
+            }
+        } finally {
+            if (borrowed) {
+                if (log != null) {
+                    log.close();
+                }
+                synchronized (logs) {
+                    compacting.remove(name);
+                    logs.notifyAll();
+                }
+            }
+        }
+    }
+
+    private boolean yieldRequested(String name) {
+        synchronized (logs) {
+            return Boolean.TRUE.equals(compacting.get(name));
         }
     }
 
     /**
-     * 添加单条消息并保存
-     * 
-     * @param chatKey 聊天标识
-     * @param message 消息
+     * 等整理线程让出该目录（调用时持有logs）
      */
-    public void addMessage(String chatKey, Message message) {
-        List<Message> messages = loadMessages(chatKey);
-        messages.add(message);
-        saveMessages(chatKey, messages);
+    private void awaitCompaction(String name) {
+        while (compacting.containsKey(name)) {
+            compacting.put(name, true);
+            try {
+                logs.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void deleteTree(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
     }
 
     /**
@@ -132,23 +514,77 @@ public class ChatHistoryManager {
         cache.clear();
     }
 
+    /**
+     * 把一个聊天移出缓存（不删除文件），需要时再从文件读取
+     *
+     * @param chatKey 聊天标识
+     */
+    public void clearCache(String chatKey) {
+        cache.remove(chatKey);
+    }
+
     /**
      * 删除指定聊天的记录文件
-     * 
+     *
      * @param chatKey 聊天标识
      */
     public void deleteHistory(String chatKey) {
-        String filename = getFilename(chatKey);
-        File file = new File(userStorageDir, filename);
-        if (file.exists()) {
-            file.delete();
+        synchronized (appendLock) {
+            flush();
             cache.remove(chatKey);
+            String name = getDirname(chatKey);
+            synchronized (logs) {
+                awaitCompaction(name);
+                HistoryLog log = logs.remove(name);
+                try {
+                    if (log != null) {
+                        log.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                // 改名后立即返回，文件由整理线程删除；改名失败时直接删除
+                File dir = new File(userStorageDir, name);
+                if (dir.isDirectory()
+                        && !dir.renameTo(new File(userStorageDir, DELETED_PREFIX + name + "_" + System.nanoTime()))) {
+                    deleteTree(dir);
+                }
+            }
+            File legacy = new File(userStorageDir, getFilename(chatKey));
+            if (legacy.exists()) {
+                legacy.delete();
+            }
+        }
+    }
+
+    /**
+     * 写完队列中的消息，把所有聊天日志刷到磁盘并关闭（退出时调用）
+     */
+    public void close() {
+        // 写入线程最多等待FLUSH_MILLIS就会发现running已清除；不能中断它，中断会关闭正在写的FileChannel
+        running = false;
+        compactor.shutdown();
+        try {
+            // 整理线程写完当前分段后退出
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        System.out.println("聊天记录已写完: " + describe());
+        for (HistoryLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        logs.clear();
     }
 
     /**
      * 获取存储目录路径
-     * 
+     *
      * @return 存储目录绝对路径
      */
     public String getStorageDirectory() {
@@ -156,14 +592,75 @@ public class ChatHistoryManager {
     }
 
     /**
-     * 生成文件名
-     * 
+     * 打开聊天的日志；旧版本的.ser文件在这里导入
+     */
+    private HistoryLog log(String chatKey) throws IOException {
+        String name = getDirname(chatKey);
+        HistoryLog log = logs.get(name);
+        if (log != null) {
+            return log;
+        }
+        synchronized (logs) {
+            awaitCompaction(name);
+            log = logs.get(name);
+            if (log == null) {
+                File dir = new File(userStorageDir, name);
+                boolean fresh = !dir.isDirectory();
+                log = new HistoryLog(dir);
+                if (fresh) {
+                    importLegacy(chatKey, log);
+                }
+                logs.put(name, log);
+            }
+            return log;
+        }
+    }
+
+    /**
+     * 把旧版本的chat_{聊天标识}.ser导入日志，成功后删除
+     */
+    @SuppressWarnings("unchecked")
+    private void importLegacy(String chatKey, HistoryLog log) {
+        File file = new File(userStorageDir, getFilename(chatKey));
+        if (!file.exists()) {
+            return;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+            List<Message> messages = (List<Message>) ois.readObject();
+            for (Message message : messages) {
+                log.append(message);
+            }
+            log.sync();
+            file.delete();
+            System.out.println("聊天记录已转换: " + file.getName() + " (" + messages.size() + "条)");
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("转换旧聊天记录失败: " + file.getName());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 生成旧版本的文件名
+     *
      * @param chatKey 聊天标识
      * @return 文件名
      */
     private String getFilename(String chatKey) {
+        return "chat_" + sanitize(chatKey) + ".ser";
+    }
+
+    /**
+     * 生成聊天日志的目录名
+     *
+     * @param chatKey 聊天标识
+     * @return 目录名
+     */
+    private String getDirname(String chatKey) {
+        return "chat_" + sanitize(chatKey);
+    }
+
+    private static String sanitize(String chatKey) {
         // 清理文件名中的非法字符
-        String sanitized = chatKey.replaceAll("[\\\\/:*?\"<>|]", "_");
-        return "chat_" + sanitized + ".ser";
+        return chatKey.replaceAll("[\\\\/:*?\"<>|]", "_");
     }
 }
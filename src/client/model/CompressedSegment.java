@@ -0,0 +1,356 @@
+package client.model;
+
+import common.BinaryMessageCodec;
+import common.FileChecksums;
+import common.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 压缩的聊天记录分段 - 后台整理把不再写入的分段改写成按块压缩、按列存放的格式
+ * <p>
+ * 【文件格式】起始序号.zlog
+ *
+ * <pre>
+ * | 块1 | 块2 | ... | 块目录：每块 long 偏移 + int 长度 + int CRC32C | int 每块条数 | long 总条数 | int 块数 | int MAGIC |
+ * </pre>
+ *
+ * 每块BLOCK_RECORDS条消息，块内按列存放后整体用Deflater压缩（带预置字典）：
+ * - 发送时间列：与上一条的差值（zigzag varint），同一段对话的时间相近，差值只有一两个字节
+ * - 其余字段列：去掉内容和时间后的BinaryMessageCodec编码，同一聊天的发送者、类型、样式高度重复
+ * - 内容列：UTF-8文本，放在一起压缩，并能用上预置的聊天常用字典
+ * <p>
+ * 【读取】按序号定位到块，只解压需要的块；块目录在第一次读取时加载
+ *
+ * @author ChatRoom Team
+ */
+final class CompressedSegment {
+	static final String SUFFIX = ".zlog";
+	/** 每块的条数 */
+	private static final int BLOCK_RECORDS = Integer.getInteger("chat.history.blockRecords", 128);
+	private static final int MAGIC = 0x43485A31; // "CHZ1"
+	/** 文件尾：每块条数 + 总条数 + 块数 + MAGIC */
+	private static final int FOOTER = 4 + 8 + 4 + 4;
+	private static final int DIRECTORY_ENTRY = 8 + 4 + 4;
+	/** 单块解压后的上限，超过时认为块目录已损坏 */
+	private static final int MAX_BLOCK = 256 * 1024 * 1024;
+
+	/**
+	 * 预置字典：压缩小块时开头没有可引用的内容，预先给出聊天中常见的字词和格式，
+	 * Deflater优先匹配字典末尾的内容，越常用的放得越靠后
+	 */
+	private static final byte[] DICTIONARY = ("http://https://www..com.cn.png.jpg.gif.txt.pdf.docx.xlsx.pptx.zip.rar"
+			+ "[文件] [截图] 图片 文件 下载 发送 收到 已读 群聊 世界聊天 "
+			+ "ok OK okay thanks thank you hello hi yes no lol haha good night morning "
+			+ "上课 下课 作业 考试 老师 同学 开会 项目 代码 服务器 客户端 测试 "
+			+ "早上好 中午 下午 晚上 晚安 明天见 吃饭 睡觉 回家 周末 "
+			+ "今天 明天 昨天 现在 刚才 一下 一起 时间 问题 东西 事情 "
+			+ "知道 觉得 应该 需要 可以 可能 不是 没有 不会 不要 "
+			+ "什么 怎么 为什么 哪里 多少 这个 那个 这样 那样 "
+			+ "就是 还是 但是 因为 所以 如果 已经 然后 "
+			+ "我们 你们 他们 大家 自己 "
+			+ "好的 好吧 是的 对的 对啊 没事 没问题 不客气 谢谢 "
+			+ "哈哈哈 哈哈 嗯嗯 嗯 在吗 你好 ").getBytes(StandardCharsets.UTF_8);
+
+	private final File file;
+	/** 块目录，第一次读取时加载 */
+	private long[] offsets;
+	private int[] lengths;
+	private int[] crcs;
+	private int blockRecords;
+	private long count = -1;
+
+	CompressedSegment(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * 分段中的条数
+	 */
+	synchronized long count() throws IOException {
+		load();
+		return count;
+	}
+
+	/**
+	 * 读取分段内第 [from, to) 条（相对分段起点），只解压覆盖这个范围的块
+	 */
+	synchronized void read(long from, long to, List<Message> out) throws IOException {
+		load();
+		to = Math.min(to, count);
+		if (from >= to) {
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			for (int block = (int) (from / blockRecords); block < offsets.length
+					&& (long) block * blockRecords < to; block++) {
+				long first = (long) block * blockRecords;
+				List<Message> messages = decodeBlock(readBlock(channel, block));
+				int start = (int) Math.max(0, from - first);
+				int end = (int) Math.min(messages.size(), to - first);
+				for (int i = start; i < end; i++) {
+					out.add(messages.get(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * 把一个分段的全部消息压缩写入file：先写临时文件并刷盘，再改名，中途崩溃不会留下不完整的.zlog
+	 *
+	 * @return 写入的字节数
+	 */
+	static long write(List<Message> messages, File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		int blocks = (messages.size() + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+		ByteBuffer directory = ByteBuffer.allocate(blocks * DIRECTORY_ENTRY + FOOTER);
+		long offset = 0;
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			for (int i = 0; i < messages.size(); i += BLOCK_RECORDS) {
+				byte[] compressed = deflate(deflater,
+						encodeBlock(messages.subList(i, Math.min(messages.size(), i + BLOCK_RECORDS))));
+				out.write(compressed);
+				directory.putLong(offset).putInt(compressed.length).putInt(FileChecksums.crc32c(compressed));
+				offset += compressed.length;
+			}
+			directory.putInt(BLOCK_RECORDS).putLong(messages.size()).putInt(blocks).putInt(MAGIC);
+			out.write(directory.array());
+			out.getFD().sync();
+		} finally {
+			deflater.end();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("无法写入压缩分段: " + file.getPath());
+		}
+		return offset + directory.capacity();
+	}
+
+	// ==================== 块编码 ====================
+
+	/**
+	 * 按列编码一块：条数 | 时间差值列 | 其余字段列 | 内容列
+	 */
+	private static byte[] encodeBlock(List<Message> messages) throws IOException {
+		ByteArrayOutputStream times = new ByteArrayOutputStream();
+		ByteArrayOutputStream fields = new ByteArrayOutputStream();
+		ByteArrayOutputStream contents = new ByteArrayOutputStream();
+		long previous = 0;
+		for (Message msg : messages) {
+			// 时间+1，0表示没有发送时间
+			long time = msg.getSendTime() == null ? 0 : msg.getSendTime().getTime() + 1;
+			long delta = time - previous;
+			writeVarLong(times, (delta << 1) ^ (delta >> 63));
+			previous = time;
+
+			byte[] rest = BinaryMessageCodec.encode(copy(msg).content("").sendTime(null).build());
+			writeVarLong(fields, rest.length);
+			fields.write(rest, 0, rest.length);
+
+			if (msg.getContent() == null) {
+				writeVarLong(contents, 0);
+			} else {
+				byte[] text = msg.getContent().getBytes(StandardCharsets.UTF_8);
+				writeVarLong(contents, text.length + 1L);
+				contents.write(text, 0, text.length);
+			}
+		}
+		ByteArrayOutputStream block = new ByteArrayOutputStream(times.size() + fields.size() + contents.size() + 8);
+		writeVarLong(block, messages.size());
+		times.writeTo(block);
+		fields.writeTo(block);
+		contents.writeTo(block);
+		return block.toByteArray();
+	}
+
+	private static List<Message> decodeBlock(byte[] block) throws StreamCorruptedException {
+		int[] pos = { 0 };
+		int n = (int) readVarLong(block, pos);
+		if (n < 0 || n > block.length) {
+			throw new StreamCorruptedException("压缩块的条数无效: " + n);
+		}
+		long[] times = new long[n];
+		long previous = 0;
+		for (int i = 0; i < n; i++) {
+			long zigzag = readVarLong(block, pos);
+			previous += (zigzag >>> 1) ^ -(zigzag & 1);
+			times[i] = previous;
+		}
+		Message[] rest = new Message[n];
+		for (int i = 0; i < n; i++) {
+			int length = (int) readVarLong(block, pos);
+			if (length < 0 || pos[0] + length > block.length) {
+				throw new StreamCorruptedException("压缩块已损坏");
+			}
+			rest[i] = BinaryMessageCodec.decode(Arrays.copyOfRange(block, pos[0], pos[0] + length));
+			pos[0] += length;
+		}
+		List<Message> messages = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			int length = (int) readVarLong(block, pos) - 1;
+			String content = null;
+			if (length >= 0) {
+				if (pos[0] + length > block.length) {
+					throw new StreamCorruptedException("压缩块已损坏");
+				}
+				content = new String(block, pos[0], length, StandardCharsets.UTF_8);
+				pos[0] += length;
+			}
+			messages.add(copy(rest[i]).content(content).sendTime(times[i] == 0 ? null : new Date(times[i] - 1))
+					.build());
+		}
+		return messages;
+	}
+
+	private static Message.Builder copy(Message msg) {
+		return new Message.Builder()
+				.sender(msg.getSender())
+				.receiver(msg.getReceiver())
+				.content(msg.getContent())
+				.sendTime(msg.getSendTime())
+				.mesType(msg.getMesType())
+				.setUserlist(msg.getUserlist())
+				.fontColor(msg.getFontColor())
+				.bold(msg.isBold())
+				.fontSize(msg.getFontSize())
+				.fileName(msg.getFileName())
+				.fileData(msg.getFileData());
+	}
+
+	// ==================== 压缩和文件 ====================
+
+	private static byte[] deflate(Deflater deflater, byte[] raw) {
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 3 + 64);
+		byte[] buf = new byte[8192];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buf);
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] inflate(byte[] compressed) throws StreamCorruptedException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+			byte[] buf = new byte[8192];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buf);
+				if (n == 0) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(DICTIONARY);
+					} else if (inflater.needsInput()) {
+						throw new StreamCorruptedException("压缩块不完整");
+					}
+				}
+				out.write(buf, 0, n);
+				if (out.size() > MAX_BLOCK) {
+					throw new StreamCorruptedException("压缩块过大");
+				}
+			}
+			return out.toByteArray();
+		} catch (DataFormatException | IllegalArgumentException e) {
+			throw new StreamCorruptedException("压缩块无法解压: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private byte[] readBlock(FileChannel channel, int block) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(lengths[block]);
+		readFully(channel, buf, offsets[block]);
+		if (FileChecksums.crc32c(buf.array()) != crcs[block]) {
+			throw new StreamCorruptedException("压缩分段校验失败: " + file.getName() + " 第" + block + "块");
+		}
+		return inflate(buf.array());
+	}
+
+	/** 读取文件尾的块目录 */
+	private void load() throws IOException {
+		if (offsets != null) {
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < FOOTER) {
+				throw new StreamCorruptedException("压缩分段不完整: " + file.getName());
+			}
+			ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+			readFully(channel, footer, size - FOOTER);
+			int perBlock = footer.getInt(0);
+			long total = footer.getLong(4);
+			int blocks = footer.getInt(12);
+			if (footer.getInt(16) != MAGIC || perBlock <= 0 || blocks < 0
+					|| (long) blocks * DIRECTORY_ENTRY + FOOTER > size) {
+				throw new StreamCorruptedException("压缩分段格式错误: " + file.getName());
+			}
+			ByteBuffer directory = ByteBuffer.allocate(blocks * DIRECTORY_ENTRY);
+			readFully(channel, directory, size - FOOTER - directory.capacity());
+			long[] blockOffsets = new long[blocks];
+			int[] blockLengths = new int[blocks];
+			int[] blockCrcs = new int[blocks];
+			for (int i = 0; i < blocks; i++) {
+				blockOffsets[i] = directory.getLong(i * DIRECTORY_ENTRY);
+				blockLengths[i] = directory.getInt(i * DIRECTORY_ENTRY + 8);
+				blockCrcs[i] = directory.getInt(i * DIRECTORY_ENTRY + 12);
+			}
+			blockRecords = perBlock;
+			count = total;
+			lengths = blockLengths;
+			crcs = blockCrcs;
+			offsets = blockOffsets;
+		}
+	}
+
+	private static void writeVarLong(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarLong(byte[] buf, int[] pos) throws StreamCorruptedException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (pos[0] >= buf.length) {
+				throw new StreamCorruptedException("压缩块不完整");
+			}
+			byte b = buf[pos[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("varint过长");
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0) {
+				throw new StreamCorruptedException("压缩分段意外结束");
+			}
+		}
+	}
+}
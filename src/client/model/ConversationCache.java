@@ -0,0 +1,299 @@
+package client.model;
+
+import common.Message;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * 聊天记录缓存 - 客户端唯一的一份内存中的聊天记录，按内存预算淘汰
+ * <p>
+ * 【核心作用】
+ * 原先ManageClientService.messageBuffer和ChatHistoryManager.cache各保存一份完整的聊天，都没有上限，
+ * 读取时还要复制一份，客户端占用的内存随全部聊天记录增长。现在：
+ * - 每个聊天只在内存中保存最新的一段（窗口）：序号在 [base, end) 的消息，end为该聊天的最新一条之后
+ * - 加载更早的一页时窗口向前扩展，新消息追加到窗口末尾
+ * - 所有窗口的估算大小之和不超过 chat.history.cacheBytes（默认32MB）：
+ * 先按最近最少使用（LRU）淘汰整个聊天，只剩当前聊天仍然超出时从最早的消息开始丢弃；
+ * 被淘汰的部分需要时再从日志中按页读回
+ * <p>
+ * 【只读视图】
+ * 返回的消息列表是窗口的只读视图，不复制：窗口只在末尾追加，已有的槽位从不改写，
+ * 扩容和向前扩展换一个新数组，旧的视图仍然指向原来的数组
+ * <p>
+ * 【丢弃旧消息】
+ * 只把窗口起点（start）后移，不清空槽位也不复制，已有的视图不受影响；
+ * 被丢弃的前缀比窗口本身还长时才换一个紧凑的新数组，追加一条消息的均摊开销仍是常数
+ * <p>
+ * 【线程安全】
+ * 所有方法都是synchronized的
+ *
+ * @author ChatRoom Team
+ */
+public class ConversationCache {
+	/** 内存预算（估算的字节数） */
+	private static final long BUDGET = Long.getLong("chat.history.cacheBytes", 32L * 1024 * 1024);
+	/** 每条消息的固定开销估算（对象头、Date、字段引用等） */
+	private static final int MESSAGE_OVERHEAD = 160;
+
+	/**
+	 * 一个聊天在内存中的窗口：items[start, start+size) 依次为序号 base, base+1, ... 的消息
+	 */
+	private static final class Window {
+		Message[] items;
+		int start;
+		int size;
+		long base;
+		long bytes;
+
+		long end() {
+			return base + size;
+		}
+	}
+
+	/**
+	 * 窗口的只读视图
+	 */
+	private static final class View extends AbstractList<Message> implements RandomAccess {
+		private final Message[] items;
+		private final int offset;
+		private final int length;
+
+		View(Message[] items, int offset, int length) {
+			this.items = items;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public Message get(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + length);
+			}
+			return items[offset + index];
+		}
+
+		@Override
+		public int size() {
+			return length;
+		}
+	}
+
+	/** 聊天标识 → 窗口，按访问顺序排列（最久未用的在前） */
+	private final LinkedHashMap<String, Window> windows = new LinkedHashMap<>(16, 0.75f, true);
+	/** 与windows内容相同，查找时不改变LRU顺序 */
+	private final Map<String, Window> index = new HashMap<>();
+	private long residentBytes;
+	private long residentMessages;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long trimmed;
+
+	/**
+	 * 从内存中取一页：序号小于before的最后max条（before小于0表示最新一页），计入命中率
+	 *
+	 * @return 聊天不在内存中或窗口没有覆盖这一页时返回null
+	 */
+	public synchronized ChatHistoryManager.Page page(String chatKey, long before, int max) {
+		Window window = windows.get(chatKey);
+		if (window != null) {
+			long to = before < 0 ? window.end() : Math.min(before, window.end());
+			long from = Math.max(0, to - max);
+			if (from >= window.base) {
+				hits++;
+				return new ChatHistoryManager.Page(view(window, from, to), from, to);
+			}
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * 窗口覆盖 [from, to) 时返回只读视图，否则返回null（不计入命中率）
+	 */
+	public synchronized List<Message> get(String chatKey, long from, long to) {
+		Window window = peek(chatKey);
+		if (window == null || from < window.base || to > window.end() || from > to) {
+			return null;
+		}
+		return view(window, from, to);
+	}
+
+	/**
+	 * 窗口中最早一条消息的序号，聊天不在内存中时返回-1
+	 */
+	public synchronized long base(String chatKey) {
+		Window window = peek(chatKey);
+		return window == null ? -1 : window.base;
+	}
+
+	/**
+	 * 放入从日志读到的一段消息（序号从base开始）
+	 * <p>
+	 * 聊天不在内存中时，这一段必须一直到聊天的最新一条（latest），作为新的窗口；
+	 * 已在内存中时，这一段必须紧接在窗口之前，窗口向前扩展。其他情况不放入
+	 */
+	public synchronized void put(String chatKey, long base, List<Message> messages, boolean latest) {
+		Window window = windows.get(chatKey);
+		if (window == null) {
+			if (!latest) {
+				return;
+			}
+			window = new Window();
+			window.items = new Message[Math.max(16, messages.size() + messages.size() / 4)];
+			window.base = base;
+			windows.put(chatKey, window);
+			index.put(chatKey, window);
+			for (Message message : messages) {
+				window.items[window.size++] = message;
+				account(window, message, 1);
+			}
+		} else if (base + messages.size() == window.base && !messages.isEmpty()) {
+			int extra = messages.size();
+			Message[] items = new Message[window.size + extra + Math.max(16, window.size / 4)];
+			for (int i = 0; i < extra; i++) {
+				items[i] = messages.get(i);
+				account(window, items[i], 1);
+			}
+			System.arraycopy(window.items, window.start, items, extra, window.size);
+			window.items = items;
+			window.start = 0;
+			window.size += extra;
+			window.base = base;
+		} else {
+			return;
+		}
+		evict(window);
+	}
+
+	/**
+	 * 在聊天末尾追加一条消息（聊天不在内存中时忽略，需要时从日志读取）
+	 */
+	public synchronized void append(String chatKey, Message message) {
+		Window window = windows.get(chatKey);
+		if (window == null) {
+			return;
+		}
+		if (window.start + window.size == window.items.length) {
+			Message[] items = new Message[Math.max(16, window.size * 2)];
+			System.arraycopy(window.items, window.start, items, 0, window.size);
+			window.items = items;
+			window.start = 0;
+		}
+		window.items[window.start + window.size++] = message;
+		account(window, message, 1);
+		evict(window);
+	}
+
+	/**
+	 * 移出一个聊天（删除或整体替换聊天记录时调用）
+	 */
+	public synchronized void remove(String chatKey) {
+		Window window = windows.remove(chatKey);
+		index.remove(chatKey);
+		if (window != null) {
+			residentBytes -= window.bytes;
+			residentMessages -= window.size;
+		}
+	}
+
+	public synchronized void clear() {
+		windows.clear();
+		index.clear();
+		residentBytes = 0;
+		residentMessages = 0;
+	}
+
+	/**
+	 * 指标：命中率、驻留的聊天数、消息数和估算大小、淘汰次数
+	 */
+	public synchronized String describe() {
+		long lookups = hits + misses;
+		return String.format("缓存命中 %.1f%% (%d/%d) | 驻留 %d 个聊天 %d 条 %.1fMB / %.1fMB | 淘汰聊天 %d 丢弃旧消息 %d",
+				lookups == 0 ? 0.0 : hits * 100.0 / lookups, hits, lookups, windows.size(), residentMessages,
+				residentBytes / 1048576.0, BUDGET / 1048576.0, evictions, trimmed);
+	}
+
+	/**
+	 * 超出预算时先淘汰最久未用的其他聊天，仍然超出时丢弃current最早的消息
+	 */
+	private void evict(Window current) {
+		Iterator<Map.Entry<String, Window>> it = windows.entrySet().iterator();
+		while (residentBytes > BUDGET && it.hasNext()) {
+			Map.Entry<String, Window> entry = it.next();
+			Window eldest = entry.getValue();
+			if (eldest == current) {
+				continue;
+			}
+			it.remove();
+			index.remove(entry.getKey());
+			residentBytes -= eldest.bytes;
+			residentMessages -= eldest.size;
+			evictions++;
+		}
+		if (residentBytes <= BUDGET) {
+			return;
+		}
+		int drop = 0;
+		while (residentBytes > BUDGET && drop < current.size - 1) {
+			account(current, current.items[current.start + drop], -1);
+			drop++;
+		}
+		current.start += drop;
+		current.size -= drop;
+		current.base += drop;
+		trimmed += drop;
+		if (current.start > current.size) {
+			// 已有的视图可能还在引用旧的槽位，换一个新数组而不是清空
+			Message[] items = new Message[Math.max(16, current.size * 2)];
+			System.arraycopy(current.items, current.start, items, 0, current.size);
+			current.items = items;
+			current.start = 0;
+		}
+	}
+
+	/** 查找窗口，不改变LRU顺序 */
+	private Window peek(String chatKey) {
+		return index.get(chatKey);
+	}
+
+	private void account(Window window, Message message, int sign) {
+		long weight = sign * weigh(message);
+		window.bytes += weight;
+		residentBytes += weight;
+		residentMessages += sign;
+	}
+
+	private static List<Message> view(Window window, long from, long to) {
+		return new View(window.items, window.start + (int) (from - window.base), (int) (to - from));
+	}
+
+	/**
+	 * 估算一条消息占用的内存
+	 */
+	static long weigh(Message message) {
+		long bytes = MESSAGE_OVERHEAD;
+		bytes += chars(message.getSender()) + chars(message.getReceiver()) + chars(message.getContent())
+				+ chars(message.getMesType()) + chars(message.getFontColor()) + chars(message.getFileName());
+		if (message.getFileData() != null) {
+			bytes += 16 + message.getFileData().length;
+		}
+		if (message.getUserlist() != null) {
+			for (String entry : message.getUserlist()) {
+				bytes += 8 + chars(entry);
+			}
+		}
+		return bytes;
+	}
+
+	private static long chars(String s) {
+		return s == null ? 0 : 40 + 2L * s.length();
+	}
+}
@@ -0,0 +1,583 @@
+package client.model;
+
+import common.BinaryMessageCodec;
+import common.FileChecksums;
+import common.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 一个聊天的历史记录日志 - 只追加的分段文件加稀疏索引，写一条消息的开销与已有记录的多少无关
+ * <p>
+ * 【存储结构】
+ * 每个聊天一个目录，目录中：
+ * - 起始序号.log：分段文件，每条记录为 int 长度 | int CRC32C | 消息（BinaryMessageCodec编码），
+ * 写满 chat.history.segmentBytes（默认1MB）后换下一个分段
+ * - 起始序号.idx：分段的稀疏索引，每 INDEX_INTERVAL 条记录登记一次该记录在分段中的偏移
+ * <p>
+ * 序号从0开始连续编号，分段文件名就是其第一条记录的序号，
+ * 因此除最后一个分段外，每个分段的条数由相邻两个文件名相减得到，打开日志时不需要读取它们
+ * <p>
+ * 【压缩分段】
+ * 不再写入的旧分段由后台整理（compactNext）改写为 起始序号.zlog（见CompressedSegment），
+ * 序号不变，读取时按块解压；最后一个分段和最近的几个分段保持原样
+ * <p>
+ * 【崩溃恢复】
+ * 打开时只检查最后一个分段：从索引的最后一项开始顺序校验到文件末尾，
+ * 长度不完整或校验失败的尾部（写入中途崩溃留下的）被截掉，缺少的索引项补上。
+ * 压缩分段先写临时文件再改名，改名后才删除原分段，同一序号两种文件都在时以.zlog为准
+ * <p>
+ * 【线程安全】
+ * 所有方法都是synchronized的
+ *
+ * @author ChatRoom Team
+ */
+public class HistoryLog {
+	/** 分段大小，写满后换下一个分段 */
+	private static final long SEGMENT_BYTES = Long.getLong("chat.history.segmentBytes", 1024 * 1024);
+	/** 稀疏索引的间隔（条） */
+	static final int INDEX_INTERVAL = 32;
+	/** 记录头：长度 + CRC32C */
+	private static final int HEADER = 8;
+	/** 单条记录的上限，超过时认为长度字段已损坏 */
+	private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+	/**
+	 * 一次整理的结果
+	 */
+	public static final class Compaction {
+		private final long rawBytes;
+		private final long compressedBytes;
+		private final long records;
+
+		Compaction(long rawBytes, long compressedBytes, long records) {
+			this.rawBytes = rawBytes;
+			this.compressedBytes = compressedBytes;
+			this.records = records;
+		}
+
+		public long getRawBytes() {
+			return rawBytes;
+		}
+
+		public long getCompressedBytes() {
+			return compressedBytes;
+		}
+
+		public long getRecords() {
+			return records;
+		}
+	}
+
+	/**
+	 * 一个分段
+	 */
+	private static final class Segment {
+		final long firstSeq;
+		final File file;
+		final File indexFile;
+		/** 已压缩时不为null，此时file和indexFile已删除 */
+		CompressedSegment packed;
+		/** 记录条数（最后一个分段在追加时更新） */
+		long count;
+		long size;
+		/** 第 i 项为第 i*INDEX_INTERVAL 条记录的偏移，第一次读取时加载 */
+		long[] index;
+		int indexSize;
+
+		Segment(File dir, long firstSeq) {
+			this.firstSeq = firstSeq;
+			this.file = new File(dir, String.format("%016d.log", firstSeq));
+			this.indexFile = new File(dir, String.format("%016d.idx", firstSeq));
+		}
+
+		void addIndex(long offset) {
+			if (index == null) {
+				index = new long[16];
+			} else if (indexSize == index.length) {
+				index = Arrays.copyOf(index, Math.max(16, indexSize * 2));
+			}
+			index[indexSize++] = offset;
+		}
+	}
+
+	private final File dir;
+	private final List<Segment> segments = new ArrayList<>();
+	/** 已关闭或删除，整理结果不再换入 */
+	private boolean closed;
+	/** 最后一个分段的写通道 */
+	private FileChannel tail;
+	private FileChannel tailIndex;
+	/** 上次sync之后有新的追加 */
+	private boolean dirty;
+
+	/**
+	 * 打开（或创建）一个聊天的日志目录，恢复最后一个分段的尾部
+	 */
+	public HistoryLog(File dir) throws IOException {
+		this.dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("无法创建聊天记录目录: " + dir.getAbsolutePath());
+		}
+		File[] tmps = dir.listFiles((d, name) -> name.endsWith(CompressedSegment.SUFFIX + ".tmp"));
+		if (tmps != null) {
+			// 整理中途退出留下的临时文件
+			for (File tmp : tmps) {
+				tmp.delete();
+			}
+		}
+		long[] starts = segmentStarts(dir);
+		for (int i = 0; i < starts.length; i++) {
+			Segment segment = new Segment(dir, starts[i]);
+			File packed = packedFile(dir, starts[i]);
+			if (packed.exists()) {
+				// 压缩分段已完整写入，原分段（如果还在）可以删除
+				segment.file.delete();
+				segment.indexFile.delete();
+				segment.packed = new CompressedSegment(packed);
+				segment.size = packed.length();
+			} else {
+				segment.size = segment.file.length();
+			}
+			if (i + 1 < starts.length) {
+				segment.count = starts[i + 1] - starts[i];
+			}
+			segments.add(segment);
+		}
+		if (segments.isEmpty()) {
+			segments.add(new Segment(dir, 0));
+		}
+		Segment last = segments.get(segments.size() - 1);
+		if (last.packed != null) {
+			// 最后一个分段总是原样的，这里只是防御
+			last.count = last.packed.count();
+			last = new Segment(dir, last.firstSeq + last.count);
+			segments.add(last);
+		}
+		openTail(last);
+	}
+
+	/**
+	 * 目录中是否有可以整理的分段：除最后一个和最近hot个分段以外，还有未压缩的分段
+	 * 【说明】只看文件名，不打开日志
+	 */
+	public static boolean hasColdSegments(File dir, int hot) {
+		long[] starts = segmentStarts(dir);
+		for (int i = 0; i < starts.length - 1 - hot; i++) {
+			if (!packedFile(dir, starts[i]).exists()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 日志中的记录总数（下一条记录的序号）
+	 */
+	public synchronized long size() {
+		Segment last = segments.get(segments.size() - 1);
+		return last.firstSeq + last.count;
+	}
+
+	/**
+	 * 追加一条消息（只写入操作系统缓存，持久化由sync()完成）
+	 *
+	 * @return 这条消息的序号
+	 */
+	public synchronized long append(Message msg) throws IOException {
+		byte[] payload = BinaryMessageCodec.encode(msg);
+		Segment last = segments.get(segments.size() - 1);
+		if (last.size > 0 && last.size + HEADER + payload.length > SEGMENT_BYTES) {
+			last = roll();
+		}
+		ByteBuffer record = ByteBuffer.allocate(HEADER + payload.length);
+		record.putInt(payload.length).putInt(FileChecksums.crc32c(payload)).put(payload);
+		record.flip();
+		long offset = last.size;
+		while (record.hasRemaining()) {
+			tail.write(record, offset + record.position());
+		}
+		if (last.count % INDEX_INTERVAL == 0) {
+			writeIndex(last, offset);
+		}
+		last.size += HEADER + payload.length;
+		dirty = true;
+		return last.firstSeq + last.count++;
+	}
+
+	/**
+	 * 读取序号在 [from, to) 范围内的消息，无法解码的记录跳过
+	 */
+	public synchronized List<Message> read(long from, long to) throws IOException {
+		from = Math.max(from, 0);
+		to = Math.min(to, size());
+		List<Message> messages = new ArrayList<>((int) Math.max(0, Math.min(to - from, 4096)));
+		if (from >= to) {
+			return messages;
+		}
+		int i = segmentOf(from);
+		for (; i < segments.size() && from < to; i++) {
+			Segment segment = segments.get(i);
+			long end = Math.min(to, segment.firstSeq + segment.count);
+			readSegment(segment, from, end, messages);
+			from = end;
+		}
+		return messages;
+	}
+
+	/**
+	 * 把最早一个可以整理的分段（已封存，且不是最近hot个分段之一）改写为压缩格式
+	 * <p>
+	 * 封存的分段不再改变，读取和压缩在锁外进行，只有换入时持有锁，不阻塞追加和读取
+	 *
+	 * @param hot 保持原样的最近分段数（不含最后一个正在写入的分段）
+	 * @return 本次整理的结果，没有可整理的分段时返回null
+	 */
+	public Compaction compactNext(int hot) throws IOException {
+		Segment target = null;
+		synchronized (this) {
+			if (closed) {
+				return null;
+			}
+			for (int i = 0; i < segments.size() - 1 - hot; i++) {
+				if (segments.get(i).packed == null) {
+					target = segments.get(i);
+					break;
+				}
+			}
+			if (target == null) {
+				return null;
+			}
+		}
+		List<Message> messages = scan(target);
+		File packed = packedFile(dir, target.firstSeq);
+		long written = CompressedSegment.write(messages, packed);
+		synchronized (this) {
+			if (closed) {
+				packed.delete();
+				return null;
+			}
+			long rawBytes = target.file.length() + target.indexFile.length();
+			target.packed = new CompressedSegment(packed);
+			target.index = null;
+			target.indexSize = 0;
+			target.size = written;
+			target.file.delete();
+			target.indexFile.delete();
+			return new Compaction(rawBytes, written, messages.size());
+		}
+	}
+
+	/**
+	 * 把上次以来追加的内容刷到磁盘
+	 */
+	public synchronized void sync() throws IOException {
+		if (dirty) {
+			tail.force(false);
+			tailIndex.force(false);
+			dirty = false;
+		}
+	}
+
+	/**
+	 * 关闭文件（不删除）
+	 */
+	public synchronized void close() throws IOException {
+		closed = true;
+		sync();
+		tail.close();
+		tailIndex.close();
+	}
+
+	/**
+	 * 关闭并删除整个日志目录
+	 */
+	public synchronized void delete() throws IOException {
+		closed = true;
+		tail.close();
+		tailIndex.close();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	// ==================== 分段和索引 ====================
+
+	/** 序号所在的分段下标（二分查找） */
+	private int segmentOf(long seq) {
+		int lo = 0;
+		int hi = segments.size() - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (segments.get(mid).firstSeq <= seq) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * 从索引中离from最近的位置开始顺序读取 [from, to) 的记录
+	 */
+	private void readSegment(Segment segment, long from, long to, List<Message> out) throws IOException {
+		if (segment.packed != null) {
+			segment.packed.read(from - segment.firstSeq, to - segment.firstSeq, out);
+			return;
+		}
+		loadIndex(segment);
+		int slot = (int) ((from - segment.firstSeq) / INDEX_INTERVAL);
+		long ordinal = (long) slot * INDEX_INTERVAL;
+		long offset = slot < segment.indexSize ? segment.index[slot] : 0;
+		if (slot >= segment.indexSize) {
+			ordinal = 0;
+		}
+		try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			long seq = segment.firstSeq + ordinal;
+			while (seq < to && offset + HEADER <= segment.size) {
+				header.clear();
+				readFully(channel, header, offset);
+				int length = header.getInt(0);
+				if (length < 0 || length > MAX_RECORD || offset + HEADER + length > segment.size) {
+					throw new StreamCorruptedException("聊天记录分段已损坏: " + segment.file.getName());
+				}
+				if (seq >= from) {
+					ByteBuffer payload = ByteBuffer.allocate(length);
+					readFully(channel, payload, offset + HEADER);
+					try {
+						out.add(BinaryMessageCodec.decode(payload.array()));
+					} catch (StreamCorruptedException e) {
+						System.err.println("跳过无法解码的聊天记录: " + segment.file.getName() + " #" + seq);
+					}
+				}
+				offset += HEADER + length;
+				seq++;
+			}
+		}
+	}
+
+	/**
+	 * 顺序读出一个封存分段的全部消息（整理用）：任何一条校验或解码失败都放弃，不能改变序号
+	 */
+	private static List<Message> scan(Segment segment) throws IOException {
+		List<Message> messages = new ArrayList<>((int) Math.min(segment.count, 1 << 20));
+		try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			long offset = 0;
+			for (long i = 0; i < segment.count; i++) {
+				header.clear();
+				readFully(channel, header, offset);
+				int length = header.getInt(0);
+				if (length < 0 || length > MAX_RECORD || offset + HEADER + length > segment.size) {
+					throw new StreamCorruptedException("聊天记录分段已损坏: " + segment.file.getName());
+				}
+				ByteBuffer payload = ByteBuffer.allocate(length);
+				readFully(channel, payload, offset + HEADER);
+				if (FileChecksums.crc32c(payload.array()) != header.getInt(4)) {
+					throw new StreamCorruptedException("聊天记录校验失败: " + segment.file.getName() + " #"
+							+ (segment.firstSeq + i));
+				}
+				messages.add(BinaryMessageCodec.decode(payload.array()));
+				offset += HEADER + length;
+			}
+		}
+		return messages;
+	}
+
+	/** 目录中各分段（原样的.log和压缩的.zlog）的起始序号，升序 */
+	private static long[] segmentStarts(File dir) {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".log") || name.endsWith(CompressedSegment.SUFFIX));
+		long[] starts = new long[files == null ? 0 : files.length];
+		int n = 0;
+		for (int i = 0; i < starts.length; i++) {
+			String name = files[i].getName();
+			try {
+				starts[n] = Long.parseLong(name.substring(0, name.lastIndexOf('.')));
+				n++;
+			} catch (NumberFormatException ignored) {
+				// 不是分段文件
+			}
+		}
+		// 同一序号可能同时有.log和.zlog（整理换入时退出），去重
+		starts = Arrays.copyOf(starts, n);
+		Arrays.sort(starts);
+		int unique = 0;
+		for (int i = 0; i < starts.length; i++) {
+			if (i == 0 || starts[i] != starts[i - 1]) {
+				starts[unique++] = starts[i];
+			}
+		}
+		return Arrays.copyOf(starts, unique);
+	}
+
+	private static File packedFile(File dir, long firstSeq) {
+		return new File(dir, String.format("%016d", firstSeq) + CompressedSegment.SUFFIX);
+	}
+
+	/** 加载分段的稀疏索引；索引文件缺失或不完整时顺序扫描重建 */
+	private void loadIndex(Segment segment) throws IOException {
+		if (segment.index != null) {
+			return;
+		}
+		long expected = (segment.count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+		if (segment.indexFile.length() >= expected * 8) {
+			try (FileChannel channel = FileChannel.open(segment.indexFile.toPath(), StandardOpenOption.READ)) {
+				ByteBuffer buf = ByteBuffer.allocate((int) expected * 8);
+				readFully(channel, buf, 0);
+				for (int i = 0; i < expected; i++) {
+					segment.addIndex(buf.getLong(i * 8));
+				}
+			}
+			if (segment.index == null) {
+				segment.index = new long[0];
+			}
+			return;
+		}
+		// 索引不完整：扫描整个分段重建（只在索引文件丢失时发生）
+		segment.index = new long[0];
+		segment.indexSize = 0;
+		try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			long offset = 0;
+			for (long i = 0; i < segment.count && offset + HEADER <= segment.size; i++) {
+				if (i % INDEX_INTERVAL == 0) {
+					segment.addIndex(offset);
+				}
+				header.clear();
+				readFully(channel, header, offset);
+				offset += HEADER + header.getInt(0);
+			}
+		}
+	}
+
+	/**
+	 * 打开最后一个分段用于追加：从最后一个索引项开始校验到末尾，截掉损坏的尾部
+	 */
+	private void openTail(Segment segment) throws IOException {
+		tail = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		tailIndex = FileChannel.open(segment.indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long fileSize = tail.size();
+		// 读出索引中落在文件内的项
+		int entries = (int) (tailIndex.size() / 8);
+		ByteBuffer buf = ByteBuffer.allocate(entries * 8);
+		readFully(tailIndex, buf, 0);
+		segment.index = new long[0];
+		segment.indexSize = 0;
+		for (int i = 0; i < entries; i++) {
+			long offset = buf.getLong(i * 8);
+			if (offset >= fileSize || i > 0 && offset <= segment.index[i - 1]) {
+				break;
+			}
+			segment.addIndex(offset);
+		}
+		// 从最后一个索引项开始校验；该项本身无效时从头扫描
+		long offset = 0;
+		long count = 0;
+		if (segment.indexSize > 0) {
+			long start = segment.index[segment.indexSize - 1];
+			if (validRecord(start, fileSize) > 0) {
+				offset = start;
+				count = (long) (segment.indexSize - 1) * INDEX_INTERVAL;
+			} else {
+				segment.indexSize = 0;
+			}
+		}
+		while (true) {
+			int length = validRecord(offset, fileSize);
+			if (length < 0) {
+				break;
+			}
+			if (count % INDEX_INTERVAL == 0 && count / INDEX_INTERVAL >= segment.indexSize) {
+				segment.addIndex(offset);
+			}
+			offset += HEADER + length;
+			count++;
+		}
+		if (offset < fileSize) {
+			System.err.println("聊天记录 " + segment.file.getPath() + " 末尾 " + (fileSize - offset) + " 字节不完整，已截掉");
+			tail.truncate(offset);
+			tail.force(false);
+		}
+		// 索引文件与内存中的索引保持一致
+		ByteBuffer rewrite = ByteBuffer.allocate(segment.indexSize * 8);
+		for (int i = 0; i < segment.indexSize; i++) {
+			rewrite.putLong(segment.index[i]);
+		}
+		rewrite.flip();
+		tailIndex.truncate(0);
+		while (rewrite.hasRemaining()) {
+			tailIndex.write(rewrite, rewrite.position());
+		}
+		segment.size = offset;
+		segment.count = count;
+	}
+
+	/**
+	 * 校验offset处的记录
+	 *
+	 * @return 记录内容的长度，不完整或校验失败时返回-1
+	 */
+	private int validRecord(long offset, long fileSize) throws IOException {
+		if (offset + HEADER > fileSize) {
+			return -1;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		readFully(tail, header, offset);
+		int length = header.getInt(0);
+		if (length < 0 || length > MAX_RECORD || offset + HEADER + length > fileSize) {
+			return -1;
+		}
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		readFully(tail, payload, offset + HEADER);
+		return FileChecksums.crc32c(payload.array()) == header.getInt(4) ? length : -1;
+	}
+
+	/**
+	 * 封存最后一个分段，打开下一个
+	 */
+	private Segment roll() throws IOException {
+		Segment last = segments.get(segments.size() - 1);
+		tail.force(false);
+		tailIndex.force(false);
+		tail.close();
+		tailIndex.close();
+		Segment next = new Segment(dir, last.firstSeq + last.count);
+		segments.add(next);
+		openTail(next);
+		return next;
+	}
+
+	private void writeIndex(Segment segment, long offset) throws IOException {
+		ByteBuffer entry = ByteBuffer.allocate(8);
+		entry.putLong(offset).flip();
+		long position = (long) segment.indexSize * 8;
+		while (entry.hasRemaining()) {
+			tailIndex.write(entry, position + entry.position());
+		}
+		segment.addIndex(offset);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0) {
+				throw new StreamCorruptedException("聊天记录文件意外结束");
+			}
+		}
+	}
+}
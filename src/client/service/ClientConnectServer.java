@@ -1,16 +1,17 @@
 package client.service;
 
+import common.FrameConnection;
 import common.Message;
 import common.MessageType;
 import common.User;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 客户端连接服务器线程类 - 负责与服务器的网络通信
@@ -20,6 +21,8 @@ import java.util.List;
  * 2. 发送登录请求并处理响应
  * 3. 后台线程持续接收服务器消息
  * 4. 通过监听器机制分发消息给UI层
+ * 5. 定时发送心跳（MESSAGE_PING），根据回复计算往返延迟（RTT）
+ * 6. 分块文件传输消息交给FileTransferService处理
  * <p>
  * 【设计模式】
  * - 单例模式：全局唯一的服务器连接实例
@@ -42,15 +45,21 @@ public class ClientConnectServer extends Thread {
 	/** 与服务器的Socket连接 */
 	private final Socket socket;
 
-	/** 对象输入流 - 接收服务器消息 */
-	private ObjectInputStream ois;
-
-	/** 对象输出流 - 发送消息到服务器 */
-	private ObjectOutputStream oos;
+	/** 帧连接 - 按帧收发消息 */
+	private final FrameConnection connection;
 
 	/** 线程运行状态标志 */
 	private boolean isRunning = true;
 
+	/** 心跳间隔（毫秒），需小于服务端的心跳超时 */
+	private static final long HEARTBEAT_INTERVAL = Long.getLong("chat.heartbeat.interval", 10000);
+	/** 心跳定时器，登录成功后启动 */
+	private ScheduledExecutorService heartbeat;
+	/** 最近一次测得的往返延迟（毫秒），-1表示尚未测得 */
+	private volatile long lastRtt = -1;
+	/** 平滑后的往返延迟（毫秒），按TCP的做法取 7/8 旧值 + 1/8 新值 */
+	private volatile double smoothedRtt = -1;
+
 	// ==================== 监听器列表 ====================
 	/** 在线用户列表更新监听器 */
 	private final List<OnlineUserListener> onlineUserListeners = new ArrayList<>();
@@ -112,6 +121,23 @@ public class ClientConnectServer extends Thread {
 			groupCreateListeners.add(listener);
 	}
 
+	/** 往返延迟监听器列表 */
+	private final List<RttListener> rttListeners = new ArrayList<>();
+
+	/**
+	 * 往返延迟监听器接口
+	 * 【作用】每收到一次心跳回复，通知UI显示最新的网络延迟
+	 */
+	public interface RttListener {
+		void onRttUpdated(long rttMillis, long smoothedRttMillis);
+	}
+
+	/** 添加往返延迟监听器 */
+	public void addRttListener(RttListener listener) {
+		if (listener != null)
+			rttListeners.add(listener);
+	}
+
 	/**
 	 * 私有构造器 - 初始化Socket连接和IO流
 	 * 【设计说明】配合单例模式，只能通过getInstance获取实例
@@ -119,8 +145,7 @@ public class ClientConnectServer extends Thread {
 	private ClientConnectServer(User user, Socket socket) throws IOException {
 		this.user = user;
 		this.socket = socket;
-		oos = new ObjectOutputStream(socket.getOutputStream());
-		ois = new ObjectInputStream(socket.getInputStream());
+		this.connection = new FrameConnection(socket);
 	}
 
 	/**
@@ -164,7 +189,7 @@ public class ClientConnectServer extends Thread {
 				.content(user.getPassword())
 				.build();
 		sendMessage(loginMsg);
-		Message response = (Message) ois.readObject();
+		Message response = connection.readMessage();
 		if (MessageType.MESSAGE_LOGIN_SUCCEED.equals(response.getMesType())) {
 			// 从服务器返回的消息中获取昵称并更新
 			String nickname = response.getContent();
@@ -173,6 +198,7 @@ public class ClientConnectServer extends Thread {
 				user.setNicname(nickname);
 			}
 			this.start(); // 启动消息接收线程
+			startHeartbeat();
 			return true;
 		} else {
 			closeConnection();
@@ -180,6 +206,50 @@ public class ClientConnectServer extends Thread {
 		}
 	}
 
+	/**
+	 * 启动心跳定时器：定时发送带发送时刻的MESSAGE_PING
+	 */
+	private void startHeartbeat() {
+		heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "heartbeat");
+			t.setDaemon(true);
+			return t;
+		});
+		heartbeat.scheduleAtFixedRate(() -> sendMessage(new Message.Builder()
+				.mesType(MessageType.MESSAGE_PING)
+				.sender(user.getUserID())
+				.content(String.valueOf(System.nanoTime()))
+				.build()), 0, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 根据心跳回复计算往返延迟
+	 */
+	private void handlePong(Message msg) {
+		long sentAt;
+		try {
+			sentAt = Long.parseLong(msg.getContent());
+		} catch (NumberFormatException e) {
+			return;
+		}
+		long rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt);
+		lastRtt = rtt;
+		smoothedRtt = smoothedRtt < 0 ? rtt : smoothedRtt * 7 / 8 + rtt / 8.0;
+		for (RttListener l : rttListeners) {
+			l.onRttUpdated(rtt, Math.round(smoothedRtt));
+		}
+	}
+
+	/** 最近一次测得的往返延迟（毫秒），-1表示尚未测得 */
+	public long getLastRtt() {
+		return lastRtt;
+	}
+
+	/** 平滑后的往返延迟（毫秒），-1表示尚未测得 */
+	public long getSmoothedRtt() {
+		return Math.round(smoothedRtt);
+	}
+
 	/**
 	 * 消息接收线程主循环
 	 * <p>
@@ -190,7 +260,7 @@ public class ClientConnectServer extends Thread {
 	public void run() {
 		while (isRunning) {
 			try {
-				Message msg = (Message) ois.readObject();
+				Message msg = connection.readMessage();
 				handleMessage(msg);
 			} catch (IOException | ClassNotFoundException e) {
 				isRunning = false;
@@ -206,18 +276,30 @@ public class ClientConnectServer extends Thread {
 	 */
 	public void sendMessage(Message message) {
 		try {
-			oos.writeObject(message);
+			send(message);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * 发送消息到服务器，发送失败时抛出异常
+	 * 【用途】文件传输等需要感知发送失败的场景
+	 */
+	public void send(Message message) throws IOException {
+		connection.writeMessage(message);
+	}
+
 	/**
 	 * 关闭连接并释放资源
 	 * 【重要】关闭时重置单例instance为null
 	 */
 	public void closeConnection() {
 		isRunning = false;
+		if (heartbeat != null) {
+			heartbeat.shutdownNow();
+		}
+		FileTransferService.getInstance(user).suspendAll("与服务器的连接已断开，重新登录后自动续传");
 		try {
 			if (socket != null && !socket.isClosed())
 				socket.close();
@@ -232,18 +314,32 @@ public class ClientConnectServer extends Thread {
 	 * 消息分发处理
 	 * <p>
 	 * 【核心方法】根据消息类型分发给对应的监听器
-	 * - 在线用户列表 -> OnlineUserListener
-	 * - 聊天消息 -> 先缓存到ManageClientService，再通知PrivateMessageListener
+	 * - 在线用户列表、在线状态增量 -> 按版本号检查后交给OnlineUserListener
+	 * - 聊天消息、文件分享 -> 先缓存到ManageClientService，再通知PrivateMessageListener
 	 * - 群聊创建 -> GroupCreateListener
 	 * 
 	 * @param msg 收到的消息
 	 */
 	private void handleMessage(Message msg) {
 		String type = msg.getMesType();
+		if (MessageType.MESSAGE_PONG.equals(type)) {
+			handlePong(msg);
+			return;
+		}
+		if (isFileTransfer(type)) {
+			// 分块很多，不打印日志
+			FileTransferService.getInstance(user).handle(msg);
+			return;
+		}
 		System.out.println(msg);
 		switch (type) {
 			case MessageType.MESSAGE_RET_ONLINE_FRIEND:
-				// 在线用户列表更新
+			case MessageType.MESSAGE_PRESENCE_DELTA:
+				// 在线用户列表或增量：版本号不连续的增量不交给界面，改为重新请求完整列表
+				ManageClientService presence = ManageClientService.getInstance();
+				if (presence != null && !presence.acceptPresence(msg)) {
+					break;
+				}
 				for (OnlineUserListener l : onlineUserListeners) {
 					l.onMessageReceived(msg);
 				}
@@ -251,22 +347,11 @@ public class ClientConnectServer extends Thread {
 			case MessageType.MESSAGE_COMM_MES:
 			case MessageType.MESSAGE_WORLD_CHAT:
 			case MessageType.MESSAGE_GROUP_MES:
-				// 将消息存入缓存区
+			case MessageType.MESSAGE_FILE_OFFER:
+				// 将消息存入缓存区（文件分享只有元数据，和聊天消息一样保存）
 				ManageClientService service = ManageClientService.getInstance();
 				if (service != null) {
-					String key;
-					if (MessageType.MESSAGE_WORLD_CHAT.equals(type)) {
-						key = "世界聊天";
-					} else if (MessageType.MESSAGE_GROUP_MES.equals(type)) {
-						// 群聊使用群成员列表生成唯一key
-						List<String> members = msg.getUserlist();
-						List<String> sortedMembers = new ArrayList<>(members);
-						Collections.sort(sortedMembers);
-						key = "群聊:" + String.join(",", sortedMembers);
-					} else {
-						key = msg.getSender();
-					}
-					service.addMessageToBuffer(key, msg);
+					service.addMessageToBuffer(service.chatKeyOf(msg), msg);
 				}
 				// 通知监听器更新UI
 				for (PrivateMessageListener l : privateMessageListeners) {
@@ -299,4 +384,18 @@ public class ClientConnectServer extends Thread {
 				break;
 		}
 	}
+
+	private static boolean isFileTransfer(String type) {
+		switch (type) {
+			case MessageType.MESSAGE_FILE_BEGIN:
+			case MessageType.MESSAGE_FILE_CHUNK:
+			case MessageType.MESSAGE_FILE_END:
+			case MessageType.MESSAGE_FILE_ACK:
+			case MessageType.MESSAGE_FILE_ABORT:
+			case MessageType.MESSAGE_FILE_RESUME:
+				return true;
+			default:
+				return false;
+		}
+	}
 }
@@ -0,0 +1,148 @@
+package client.service;
+
+import common.FileChecksums;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * 下载目录的内容索引 - 按SHA-256记录downloads中已有的文件，相同内容只下载、只存一份
+ * <p>
+ * 【核心作用】
+ * 原先每收到一次文件就在downloads中完整写一份，同一个文件被多人转发时反复下载、反复占用磁盘。现在：
+ * - 收到的文件核对摘要后登记到 downloads/.sha256（摘要 → 文件名、大小、修改时间）
+ * - 收到带摘要的MESSAGE_FILE_BEGIN时先查索引，已有时直接回复已收齐，不再下载
+ * - 需要以另一个文件名保存已有内容时建立硬链接（文件系统不支持时才复制一份）
+ * <p>
+ * 【说明】
+ * 索引只在大小和修改时间都与登记时一致时才认为文件未被改动，不重新计算摘要，
+ * 因此可以在消息接收线程中直接查询；文件被修改、删除或覆盖后对应的条目自动失效
+ *
+ * @author ChatRoom Team
+ */
+public class DownloadStore {
+	/** 接收文件的保存目录 */
+	public static final File DOWNLOAD_DIR = new File("downloads");
+	/** 索引文件 */
+	private static final File INDEX_FILE = new File(DOWNLOAD_DIR, ".sha256");
+
+	/** 单例实例 */
+	private static DownloadStore instance;
+
+	/** 摘要 → "文件名|大小|修改时间" */
+	private final Properties index = new Properties();
+
+	private DownloadStore() {
+		if (INDEX_FILE.isFile()) {
+			try (InputStream in = new FileInputStream(INDEX_FILE)) {
+				index.load(in);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** 获取单例实例 */
+	public static synchronized DownloadStore getInstance() {
+		if (instance == null) {
+			instance = new DownloadStore();
+		}
+		return instance;
+	}
+
+	/**
+	 * 查找内容相同的已下载文件
+	 *
+	 * @return 不存在或登记后已被改动时返回null
+	 */
+	public synchronized File find(String hash, long size) {
+		String entry = hash == null ? null : index.getProperty(hash);
+		if (entry == null) {
+			return null;
+		}
+		// 文件名中可能有'|'，从后往前取大小和修改时间
+		int timeSep = entry.lastIndexOf('|');
+		int sizeSep = entry.lastIndexOf('|', timeSep - 1);
+		File file = sizeSep < 0 ? null : new File(DOWNLOAD_DIR, entry.substring(0, sizeSep));
+		if (file != null && file.isFile() && file.length() == size
+				&& entry.substring(sizeSep + 1).equals(size + "|" + file.lastModified())) {
+			return file;
+		}
+		index.remove(hash);
+		storeIndex();
+		return null;
+	}
+
+	/**
+	 * 把核对过摘要的临时文件（.part）改名保存为downloads/fileName并登记
+	 */
+	public synchronized File save(File part, String fileName, String hash) throws IOException {
+		File target = targetOf(fileName);
+		Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		register(hash, target);
+		return target;
+	}
+
+	/**
+	 * 以fileName保存一份已有的内容：同名时直接使用，否则建立硬链接，不支持时复制
+	 */
+	public synchronized File saveCopy(File existing, String fileName, String hash) throws IOException {
+		File target = targetOf(fileName);
+		if (target.getCanonicalFile().equals(existing.getCanonicalFile())) {
+			return existing;
+		}
+		Files.deleteIfExists(target.toPath());
+		try {
+			Files.createLink(target.toPath(), existing.toPath());
+		} catch (IOException | UnsupportedOperationException e) {
+			Files.copy(existing.toPath(), target.toPath());
+		}
+		// 硬链接与原文件共享修改时间，原条目仍然有效；新条目指向最近保存的文件名
+		register(hash, target);
+		return target;
+	}
+
+	/**
+	 * 保存整文件消息（截图）的内容；相同内容已下载过时不再写盘
+	 */
+	public File save(byte[] data, String fileName) throws IOException {
+		String hash = FileChecksums.toHex(FileChecksums.newFileDigest().digest(data));
+		synchronized (this) {
+			File existing = find(hash, data.length);
+			if (existing != null) {
+				return saveCopy(existing, fileName, hash);
+			}
+			File target = targetOf(fileName);
+			Files.write(target.toPath(), data);
+			register(hash, target);
+			return target;
+		}
+	}
+
+	private static File targetOf(String fileName) {
+		if (!DOWNLOAD_DIR.exists()) {
+			DOWNLOAD_DIR.mkdirs();
+		}
+		return new File(DOWNLOAD_DIR, fileName);
+	}
+
+	private void register(String hash, File file) {
+		index.setProperty(hash, file.getName() + "|" + file.length() + "|" + file.lastModified());
+		storeIndex();
+	}
+
+	private void storeIndex() {
+		try (OutputStream out = new FileOutputStream(INDEX_FILE)) {
+			index.store(out, null);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,1102 @@
+package client.service;
+
+import common.FileChecksums;
+import common.Message;
+import common.MessageType;
+import common.User;
+import client.utils.ScreenshotUtil;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 分块文件传输服务 - 以固定大小的分块流式收发文件，支持断点续传
+ * <p>
+ * 【核心作用】
+ * 原先发送文件要把整个文件读进一个byte[]放进一条MESSAGE_FILE，发送方、服务端、
+ * 接收方都要在内存中持有完整文件，因此只能限制在5MB。现在改为：
+ * 1. 发送方先计算整文件SHA-256，发MESSAGE_FILE_BEGIN（传输ID、文件名、总大小、分块大小、摘要）
+ * 2. 收到MESSAGE_FILE_RESUME（对方已有的字节数，新传输为0）后从该位置开始
+ * 3. 边读文件边发MESSAGE_FILE_CHUNK，每块 chat.file.chunkSize（默认128KB），带CRC32C
+ * 4. 接收方校验后写入 downloads/文件名.ID前缀.part，每写完一块回一条MESSAGE_FILE_ACK
+ * 5. 发完后发MESSAGE_FILE_END（带整文件SHA-256），接收方核对大小和摘要后把.part改名为正式文件
+ * 任何一方出错都发MESSAGE_FILE_ABORT，对方清理现场
+ * <p>
+ * 服务端（FileRelay）把分块写入暂存文件：发送方收到的ACK来自服务端，表示分块已落盘；
+ * 接收方的ACK只回给服务端
+ * <p>
+ * 【分享与按需下载】
+ * 发送只是把文件上传到服务端，不再直接推给对方。上传完成后发一条MESSAGE_FILE_OFFER
+ * （文件名、大小、摘要、图片的缩略图）到私聊、群聊或世界聊天；接收方点击下载时
+ * 调用fetch()发MESSAGE_FILE_FETCH，服务端以上面同样的BEGIN/CHUNK/END序列投递。
+ * 一个文件在服务端只存一份，不需要的人不必下载
+ * <p>
+ * 【断点续传】
+ * - 传输开始时把续传所需的信息写入 transfers/用户ID/传输ID.properties
+ * - 连接断开时传输只是暂停，不删除.part和续传信息；重新登录后resumePending()
+ * 用同一个传输ID重新发送BEGIN（上传）或FETCH（下载），从对方已有的位置继续
+ * - 接收方收到同一传输ID的BEGIN时，回RESUME告知本地.part中已有的完整分块
+ * - 分块CRC不一致时回RESUME要求从该分块重发，连续失败 MAX_RETRIES 次才中止
+ * - 接收方续传前需要重新计算一次本地已有部分的摘要（读一遍已传部分）
+ * <p>
+ * 【去重（秒传）】
+ * 服务端仓库（BlobStore）中已有相同摘要的内容时，对BEGIN回复的RESUME偏移量等于总大小，
+ * 发送方直接发END结束；接收方在DownloadStore中查到相同内容时不发FETCH，
+ * 以新文件名建立硬链接而不是重新下载
+ * <p>
+ * 【流量控制】
+ * 发送方最多领先确认 chat.file.window（默认8）块，超过就等待ACK。
+ * 服务端向接收方投递时使用同样的窗口，因此无论文件多大，
+ * 同一传输在服务端发件箱和网络中的在途数据都不超过一个窗口
+ * <p>
+ * 【进度与速率】
+ * 发送方以服务端确认的字节数、接收方以已写盘的字节数计算进度，
+ * 通过TransferListener通知界面（进度回调最多每200ms一次）
+ *
+ * @author ChatRoom Team
+ */
+public class FileTransferService {
+	/** 分块大小（字节） */
+	public static final int CHUNK_SIZE = Integer.getInteger("chat.file.chunkSize", 128 * 1024);
+	/** 发送窗口：最多允许多少块未被确认 */
+	public static final int WINDOW_CHUNKS = Integer.getInteger("chat.file.window", 8);
+	/** 单个文件大小上限（字节），默认4GB */
+	public static final long MAX_FILE_SIZE = Long.getLong("chat.file.maxSize", 4L * 1024 * 1024 * 1024);
+	/** 等待确认的超时（毫秒），超时视为对方已失联 */
+	private static final long ACK_TIMEOUT = Long.getLong("chat.file.ackTimeout", 30000);
+	/** 续传信息保留多久（毫秒），与服务端暂存的保留时间一致 */
+	private static final long RESUME_TTL = Long.getLong("chat.file.resumeTtl", TimeUnit.HOURS.toMillis(24));
+	/** 同一个分块连续校验失败的次数上限 */
+	private static final int MAX_RETRIES = 3;
+	/** 分享消息中缩略图的最大边长（像素） */
+	private static final int THUMBNAIL_SIZE = 120;
+	/** 进度回调的最小间隔 */
+	private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+	/** 续传信息的根目录（按用户分子目录） */
+	private static final String RESUME_BASE_DIR = "transfers";
+
+	/** 单例实例 */
+	private static FileTransferService instance;
+
+	/** 当前登录用户 */
+	private final User user;
+	/** 当前用户的续传信息目录 */
+	private final File resumeDir;
+
+	/** 正在发送的传输，key为传输ID */
+	private final Map<String, Transfer> outgoing = new ConcurrentHashMap<>();
+	/** 正在接收的传输，key为传输ID */
+	private final Map<String, Transfer> incoming = new ConcurrentHashMap<>();
+	/** 已发出FETCH、还没收到BEGIN的下载，key为传输ID */
+	private final Map<String, Transfer> pendingFetches = new ConcurrentHashMap<>();
+
+	/** 传输状态监听器列表 */
+	private final List<TransferListener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * 传输状态监听器接口
+	 * 【注意】回调在发送线程或消息接收线程中执行，更新界面需切换到EDT
+	 */
+	public interface TransferListener {
+		/** 开始一次传输（发送或接收，包括续传） */
+		void onStarted(Transfer transfer);
+
+		/** 进度更新 */
+		void onProgress(Transfer transfer);
+
+		/** 传输结束，成功与否见 {@link Transfer#getError()} */
+		void onFinished(Transfer transfer);
+	}
+
+	/**
+	 * 发送消息时连接已断开：传输应暂停等待续传，而不是中止
+	 */
+	private static class ConnectionLostException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ConnectionLostException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * 一次文件传输的状态
+	 */
+	public static class Transfer {
+		private final String id;
+		private final String peer;
+		private final String fileName;
+		private final long totalBytes;
+		private final int chunkSize;
+		private final boolean sending;
+		private final long startNanos = System.nanoTime();
+		/** 发送方：对方已确认的字节数；接收方：已写盘的字节数 */
+		private volatile long transferredBytes;
+		/** 本次从哪里开始（续传时大于0），用于计算速率 */
+		private volatile long resumedFrom;
+		private volatile long finishNanos;
+		private volatile String error;
+		/** 因连接断开而暂停，续传信息仍保留 */
+		private volatile boolean suspended;
+		private volatile File savedFile;
+		private long lastReportNanos;
+		/** 接收方已写入部分的SHA-256 */
+		private MessageDigest digest;
+		/** 整文件SHA-256：发送方计算得出，接收方来自BEGIN（可能为null） */
+		private volatile String hash;
+		/** 对方（服务端或本地下载目录）已有相同内容，没有实际传输 */
+		private volatile boolean deduplicated;
+
+		// 仅发送方使用
+		/** 上传完成后发出的分享消息 */
+		private volatile Message offer;
+		/** 对方要求从这里继续发送（RESUME），-1表示没有 */
+		private volatile long rewindTo = -1;
+		private boolean endSent;
+		private boolean endAcknowledged;
+
+		// 仅接收方使用
+		private FileChannel channel;
+		private File partFile;
+		/** 下载目录中已有的相同内容，不为null时不写.part */
+		private File localCopy;
+		/** 当前分块连续校验失败的次数 */
+		private int retries;
+
+		private Transfer(String id, String peer, String fileName, long totalBytes, int chunkSize, boolean sending) {
+			this.id = id;
+			this.peer = peer;
+			this.fileName = fileName;
+			this.totalBytes = totalBytes;
+			this.chunkSize = chunkSize;
+			this.sending = sending;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * 发送方：分享对象（用户ID、MESSAGE_WORLD_CHAT或群地址）；
+		 * 接收方：分享者的用户ID
+		 */
+		public String getPeer() {
+			return peer;
+		}
+
+		public String getFileName() {
+			return fileName;
+		}
+
+		public long getTotalBytes() {
+			return totalBytes;
+		}
+
+		public long getTransferredBytes() {
+			return transferredBytes;
+		}
+
+		/** 续传的起点，0表示从头开始 */
+		public long getResumedFrom() {
+			return resumedFrom;
+		}
+
+		/** true表示本端是发送方 */
+		public boolean isSending() {
+			return sending;
+		}
+
+		/** true表示对方已有相同内容（秒传），没有实际传输文件内容 */
+		public boolean isDeduplicated() {
+			return deduplicated;
+		}
+
+		/** 失败原因，成功或仍在进行中时为null */
+		public String getError() {
+			return error;
+		}
+
+		/** true表示因连接断开而暂停，重新登录后会自动续传 */
+		public boolean isSuspended() {
+			return suspended;
+		}
+
+		/** 发送成功后发出的分享消息，界面据此显示在自己的聊天记录中 */
+		public Message getOffer() {
+			return offer;
+		}
+
+		/** 接收成功后保存的文件 */
+		public File getSavedFile() {
+			return savedFile;
+		}
+
+		public boolean isFinished() {
+			return finishNanos != 0;
+		}
+
+		/** 进度百分比 */
+		public int getPercent() {
+			return totalBytes == 0 ? 100 : (int) (transferredBytes * 100 / totalBytes);
+		}
+
+		/** 已用时间（毫秒） */
+		public long getElapsedMillis() {
+			long end = finishNanos != 0 ? finishNanos : System.nanoTime();
+			return TimeUnit.NANOSECONDS.toMillis(end - startNanos);
+		}
+
+		/** 本次的平均速率（字节/秒），不计续传前已传的部分 */
+		public long getBytesPerSecond() {
+			long millis = Math.max(1, getElapsedMillis());
+			return (transferredBytes - resumedFrom) * 1000 / millis;
+		}
+
+		/** 进度描述，如 "发送 a.zip 45% 12.0MB/26.7MB 3.2MB/s" */
+		public String describe() {
+			return (sending ? "发送 " : "接收 ") + fileName + " " + getPercent() + "% "
+					+ formatBytes(transferredBytes) + "/" + formatBytes(totalBytes) + " "
+					+ formatBytes(getBytesPerSecond()) + "/s";
+		}
+
+		private synchronized void acknowledge(long bytes) {
+			if (bytes > transferredBytes) {
+				transferredBytes = bytes;
+			}
+			if (endSent) {
+				endAcknowledged = true;
+			}
+			notifyAll();
+		}
+
+		/** 对方要求从offset开始（重新）发送 */
+		private synchronized void rewind(long offset) {
+			rewindTo = offset;
+			notifyAll();
+		}
+
+		/** 取出并清除待处理的RESUME，没有时返回-1 */
+		private synchronized long takeRewind() {
+			long offset = rewindTo;
+			rewindTo = -1;
+			return offset;
+		}
+
+		private synchronized void markEndSent() {
+			endSent = true;
+		}
+
+		private synchronized void fail(String reason) {
+			if (error == null && finishNanos == 0) {
+				error = reason;
+				finishNanos = System.nanoTime();
+			}
+			notifyAll();
+		}
+
+		/** 连接断开：结束本次传输，但保留续传信息 */
+		private void suspend(String reason) {
+			suspended = true;
+			fail(reason);
+		}
+
+		private synchronized void complete() {
+			if (finishNanos == 0) {
+				finishNanos = System.nanoTime();
+			}
+		}
+
+		/**
+		 * 发送方等待对方确认到至少 bytes 字节；对方要求重发时提前返回
+		 *
+		 * @throws IOException 传输被中止或等待确认超时
+		 */
+		private synchronized void awaitAcknowledged(long bytes) throws IOException {
+			awaitCondition(() -> transferredBytes >= bytes || rewindTo >= 0);
+		}
+
+		/** 发送方等待服务端的RESUME（回复BEGIN） */
+		private synchronized void awaitRewind() throws IOException {
+			awaitCondition(() -> rewindTo >= 0);
+		}
+
+		/** 发送方等待END之后的最终确认 */
+		private synchronized void awaitEndAcknowledged() throws IOException {
+			awaitCondition(() -> endAcknowledged);
+		}
+
+		private void awaitCondition(BooleanSupplier condition) throws IOException {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT);
+			while (!condition.getAsBoolean() && error == null) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new IOException("等待对方确认超时");
+				}
+				try {
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("传输被中断");
+				}
+			}
+			if (error != null) {
+				throw new IOException(error);
+			}
+		}
+	}
+
+	private FileTransferService(User user) {
+		this.user = user;
+		this.resumeDir = new File(RESUME_BASE_DIR, user.getUserID());
+	}
+
+	/**
+	 * 获取单例实例
+	 *
+	 * @param user 当前登录用户
+	 */
+	public static synchronized FileTransferService getInstance(User user) {
+		if (instance == null) {
+			instance = new FileTransferService(user);
+		}
+		return instance;
+	}
+
+	/** 添加传输状态监听器 */
+	public void addTransferListener(TransferListener listener) {
+		if (listener != null)
+			listeners.add(listener);
+	}
+
+	/**
+	 * 在后台线程中上传文件，完成后分享到指定的聊天
+	 *
+	 * @param receiver 私聊为对方的用户ID，世界聊天为MESSAGE_WORLD_CHAT，群聊为群地址
+	 * @return 本次传输，用于显示进度
+	 * @throws IOException 文件不可读或超过大小上限
+	 */
+	public Transfer shareFile(File file, String receiver) throws IOException {
+		if (!file.isFile() || !file.canRead()) {
+			throw new IOException("无法读取文件: " + file.getName());
+		}
+		if (file.length() > MAX_FILE_SIZE) {
+			throw new IOException("文件大小超过" + formatBytes(MAX_FILE_SIZE) + "限制");
+		}
+		Transfer transfer = new Transfer(UUID.randomUUID().toString(), receiver, file.getName(), file.length(),
+				CHUNK_SIZE, true);
+		Properties state = new Properties();
+		state.setProperty("path", file.getAbsolutePath());
+		state.setProperty("lastModified", String.valueOf(file.lastModified()));
+		saveState(transfer, state);
+		startSending(transfer, file);
+		return transfer;
+	}
+
+	/**
+	 * 重新登录后继续上次因断线暂停的上传和下载，同时清理过期的续传信息
+	 *
+	 * @return 继续的传输数
+	 */
+	public int resumePending() {
+		File[] files = resumeDir.listFiles((dir, name) -> name.endsWith(".properties"));
+		if (files == null) {
+			return 0;
+		}
+		int count = 0;
+		long deadline = System.currentTimeMillis() - RESUME_TTL;
+		for (File stateFile : files) {
+			String id = stateFile.getName().substring(0, stateFile.getName().length() - ".properties".length());
+			Properties state = loadState(id);
+			if (state == null) {
+				continue;
+			}
+			if (stateFile.lastModified() < deadline) {
+				discardState(id, state);
+				continue;
+			}
+			if (outgoing.containsKey(id) || incoming.containsKey(id) || pendingFetches.containsKey(id)) {
+				continue;
+			}
+			if ("receive".equals(state.getProperty("direction"))) {
+				if (resumeFetch(id, state)) {
+					count++;
+				}
+				continue;
+			}
+			File file = new File(state.getProperty("path", ""));
+			long totalBytes = Long.parseLong(state.getProperty("totalBytes", "-1"));
+			if (!file.isFile() || file.length() != totalBytes
+					|| !String.valueOf(file.lastModified()).equals(state.getProperty("lastModified"))) {
+				// 源文件已被修改或删除，无法续传
+				discardState(id, state);
+				continue;
+			}
+			Transfer transfer = new Transfer(id, state.getProperty("peer"), state.getProperty("fileName"), totalBytes,
+					Integer.parseInt(state.getProperty("chunkSize")), true);
+			startSending(transfer, file);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * 用同一个传输ID重新请求下载；没有摘要的旧续传信息（服务端直接推送时期的）无法续传，直接删除
+	 */
+	private boolean resumeFetch(String id, Properties state) {
+		String hash = state.getProperty("sha256");
+		if (hash == null) {
+			discardState(id, state);
+			return false;
+		}
+		Transfer transfer = new Transfer(id, state.getProperty("peer"), state.getProperty("fileName"),
+				Long.parseLong(state.getProperty("totalBytes", "0")), CHUNK_SIZE, false);
+		transfer.hash = hash;
+		try {
+			requestFetch(transfer);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void startSending(Transfer transfer, File file) {
+		outgoing.put(transfer.id, transfer);
+		new Thread(() -> runSend(transfer, file), "FileTransferThread").start();
+	}
+
+	/**
+	 * 发送线程：计算摘要，发BEGIN并等待续传点，然后边读文件边发送分块，在途数据超过窗口时等待确认
+	 */
+	private void runSend(Transfer transfer, File file) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(transfer.chunkSize);
+			transfer.hash = hashOf(transfer, channel, buffer);
+			send(MessageType.MESSAGE_FILE_BEGIN, transfer,
+					transfer.totalBytes + "|" + transfer.chunkSize + "|" + transfer.hash, transfer.fileName, null);
+			transfer.awaitRewind();
+			long offset = transfer.takeRewind();
+			if (offset < 0 || offset > transfer.totalBytes || offset % transfer.chunkSize != 0
+					&& offset != transfer.totalBytes) {
+				throw new IOException("无效的续传位置 " + offset);
+			}
+			transfer.resumedFrom = offset;
+			transfer.deduplicated = offset == transfer.totalBytes && offset > 0;
+			transfer.acknowledge(offset);
+			fireStarted(transfer);
+
+			long window = (long) WINDOW_CHUNKS * transfer.chunkSize;
+			while (true) {
+				long rewind = transfer.takeRewind();
+				if (rewind >= 0 && rewind <= offset && rewind % transfer.chunkSize == 0) {
+					// 对方校验失败，从该分块重发
+					offset = rewind;
+				}
+				if (offset >= transfer.totalBytes) {
+					// 全部确认后才发END，期间可能还会收到重发请求
+					transfer.awaitAcknowledged(transfer.totalBytes);
+					if (transfer.rewindTo >= 0) {
+						continue;
+					}
+					break;
+				}
+				transfer.awaitAcknowledged(offset - window + transfer.chunkSize);
+				if (transfer.rewindTo >= 0) {
+					continue;
+				}
+				int n = readChunk(channel, buffer, offset);
+				send(MessageType.MESSAGE_FILE_CHUNK, transfer,
+						offset + "|" + FileChecksums.crcToString(FileChecksums.crc32c(buffer.array(), 0, n)), null,
+						Arrays.copyOf(buffer.array(), n));
+				offset += n;
+			}
+			transfer.markEndSent();
+			send(MessageType.MESSAGE_FILE_END, transfer, transfer.totalBytes + "|" + transfer.hash, null, null);
+			transfer.awaitEndAcknowledged();
+			sendOffer(transfer, file);
+			transfer.complete();
+			deleteState(transfer.id);
+		} catch (IOException e) {
+			if (transfer.suspended || e instanceof ConnectionLostException) {
+				transfer.suspend(e.getMessage());
+			} else {
+				if (transfer.error == null) {
+					sendAbort(transfer, e.getMessage());
+				}
+				transfer.fail(e.getMessage());
+				deleteState(transfer.id);
+			}
+		} finally {
+			outgoing.remove(transfer.id);
+			fireFinished(transfer);
+		}
+	}
+
+	/**
+	 * 上传完成后发出分享消息：只有元数据，图片另带一张缩略图
+	 */
+	private void sendOffer(Transfer transfer, File file) throws IOException {
+		Message.Builder builder = new Message.Builder()
+				.mesType(MessageType.MESSAGE_FILE_OFFER)
+				.sender(user.getUserID())
+				.receiver(transfer.peer)
+				.content(transfer.hash + "|" + transfer.totalBytes)
+				.fileName(transfer.fileName);
+		byte[] thumbnail = ScreenshotUtil.thumbnail(file, THUMBNAIL_SIZE);
+		if (thumbnail != null) {
+			builder.fileData(thumbnail);
+		}
+		Message offer = builder.build();
+		ClientConnectServer server = ClientConnectServer.getInstance();
+		if (server == null) {
+			throw new ConnectionLostException("与服务器的连接已断开");
+		}
+		try {
+			server.send(offer);
+		} catch (IOException e) {
+			throw new ConnectionLostException("与服务器的连接已断开");
+		}
+		transfer.offer = offer;
+	}
+
+	/**
+	 * 下载一个分享的文件（MESSAGE_FILE_OFFER）。下载目录中已有相同内容时直接以新文件名保存，不经过网络；
+	 * 同一个文件正在下载时不重复请求
+	 *
+	 * @return 本次传输，进度和结果由传输监听器通知；已在下载中时返回null
+	 * @throws IOException 分享消息无效或连接已断开
+	 */
+	public Transfer fetch(Message offer) throws IOException {
+		String[] fields = offer.getContent() == null ? new String[0] : offer.getContent().split("\\|");
+		if (fields.length != 2) {
+			throw new IOException("无效的文件分享");
+		}
+		String hash = fields[0];
+		long totalBytes;
+		try {
+			totalBytes = Long.parseLong(fields[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("无效的文件分享");
+		}
+		for (Map<String, Transfer> active : Arrays.asList(incoming, pendingFetches)) {
+			for (Transfer t : active.values()) {
+				if (hash.equals(t.hash)) {
+					return null;
+				}
+			}
+		}
+		Transfer transfer = new Transfer(UUID.randomUUID().toString(), offer.getSender(),
+				safeFileName(offer.getFileName()), totalBytes, CHUNK_SIZE, false);
+		transfer.hash = hash;
+		File localCopy = DownloadStore.getInstance().find(hash, totalBytes);
+		if (localCopy != null) {
+			transfer.deduplicated = true;
+			transfer.transferredBytes = totalBytes;
+			transfer.resumedFrom = totalBytes;
+			fireStarted(transfer);
+			try {
+				transfer.savedFile = DownloadStore.getInstance().saveCopy(localCopy, transfer.fileName, hash);
+				transfer.complete();
+			} catch (IOException e) {
+				transfer.fail(e.getMessage());
+			}
+			fireFinished(transfer);
+			return transfer;
+		}
+		Properties state = new Properties();
+		state.setProperty("sha256", hash);
+		saveState(transfer, state);
+		requestFetch(transfer);
+		return transfer;
+	}
+
+	/** 发出FETCH，等待服务端的BEGIN */
+	private void requestFetch(Transfer transfer) throws IOException {
+		pendingFetches.put(transfer.id, transfer);
+		try {
+			send(MessageType.MESSAGE_FILE_FETCH, transfer, transfer.hash, transfer.fileName, null);
+		} catch (IOException e) {
+			pendingFetches.remove(transfer.id);
+			throw e;
+		}
+	}
+
+	/**
+	 * 整文件SHA-256：续传时直接使用续传信息中记录的，否则读一遍文件计算并记录下来
+	 */
+	private String hashOf(Transfer transfer, FileChannel channel, ByteBuffer buffer) throws IOException {
+		Properties state = loadState(transfer.id);
+		String hash = state == null ? null : state.getProperty("sha256");
+		if (hash != null) {
+			return hash;
+		}
+		MessageDigest digest = FileChecksums.newFileDigest();
+		for (long position = 0; position < transfer.totalBytes;) {
+			int n = readChunk(channel, buffer, position);
+			digest.update(buffer.array(), 0, n);
+			position += n;
+		}
+		hash = FileChecksums.toHex(digest.digest());
+		if (state != null) {
+			state.setProperty("sha256", hash);
+			saveState(transfer, state);
+		}
+		return hash;
+	}
+
+	/**
+	 * 从position处读取一个分块（最后一块可能不足chunkSize）
+	 *
+	 * @return 读到的字节数
+	 */
+	private static int readChunk(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + buffer.position());
+			if (n < 0) {
+				break;
+			}
+		}
+		if (buffer.position() == 0) {
+			throw new EOFException("文件在发送过程中被截断");
+		}
+		return buffer.position();
+	}
+
+	/**
+	 * 处理收到的分块传输消息（在消息接收线程中调用）
+	 */
+	public void handle(Message msg) {
+		String[] fields = msg.getContent().split("\\|", 4);
+		if (fields.length < 2) {
+			return;
+		}
+		String id = fields[0];
+		try {
+			switch (msg.getMesType()) {
+				case MessageType.MESSAGE_FILE_BEGIN:
+					onBegin(id, msg.getSender(), msg.getFileName(), Long.parseLong(fields[1]),
+							fields.length > 2 ? Integer.parseInt(fields[2]) : CHUNK_SIZE,
+							fields.length > 3 ? fields[3] : null);
+					break;
+				case MessageType.MESSAGE_FILE_CHUNK:
+					onChunk(id, Long.parseLong(fields[1]), fields.length > 2 ? FileChecksums.parseCrc(fields[2]) : 0,
+							msg.getFileData());
+					break;
+				case MessageType.MESSAGE_FILE_END:
+					onEnd(id, Long.parseLong(fields[1]), fields.length > 2 ? fields[2] : "");
+					break;
+				case MessageType.MESSAGE_FILE_ACK:
+					onAck(id, Long.parseLong(fields[1]));
+					break;
+				case MessageType.MESSAGE_FILE_RESUME:
+					onResume(id, Long.parseLong(fields[1]));
+					break;
+				case MessageType.MESSAGE_FILE_ABORT:
+					onAbort(id, msg.getContent().substring(id.length() + 1));
+					break;
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("无效的文件传输消息: " + msg);
+		}
+	}
+
+	/**
+	 * 收到BEGIN（服务端开始投递请求下载的文件）：下载目录中已有相同内容时直接回复已收齐；
+	 * 新传输创建.part；同一传输ID（重新请求）则从本地已有的位置续传
+	 */
+	private void onBegin(String id, String sender, String fileName, long totalBytes, int chunkSize, String hash) {
+		Transfer transfer = incoming.get(id);
+		if (transfer != null) {
+			transfer.retries = 0;
+			sendResume(transfer);
+			return;
+		}
+		Properties state = loadState(id);
+		if (pendingFetches.remove(id) == null && state == null) {
+			// 不是本端请求的下载
+			return;
+		}
+		File localCopy = DownloadStore.getInstance().find(hash, totalBytes);
+		try {
+			if (state != null && "receive".equals(state.getProperty("direction")) && state.getProperty("path") != null) {
+				transfer = reopenIncoming(id, sender, totalBytes, chunkSize, state);
+			} else if (localCopy != null) {
+				transfer = new Transfer(id, sender, safeFileName(fileName), totalBytes, chunkSize, false);
+				transfer.localCopy = localCopy;
+				transfer.deduplicated = true;
+				transfer.transferredBytes = totalBytes;
+				transfer.resumedFrom = totalBytes;
+			} else {
+				transfer = new Transfer(id, sender, safeFileName(fileName), totalBytes, chunkSize, false);
+				if (!DownloadStore.DOWNLOAD_DIR.exists()) {
+					DownloadStore.DOWNLOAD_DIR.mkdirs();
+				}
+				transfer.partFile = new File(DownloadStore.DOWNLOAD_DIR,
+						transfer.fileName + "." + id.substring(0, Math.min(8, id.length())) + ".part");
+				transfer.channel = FileChannel.open(transfer.partFile.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				transfer.digest = FileChecksums.newFileDigest();
+				Properties newState = new Properties();
+				newState.setProperty("path", transfer.partFile.getAbsolutePath());
+				if (hash != null) {
+					newState.setProperty("sha256", hash);
+				}
+				saveState(transfer, newState);
+			}
+		} catch (IOException e) {
+			if (transfer == null) {
+				transfer = new Transfer(id, sender, safeFileName(fileName), totalBytes, chunkSize, false);
+			}
+			sendAbort(transfer, "接收方无法创建文件: " + e.getMessage());
+			deleteState(id);
+			return;
+		}
+		transfer.hash = hash;
+		incoming.put(id, transfer);
+		fireStarted(transfer);
+		sendResume(transfer);
+	}
+
+	/**
+	 * 上次接收因断线（或程序退出）中断：打开已有的.part，丢弃不完整的尾部分块，
+	 * 重新计算已有部分的摘要
+	 */
+	private Transfer reopenIncoming(String id, String sender, long totalBytes, int chunkSize, Properties state)
+			throws IOException {
+		Transfer transfer = new Transfer(id, sender, state.getProperty("fileName"), totalBytes, chunkSize, false);
+		transfer.partFile = new File(state.getProperty("path"));
+		transfer.channel = FileChannel.open(transfer.partFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long offset = Math.min(transfer.channel.size(), totalBytes);
+		if (offset != totalBytes) {
+			offset -= offset % chunkSize;
+		}
+		transfer.channel.truncate(offset);
+		transfer.digest = FileChecksums.newFileDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+		for (long hashed = 0; hashed < offset;) {
+			int n = readChunk(transfer.channel, buffer, hashed);
+			transfer.digest.update(buffer.array(), 0, n);
+			hashed += n;
+		}
+		transfer.transferredBytes = offset;
+		transfer.resumedFrom = offset;
+		return transfer;
+	}
+
+	private void onChunk(String id, long offset, int crc, byte[] data) {
+		Transfer transfer = incoming.get(id);
+		if (transfer == null || data == null || offset != transfer.transferredBytes) {
+			// 要求重发后，在途的后续分块直接丢弃
+			return;
+		}
+		try {
+			if (FileChecksums.crc32c(data) != crc) {
+				if (++transfer.retries > MAX_RETRIES) {
+					throw new IOException("分块多次校验失败");
+				}
+				sendResume(transfer);
+				return;
+			}
+			transfer.retries = 0;
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				transfer.channel.write(buffer, offset + buffer.position());
+			}
+			transfer.digest.update(data);
+			transfer.transferredBytes = offset + data.length;
+			send(MessageType.MESSAGE_FILE_ACK, transfer, String.valueOf(transfer.transferredBytes), null, null);
+			fireProgress(transfer);
+		} catch (ConnectionLostException e) {
+			suspendIncoming(transfer, e.getMessage());
+		} catch (IOException e) {
+			sendAbort(transfer, e.getMessage());
+			failIncoming(transfer, e.getMessage());
+		}
+	}
+
+	private void onEnd(String id, long totalBytes, String digest) {
+		Transfer transfer = incoming.get(id);
+		if (transfer == null) {
+			return;
+		}
+		if (transfer.transferredBytes != totalBytes && transfer.retries > 0) {
+			// 还在等待重发的分块，重发完成后服务端会再发END
+			return;
+		}
+		incoming.remove(id);
+		try {
+			if (transfer.transferredBytes != totalBytes) {
+				throw new IOException("文件不完整，收到 " + transfer.transferredBytes + " 字节，应为 " + totalBytes);
+			}
+			if (transfer.localCopy != null) {
+				if (!digest.equals(transfer.hash)) {
+					throw new IOException("文件校验失败");
+				}
+				transfer.savedFile = DownloadStore.getInstance().saveCopy(transfer.localCopy, transfer.fileName,
+						digest);
+			} else {
+				if (!FileChecksums.toHex(transfer.digest.digest()).equals(digest)) {
+					throw new IOException("文件校验失败");
+				}
+				transfer.channel.close();
+				transfer.savedFile = DownloadStore.getInstance().save(transfer.partFile, transfer.fileName, digest);
+			}
+			deleteState(id);
+			// 最终确认：服务端据此结束投递；空文件没有分块，也靠它结束
+			send(MessageType.MESSAGE_FILE_ACK, transfer, String.valueOf(totalBytes), null, null);
+			transfer.complete();
+			fireFinished(transfer);
+		} catch (IOException e) {
+			sendAbort(transfer, e.getMessage());
+			incoming.put(id, transfer);
+			failIncoming(transfer, e.getMessage());
+		}
+	}
+
+	private void onAck(String id, long bytes) {
+		Transfer transfer = outgoing.get(id);
+		if (transfer != null) {
+			transfer.acknowledge(bytes);
+			fireProgress(transfer);
+		}
+	}
+
+	private void onResume(String id, long offset) {
+		Transfer transfer = outgoing.get(id);
+		if (transfer != null) {
+			transfer.rewind(offset);
+		}
+	}
+
+	private void onAbort(String id, String reason) {
+		Transfer transfer = outgoing.get(id);
+		if (transfer != null) {
+			// 发送线程被唤醒后负责收尾
+			transfer.fail(reason);
+			return;
+		}
+		transfer = incoming.get(id);
+		if (transfer != null) {
+			failIncoming(transfer, reason);
+			return;
+		}
+		transfer = pendingFetches.remove(id);
+		if (transfer != null) {
+			// 下载请求被拒绝（文件已过期等）
+			deleteState(id);
+			transfer.fail(reason);
+			fireFinished(transfer);
+		}
+	}
+
+	/** 接收方告知从哪里继续（回复BEGIN或要求重发） */
+	private void sendResume(Transfer transfer) {
+		try {
+			send(MessageType.MESSAGE_FILE_RESUME, transfer, String.valueOf(transfer.transferredBytes), null, null);
+		} catch (IOException e) {
+			suspendIncoming(transfer, e.getMessage());
+		}
+	}
+
+	/**
+	 * 接收失败：关闭并删除未完成的文件和续传信息
+	 */
+	private void failIncoming(Transfer transfer, String reason) {
+		if (incoming.remove(transfer.id) == null) {
+			return;
+		}
+		try {
+			if (transfer.channel != null) {
+				transfer.channel.close();
+				Files.deleteIfExists(transfer.partFile.toPath());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		deleteState(transfer.id);
+		transfer.fail(reason);
+		fireFinished(transfer);
+	}
+
+	/**
+	 * 接收暂停：关闭文件，保留.part和续传信息
+	 */
+	private void suspendIncoming(Transfer transfer, String reason) {
+		if (incoming.remove(transfer.id) == null) {
+			return;
+		}
+		try {
+			if (transfer.channel != null) {
+				transfer.channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		transfer.suspend(reason);
+		fireFinished(transfer);
+	}
+
+	/**
+	 * 连接断开时暂停所有进行中的传输，重新登录后续传
+	 */
+	public void suspendAll(String reason) {
+		for (Transfer transfer : outgoing.values()) {
+			// 发送线程被唤醒后负责收尾
+			transfer.suspend(reason);
+		}
+		for (Transfer transfer : incoming.values()) {
+			suspendIncoming(transfer, reason);
+		}
+		// 还没开始投递的下载请求只需重新发出，续传信息保留
+		pendingFetches.clear();
+	}
+
+	// ==================== 续传信息 ====================
+
+	private File stateFile(String id) {
+		return new File(resumeDir, id + ".properties");
+	}
+
+	private void saveState(Transfer transfer, Properties state) throws IOException {
+		state.setProperty("direction", transfer.sending ? "send" : "receive");
+		state.setProperty("peer", transfer.peer);
+		state.setProperty("fileName", transfer.fileName);
+		state.setProperty("totalBytes", String.valueOf(transfer.totalBytes));
+		state.setProperty("chunkSize", String.valueOf(transfer.chunkSize));
+		if (!resumeDir.exists()) {
+			resumeDir.mkdirs();
+		}
+		try (OutputStream out = new FileOutputStream(stateFile(transfer.id))) {
+			state.store(out, null);
+		}
+	}
+
+	/**
+	 * @return 不存在或无法读取时返回null
+	 */
+	private Properties loadState(String id) {
+		File file = stateFile(id);
+		if (!file.isFile()) {
+			return null;
+		}
+		Properties state = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			state.load(in);
+			return state;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private void deleteState(String id) {
+		stateFile(id).delete();
+	}
+
+	/** 删除续传信息；接收方同时删除未完成的.part */
+	private void discardState(String id, Properties state) {
+		if ("receive".equals(state.getProperty("direction"))) {
+			new File(state.getProperty("path", "")).delete();
+		}
+		deleteState(id);
+	}
+
+	private void send(String type, Transfer transfer, String arg, String fileName, byte[] data) throws IOException {
+		Message.Builder builder = new Message.Builder()
+				.mesType(type)
+				.sender(user.getUserID())
+				.receiver(transfer.peer)
+				.content(transfer.id + "|" + arg);
+		if (fileName != null) {
+			builder.fileName(fileName);
+		}
+		if (data != null) {
+			builder.fileData(data);
+		}
+		ClientConnectServer server = ClientConnectServer.getInstance();
+		if (server == null) {
+			throw new ConnectionLostException("与服务器的连接已断开");
+		}
+		try {
+			server.send(builder.build());
+		} catch (IOException e) {
+			throw new ConnectionLostException("与服务器的连接已断开");
+		}
+	}
+
+	private void sendAbort(Transfer transfer, String reason) {
+		try {
+			send(MessageType.MESSAGE_FILE_ABORT, transfer, reason, null, null);
+		} catch (IOException e) {
+			// 连接已断开，对方会由服务端通知
+		}
+	}
+
+	/** 去掉路径部分，防止对方通过文件名写到downloads目录之外 */
+	private static String safeFileName(String fileName) {
+		String name = fileName == null ? "" : new File(fileName).getName();
+		return name.isEmpty() ? "unnamed" : name;
+	}
+
+	private void fireStarted(Transfer transfer) {
+		for (TransferListener l : listeners) {
+			l.onStarted(transfer);
+		}
+	}
+
+	private void fireProgress(Transfer transfer) {
+		long now = System.nanoTime();
+		synchronized (transfer) {
+			if (now - transfer.lastReportNanos < PROGRESS_INTERVAL_NANOS) {
+				return;
+			}
+			transfer.lastReportNanos = now;
+		}
+		for (TransferListener l : listeners) {
+			l.onProgress(transfer);
+		}
+	}
+
+	private void fireFinished(Transfer transfer) {
+		for (TransferListener l : listeners) {
+			l.onFinished(transfer);
+		}
+	}
+
+	/**
+	 * 格式化字节数，如 "512B"、"3.2MB"
+	 */
+	public static String formatBytes(long bytes) {
+		if (bytes < 1024) {
+			return bytes + "B";
+		}
+		String[] units = { "KB", "MB", "GB", "TB" };
+		double value = bytes;
+		int unit = -1;
+		while (value >= 1024 && unit < units.length - 1) {
+			value /= 1024;
+			unit++;
+		}
+		return String.format("%.1f%s", value, units[unit]);
+	}
+}
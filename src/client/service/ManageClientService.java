@@ -9,7 +9,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 客户端业务服务类 - 处理用户操作和消息管理
@@ -22,12 +22,10 @@ import java.util.concurrent.ConcurrentHashMap;
  * 【设计说明】
  * - 采用单例模式，全局唯一实例
  * - 不负责接收消息（由ClientConnectServer线程处理）
- * - 消息缓存采用ConcurrentHashMap保证线程安全
  * <p>
  * 【消息缓存机制】
- * - 内存缓存：messageBuffer (ConcurrentHashMap)
- * - 文件持久化：ChatHistoryManager
- * - 读取时先查内存，未命中则从文件加载
+ * - 内存缓存和文件持久化都由ChatHistoryManager负责，内存中只有一份有预算的缓存（ConversationCache）
+ * - 读取时先查内存，未命中则从文件按页加载
  * 
  * @author ChatRoom Team
  */
@@ -41,15 +39,15 @@ public class ManageClientService {
 	/** 聊天历史文件管理器 */
 	private final ChatHistoryManager historyManager;
 
-	/**
-	 * 消息缓存区
-	 * <p>
-	 * key: 聊天对象标识（UserID / "世界聊天" / "群聊:成员1,成员2,..."）
-	 * value: 该聊天的消息列表
-	 * <p>
-	 * 【线程安全】使用ConcurrentHashMap保证多线程操作安全
-	 */
-	private final ConcurrentHashMap<String, List<Message>> messageBuffer = new ConcurrentHashMap<>();
+	/** 聊天面板每次加载的聊天记录条数 */
+	private static final int PAGE_SIZE = Integer.getInteger("chat.history.pageSize", 50);
+
+	/** 完整在线列表的请求多久没有回复后可以重新请求 */
+	private static final long SNAPSHOT_RETRY_NANOS = TimeUnit.SECONDS.toNanos(5);
+	/** 已应用到在线列表的版本号，-1表示还没收到完整列表 */
+	private long presenceVersion = -1;
+	/** 等待中的完整列表请求的发出时刻（System.nanoTime），0表示没有 */
+	private long snapshotRequestedAt;
 
 	/**
 	 * 私有构造器 - 初始化服务
@@ -89,10 +87,17 @@ public class ManageClientService {
 	}
 
 	/**
-	 * 请求获取在线用户列表
-	 * 【作用】发送请求后，服务器会返回在线用户列表
+	 * 请求获取完整的在线用户列表
+	 * 【作用】发送请求后，服务器会返回在线用户列表；已有请求在等待回复时不重复发送
 	 */
 	public void requestOnlineUsers() {
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (snapshotRequestedAt != 0 && now - snapshotRequestedAt < SNAPSHOT_RETRY_NANOS) {
+				return;
+			}
+			snapshotRequestedAt = now;
+		}
 		Message message = new Message.Builder()
 				.mesType(MessageType.MESSAGE_GET_ONLINE_FRIEND)
 				.sender(user.getName())
@@ -110,6 +115,47 @@ public class ManageClientService {
 		ClientConnectServer.getInstance().sendMessage(message);
 	}
 
+	/**
+	 * 按版本号检查一条在线状态消息（在消息接收线程中调用）
+	 * <p>
+	 * - 完整列表（MESSAGE_RET_ONLINE_FRIEND）：记下版本号，总是应用
+	 * - 增量（MESSAGE_PRESENCE_DELTA）：紧接着当前版本时才应用；等待完整列表期间收到的增量
+	 * 已包含在之后的完整列表中，直接忽略；版本号不连续（中间的增量被服务端丢弃，或服务端已重启）时
+	 * 重新请求完整列表
+	 *
+	 * @return true表示界面应当应用这条消息
+	 */
+	public boolean acceptPresence(Message msg) {
+		String[] versions = msg.getContent() == null ? new String[0] : msg.getContent().split("\\|");
+		boolean snapshot = MessageType.MESSAGE_RET_ONLINE_FRIEND.equals(msg.getMesType());
+		long base;
+		long version;
+		try {
+			base = Long.parseLong(versions[0]);
+			version = Long.parseLong(versions[versions.length - 1]);
+		} catch (RuntimeException e) {
+			// 不带版本号的完整列表（旧服务端）照常应用
+			base = version = -1;
+		}
+		boolean gap;
+		synchronized (this) {
+			if (snapshot) {
+				presenceVersion = version;
+				snapshotRequestedAt = 0;
+				return true;
+			}
+			if (snapshotRequestedAt == 0 && presenceVersion >= 0 && base == presenceVersion) {
+				presenceVersion = version;
+				return true;
+			}
+			gap = snapshotRequestedAt == 0 || System.nanoTime() - snapshotRequestedAt >= SNAPSHOT_RETRY_NANOS;
+		}
+		if (gap) {
+			requestOnlineUsers();
+		}
+		return false;
+	}
+
 	/**
 	 * 发送退出请求
 	 * 【作用】通知服务器用户下线，服务器会广播更新在线列表
@@ -123,38 +169,98 @@ public class ManageClientService {
 	}
 
 	/**
-	 * 将消息添加到缓存区并自动保存到文件
+	 * 消息所属聊天的缓存key（收到的和自己发出的消息都适用）
+	 * - 世界聊天（包括分享到世界聊天的文件）："世界聊天"
+	 * - 群聊（包括分享到群聊的文件）：群地址，即消息的receiver
+	 * - 私聊：对方的用户ID
+	 */
+	public String chatKeyOf(Message msg) {
+		String type = msg.getMesType();
+		boolean offer = MessageType.MESSAGE_FILE_OFFER.equals(type);
+		if (MessageType.MESSAGE_WORLD_CHAT.equals(type)
+				|| offer && MessageType.MESSAGE_WORLD_CHAT.equals(msg.getReceiver())) {
+			return "世界聊天";
+		}
+		if (MessageType.MESSAGE_GROUP_MES.equals(type)
+				|| offer && msg.getReceiver().startsWith(MessageType.GROUP_ADDRESS_PREFIX)) {
+			return msg.getReceiver();
+		}
+		return user.getUserID().equals(msg.getSender()) ? msg.getReceiver() : msg.getSender();
+	}
+
+	/**
+	 * 将消息添加到缓存区并追加到聊天记录文件
 	 * <p>
 	 * 【关键方法】接收消息时调用，实现消息持久化
+	 * 【说明】该聊天在缓存中时追加到缓存；不在时不加载已有记录，需要时再从文件按页读取
 	 * 
-	 * @param key 聊天对象标识（用户ID或"世界聊天"或"群聊:..."）
+	 * @param key 聊天对象标识（用户ID或"世界聊天"或群地址）
 	 * @param msg 消息对象
 	 */
 	public void addMessageToBuffer(String key, Message msg) {
-		messageBuffer.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>())).add(msg);
-		// 自动保存到文件，实现持久化
-		historyManager.saveMessages(key, messageBuffer.get(key));
+		// 只追加这一条，不重写整个聊天
+		historyManager.addMessage(key, msg);
 	}
 
 	/**
-	 * 获取指定聊天对象的所有消息
+	 * 把旧版本按群成员保存的群聊记录（"群聊:成员1,成员2,..."）转到群地址下
+	 * 【说明】只在群地址下还没有记录时转移，转移后删除旧记录
+	 *
+	 * @param members 群成员
+	 * @param address 服务端分配的群地址
+	 */
+	public void adoptLegacyGroupHistory(List<String> members, String address) {
+		if (!historyManager.loadPage(address, -1, 1).getMessages().isEmpty()) {
+			return;
+		}
+		List<String> sortedMembers = new ArrayList<>(members);
+		Collections.sort(sortedMembers);
+		String legacyKey = "群聊:" + String.join(",", sortedMembers);
+		List<Message> legacy = getMessages(legacyKey);
+		if (legacy.isEmpty()) {
+			return;
+		}
+		historyManager.saveMessages(address, legacy);
+		historyManager.deleteHistory(legacyKey);
+	}
+
+	/**
+	 * 按页获取聊天记录：序号小于before的最后PAGE_SIZE条消息
 	 * <p>
-	 * 【缓存策略】
-	 * 1. 先查内存缓存
-	 * 2. 未命中则从文件加载并放入缓存
+	 * 【说明】聊天面板打开聊天时取最新一页（before传-1），
+	 * 向上滚动到顶部时以当前最早一页的getFrom()为游标取更早的一页
+	 *
+	 * @param key    聊天对象标识
+	 * @param before 游标，小于0表示最新一页
+	 * @return 一页消息
+	 */
+	public ChatHistoryManager.Page getPage(String key, long before) {
+		return historyManager.loadPage(key, before, PAGE_SIZE);
+	}
+
+	/**
+	 * 获取指定聊天对象的所有消息
+	 * 【注意】会把整个聊天加载到内存，显示聊天记录请用getPage()
 	 * 
 	 * @param key 聊天对象标识
-	 * @return 消息列表（如果不存在则返回空列表）
+	 * @return 只读的消息列表（如果不存在则返回空列表）
 	 */
 	public List<Message> getMessages(String key) {
-		// 如果内存中没有，尝试从文件加载
-		if (!messageBuffer.containsKey(key)) {
-			List<Message> loadedMessages = historyManager.loadMessages(key);
-			if (!loadedMessages.isEmpty()) {
-				messageBuffer.put(key, Collections.synchronizedList(loadedMessages));
-			}
-		}
-		return messageBuffer.getOrDefault(key, Collections.emptyList());
+		return historyManager.loadMessages(key);
+	}
+
+	/**
+	 * 写完队列中的聊天记录，刷到磁盘并关闭文件（退出时调用）
+	 */
+	public void closeHistory() {
+		historyManager.close();
+	}
+
+	/**
+	 * 聊天记录的指标（写入队列深度、刷盘耗时、缓存命中率和驻留大小）
+	 */
+	public String describeHistory() {
+		return historyManager.describe();
 	}
 
 	/**
@@ -164,6 +270,6 @@ public class ManageClientService {
 	 * @param key 聊天对象标识
 	 */
 	public void clearMessages(String key) {
-		messageBuffer.remove(key);
+		historyManager.clearCache(key);
 	}
 }
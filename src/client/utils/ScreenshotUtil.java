@@ -14,6 +14,7 @@ import java.io.File;
  * 1. 全屏截图（captureFullScreen）
  * 2. 区域选择截图（captureArea）
  * 3. 截图保存和格式转换
+ * 4. 生成图片文件的缩略图（随文件分享消息发送）
  * <p>
  * 【使用场景】
  * 用户在聊天界面点击"截图"按钮时调用，
@@ -161,4 +162,34 @@ public class ScreenshotUtil {
         ImageIO.write(image, "PNG", baos);
         return baos.toByteArray();
     }
+
+    /**
+     * 生成图片文件的PNG缩略图，长边不超过maxSize
+     * 【说明】只处理常见图片格式且不超过20MB的文件，非图片或无法解码时返回null
+     */
+    public static byte[] thumbnail(File file, int maxSize) {
+        String name = file.getName().toLowerCase();
+        if (file.length() > 20L * 1024 * 1024 || !(name.endsWith(".png") || name.endsWith(".jpg")
+                || name.endsWith(".jpeg") || name.endsWith(".gif") || name.endsWith(".bmp"))) {
+            return null;
+        }
+        try {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                return null;
+            }
+            double scale = Math.min(1.0, (double) maxSize / Math.max(image.getWidth(), image.getHeight()));
+            int width = Math.max(1, (int) (image.getWidth() * scale));
+            int height = Math.max(1, (int) (image.getHeight() * scale));
+            BufferedImage thumb = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = thumb.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+            g.dispose();
+            return imageToBytes(thumb);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 }
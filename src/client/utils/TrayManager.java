@@ -4,6 +4,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.WindowEvent;
 
 /**
  * 系统托盘管理器 - 管理应用的系统托盘图标
@@ -68,7 +69,8 @@ public class TrayManager {
             MenuItem exitItem = new MenuItem("退出");
 
             showItem.addActionListener(e -> restoreWindow());
-            exitItem.addActionListener(e -> System.exit(0));
+            // 走窗口关闭的流程：通知服务器并写完聊天记录后再退出
+            exitItem.addActionListener(e -> mainFrame.dispatchEvent(new WindowEvent(mainFrame, WindowEvent.WINDOW_CLOSING)));
 
             popup.add(showItem);
             popup.add(exitItem);
@@ -2,6 +2,8 @@ package client.view;
 
 import client.model.ChatHistoryManager;
 import client.service.ClientConnectServer;
+import client.service.DownloadStore;
+import client.service.FileTransferService;
 import client.service.ManageClientService;
 import client.utils.TrayManager;
 import client.utils.SoundManager;
@@ -20,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -61,14 +64,26 @@ public class MainChatView extends JFrame {
 	private final ManageClientService manageClientService;
 	private final TrayManager trayManager;
 	private final JPanel groupListPanel = new JPanel();
-	private final List<List<String>> groupChats = new ArrayList<>();
+	/** 群地址 → 群成员，按收到的顺序排列 */
+	private final Map<String, List<String>> groupChats = new LinkedHashMap<>();
 
 	private final JTextPane chatArea = new JTextPane();
+	private final JScrollPane chatScroll = new JScrollPane(chatArea);
+	/** 聊天面板当前显示的聊天 */
+	private String historyKey;
+	/** 已显示的最早一条消息的序号，滚动到顶部时加载它之前的一页；0表示已显示到最早的消息 */
+	private long historyFrom;
+	/** 加载更早的消息时在此位置插入，-1表示追加到末尾 */
+	private int prependAt = -1;
 	private final JTextField inputField = new JTextField();
 	private final JButton sendTextBtn = new JButton("发送文字");
 	private final JButton shakeBtn = new JButton("抖一抖");
 	private final JButton sendFileBtn = new JButton("发送文件");
 	private final JButton screenshotBtn = new JButton("截图");
+	/** 网络延迟显示（由心跳回复更新） */
+	private final JLabel rttLabel = new JLabel("延迟: -- ms");
+	/** 文件传输进度显示（由FileTransferService更新） */
+	private final JLabel transferLabel = new JLabel();
 
 	private final JToolBar styleToolbar = new JToolBar();
 	private JComboBox<Integer> fontSizeCombo;
@@ -84,6 +99,8 @@ public class MainChatView extends JFrame {
 	private boolean isWorldChat = true;
 	private boolean isGroupChat = false;
 	private List<String> currentGroupMembers = new ArrayList<>();
+	/** 刚发出创建请求的群（排序后的成员），服务端回复群地址后自动打开 */
+	private String pendingGroupMembers;
 
 	// 未读消息计数
 	private final Map<String, Integer> unreadCounts = new HashMap<>();
@@ -107,6 +124,7 @@ public class MainChatView extends JFrame {
 			@Override
 			public void windowClosing(WindowEvent e) {
 				ManageClientService.getInstance().sendExitRequest();
+				ManageClientService.getInstance().closeHistory();
 				System.exit(0);
 			}
 
@@ -137,6 +155,19 @@ public class MainChatView extends JFrame {
 				return;
 			}
 
+			// 处理文件分享消息：只显示文件信息和下载按钮，点击后才下载
+			if (MessageType.MESSAGE_FILE_OFFER.equals(msg.getMesType())) {
+				String chatKey = manageClientService.chatKeyOf(msg);
+				if (chatKey.equals(chatWith)) {
+					appendFileOffer(msg);
+					SoundManager.playMessageSound();
+				} else {
+					unreadCounts.merge(chatKey, 1, Integer::sum);
+					updateUnreadIndicators();
+				}
+				return;
+			}
+
 			// 处理系统广播消息
 			if (MessageType.MESSAGE_SYSTEM_BROADCAST.equals(msg.getMesType())) {
 				Date sendTime = msg.getSendTime();
@@ -149,21 +180,7 @@ public class MainChatView extends JFrame {
 
 			// 处理群组创建消息
 			if (MessageType.MESSAGE_GROUP_CREATE.equals(msg.getMesType())) {
-				List<String> groupMembers = msg.getUserlist();
-				// 检查是否包含自己
-				boolean containsSelf = false;
-				for (String member : groupMembers) {
-					String memberId = extractUserId(member);
-					if (memberId.equals(user.getUserID())) {
-						containsSelf = true;
-						break;
-					}
-				}
-				if (containsSelf) {
-					// 添加到群聊列表
-					groupChats.add(new ArrayList<>(groupMembers));
-					updateGroupList();
-				}
+				addGroupToList(msg);
 				return;
 			}
 
@@ -176,13 +193,8 @@ public class MainChatView extends JFrame {
 					display = true;
 				}
 			} else if (MessageType.MESSAGE_GROUP_MES.equals(msg.getMesType()) && isGroupChat) {
-				// 检查是否是当前群聊的消息
-				List<String> msgMembers = msg.getUserlist();
-				List<String> sortedMsg = new ArrayList<>(msgMembers);
-				Collections.sort(sortedMsg);
-				List<String> sortedCurrent = new ArrayList<>(currentGroupMembers);
-				Collections.sort(sortedCurrent);
-				if (sortedMsg.equals(sortedCurrent)) {
+				// 检查是否是当前群聊的消息（群地址就是聊天key）
+				if (chatWith.equals(msg.getReceiver())) {
 					display = true;
 				}
 			}
@@ -219,14 +231,41 @@ public class MainChatView extends JFrame {
 			if (MessageType.MESSAGE_RET_ONLINE_FRIEND.equals(msg.getMesType())) {
 				List<String> users = msg.getUserlist();
 				SwingUtilities.invokeLater(() -> updateOnlineUsers(users));
+			} else if (MessageType.MESSAGE_PRESENCE_DELTA.equals(msg.getMesType())) {
+				List<String> changes = msg.getUserlist();
+				SwingUtilities.invokeLater(() -> applyPresenceDelta(changes));
 			}
 		});
 
-		// ===== 注册群聊创建监听器 =====
-		ClientConnectServer.getInstance().addGroupCreateListener(msg -> {
-			List<String> members = msg.getUserlist();
-			SwingUtilities.invokeLater(() -> addGroupToList(members));
+		// ===== 注册网络延迟监听器 =====
+		ClientConnectServer.getInstance().addRttListener((rtt, smoothed) -> SwingUtilities.invokeLater(() -> {
+			rttLabel.setText("延迟: " + smoothed + " ms");
+			// 随心跳一起刷新聊天记录写入的指标
+			rttLabel.setToolTipText("聊天记录: " + manageClientService.describeHistory());
+		}));
+
+		// ===== 注册文件传输监听器 =====
+		FileTransferService.getInstance(user).addTransferListener(new FileTransferService.TransferListener() {
+			@Override
+			public void onStarted(FileTransferService.Transfer transfer) {
+				SwingUtilities.invokeLater(() -> transferStarted(transfer));
+			}
+
+			@Override
+			public void onProgress(FileTransferService.Transfer transfer) {
+				SwingUtilities.invokeLater(() -> transferLabel.setText(transfer.describe()));
+			}
+
+			@Override
+			public void onFinished(FileTransferService.Transfer transfer) {
+				SwingUtilities.invokeLater(() -> transferFinished(transfer));
+			}
 		});
+		// 继续上次因断线中断的上传和下载
+		FileTransferService.getInstance(user).resumePending();
+
+		// ===== 注册群聊创建监听器 =====
+		ClientConnectServer.getInstance().addGroupCreateListener(msg -> SwingUtilities.invokeLater(() -> addGroupToList(msg)));
 
 		manageClientService.requestOnlineUsers();
 		setVisible(true);
@@ -252,11 +291,16 @@ public class MainChatView extends JFrame {
 		userIdLabel.setForeground(Color.GRAY);
 		userIdLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
 
+		rttLabel.setFont(new Font("微软雅黑", Font.PLAIN, 12));
+		rttLabel.setForeground(Color.GRAY);
+		rttLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+
 		personalInfoPanel.add(nicknameLabel);
 		personalInfoPanel.add(Box.createVerticalStrut(5)); // 间距
 		personalInfoPanel.add(userIdLabel);
-		personalInfoPanel.setPreferredSize(new Dimension(200, 70));
-		personalInfoPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, 70));
+		personalInfoPanel.add(rttLabel);
+		personalInfoPanel.setPreferredSize(new Dimension(200, 85));
+		personalInfoPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, 85));
 
 		// ========== 中间：在线用户区域 ==========
 		JPanel userSection = new JPanel(new BorderLayout());
@@ -348,27 +392,36 @@ public class MainChatView extends JFrame {
 			groupListPanel.removeAll();
 			groupButtonMap.clear();
 			// 重新添加所有群
-			for (List<String> group : groupChats) {
-				addGroupToList(group);
+			for (Map.Entry<String, List<String>> group : groupChats.entrySet()) {
+				addGroupButton(group.getKey(), group.getValue());
 			}
 			groupListPanel.revalidate();
 			groupListPanel.repaint();
 		});
 	}
 
-	private void addGroupToList(List<String> members) {
-		// 检查是否已存在
-		List<String> sorted = new ArrayList<>(members);
-		Collections.sort(sorted);
-		for (List<String> existing : groupChats) {
-			List<String> existingSorted = new ArrayList<>(existing);
-			Collections.sort(existingSorted);
-			if (sorted.equals(existingSorted)) {
-				return; // 已存在
-			}
+	/**
+	 * 收到服务端的群信息（创建群聊的回复或登录时的同步）：按群地址去重后加入群聊列表
+	 */
+	private void addGroupToList(Message notice) {
+		String address = notice.getContent();
+		List<String> members = new ArrayList<>(notice.getUserlist());
+		if (address == null || !members.contains(user.getUserID())) {
+			return;
 		}
-		groupChats.add(members);
+		if (!groupChats.containsKey(address)) {
+			groupChats.put(address, members);
+			manageClientService.adoptLegacyGroupHistory(members, address);
+			addGroupButton(address, members);
+		}
+		// 自己刚创建的群：直接打开
+		if (String.join(",", members).equals(pendingGroupMembers)) {
+			pendingGroupMembers = null;
+			openGroup(address);
+		}
+	}
 
+	private void addGroupButton(String address, List<String> members) {
 		// 生成群名（排除自己）
 		List<String> othersInGroup = new ArrayList<>();
 		for (String memberId : members) {
@@ -386,30 +439,31 @@ public class MainChatView extends JFrame {
 		groupBtn.setAlignmentX(Component.LEFT_ALIGNMENT);
 		groupBtn.setMaximumSize(new Dimension(180, 30));
 		groupBtn.setName("群: " + groupName); // 保存原始名称
-		final List<String> groupMembers = members;
-		final String groupKey = "群聊:" + String.join(",", sorted);
-		groupButtonMap.put(groupKey, groupBtn);
-
-		groupBtn.addActionListener(e -> {
-			currentGroupMembers = new ArrayList<>(groupMembers);
-			isGroupChat = true;
-			isWorldChat = false;
-
-			List<String> sortedKey = new ArrayList<>(groupMembers);
-			Collections.sort(sortedKey);
-			chatWith = "群聊:" + String.join(",", sortedKey);
-
-			((JLabel) ((JPanel) getContentPane().getComponent(1)).getComponent(0))
-					.setText("群聊 (" + (groupMembers.size() - 1) + "人)");
-			clearUnreadAndRefresh(chatWith);
-			loadChatHistory(chatWith);
-		});
+		groupButtonMap.put(address, groupBtn);
+
+		groupBtn.addActionListener(e -> openGroup(address));
 
 		groupListPanel.add(groupBtn);
 		groupListPanel.revalidate();
 		groupListPanel.repaint();
 	}
 
+	/**
+	 * 切换到群聊，群地址即聊天key
+	 */
+	private void openGroup(String address) {
+		List<String> groupMembers = groupChats.get(address);
+		currentGroupMembers = new ArrayList<>(groupMembers);
+		isGroupChat = true;
+		isWorldChat = false;
+		chatWith = address;
+
+		((JLabel) ((JPanel) getContentPane().getComponent(1)).getComponent(0))
+				.setText("群聊 (" + (groupMembers.size() - 1) + "人)");
+		clearUnreadAndRefresh(chatWith);
+		loadChatHistory(chatWith);
+	}
+
 	private void initRightPanel() {
 		JPanel rightPanel = new JPanel(new BorderLayout());
 
@@ -419,7 +473,13 @@ public class MainChatView extends JFrame {
 		rightPanel.add(chatTitle, BorderLayout.NORTH);
 
 		chatArea.setEditable(false);
-		rightPanel.add(new JScrollPane(chatArea), BorderLayout.CENTER);
+		rightPanel.add(chatScroll, BorderLayout.CENTER);
+		// 滚动到顶部时加载更早的一页（等布局完成后再确认仍在顶部，切换聊天时的临时位置不触发）
+		chatScroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+			if (!e.getValueIsAdjusting() && e.getValue() == 0 && historyFrom > 0) {
+				SwingUtilities.invokeLater(this::loadOlderHistory);
+			}
+		});
 
 		styleToolbar.setFloatable(false);
 		fontSizeCombo = new JComboBox<>(new Integer[] { 12, 14, 16, 18, 20, 24, 28 });
@@ -428,6 +488,10 @@ public class MainChatView extends JFrame {
 		styleToolbar.add(fontSizeCombo);
 		styleToolbar.add(boldBtn);
 		styleToolbar.add(colorBtn);
+		styleToolbar.addSeparator();
+		transferLabel.setFont(new Font("微软雅黑", Font.PLAIN, 12));
+		transferLabel.setForeground(Color.GRAY);
+		styleToolbar.add(transferLabel);
 
 		fontSizeCombo.addActionListener(e -> currentFontSize = (Integer) fontSizeCombo.getSelectedItem());
 		boldBtn.addActionListener(e -> currentBold = !currentBold);
@@ -461,18 +525,9 @@ public class MainChatView extends JFrame {
 	}
 
 	/**
-	 * 发送文件（使用独立线程）
+	 * 发送文件：由FileTransferService在独立线程中上传，完成后分享到当前聊天（私聊、群聊、世界聊天均可）
 	 */
 	private void sendFile() {
-		if (isWorldChat) {
-			JOptionPane.showMessageDialog(this, "世界聊天不支持文件发送", "提示", JOptionPane.WARNING_MESSAGE);
-			return;
-		}
-		if (isGroupChat) {
-			JOptionPane.showMessageDialog(this, "群聊不支持文件发送", "提示", JOptionPane.WARNING_MESSAGE);
-			return;
-		}
-
 		// 选择文件
 		JFileChooser fileChooser = new JFileChooser();
 		fileChooser.setDialogTitle("选择要发送的文件");
@@ -484,69 +539,146 @@ public class MainChatView extends JFrame {
 
 		java.io.File file = fileChooser.getSelectedFile();
 
-		// 检查文件大小（限制5MB）
-		final long MAX_FILE_SIZE = 5 * 1024 * 1024; // 5MB
-		if (file.length() > MAX_FILE_SIZE) {
+		// 检查文件大小（分块传输，上限为FileTransferService.MAX_FILE_SIZE）
+		if (file.length() > FileTransferService.MAX_FILE_SIZE) {
 			JOptionPane.showMessageDialog(this,
-					"文件大小超过5MB限制\n当前大小: " + (file.length() / 1024 / 1024) + "MB",
+					"文件大小超过" + FileTransferService.formatBytes(FileTransferService.MAX_FILE_SIZE) + "限制\n当前大小: "
+							+ FileTransferService.formatBytes(file.length()),
 					"文件太大", JOptionPane.ERROR_MESSAGE);
 			return;
 		}
 
-		// 在聊天面板显示"正在发送..."
-		String statusMsg = "[正在发送文件: " + file.getName() + "]";
-		appendChat("系统", statusMsg, Color.GRAY, false, 12, new java.text.SimpleDateFormat("HH:mm").format(new Date()));
+		shareFile(file, shareReceiver());
+	}
 
-		// 使用独立线程发送文件
-		final java.io.File selectedFile = file;
-		new Thread(() -> {
-			try {
-				// 读取文件
-				byte[] fileData = java.nio.file.Files.readAllBytes(selectedFile.toPath());
-
-				// 构建文件消息
-				Message fileMsg = new Message.Builder()
-						.mesType(MessageType.MESSAGE_FILE)
-						.sender(user.getUserID())
-						.receiver(chatWith)
-						.fileName(selectedFile.getName())
-						.fileData(fileData)
-						.build();
-
-				// 发送
-				manageClientService.sendPrivateMessage(fileMsg);
-
-				// 在GUI线程更新状态
-				SwingUtilities.invokeLater(() -> {
-					String successMsg = "[文件发送成功: " + selectedFile.getName() + " (" + (fileData.length / 1024) + "KB)]";
-					appendChat("系统", successMsg, new Color(0, 128, 0), false, 12,
-							new java.text.SimpleDateFormat("HH:mm").format(new Date()));
-				});
+	/**
+	 * 当前聊天对应的分享对象：世界聊天、群地址或私聊对方的用户ID
+	 */
+	private String shareReceiver() {
+		return isWorldChat ? MessageType.MESSAGE_WORLD_CHAT : chatWith;
+	}
 
-			} catch (Exception ex) {
-				ex.printStackTrace();
-				// 在GUI线程显示错误
-				SwingUtilities.invokeLater(() -> {
-					String errorMsg = "[文件发送失败: " + ex.getMessage() + "]";
-					appendChat("系统", errorMsg, Color.RED, false, 12,
-							new java.text.SimpleDateFormat("HH:mm").format(new Date()));
+	/**
+	 * 后台线程分块上传，进度和结果由传输监听器显示
+	 */
+	private void shareFile(java.io.File file, String receiver) {
+		try {
+			FileTransferService.getInstance(user).shareFile(file, receiver);
+		} catch (IOException ex) {
+			String errorMsg = "[文件发送失败: " + ex.getMessage() + "]";
+			appendChat("系统", errorMsg, Color.RED, false, 12, new SimpleDateFormat("HH:mm").format(new Date()));
+		}
+	}
+
+	/**
+	 * 显示一条文件分享：缩略图（如果有）、文件名和大小；别人分享的文件带一个下载按钮
+	 */
+	private void appendFileOffer(Message msg) {
+		String[] fields = msg.getContent() == null ? new String[0] : msg.getContent().split("\\|");
+		long size = 0;
+		try {
+			size = fields.length == 2 ? Long.parseLong(fields[1]) : 0;
+		} catch (NumberFormatException ignored) {
+		}
+		String timeStr = msg.getSendTime() == null ? "" : new SimpleDateFormat("HH:mm").format(msg.getSendTime());
+		appendChat(msg.getSender(), "[文件] " + msg.getFileName() + " (" + FileTransferService.formatBytes(size) + ")",
+				new Color(0, 100, 200), false, 14, timeStr);
+
+		StyledDocument doc = chatArea.getStyledDocument();
+		try {
+			if (msg.getFileData() != null) {
+				SimpleAttributeSet iconAttr = new SimpleAttributeSet();
+				StyleConstants.setIcon(iconAttr, new ImageIcon(msg.getFileData()));
+				insert(doc, " ", iconAttr);
+			}
+			if (!user.getUserID().equals(msg.getSender())) {
+				JButton downloadBtn = new JButton("下载");
+				downloadBtn.setMargin(new Insets(0, 6, 0, 6));
+				downloadBtn.addActionListener(e -> {
+					try {
+						if (FileTransferService.getInstance(user).fetch(msg) == null) {
+							appendChat("系统", "[文件正在下载: " + msg.getFileName() + "]", Color.GRAY, false, 12,
+									new SimpleDateFormat("HH:mm").format(new Date()));
+						}
+					} catch (IOException ex) {
+						appendChat("系统", "[文件下载失败: " + ex.getMessage() + "]", Color.RED, false, 12,
+								new SimpleDateFormat("HH:mm").format(new Date()));
+					}
 				});
+				SimpleAttributeSet buttonAttr = new SimpleAttributeSet();
+				StyleConstants.setComponent(buttonAttr, downloadBtn);
+				insert(doc, " ", buttonAttr);
+			}
+			if (msg.getFileData() != null || !user.getUserID().equals(msg.getSender())) {
+				insert(doc, "\n", null);
+			}
+			if (prependAt < 0) {
+				chatArea.setCaretPosition(doc.getLength());
 			}
-		}, "FileTransferThread").start();
+		} catch (BadLocationException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
-	 * 截图并发送
+	 * 文件传输开始：在聊天面板显示提示
 	 */
-	private void sendScreenshot() {
-		if (isWorldChat) {
-			JOptionPane.showMessageDialog(this, "世界聊天不支持截图发送", "提示", JOptionPane.WARNING_MESSAGE);
+	private void transferStarted(FileTransferService.Transfer transfer) {
+		String action = transfer.isDeduplicated() ? "秒传" : transfer.getResumedFrom() > 0 ? "继续" : "正在";
+		String statusMsg = transfer.isSending()
+				? "[" + action + "发送文件: " + transfer.getFileName() + " ("
+						+ FileTransferService.formatBytes(transfer.getTotalBytes()) + ")]"
+				: "[" + action + "接收文件: " + transfer.getFileName() + " ("
+						+ FileTransferService.formatBytes(transfer.getTotalBytes()) + ") 来自 " + transfer.getPeer() + "]";
+		appendChat("系统", statusMsg, Color.GRAY, false, 12, new SimpleDateFormat("HH:mm").format(new Date()));
+		transferLabel.setText(transfer.describe());
+	}
+
+	/**
+	 * 文件传输结束：显示结果、耗时和平均速率
+	 */
+	private void transferFinished(FileTransferService.Transfer transfer) {
+		String timeStr = new SimpleDateFormat("HH:mm").format(new Date());
+		transferLabel.setText("");
+		if (transfer.getError() != null) {
+			String errorMsg = "[文件" + (transfer.isSending() ? "发送" : "接收") + (transfer.isSuspended() ? "中断: " : "失败: ")
+					+ transfer.getFileName() + " (" + transfer.getError() + ")]";
+			appendChat("系统", errorMsg, Color.RED, false, 12, timeStr);
 			return;
 		}
-		if (isGroupChat) {
-			JOptionPane.showMessageDialog(this, "群聊不支持截图发送", "提示", JOptionPane.WARNING_MESSAGE);
-			return;
+		String stats = FileTransferService.formatBytes(transfer.getTotalBytes()) + ", 耗时 "
+				+ transfer.getElapsedMillis() / 1000.0 + "s, 平均 "
+				+ FileTransferService.formatBytes(transfer.getBytesPerSecond()) + "/s";
+		if (transfer.isDeduplicated()) {
+			stats = FileTransferService.formatBytes(transfer.getTotalBytes()) + ", "
+					+ (transfer.isSending() ? "服务器已有相同文件，未重新上传" : "本地已有相同文件，未重新下载");
 		}
+		if (transfer.isSending()) {
+			appendChat("系统", "[文件发送成功: " + transfer.getFileName() + " (" + stats + ")]", new Color(0, 128, 0),
+					false, 12, timeStr);
+			// 自己的分享也存入对应聊天的缓存
+			Message offer = transfer.getOffer();
+			if (offer != null) {
+				String chatKey = manageClientService.chatKeyOf(offer);
+				manageClientService.addMessageToBuffer(chatKey, offer);
+				if (chatKey.equals(chatWith)) {
+					appendFileOffer(offer);
+				}
+			}
+		} else {
+			appendChat("系统", "[收到文件: " + transfer.getFileName() + " (" + stats + ")\n保存到: "
+					+ transfer.getSavedFile().getAbsolutePath() + "]", new Color(0, 100, 200), false, 12, timeStr);
+			// 播放文件接收提示音
+			SoundManager.playFileSound();
+		}
+	}
+
+	/**
+	 * 截图并分享到当前聊天（保存为PNG后按文件上传）
+	 */
+	private void sendScreenshot() {
+		// 截图期间可能切换聊天，先记下分享对象
+		String receiver = shareReceiver();
 
 		// 隐藏当前窗口
 		setVisible(false);
@@ -565,28 +697,9 @@ public class MainChatView extends JFrame {
 					return; // 用户取消
 				}
 
-				// 转为字节数组
-				byte[] fileData = ScreenshotUtil.imageToBytes(screenshot);
-				String fileName = "screenshot_" + System.currentTimeMillis() + ".png";
-
-				// 构建文件消息
-				Message fileMsg = new Message.Builder()
-						.mesType(MessageType.MESSAGE_FILE)
-						.sender(user.getUserID())
-						.receiver(chatWith)
-						.fileName(fileName)
-						.fileData(fileData)
-						.build();
-
-				// 发送
-				manageClientService.sendPrivateMessage(fileMsg);
-
-				// 显示成功
-				SwingUtilities.invokeLater(() -> {
-					String successMsg = "[截图发送成功: " + fileName + " (" + (fileData.length / 1024) + "KB)]";
-					appendChat("系统", successMsg, new Color(0, 128, 0), false, 12,
-							new java.text.SimpleDateFormat("HH:mm").format(new Date()));
-				});
+				// 保存为PNG，之后和普通文件一样上传、分享（进度和结果由传输监听器显示）
+				java.io.File file = ScreenshotUtil.saveImage(screenshot);
+				SwingUtilities.invokeLater(() -> shareFile(file, receiver));
 
 			} catch (Exception ex) {
 				ex.printStackTrace();
@@ -626,9 +739,9 @@ public class MainChatView extends JFrame {
 		} else if (isGroupChat) {
 			message = new Message.Builder()
 					.mesType(MessageType.MESSAGE_GROUP_MES)
+					.receiver(chatWith) // 群地址，服务端按登记的成员转发
 					.content(text)
 					.sender(user.getUserID())
-					.setUserlist(currentGroupMembers)
 					.fontColor(colorHex)
 					.bold(currentBold)
 					.fontSize(currentFontSize)
@@ -651,11 +764,8 @@ public class MainChatView extends JFrame {
 		String cacheKey;
 		if (isWorldChat) {
 			cacheKey = "世界聊天";
-		} else if (isGroupChat) {
-			List<String> sorted = new ArrayList<>(currentGroupMembers);
-			Collections.sort(sorted);
-			cacheKey = "群聊:" + String.join(",", sorted);
 		} else {
+			// 群聊为群地址，私聊为对方的UserID
 			cacheKey = chatWith;
 		}
 		manageClientService.addMessageToBuffer(cacheKey, message);
@@ -682,14 +792,28 @@ public class MainChatView extends JFrame {
 				displayName = userIdToNickname.get(sender) + "(" + sender + ")";
 			}
 
-			doc.insertString(doc.getLength(), sendTimeStr + " " + displayName + ": " + "\n", timeAttr);
-			doc.insertString(doc.getLength(), msg + "\n", attr);
-			chatArea.setCaretPosition(doc.getLength());
+			insert(doc, sendTimeStr + " " + displayName + ": " + "\n", timeAttr);
+			insert(doc, msg + "\n", attr);
+			if (prependAt < 0) {
+				chatArea.setCaretPosition(doc.getLength());
+			}
 		} catch (BadLocationException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * 插入一段文字：通常追加到末尾，加载更早的消息时插入到prependAt处
+	 */
+	private void insert(StyledDocument doc, String text, AttributeSet attr) throws BadLocationException {
+		if (prependAt < 0) {
+			doc.insertString(doc.getLength(), text, attr);
+		} else {
+			doc.insertString(prependAt, text, attr);
+			prependAt += text.length();
+		}
+	}
+
 	private void updateOnlineUsers(List<String> users) {
 		listModel.clear();
 		for (String u : users) {
@@ -707,29 +831,129 @@ public class MainChatView extends JFrame {
 	}
 
 	/**
-	 * 从缓存加载并显示聊天历史记录
+	 * 应用在线状态增量："+昵称(UserID)"表示上线，"-UserID"表示下线；只改动变化的行，不重建整个列表
+	 */
+	private void applyPresenceDelta(List<String> changes) {
+		for (String change : changes) {
+			if (change.isEmpty()) {
+				continue;
+			}
+			String entry = change.substring(1);
+			String uid = change.charAt(0) == '+' ? extractUserId(entry) : entry;
+			int index = -1;
+			for (int i = 0; i < listModel.size(); i++) {
+				if (uid.equals(extractUserId(listModel.getElementAt(i)))) {
+					index = i;
+					break;
+				}
+			}
+			if (change.charAt(0) == '+') {
+				listModel.removeElement("暂无在线用户");
+				if (index >= 0) {
+					listModel.set(index, entry);
+				} else {
+					listModel.addElement(entry);
+				}
+				String nick = extractNickname(entry);
+				if (nick != null) {
+					userIdToNickname.put(uid, nick);
+					nicknameToUserId.put(nick, uid);
+				}
+			} else if (index >= 0) {
+				listModel.remove(index);
+			}
+		}
+		if (listModel.isEmpty())
+			listModel.addElement("暂无在线用户");
+	}
+
+	/**
+	 * 显示聊天历史记录：只加载最新的一页，向上滚动到顶部时再加载更早的
 	 * 
-	 * @param chatKey 聊天对象标识（用户名或"世界聊天"）
+	 * @param chatKey 聊天对象标识（用户ID、"世界聊天"或群地址）
 	 */
 	private void loadChatHistory(String chatKey) {
 		chatArea.setText("");
-		List<Message> messages = manageClientService.getMessages(chatKey);
-		for (Message msg : messages) {
-			Color c = Color.BLACK;
-			boolean b = false;
-			int size = 14;
-			String sendTimeStr = "";
-			try {
-				Date sendTime = msg.getSendTime();
-				SimpleDateFormat sendTimeFormat = new SimpleDateFormat("HH:mm");
-				sendTimeStr = sendTimeFormat.format(sendTime);
-				c = Color.decode(msg.getFontColor());
-				b = msg.isBold();
-				size = msg.getFontSize();
-			} catch (Exception ignored) {
+		ChatHistoryManager.Page page = manageClientService.getPage(chatKey, -1);
+		historyKey = chatKey;
+		historyFrom = page.getFrom();
+		for (Message msg : page.getMessages()) {
+			appendHistory(msg);
+		}
+		SwingUtilities.invokeLater(() -> fillViewport(chatKey));
+	}
+
+	/**
+	 * 一页消息撑不满聊天面板时不会出现滚动条，也就无法滚动到顶部加载更早的消息：
+	 * 布局完成后继续在顶部插入更早的页，直到出现滚动条或已显示到最早的消息
+	 */
+	private void fillViewport(String chatKey) {
+		JScrollBar bar = chatScroll.getVerticalScrollBar();
+		// 面板还没有显示时尺寸为0，此时无法判断是否撑满
+		if (!chatKey.equals(historyKey) || historyFrom <= 0 || prependAt >= 0 || !chatScroll.isShowing()
+				|| chatScroll.getViewport().getHeight() == 0 || bar.getMaximum() > bar.getVisibleAmount()) {
+			return;
+		}
+		long before = historyFrom;
+		prependPage();
+		if (historyFrom < before) {
+			SwingUtilities.invokeLater(() -> fillViewport(chatKey));
+		}
+	}
+
+	/**
+	 * 在聊天面板顶部插入更早的一页，保持当前看到的内容不动
+	 */
+	private void loadOlderHistory() {
+		JScrollBar bar = chatScroll.getVerticalScrollBar();
+		if (historyKey == null || historyFrom <= 0 || prependAt >= 0 || bar.getValue() != bar.getMinimum()
+				|| bar.getMaximum() <= bar.getVisibleAmount()) {
+			return;
+		}
+		int fromBottom = bar.getMaximum() - bar.getValue();
+		prependPage();
+		// 布局更新后按与底部的距离恢复滚动位置
+		SwingUtilities.invokeLater(() -> bar.setValue(bar.getMaximum() - fromBottom));
+	}
+
+	/**
+	 * 读取historyFrom之前的一页，插入到聊天面板顶部
+	 */
+	private void prependPage() {
+		ChatHistoryManager.Page page = manageClientService.getPage(historyKey, historyFrom);
+		historyFrom = page.getFrom();
+		prependAt = 0;
+		try {
+			for (Message msg : page.getMessages()) {
+				appendHistory(msg);
 			}
-			appendChat(msg.getSender(), msg.getContent(), c, b, size, sendTimeStr);
+		} finally {
+			prependAt = -1;
+		}
+	}
+
+	/**
+	 * 显示一条历史消息
+	 */
+	private void appendHistory(Message msg) {
+		if (MessageType.MESSAGE_FILE_OFFER.equals(msg.getMesType())) {
+			appendFileOffer(msg);
+			return;
 		}
+		Color c = Color.BLACK;
+		boolean b = false;
+		int size = 14;
+		String sendTimeStr = "";
+		try {
+			Date sendTime = msg.getSendTime();
+			SimpleDateFormat sendTimeFormat = new SimpleDateFormat("HH:mm");
+			sendTimeStr = sendTimeFormat.format(sendTime);
+			c = Color.decode(msg.getFontColor());
+			b = msg.isBold();
+			size = msg.getFontSize();
+		} catch (Exception ignored) {
+		}
+		appendChat(msg.getSender(), msg.getContent(), c, b, size, sendTimeStr);
 	}
 
 	private void showCreateGroupDialog() {
@@ -770,28 +994,18 @@ public class MainChatView extends JFrame {
 			}
 			groupMemberIds.add(user.getUserID()); // 加入自己的UserID
 
-			// 设置群聊状态
-			currentGroupMembers = new ArrayList<>(groupMemberIds);
-			isGroupChat = true;
-			isWorldChat = false;
-
-			// 生成群聊标题（用于内部key）
+			// 服务端登记后回复群地址，收到后自动打开（见addGroupToList）
 			List<String> sorted = new ArrayList<>(groupMemberIds);
 			Collections.sort(sorted);
-			chatWith = "群聊:" + String.join(",", sorted);
+			pendingGroupMembers = String.join(",", sorted);
 
-			((JLabel) ((JPanel) getContentPane().getComponent(1)).getComponent(0))
-					.setText("群聊 (" + selectedUsers.size() + "人)");
-
-			// 发送群聊创建消息给服务器，广播给所有群成员
+			// 发送群聊创建消息给服务器，由服务端登记成员并通知所有群成员
 			Message createMsg = new Message.Builder()
 					.mesType(MessageType.MESSAGE_GROUP_CREATE)
 					.sender(user.getUserID()) // 使用UserID
 					.setUserlist(groupMemberIds) // 使用UserID列表
 					.build();
 			manageClientService.sendPrivateMessage(createMsg);
-
-			loadChatHistory(chatWith);
 		}
 	}
 
@@ -803,10 +1017,7 @@ public class MainChatView extends JFrame {
 			// 修复：使用UserID作为key，而非昵称
 			return extractUserId(msg.getSender());
 		} else if (MessageType.MESSAGE_GROUP_MES.equals(type)) {
-			List<String> members = msg.getUserlist();
-			List<String> sorted = new ArrayList<>(members);
-			Collections.sort(sorted);
-			return "群聊:" + String.join(",", sorted);
+			return msg.getReceiver();
 		}
 		return null;
 	}
@@ -952,7 +1163,9 @@ public class MainChatView extends JFrame {
 	}
 
 	/**
-	 * 接收文件并保存
+	 * 接收整文件消息（MESSAGE_FILE，截图使用）并保存
+	 * 【说明】通过"发送文件"发送的文件走分块传输，由FileTransferService接收；
+	 * 保存由DownloadStore完成，已下载过的相同内容不再写一份
 	 */
 	private void receiveFile(Message msg) {
 		try {
@@ -963,15 +1176,8 @@ public class MainChatView extends JFrame {
 				return;
 			}
 
-			// 创建downloads目录
-			java.io.File downloadsDir = new java.io.File("downloads");
-			if (!downloadsDir.exists()) {
-				downloadsDir.mkdirs();
-			}
-
-			// 保存文件
-			java.io.File saveFile = new java.io.File(downloadsDir, fileName);
-			java.nio.file.Files.write(saveFile.toPath(), fileData);
+			// 保存文件（去掉路径部分，防止写到downloads目录之外）
+			java.io.File saveFile = DownloadStore.getInstance().save(fileData, new java.io.File(fileName).getName());
 
 			// 在聊天面板显示接收成功
 			String successMsg = "[收到文件: " + fileName + " (" + (fileData.length / 1024) + "KB)\n保存到: "
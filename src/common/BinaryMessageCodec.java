@@ -0,0 +1,398 @@
+package common;
+
+import java.io.EOFException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 二进制消息编解码器 - Message的紧凑线上格式，替代Java序列化
+ * <p>
+ * 【负载格式】（版本1）
+ *
+ * <pre>
+ * +-----------+-------------+-----------------+------------------------+
+ * | byte 版本 | byte 类型码 | varint 字段位图 | 位图中存在的字段（按位序）|
+ * +-----------+-------------+-----------------+------------------------+
+ * </pre>
+ *
+ * - 类型码：MessageType常量在TYPE_TABLE中的下标+1；0表示后面紧跟类型字符串（未登记的类型）
+ * - 字段位图：值等于Builder默认值的字段不置位、不占字节；bold的位本身就是值
+ * - 字符串/列表/字节数组：varint(长度+1)后跟内容，0表示null
+ * - 整数：varint（fontSize用zigzag编码），时间为毫秒时间戳
+ * <p>
+ * 【设计说明】
+ * - Java序列化每帧都要带类描述符、中文类型字符串、Date对象和默认的颜色/列表，
+ * 一条普通聊天消息的大部分字节都是这些固定开销
+ * - 只解析基本类型和UTF-8字符串，热路径上不再经过ObjectInputStream
+ * - 格式与连接状态无关，编码结果可以直接作为广播的共享帧
+ * - TYPE_TABLE只能在末尾追加；字段布局变化时提升VERSION
+ *
+ * @author ChatRoom Team
+ */
+public final class BinaryMessageCodec {
+
+	/** 格式版本 */
+	public static final int VERSION = 1;
+
+	/** 类型码表（只能在末尾追加，不能调整顺序） */
+	private static final String[] TYPE_TABLE = {
+			MessageType.MESSAGE_LOGIN,
+			MessageType.MESSAGE_LOGIN_SUCCEED,
+			MessageType.MESSAGE_LOGIN_FAIL,
+			MessageType.MESSAGE_REGISTER,
+			MessageType.MESSAGE_REGISTER_SUCCEED,
+			MessageType.MESSAGE_REGISTER_FAIL,
+			MessageType.MESSAGE_COMM_MES,
+			MessageType.MESSAGE_WORLD_CHAT,
+			MessageType.MESSAGE_GROUP_MES,
+			MessageType.MESSAGE_GROUP_CREATE,
+			MessageType.MESSAGE_GET_ONLINE_FRIEND,
+			MessageType.MESSAGE_RET_ONLINE_FRIEND,
+			MessageType.MESSAGE_CLIENT_EXIT,
+			MessageType.MESSAGE_SHAKE,
+			MessageType.MESSAGE_FILE,
+			MessageType.MESSAGE_SYSTEM_BROADCAST,
+			MessageType.MESSAGE_PING,
+			MessageType.MESSAGE_PONG,
+			MessageType.MESSAGE_FILE_BEGIN,
+			MessageType.MESSAGE_FILE_CHUNK,
+			MessageType.MESSAGE_FILE_END,
+			MessageType.MESSAGE_FILE_ACK,
+			MessageType.MESSAGE_FILE_ABORT,
+			MessageType.MESSAGE_FILE_RESUME,
+			MessageType.MESSAGE_FILE_OFFER,
+			MessageType.MESSAGE_FILE_FETCH,
+			MessageType.MESSAGE_PRESENCE_DELTA,
+	};
+
+	// ==================== 字段位图 ====================
+	private static final int F_SENDER = 1;
+	private static final int F_RECEIVER = 1 << 1;
+	private static final int F_CONTENT = 1 << 2;
+	private static final int F_SEND_TIME = 1 << 3;
+	private static final int F_USERLIST = 1 << 4;
+	private static final int F_FONT_COLOR = 1 << 5;
+	private static final int F_BOLD = 1 << 6;
+	private static final int F_FONT_SIZE = 1 << 7;
+	private static final int F_FILE_NAME = 1 << 8;
+	private static final int F_FILE_DATA = 1 << 9;
+
+	/** Builder默认值，与Message.Builder保持一致 */
+	private static final Message DEFAULTS = new Message.Builder().sendTime(null).build();
+
+	private BinaryMessageCodec() {
+	}
+
+	/**
+	 * 编码消息负载（不含帧头）
+	 */
+	public static byte[] encode(Message msg) {
+		byte[] fileData = msg.getFileData();
+		Writer out = writeFields(msg, fileData == null ? -1 : fileData.length,
+				64 + (fileData == null ? 0 : fileData.length));
+		if (fileData != null) {
+			out.writeRaw(fileData);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * 编码文件数据消息的负载前缀：fileData字段只写长度，不写内容
+	 * 【用途】服务端零拷贝转发文件分块：前缀后面紧跟dataLength字节的文件内容，
+	 * 拼起来与带fileData调用encode()的结果完全相同（fileData是最后一个字段）
+	 *
+	 * @param msg 不含fileData的消息
+	 */
+	public static byte[] encodePrefix(Message msg, int dataLength) {
+		return writeFields(msg, dataLength, 64).toByteArray();
+	}
+
+	/**
+	 * 写出除fileData内容以外的所有字段
+	 *
+	 * @param dataLength fileData的长度，-1表示没有fileData
+	 */
+	private static Writer writeFields(Message msg, int dataLength, int capacity) {
+		int bits = 0;
+		if (differs(msg.getSender(), DEFAULTS.getSender())) {
+			bits |= F_SENDER;
+		}
+		if (differs(msg.getReceiver(), DEFAULTS.getReceiver())) {
+			bits |= F_RECEIVER;
+		}
+		if (differs(msg.getContent(), DEFAULTS.getContent())) {
+			bits |= F_CONTENT;
+		}
+		if (msg.getSendTime() != null) {
+			bits |= F_SEND_TIME;
+		}
+		if (differs(msg.getUserlist(), DEFAULTS.getUserlist())) {
+			bits |= F_USERLIST;
+		}
+		if (differs(msg.getFontColor(), DEFAULTS.getFontColor())) {
+			bits |= F_FONT_COLOR;
+		}
+		if (msg.isBold()) {
+			bits |= F_BOLD;
+		}
+		if (msg.getFontSize() != DEFAULTS.getFontSize()) {
+			bits |= F_FONT_SIZE;
+		}
+		if (msg.getFileName() != null) {
+			bits |= F_FILE_NAME;
+		}
+		if (dataLength >= 0) {
+			bits |= F_FILE_DATA;
+		}
+
+		Writer out = new Writer(capacity);
+		out.writeByte(VERSION);
+		int typeCode = typeCode(msg.getMesType());
+		out.writeByte(typeCode);
+		if (typeCode == 0) {
+			out.writeString(msg.getMesType());
+		}
+		out.writeVarLong(bits);
+		if ((bits & F_SENDER) != 0) {
+			out.writeString(msg.getSender());
+		}
+		if ((bits & F_RECEIVER) != 0) {
+			out.writeString(msg.getReceiver());
+		}
+		if ((bits & F_CONTENT) != 0) {
+			out.writeString(msg.getContent());
+		}
+		if ((bits & F_SEND_TIME) != 0) {
+			out.writeVarLong(msg.getSendTime().getTime());
+		}
+		if ((bits & F_USERLIST) != 0) {
+			List<String> list = msg.getUserlist();
+			if (list == null) {
+				out.writeVarLong(0);
+			} else {
+				out.writeVarLong(list.size() + 1L);
+				for (String s : list) {
+					out.writeString(s);
+				}
+			}
+		}
+		if ((bits & F_FONT_COLOR) != 0) {
+			out.writeString(msg.getFontColor());
+		}
+		if ((bits & F_FONT_SIZE) != 0) {
+			int size = msg.getFontSize();
+			out.writeVarLong(((size << 1) ^ (size >> 31)) & 0xFFFFFFFFL);
+		}
+		if ((bits & F_FILE_NAME) != 0) {
+			out.writeString(msg.getFileName());
+		}
+		if ((bits & F_FILE_DATA) != 0) {
+			out.writeVarLong(dataLength + 1L);
+		}
+		return out;
+	}
+
+	/**
+	 * 解码消息负载
+	 *
+	 * @throws StreamCorruptedException 版本不支持或数据不完整
+	 */
+	public static Message decode(byte[] payload) throws StreamCorruptedException {
+		Reader in = new Reader(payload);
+		try {
+			int version = in.readByte();
+			if (version != VERSION) {
+				throw new StreamCorruptedException("不支持的二进制消息版本: " + version);
+			}
+			int typeCode = in.readByte();
+			String mesType;
+			if (typeCode == 0) {
+				mesType = in.readString();
+			} else if (typeCode <= TYPE_TABLE.length) {
+				mesType = TYPE_TABLE[typeCode - 1];
+			} else {
+				throw new StreamCorruptedException("未知的消息类型码: " + typeCode);
+			}
+			int bits = (int) in.readVarLong();
+
+			Message.Builder builder = new Message.Builder().mesType(mesType).sendTime(null);
+			if ((bits & F_SENDER) != 0) {
+				builder.sender(in.readString());
+			}
+			if ((bits & F_RECEIVER) != 0) {
+				builder.receiver(in.readString());
+			}
+			if ((bits & F_CONTENT) != 0) {
+				builder.content(in.readString());
+			}
+			if ((bits & F_SEND_TIME) != 0) {
+				builder.sendTime(new Date(in.readVarLong()));
+			}
+			if ((bits & F_USERLIST) != 0) {
+				int n = in.readLength();
+				if (n < 0) {
+					builder.setUserlist(null);
+				} else {
+					List<String> list = new ArrayList<>(n);
+					for (int i = 0; i < n; i++) {
+						list.add(in.readString());
+					}
+					builder.setUserlist(list);
+				}
+			}
+			if ((bits & F_FONT_COLOR) != 0) {
+				builder.fontColor(in.readString());
+			}
+			builder.bold((bits & F_BOLD) != 0);
+			if ((bits & F_FONT_SIZE) != 0) {
+				int zigzag = (int) in.readVarLong();
+				builder.fontSize((zigzag >>> 1) ^ -(zigzag & 1));
+			}
+			if ((bits & F_FILE_NAME) != 0) {
+				builder.fileName(in.readString());
+			}
+			if ((bits & F_FILE_DATA) != 0) {
+				builder.fileData(in.readBytes());
+			}
+			return builder.build();
+		} catch (EOFException e) {
+			throw new StreamCorruptedException("二进制消息不完整");
+		}
+	}
+
+	private static int typeCode(String mesType) {
+		for (int i = 0; i < TYPE_TABLE.length; i++) {
+			// 常量通常是同一个String实例，先比较引用
+			if (TYPE_TABLE[i] == mesType || TYPE_TABLE[i].equals(mesType)) {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+
+	private static boolean differs(Object value, Object defaultValue) {
+		return value == null ? defaultValue != null : !value.equals(defaultValue);
+	}
+
+	/**
+	 * 可增长的字节数组写入器
+	 */
+	private static class Writer {
+		private byte[] buf;
+		private int pos;
+
+		Writer(int capacity) {
+			buf = new byte[capacity];
+		}
+
+		void ensure(int n) {
+			if (pos + n > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+			}
+		}
+
+		void writeByte(int b) {
+			ensure(1);
+			buf[pos++] = (byte) b;
+		}
+
+		void writeVarLong(long v) {
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[pos++] = (byte) v;
+		}
+
+		void writeString(String s) {
+			writeBytes(s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+		}
+
+		void writeBytes(byte[] data) {
+			if (data == null) {
+				writeVarLong(0);
+				return;
+			}
+			writeVarLong(data.length + 1L);
+			writeRaw(data);
+		}
+
+		void writeRaw(byte[] data) {
+			ensure(data.length);
+			System.arraycopy(data, 0, buf, pos, data.length);
+			pos += data.length;
+		}
+
+		byte[] toByteArray() {
+			return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
+		}
+	}
+
+	/**
+	 * 带越界检查的字节数组读取器
+	 */
+	private static class Reader {
+		private final byte[] buf;
+		private int pos;
+
+		Reader(byte[] buf) {
+			this.buf = buf;
+		}
+
+		int readByte() throws EOFException {
+			if (pos >= buf.length) {
+				throw new EOFException();
+			}
+			return buf[pos++] & 0xFF;
+		}
+
+		long readVarLong() throws EOFException, StreamCorruptedException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new StreamCorruptedException("varint过长");
+		}
+
+		/** 读取长度前缀，-1表示null */
+		int readLength() throws EOFException, StreamCorruptedException {
+			long n = readVarLong() - 1;
+			if (n < -1) {
+				throw new StreamCorruptedException("非法的长度: " + n);
+			}
+			if (n > buf.length - pos) {
+				throw new EOFException();
+			}
+			return (int) n;
+		}
+
+		String readString() throws EOFException, StreamCorruptedException {
+			int n = readLength();
+			if (n < 0) {
+				return null;
+			}
+			String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+			pos += n;
+			return s;
+		}
+
+		byte[] readBytes() throws EOFException, StreamCorruptedException {
+			int n = readLength();
+			if (n < 0) {
+				return null;
+			}
+			byte[] data = Arrays.copyOfRange(buf, pos, pos + n);
+			pos += n;
+			return data;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 已编码的数据帧 - 一份只读的帧字节，可被多个连接共享
+ * <p>
+ * 【核心作用】
+ * 广播时只序列化一次，把同一个EncodedFrame放入每个接收者的发件箱，
+ * 各连接写出时共享同一个底层字节数组，不再各自复制和序列化
+ * <p>
+ * 【不可变】
+ * 帧字节在构造后不再修改；buffer()每次返回独立位置的只读视图，
+ * 多个EventLoop可以同时写出同一帧
+ *
+ * @author ChatRoom Team
+ */
+public final class EncodedFrame {
+	private final byte[] frame;
+	/** 帧对应的原始消息（转存离线消息、判断优先级时使用） */
+	private final Message message;
+
+	private EncodedFrame(byte[] frame, Message message) {
+		this.frame = frame;
+		this.message = message;
+	}
+
+	/**
+	 * 把消息编码成与连接无关的帧（二进制格式或独立序列化流）
+	 */
+	public static EncodedFrame of(Message msg) throws IOException {
+		return new EncodedFrame(FrameCodec.encodeShared(msg), msg);
+	}
+
+	public Message getMessage() {
+		return message;
+	}
+
+	/** 帧总长度（含帧头） */
+	public int size() {
+		return frame.length;
+	}
+
+	/** 写入阻塞输出流 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(frame);
+	}
+
+	/** 供NIO写出的只读视图，每次调用返回独立的读写位置 */
+	public ByteBuffer buffer() {
+		return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+	}
+}
@@ -0,0 +1,70 @@
+package common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * 文件传输校验 - 分块CRC32C与整文件SHA-256
+ * <p>
+ * 【用法】
+ * - 发送方为每个分块计算CRC32C放在MESSAGE_FILE_CHUNK的content中，接收方（包括中转的服务端）
+ * 写盘前校验，不一致时用MESSAGE_FILE_RESUME要求从该分块重发，不必从头再来
+ * - 发送方边读边计算整个文件的SHA-256，放在MESSAGE_FILE_END中，接收方收齐后比对，
+ * 覆盖分块校验发现不了的问题（例如续传前本地残留的数据已损坏）
+ * <p>
+ * 【说明】CRC32C（java.util.zip.CRC32C）在支持的CPU上由硬件指令计算，
+ * 开销远小于一次分块的网络传输
+ *
+ * @author ChatRoom Team
+ */
+public final class FileChecksums {
+
+	private FileChecksums() {
+	}
+
+	/** 计算一段数据的CRC32C */
+	public static int crc32c(byte[] data, int offset, int length) {
+		CRC32C crc = new CRC32C();
+		crc.update(data, offset, length);
+		return (int) crc.getValue();
+	}
+
+	/** 计算整个数组的CRC32C */
+	public static int crc32c(byte[] data) {
+		return crc32c(data, 0, data.length);
+	}
+
+	/** CRC的文本形式（无符号十六进制），用于消息content */
+	public static String crcToString(int crc) {
+		return Integer.toHexString(crc);
+	}
+
+	/**
+	 * 解析crcToString的结果
+	 *
+	 * @throws NumberFormatException 格式错误
+	 */
+	public static int parseCrc(String text) {
+		return Integer.parseUnsignedInt(text, 16);
+	}
+
+	/** 新建一个整文件摘要（SHA-256） */
+	public static MessageDigest newFileDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// 每个JRE都必须支持SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** 摘要的文本形式（小写十六进制） */
+	public static String toHex(byte[] digest) {
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+}
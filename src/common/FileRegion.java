@@ -0,0 +1,155 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 文件区域帧 - 帧前缀在内存中，文件内容留在磁盘上，写出时零拷贝
+ * <p>
+ * 【核心作用】
+ * 服务端转发文件时不再把文件内容读进堆：只编码帧头和消息中fileData之前的字段
+ * （见 {@link FrameCodec#encodeFilePrefix}），写出时先写前缀，再用
+ * FileChannel.transferTo把文件的一段直接送进Socket，由内核完成拷贝
+ * <p>
+ * 【资源释放】
+ * 文件通道可能被多个区域共享，由创建者管理生命周期。区域写出完成或被丢弃后，
+ * 持有它的一方必须调用release()（幂等），创建者据此关闭或删除文件
+ * <p>
+ * 【序列化格式】
+ * -Dchat.wire.codec=serial 时负载无法拆分，创建时直接读出这一段编码成完整帧，
+ * 此时不是零拷贝，但内存占用仍只有一个分块
+ *
+ * @author ChatRoom Team
+ */
+public final class FileRegion {
+	/** 帧前缀（序列化格式下为完整帧） */
+	private final byte[] head;
+	private final FileChannel file;
+	private final long position;
+	private final int count;
+	/** 不含fileData的消息（判断类型、日志使用） */
+	private final Message message;
+	private final Runnable onRelease;
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	private FileRegion(byte[] head, FileChannel file, long position, int count, Message message, Runnable onRelease) {
+		this.head = head;
+		this.file = file;
+		this.position = position;
+		this.count = count;
+		this.message = message;
+		this.onRelease = onRelease;
+	}
+
+	/**
+	 * 创建一个文件区域帧
+	 *
+	 * @param msg       不含fileData的消息，文件内容作为它的fileData发出
+	 * @param file      文件通道，写出前不得关闭
+	 * @param position  文件内容在文件中的起始位置
+	 * @param count     文件内容的字节数
+	 * @param onRelease 区域写出完成或被丢弃时调用，可为null
+	 */
+	public static FileRegion of(Message msg, FileChannel file, long position, int count, Runnable onRelease)
+			throws IOException {
+		byte[] head = FrameCodec.encodeFilePrefix(msg, count);
+		if (head != null) {
+			return new FileRegion(head, file, position, count, msg, onRelease);
+		}
+		ByteBuffer data = ByteBuffer.allocate(count);
+		while (data.hasRemaining()) {
+			if (file.read(data, position + data.position()) < 0) {
+				throw new EOFException("文件长度不足");
+			}
+		}
+		Message full = new Message.Builder()
+				.mesType(msg.getMesType())
+				.sender(msg.getSender())
+				.receiver(msg.getReceiver())
+				.content(msg.getContent())
+				.sendTime(msg.getSendTime())
+				.fileName(msg.getFileName())
+				.fileData(data.array())
+				.build();
+		return new FileRegion(FrameCodec.encodeShared(full), file, position, 0, msg, onRelease);
+	}
+
+	public Message getMessage() {
+		return message;
+	}
+
+	/** 帧总长度（含帧头和文件内容） */
+	public long size() {
+		return head.length + (long) count;
+	}
+
+	/** 内存中的前缀长度 */
+	public int headSize() {
+		return head.length;
+	}
+
+	/** 文件内容的字节数 */
+	public int fileBytes() {
+		return count;
+	}
+
+	/** 前缀的只读视图（NIO写出用） */
+	public ByteBuffer headBuffer() {
+		return ByteBuffer.wrap(head).asReadOnlyBuffer();
+	}
+
+	/**
+	 * 从文件内容的第done字节起，尽量多地写入target
+	 *
+	 * @return 本次写出的字节数；非阻塞通道写满时可能为0
+	 */
+	public long transferTo(WritableByteChannel target, long done) throws IOException {
+		return file.transferTo(position + done, count - done, target);
+	}
+
+	/**
+	 * 阻塞写出整个帧：前缀写入out并flush，文件内容直接写入target
+	 *
+	 * @param out    带缓冲的输出流
+	 * @param target out底层的通道
+	 */
+	public void writeTo(OutputStream out, WritableByteChannel target) throws IOException {
+		out.write(head);
+		if (count == 0) {
+			return;
+		}
+		out.flush();
+		long done = 0;
+		while (done < count) {
+			long n = transferTo(target, done);
+			if (n <= 0 && file.size() < position + count) {
+				throw new EOFException("文件长度不足");
+			}
+			done += n;
+		}
+	}
+
+	/** 写出完成或丢弃后调用，只有第一次生效 */
+	public void release() {
+		if (released.compareAndSet(false, true) && onRelease != null) {
+			onRelease.run();
+		}
+	}
+
+	/**
+	 * 释放一批待写元素中的所有文件区域
+	 */
+	public static void releaseAll(List<?> items) {
+		for (Object item : items) {
+			if (item instanceof FileRegion) {
+				((FileRegion) item).release();
+			}
+		}
+	}
+}
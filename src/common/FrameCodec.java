@@ -0,0 +1,327 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据帧编解码器 - 把Message切分成带长度前缀的数据帧
+ * <p>
+ * 【帧格式】
+ *
+ * <pre>
+ * +-----------------+--------------+----------------+
+ * | int 负载长度(4B) | byte 帧类型 | 负载(长度字节) |
+ * +-----------------+--------------+----------------+
+ * </pre>
+ * <p>
+ * 【设计说明】
+ * - 原先直接在Socket上写ObjectOutputStream，接收方只能阻塞在readObject()上，
+ * 无法配合Selector做非阻塞读取；加上长度前缀后，接收方凑齐一整帧再解码即可
+ * - KIND_STREAM帧的负载是该连接上一条连续Java序列化流的一段，
+ * 类描述符只在第一帧发送一次，后续帧只携带对象本身
+ * - KIND_STANDALONE帧的负载是一条独立完整的序列化流（自带流头和类描述符），
+ * 不依赖连接状态，同一份帧字节可以原样发给任意多个连接（广播时只序列化一次）
+ * - KIND_BINARY帧的负载是BinaryMessageCodec的紧凑二进制格式，同样与连接状态无关；
+ * 默认使用该格式编码，-Dchat.wire.codec=serial 时退回Java序列化
+ * - 反序列化是对端可以触达的攻击面：只有本进程也设置了 -Dchat.wire.codec=serial 时才接受
+ * KIND_STREAM和KIND_STANDALONE帧（两端需要同时设置），否则按损坏的帧拒绝；
+ * 接受时也只允许Message及其字段用到的类型（见SERIAL_FILTER）
+ * - 二进制格式中fileData是最后一个字段，服务端转发文件分块时只编码前缀，
+ * 文件内容直接从磁盘零拷贝写出（见FileRegion），接收方看到的仍是普通的KIND_BINARY帧
+ * - 每个连接两端各持有一个FrameCodec实例，编码和解码状态互相独立
+ * <p>
+ * 【序列化流的重置策略】（仅KIND_STREAM）
+ * 长期打开的ObjectOutputStream会在句柄表中保留写过的每个对象（Message、列表、
+ * 文件byte[]），连接越忙堆占用越大；同一对象被修改后再发送时还会被写成旧对象的回引用。
+ * 满足以下任一条件时在本帧末尾调用reset()，接收方读到重置标记后同样清空句柄表：
+ * - 自上次重置以来写出的消息数达到 chat.stream.resetMessages（默认64，设为1即每帧重置）
+ * - 自上次重置以来写出的字节数达到 chat.stream.resetBytes（默认1MB）
+ * 两项设为0表示不按该条件重置。重置后类描述符需要重新发送一次
+ *
+ * @author ChatRoom Team
+ */
+public class FrameCodec {
+
+	/** 帧头长度：4字节长度 + 1字节帧类型 */
+	public static final int HEADER_SIZE = 5;
+	/** 单帧最大负载（文件消息最大5MB，留出余量） */
+	public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+	/** 帧类型：连续序列化流的一段 */
+	public static final byte KIND_STREAM = 0;
+	/** 帧类型：独立的一条序列化流，与连接状态无关 */
+	public static final byte KIND_STANDALONE = 1;
+	/** 帧类型：紧凑二进制格式，见BinaryMessageCodec */
+	public static final byte KIND_BINARY = 2;
+
+	/** 本进程编码时是否使用二进制格式 */
+	private static final boolean BINARY = !"serial".equals(System.getProperty("chat.wire.codec"));
+
+	/**
+	 * 反序列化白名单：Message、String、Date、ArrayList、Collections的内部列表和byte[]（基本类型数组不受类名限制），
+	 * 其余类型一律拒绝；java.lang.Object是ArrayList读取时检查的Object[]的元素类型
+	 */
+	private static final ObjectInputFilter SERIAL_FILTER = ObjectInputFilter.Config.createFilter(
+			"common.Message;java.lang.String;java.util.Date;java.util.ArrayList;java.util.Collections$*;java.lang.Object;"
+					+ "maxdepth=8;maxarray=" + MAX_FRAME_SIZE + ";!*");
+
+	/** 按消息数重置序列化流的阈值，0表示不按消息数重置 */
+	private static final int RESET_MESSAGES = Integer.getInteger("chat.stream.resetMessages", 64);
+	/** 按字节数重置序列化流的阈值，0表示不按字节数重置 */
+	private static final long RESET_BYTES = Long.getLong("chat.stream.resetBytes", 1024 * 1024);
+	/** 本进程所有连接累计的重置次数 */
+	private static final AtomicLong totalResets = new AtomicLong();
+
+	// ==================== 编码状态 ====================
+	private final EncodeBuffer encodeBuffer = new EncodeBuffer();
+	private CountingObjectOutputStream oos;
+	/** 自上次重置以来写出的消息数和字节数 */
+	private int messagesSinceReset;
+	private long bytesSinceReset;
+
+	// ==================== 解码状态 ====================
+	private final FeedInputStream feed = new FeedInputStream();
+	private ObjectInputStream ois;
+
+	/**
+	 * 把消息编码成一个完整的数据帧（含帧头）
+	 * 【线程安全】同一连接可能被多个线程同时发送，编码过程加锁
+	 */
+	public synchronized byte[] encode(Message msg) throws IOException {
+		if (BINARY) {
+			return toFrame(KIND_BINARY, BinaryMessageCodec.encode(msg));
+		}
+		if (oos == null) {
+			// 流头写入第一帧的负载中
+			oos = new CountingObjectOutputStream(encodeBuffer);
+		}
+		oos.writeObject(msg);
+		oos.flush();
+		messagesSinceReset++;
+		bytesSinceReset += encodeBuffer.size();
+		if ((RESET_MESSAGES > 0 && messagesSinceReset >= RESET_MESSAGES)
+				|| (RESET_BYTES > 0 && bytesSinceReset >= RESET_BYTES)) {
+			// 重置标记随本帧发出，双方同时释放句柄表中的对象
+			oos.reset();
+			oos.handles = 0;
+			messagesSinceReset = 0;
+			bytesSinceReset = 0;
+			totalResets.incrementAndGet();
+			oos.flush();
+		}
+		byte[] payload = encodeBuffer.toByteArray();
+		encodeBuffer.release();
+		return toFrame(KIND_STREAM, payload);
+	}
+
+	/**
+	 * 编码端序列化流句柄表中保留的对象数（不含类描述符），二进制格式下为0
+	 */
+	public synchronized int getRetainedHandles() {
+		return oos == null ? 0 : oos.handles;
+	}
+
+	/**
+	 * 自上次重置以来写出的序列化字节数
+	 */
+	public synchronized long getBytesSinceReset() {
+		return bytesSinceReset;
+	}
+
+	/** 本进程所有连接累计的序列化流重置次数 */
+	public static long getTotalResets() {
+		return totalResets.get();
+	}
+
+	/** 当前重置策略的描述 */
+	public static String describeResetPolicy() {
+		if (BINARY) {
+			return "二进制格式（无序列化流）";
+		}
+		return "每 " + (RESET_MESSAGES > 0 ? RESET_MESSAGES + " 条" : "-") + " / "
+				+ (RESET_BYTES > 0 ? RESET_BYTES / 1024 + "KB" : "-") + " 重置";
+	}
+
+	/**
+	 * 把消息编码成一个与连接无关的帧（含帧头），可以发给任意连接
+	 */
+	public static byte[] encodeShared(Message msg) throws IOException {
+		if (BINARY) {
+			return toFrame(KIND_BINARY, BinaryMessageCodec.encode(msg));
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+		try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+			out.writeObject(msg);
+		}
+		return toFrame(KIND_STANDALONE, buffer.toByteArray());
+	}
+
+	/**
+	 * 编码文件数据帧的前缀（帧头 + 负载中文件内容之前的部分），
+	 * 后面再接dataLength字节的文件内容就是一个完整的帧，见 {@link FileRegion}
+	 *
+	 * @param msg 不含fileData的消息
+	 * @return 前缀；序列化格式无法拆分负载，返回null
+	 */
+	public static byte[] encodeFilePrefix(Message msg, int dataLength) {
+		if (!BINARY) {
+			return null;
+		}
+		byte[] prefix = BinaryMessageCodec.encodePrefix(msg, dataLength);
+		byte[] head = new byte[HEADER_SIZE + prefix.length];
+		writeHeader(head, KIND_BINARY, prefix.length + dataLength);
+		System.arraycopy(prefix, 0, head, HEADER_SIZE, prefix.length);
+		return head;
+	}
+
+	/**
+	 * 解码一个完整帧的负载
+	 * 【前提】调用方保证payload是一整帧，且同一连接上按到达顺序调用
+	 */
+	public Message decode(byte kind, byte[] payload) throws IOException, ClassNotFoundException {
+		if (kind == KIND_BINARY) {
+			return BinaryMessageCodec.decode(payload);
+		}
+		if (kind != KIND_STANDALONE && kind != KIND_STREAM) {
+			throw new StreamCorruptedException("未知的帧类型: " + kind);
+		}
+		if (BINARY) {
+			throw new StreamCorruptedException("未启用Java序列化格式（-Dchat.wire.codec=serial），拒绝帧类型: " + kind);
+		}
+		if (kind == KIND_STANDALONE) {
+			try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+				in.setObjectInputFilter(SERIAL_FILTER);
+				return (Message) in.readObject();
+			}
+		}
+		feed.add(payload);
+		if (ois == null) {
+			ois = new ObjectInputStream(feed);
+			ois.setObjectInputFilter(SERIAL_FILTER);
+		}
+		return (Message) ois.readObject();
+	}
+
+	/**
+	 * 给负载加上帧头
+	 */
+	public static byte[] toFrame(byte kind, byte[] payload) {
+		byte[] frame = new byte[HEADER_SIZE + payload.length];
+		writeHeader(frame, kind, payload.length);
+		System.arraycopy(payload, 0, frame, HEADER_SIZE, payload.length);
+		return frame;
+	}
+
+	private static void writeHeader(byte[] frame, byte kind, int len) {
+		frame[0] = (byte) (len >>> 24);
+		frame[1] = (byte) (len >>> 16);
+		frame[2] = (byte) (len >>> 8);
+		frame[3] = (byte) len;
+		frame[4] = kind;
+	}
+
+	/**
+	 * 校验帧头中的长度字段
+	 */
+	public static void checkLength(int length) throws StreamCorruptedException {
+		if (length < 0 || length > MAX_FRAME_SIZE) {
+			throw new StreamCorruptedException("非法的帧长度: " + length);
+		}
+	}
+
+	/**
+	 * 统计句柄表大小的ObjectOutputStream
+	 * 【说明】replaceObject()只对句柄表中尚未出现的对象调用，
+	 * 因此调用次数即为新分配的句柄数
+	 */
+	private static class CountingObjectOutputStream extends ObjectOutputStream {
+		int handles;
+
+		CountingObjectOutputStream(OutputStream out) throws IOException {
+			super(out);
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(Object obj) {
+			handles++;
+			return obj;
+		}
+	}
+
+	/**
+	 * 编码缓冲区：发送过大文件后释放大数组，避免每个连接长期占用最大帧大小的内存
+	 */
+	private static class EncodeBuffer extends ByteArrayOutputStream {
+		private static final int INITIAL_SIZE = 512;
+		private static final int RETAIN_LIMIT = 64 * 1024;
+
+		EncodeBuffer() {
+			super(INITIAL_SIZE);
+		}
+
+		void release() {
+			reset();
+			if (buf.length > RETAIN_LIMIT) {
+				buf = new byte[INITIAL_SIZE];
+			}
+		}
+	}
+
+	/**
+	 * 按帧喂入数据的输入流
+	 * 【说明】ObjectInputStream只会在收到完整帧后才被调用，
+	 * 因此这里读到末尾即说明帧内容不完整，直接返回-1让其抛出异常
+	 */
+	private static class FeedInputStream extends InputStream {
+		private final ArrayDeque<ByteArrayInputStream> chunks = new ArrayDeque<>();
+
+		void add(byte[] data) {
+			chunks.addLast(new ByteArrayInputStream(data));
+		}
+
+		@Override
+		public int read() {
+			while (!chunks.isEmpty()) {
+				int b = chunks.peekFirst().read();
+				if (b != -1) {
+					return b;
+				}
+				chunks.pollFirst();
+			}
+			return -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			while (!chunks.isEmpty()) {
+				int n = chunks.peekFirst().read(b, off, len);
+				if (n > 0) {
+					return n;
+				}
+				chunks.pollFirst();
+			}
+			return -1;
+		}
+
+		@Override
+		public int available() {
+			int total = 0;
+			for (ByteArrayInputStream chunk : chunks) {
+				total += chunk.available();
+			}
+			return total;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * 阻塞式帧连接 - 在普通Socket上按帧收发Message
+ * <p>
+ * 【核心作用】
+ * 替代原先直接包装在Socket上的ObjectOutputStream/ObjectInputStream，
+ * 客户端和服务端的"每连接一线程"模式都使用它，与NIO服务端的帧格式一致
+ * <p>
+ * 【线程安全】
+ * - writeMessage/writeBatch加锁，多个线程可以同时发送
+ * - readMessage只应由一个读线程调用
+ * <p>
+ * 【文件区域】
+ * writeBatch中的FileRegion先写前缀，文件内容直接写入Socket的通道：
+ * 由SocketChannel创建的Socket（服务端）走transferTo零拷贝，
+ * 普通Socket退回到经由小缓冲区的流式拷贝
+ *
+ * @author ChatRoom Team
+ */
+public class FrameConnection implements Closeable {
+
+	/** 发送缓冲区大小，一批小消息可以合并成一次Socket写 */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final OutputStream out;
+	/** 文件区域写出的目标通道 */
+	private final WritableByteChannel rawOut;
+	private final FrameCodec codec = new FrameCodec();
+
+	public FrameConnection(Socket socket) throws IOException {
+		this.socket = socket;
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+		this.rawOut = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+	}
+
+	/**
+	 * 发送一条消息
+	 */
+	public synchronized void writeMessage(Message msg) throws IOException {
+		out.write(codec.encode(msg));
+		out.flush();
+	}
+
+	/**
+	 * 批量发送：所有帧写入发送缓冲区后只flush一次
+	 *
+	 * @param batch 元素为Message（用本连接的编码器编码）、EncodedFrame（原样写出）
+	 *              或FileRegion（写出后不释放，由调用方释放）
+	 */
+	public synchronized void writeBatch(List<?> batch) throws IOException {
+		for (Object item : batch) {
+			if (item instanceof EncodedFrame) {
+				((EncodedFrame) item).writeTo(out);
+			} else if (item instanceof FileRegion) {
+				((FileRegion) item).writeTo(out, rawOut);
+			} else {
+				out.write(codec.encode((Message) item));
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * 阻塞读取下一条消息
+	 */
+	public Message readMessage() throws IOException, ClassNotFoundException {
+		int length = in.readInt();
+		FrameCodec.checkLength(length);
+		byte kind = in.readByte();
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return codec.decode(kind, payload);
+	}
+
+	/**
+	 * 发送方向序列化流句柄表中保留的对象数，见 {@link FrameCodec#getRetainedHandles()}
+	 */
+	public int getRetainedHandles() {
+		return codec.getRetainedHandles();
+	}
+
+	public Socket getSocket() {
+		return socket;
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
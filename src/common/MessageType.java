@@ -34,18 +34,28 @@ public interface MessageType {
 	String MESSAGE_COMM_MES = "普通文字";
 	/** 世界聊天消息（广播给所有在线用户） */
 	String MESSAGE_WORLD_CHAT = "世界聊天";
-	/** 群聊消息（发送给指定群成员） */
+	/** 群聊消息（receiver为群地址，服务端按登记的成员转发） */
 	String MESSAGE_GROUP_MES = "群聊消息";
-	/** 创建群聊通知（广播给所有群成员） */
+	/**
+	 * 创建群聊：客户端发出时userlist为成员的UserID；服务端登记后发给在线的群成员，content为群地址、
+	 * userlist为排序后的成员、sender为创建者。用户登录时服务端为他所在的每个群各发一条
+	 */
 	String MESSAGE_GROUP_CREATE = "创建群聊";
+	/** 群地址的前缀，群地址为前缀加服务端分配的群ID，客户端用群地址作为群聊的聊天key */
+	String GROUP_ADDRESS_PREFIX = "群#";
 
 	// ==================== 在线状态相关 ====================
 	/** 客户端请求获取在线用户列表 */
 	String MESSAGE_GET_ONLINE_FRIEND = "获取在线列表";
-	/** 服务端返回在线用户列表（userlist携带用户列表） */
+	/** 服务端返回完整的在线用户列表（userlist携带用户列表，content为在线状态的版本号） */
 	String MESSAGE_RET_ONLINE_FRIEND = "返回在线列表";
 	/** 客户端退出请求 */
 	String MESSAGE_CLIENT_EXIT = "请求退出";
+	/**
+	 * 在线状态增量（content为"上一版本|新版本"，userlist每项为"+昵称(UserID)"表示上线或"-UserID"表示下线）；
+	 * 客户端的版本不等于上一版本时应重新请求完整列表
+	 */
+	String MESSAGE_PRESENCE_DELTA = "在线状态变化";
 
 	// ==================== 特殊功能相关 ====================
 	/** 窗口抖动消息（仅私聊支持） */
@@ -54,4 +64,41 @@ public interface MessageType {
 	String MESSAGE_FILE = "文件传输";
 	/** 服务器系统广播消息 */
 	String MESSAGE_SYSTEM_BROADCAST = "系统广播";
+
+	// ==================== 心跳相关 ====================
+	/** 客户端心跳请求（content携带客户端发送时刻，用于计算往返延迟） */
+	String MESSAGE_PING = "心跳请求";
+	/** 服务端心跳回复（原样带回请求的content） */
+	String MESSAGE_PONG = "心跳回复";
+
+	// ==================== 分块文件传输相关 ====================
+	// 大文件按固定大小分块发送，content统一为"传输ID|参数"，见FileTransferService
+	/**
+	 * 开始传输（content为"传输ID|总字节数|分块大小|SHA-256"，fileName为文件名），重复发送表示请求续传；
+	 * 对方已有相同内容时回复的RESUME偏移量等于总字节数，不必再传
+	 */
+	String MESSAGE_FILE_BEGIN = "文件传输开始";
+	/** 文件分块（content为"传输ID|偏移量|CRC32C"，fileData为本块数据） */
+	String MESSAGE_FILE_CHUNK = "文件分块";
+	/** 所有分块已发出（content为"传输ID|总字节数|SHA-256"） */
+	String MESSAGE_FILE_END = "文件传输结束";
+	/** 接收方确认（content为"传输ID|已写入字节数"），发送方据此控制在途数据量 */
+	String MESSAGE_FILE_ACK = "文件分块确认";
+	/** 任一方或服务端中止传输（content为"传输ID|原因"） */
+	String MESSAGE_FILE_ABORT = "文件传输中止";
+	/** 接收方告知从哪里继续发送（content为"传输ID|偏移量"）：回复BEGIN，或分块校验失败时要求重发 */
+	String MESSAGE_FILE_RESUME = "文件续传";
+
+	// ==================== 文件分享相关 ====================
+	// 文件先上传到服务端，聊天中只转发元数据，接收方按需下载，见FileRelay
+	/**
+	 * 分享一个已上传的文件（content为"SHA-256|总字节数"，fileName为文件名，fileData为可选的PNG缩略图）；
+	 * 私聊时receiver为对方ID，世界聊天时receiver为MESSAGE_WORLD_CHAT，群聊时receiver为群地址
+	 */
+	String MESSAGE_FILE_OFFER = "文件分享";
+	/**
+	 * 请求下载分享的文件（content为"传输ID|SHA-256"，receiver为分享者，fileName为文件名），
+	 * 服务端以MESSAGE_FILE_BEGIN开始投递，同一传输ID重新请求即为续传
+	 */
+	String MESSAGE_FILE_FETCH = "文件下载";
 }
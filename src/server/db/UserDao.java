@@ -13,7 +13,7 @@ import common.User;
  * 【核心作用】
  * 1. 用户登录验证（checkUserById）
  * 2. 用户注册（RegisterUser）
- * 3. 用户信息查询（getUserById）
+ * 3. 用户信息查询（getUserById、getUserByIdAndPassword）
  * 4. 用户ID唯一性检查（checkIDUnique）
  * <p>
  * 【数据库表结构】
@@ -99,6 +99,20 @@ public class UserDao {
 		return rs.next();
 	}
 
+	/**
+	 * 通过 ID 和密码验证用户并返回用户信息（登录时一次查询完成校验和取昵称）
+	 *
+	 * @return 验证通过返回用户信息，否则返回null
+	 */
+	public User getUserByIdAndPassword(String userId, String password) throws SQLException {
+		String sql = "SELECT * FROM users WHERE uid=? AND password=?";
+		pstmt = conn.prepareStatement(sql);
+		pstmt.setString(1, userId);
+		pstmt.setString(2, password);
+		rs = pstmt.executeQuery();
+		return rs.next() ? readUser(rs) : null;
+	}
+
 	/**
 	 * 通过 ID 获取用户信息（返回昵称等）
 	 */
@@ -108,17 +122,24 @@ public class UserDao {
 		pstmt.setString(1, userId);
 		rs = pstmt.executeQuery();
 		if (rs.next()) {
-			User user = new User();
-			user.setUserID(rs.getString("uid"));
-			user.setNicname(rs.getString("nickname"));
-			user.setPassword(rs.getString("password"));
-			user.setGender(rs.getString("gender"));
-			user.setAvatar(rs.getInt("avatar"));
-			return user;
+			return readUser(rs);
 		}
 		return null;
 	}
 
+	/**
+	 * 把当前结果行转换为User对象
+	 */
+	private User readUser(ResultSet rs) throws SQLException {
+		User user = new User();
+		user.setUserID(rs.getString("uid"));
+		user.setNicname(rs.getString("nickname"));
+		user.setPassword(rs.getString("password"));
+		user.setGender(rs.getString("gender"));
+		user.setAvatar(rs.getInt("avatar"));
+		return user;
+	}
+
 	/**
 	 * 关闭数据库连接和资源
 	 */
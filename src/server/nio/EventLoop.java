@@ -0,0 +1,114 @@
+package server.nio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 事件循环线程 - 一个Selector负责一批连接的读写
+ * <p>
+ * 【核心作用】
+ * 1. 轮询所属连接的读/写就绪事件并交给NioClientSession处理
+ * 2. 执行其他线程投递过来的任务（注册新连接、发起写操作）
+ * <p>
+ * 【线程模型】
+ * - 每个连接只属于一个EventLoop，其读写和握手都在该线程内完成，无需加锁
+ * - 其他线程通过execute()投递任务，并唤醒阻塞在select()上的Selector
+ * - 本线程在处理读写时投递的任务（例如连接断开后的清理）不唤醒Selector，
+ * 队列非空时下一轮改用selectNow()，不会等到有新的I/O事件才执行
+ *
+ * @author ChatRoom Team
+ */
+public class EventLoop extends Thread {
+
+	private final Selector selector;
+	/** 待执行的任务队列（多生产者，单消费者） */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	public EventLoop(String name) throws IOException {
+		super(name);
+		setDaemon(true);
+		this.selector = Selector.open();
+	}
+
+	/** 当前线程是否就是本事件循环线程 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	/**
+	 * 投递一个任务到事件循环线程执行
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (!inEventLoop()) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * 把新连接注册到本事件循环，开始监听读事件
+	 */
+	public void register(NioClientSession session) {
+		execute(() -> {
+			try {
+				SelectionKey key = session.getChannel().register(selector, SelectionKey.OP_READ, session);
+				session.attach(key);
+			} catch (IOException e) {
+				session.close();
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (!isInterrupted()) {
+			try {
+				if (tasks.isEmpty()) {
+					selector.select();
+				} else {
+					selector.selectNow();
+				}
+				runTasks();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					NioClientSession session = (NioClientSession) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							session.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							session.onWritable();
+						}
+					} catch (CancelledKeyException ignored) {
+						// 连接已在处理过程中被关闭
+					} catch (RuntimeException e) {
+						// 单个连接的异常不能拖垮整个事件循环
+						e.printStackTrace();
+						session.close();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
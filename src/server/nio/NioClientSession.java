@@ -0,0 +1,374 @@
+package server.nio;
+
+import common.EncodedFrame;
+import common.FileRegion;
+import common.FrameCodec;
+import common.Message;
+import common.MessageType;
+import server.service.ClientSession;
+import server.service.HandshakePipeline;
+import server.service.MessageRouter;
+import server.service.OutboundMailbox;
+import server.service.RateLimiter;
+import server.service.SlowConsumerGuard;
+import server.view.ServerGUI;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * NIO客户端会话 - 非阻塞模式下一个连接的状态
+ * <p>
+ * 【核心作用】
+ * 1. 从SocketChannel读取字节，凑齐完整帧后解码为Message
+ * 2. 登录前把握手消息交给HandshakePipeline认证，登录后交给MessageRouter路由
+ * 3. 作为ClientSession，把其他会话转发来的消息排队写出
+ * <p>
+ * 【线程模型】
+ * - 读、写只在所属EventLoop线程内执行；握手的数据库访问在认证线程池中完成，
+ * 结果再投递回EventLoop
+ * - send()可被任意线程调用：只放入发件箱，由EventLoop作为唯一写出者编码并写出，
+ * 一次flush把多条帧合并为一次聚集写（gathering write）；
+ * 文件区域帧写完前缀后用FileChannel.transferTo把文件内容直接写入SocketChannel
+ * - 空闲连接不占用线程，只占用读缓冲区和少量状态
+ *
+ * @author ChatRoom Team
+ */
+public class NioClientSession implements ClientSession {
+	private static final int INITIAL_READ_BUFFER = 8 * 1024;
+	/** 单次聚集写最多合并的帧字节数 */
+	private static final int WRITE_BATCH_BYTES = 256 * 1024;
+
+	private final SocketChannel channel;
+	private final EventLoop loop;
+	private final MessageRouter router;
+	private final HandshakePipeline pipeline;
+	private final ServerGUI gui;
+
+	private final FrameCodec codec = new FrameCodec();
+	private final OutboundMailbox mailbox = new OutboundMailbox();
+	private final SlowConsumerGuard guard = new SlowConsumerGuard(this, mailbox);
+	/** 已编码、尚未写完的帧（只在EventLoop线程中访问） */
+	private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+	/** 前缀排在pendingWrites末尾、文件内容尚未写完的区域（只在EventLoop线程中访问） */
+	private FileRegion pendingRegion;
+	/** pendingRegion的文件内容已写出的字节数 */
+	private long regionWritten;
+
+	private SelectionKey key;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+	/** 登录成功前为null */
+	private volatile String userId;
+	/** 握手请求已交给HandshakePipeline，等待认证结果 */
+	private boolean handshaking;
+	private volatile boolean closed;
+	private volatile long lastActiveNanos = System.nanoTime();
+	/** 入站限流，只在EventLoop线程中使用 */
+	private final RateLimiter rateLimiter = new RateLimiter();
+	/** 写完队列后关闭连接（登录失败、注册完成） */
+	private boolean closeAfterFlush;
+
+	public NioClientSession(SocketChannel channel, EventLoop loop, MessageRouter router, HandshakePipeline pipeline,
+			ServerGUI gui) {
+		this.channel = channel;
+		this.loop = loop;
+		this.router = router;
+		this.pipeline = pipeline;
+		this.gui = gui;
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	void attach(SelectionKey key) {
+		this.key = key;
+	}
+
+	@Override
+	public String getUserId() {
+		return userId;
+	}
+
+	@Override
+	public void send(Message msg) {
+		if (!closed && guard.admit(msg) && mailbox.offer(msg)) {
+			scheduleFlush();
+		}
+	}
+
+	@Override
+	public void sendFrame(EncodedFrame frame) {
+		if (!closed && guard.admit(frame) && mailbox.offer(frame)) {
+			scheduleFlush();
+		}
+	}
+
+	@Override
+	public void sendRegion(FileRegion region) {
+		if (closed || !guard.admit(region)) {
+			region.release();
+			return;
+		}
+		if (mailbox.offer(region)) {
+			scheduleFlush();
+		}
+	}
+
+	@Override
+	public long getLastActiveNanos() {
+		return lastActiveNanos;
+	}
+
+	@Override
+	public SlowConsumerGuard getGuard() {
+		return guard;
+	}
+
+	@Override
+	public void abort() {
+		loop.execute(this::onConnectionLost);
+	}
+
+	/**
+	 * 获得写出权后调用：由EventLoop负责写出
+	 */
+	private void scheduleFlush() {
+		if (loop.inEventLoop()) {
+			flush();
+		} else {
+			loop.execute(this::flush);
+		}
+	}
+
+	@Override
+	public int getRetainedHandles() {
+		return codec.getRetainedHandles();
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		mailbox.clear();
+		if (loop.inEventLoop()) {
+			releasePendingRegion();
+		} else {
+			loop.execute(this::releasePendingRegion);
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * 读就绪：读取数据并处理其中所有完整的帧
+	 */
+	void onReadable() {
+		int n;
+		try {
+			n = channel.read(readBuffer);
+		} catch (IOException e) {
+			onConnectionLost();
+			return;
+		}
+		if (n < 0) {
+			onConnectionLost();
+			return;
+		}
+
+		int needed = 0;
+		readBuffer.flip();
+		try {
+			while (!closed && readBuffer.remaining() >= FrameCodec.HEADER_SIZE) {
+				int length = readBuffer.getInt(readBuffer.position());
+				FrameCodec.checkLength(length);
+				if (readBuffer.remaining() < FrameCodec.HEADER_SIZE + length) {
+					needed = FrameCodec.HEADER_SIZE + length;
+					break;
+				}
+				readBuffer.getInt();
+				byte kind = readBuffer.get();
+				byte[] payload = new byte[length];
+				readBuffer.get(payload);
+				handleMessage(codec.decode(kind, payload));
+			}
+		} catch (Exception e) {
+			onConnectionLost();
+			return;
+		}
+		readBuffer.compact();
+
+		// 半帧大于当前缓冲区时扩容
+		if (needed > readBuffer.capacity()) {
+			ByteBuffer bigger = ByteBuffer.allocate(needed);
+			readBuffer.flip();
+			bigger.put(readBuffer);
+			readBuffer = bigger;
+		}
+	}
+
+	/**
+	 * 写就绪：继续写出上次未写完的数据
+	 */
+	void onWritable() {
+		flush();
+	}
+
+	private void handleMessage(Message msg) throws IOException {
+		lastActiveNanos = System.nanoTime();
+		if (userId != null) {
+			if (rateLimiter.admit(this, msg)) {
+				router.dispatch(this, msg);
+			}
+		} else if (handshaking) {
+			// 客户端在收到登录回复前不会再发消息，多余的帧直接忽略
+			System.out.println("握手未完成，忽略消息: " + msg.getMesType());
+		} else {
+			handshaking = true;
+			pipeline.authenticate(msg, reply -> loop.execute(() -> onHandshakeDone(msg, reply)));
+		}
+	}
+
+	/**
+	 * 认证阶段完成后回到事件循环线程处理结果
+	 *
+	 * @param reply 回复消息，null表示非法请求或处理失败
+	 */
+	private void onHandshakeDone(Message request, Message reply) {
+		if (closed) {
+			return;
+		}
+		if (reply == null) {
+			close();
+			return;
+		}
+		if (MessageType.MESSAGE_LOGIN_SUCCEED.equals(reply.getMesType())) {
+			// 先设置userId再回复，之后收到的帧直接进入路由
+			userId = request.getSender();
+			send(reply);
+			pipeline.register(this, null);
+		} else {
+			send(reply);
+			closeAfterFlush();
+		}
+	}
+
+	private void closeAfterFlush() {
+		closeAfterFlush = true;
+		if (pendingWrites.isEmpty() && pendingRegion == null && mailbox.size() == 0) {
+			close();
+		}
+	}
+
+	/**
+	 * 写出者：从发件箱取消息编码，合并成聚集写；写不完时关注OP_WRITE，等待下次可写
+	 * 【注意】只能在EventLoop线程中调用，且调用方持有发件箱的写出权
+	 */
+	private void flush() {
+		if (closed || key == null) {
+			return;
+		}
+		try {
+			do {
+				while (true) {
+					fillPendingWrites();
+					if (pendingWrites.isEmpty() && pendingRegion == null) {
+						break;
+					}
+					long written = 0;
+					if (!pendingWrites.isEmpty()) {
+						written = channel.write(pendingWrites.toArray(new ByteBuffer[0]));
+						while (!pendingWrites.isEmpty() && !pendingWrites.peekFirst().hasRemaining()) {
+							pendingWrites.pollFirst();
+						}
+					}
+					if (pendingWrites.isEmpty() && pendingRegion != null) {
+						long n = pendingRegion.transferTo(channel, regionWritten);
+						written += n;
+						regionWritten += n;
+						if (regionWritten >= pendingRegion.fileBytes()) {
+							releasePendingRegion();
+						}
+					}
+					if (!pendingWrites.isEmpty() || pendingRegion != null) {
+						// Socket发送缓冲区已满，保留写出权，等待OP_WRITE；
+						// 写出阻塞时间从最后一次有进展的写出开始计算
+						if (written > 0) {
+							guard.onWriteEnd();
+						}
+						guard.onWriteStart();
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+				guard.onWriteEnd();
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			} while (mailbox.hasMoreAfterRelease());
+			if (closeAfterFlush) {
+				close();
+			}
+		} catch (IOException e) {
+			onConnectionLost();
+		}
+	}
+
+	/**
+	 * 从发件箱取出消息编码，直到本批达到WRITE_BATCH_BYTES；
+	 * 共享帧不再编码，直接使用其只读视图；
+	 * 遇到文件区域时只放入前缀并停止取出，文件内容写完后才能继续
+	 */
+	private void fillPendingWrites() throws IOException {
+		int bytes = 0;
+		for (ByteBuffer buf : pendingWrites) {
+			bytes += buf.remaining();
+		}
+		Object item;
+		while (pendingRegion == null && bytes < WRITE_BATCH_BYTES && (item = mailbox.poll()) != null) {
+			ByteBuffer frame;
+			if (item instanceof FileRegion) {
+				FileRegion region = (FileRegion) item;
+				frame = region.headBuffer();
+				if (region.fileBytes() > 0) {
+					pendingRegion = region;
+					regionWritten = 0;
+				} else {
+					region.release();
+				}
+			} else if (item instanceof EncodedFrame) {
+				frame = ((EncodedFrame) item).buffer();
+			} else {
+				frame = ByteBuffer.wrap(codec.encode((Message) item));
+			}
+			bytes += frame.remaining();
+			pendingWrites.addLast(frame);
+		}
+	}
+
+	private void releasePendingRegion() {
+		if (pendingRegion != null) {
+			pendingRegion.release();
+			pendingRegion = null;
+		}
+	}
+
+	private void onConnectionLost() {
+		if (closed) {
+			return;
+		}
+		if (userId != null) {
+			router.handleDisconnect(this);
+		} else {
+			close();
+		}
+	}
+}
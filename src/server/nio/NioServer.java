@@ -0,0 +1,70 @@
+package server.nio;
+
+import server.service.HandshakePipeline;
+import server.service.MessageRouter;
+import server.view.ServerGUI;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * NIO服务端 - 基于Selector的Reactor模型
+ * <p>
+ * 【核心作用】
+ * 1. 接收线程（调用start()的线程）负责accept新连接
+ * 2. 新连接以轮询方式分配给固定数量的EventLoop
+ * 3. EventLoop负责该连接之后的握手、读取和写出
+ * <p>
+ * 【设计说明】
+ * 与"每连接一线程"相比，线程数固定为事件循环数量，
+ * 空闲连接不再占用线程栈，单个JVM可以容纳数万个在线会话
+ *
+ * @author ChatRoom Team
+ */
+public class NioServer {
+	private final int port;
+	private final EventLoop[] loops;
+	private final MessageRouter router;
+	private final HandshakePipeline pipeline;
+	private final ServerGUI gui;
+
+	public NioServer(int port, int loopCount, MessageRouter router, HandshakePipeline pipeline, ServerGUI gui)
+			throws IOException {
+		this.port = port;
+		this.router = router;
+		this.pipeline = pipeline;
+		this.gui = gui;
+		this.loops = new EventLoop[loopCount];
+		for (int i = 0; i < loopCount; i++) {
+			loops[i] = new EventLoop("nio-loop-" + i);
+		}
+	}
+
+	/**
+	 * 启动事件循环并在当前线程中循环accept（阻塞直到服务器关闭）
+	 */
+	public void start() throws IOException {
+		for (EventLoop loop : loops) {
+			loop.start();
+		}
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			serverChannel.bind(new InetSocketAddress(port));
+			gui.appendLog("服务器在" + port + "端口监听（NIO模式，" + loops.length + "个事件循环）...");
+
+			int next = 0;
+			while (true) {
+				SocketChannel channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				gui.appendLog("客户端连接: " + channel.socket().getInetAddress());
+
+				EventLoop loop = loops[next];
+				next = (next + 1) % loops.length;
+				loop.register(new NioClientSession(channel, loop, router, pipeline, gui));
+			}
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package server.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * 内容寻址的文件仓库 - 按整文件SHA-256存放上传完成的文件，相同内容只存一份
+ * <p>
+ * 【核心作用】
+ * 同一个截图或文件经常被接连发给多个人，原先每次发送都要重新上传、重新暂存一份。现在：
+ * - 上传完成的暂存文件按摘要改名为 blobs/sha256/摘要，分块CRC（SpoolMeta）复制到旁边的
+ * 摘要.meta/摘要.crc，投递时仍按这些分块边界发送
+ * - 发送方在MESSAGE_FILE_BEGIN中先给出摘要，仓库中已有时服务端直接回复已收齐（秒传），
+ * 不再上传；整文件消息（截图）落盘前同样先查仓库
+ * - 同一内容的多次投递共享一个文件，送达后不删除
+ * <p>
+ * 【下载权限】
+ * 摘要.acl 每行一个可以下载该内容的UserID，空行表示所有用户（分享到世界聊天）。
+ * 上传者在上传完成时、分享的接收者在分享被转发时加入，其他人请求下载一律拒绝，
+ * 只知道摘要不能取得内容
+ * <p>
+ * 【回收】
+ * 每次打开用于投递时刷新文件的修改时间，sweep()删除超过指定时间未被使用的内容。
+ * 正在投递的文件已打开通道，删除不影响其写出
+ *
+ * @author ChatRoom Team
+ */
+public class BlobStore {
+	/** 摘要（小写十六进制SHA-256）同时用作文件名，只接受这个格式 */
+	private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+	private final File dir;
+
+	public BlobStore(File dir) {
+		this.dir = dir;
+	}
+
+	/** 是否为合法的摘要 */
+	public static boolean isHash(String text) {
+		return text != null && HASH_PATTERN.matcher(text).matches();
+	}
+
+	/** 内容文件的位置（不检查是否存在） */
+	public File fileOf(String hash) {
+		return new File(dir, hash);
+	}
+
+	/**
+	 * 仓库中是否已有该内容（大小一致且有分块描述）
+	 */
+	public boolean contains(String hash, long size) {
+		if (!isHash(hash)) {
+			return false;
+		}
+		File file = fileOf(hash);
+		return file.isFile() && file.length() == size && new File(dir, hash + ".meta").isFile();
+	}
+
+	/**
+	 * 读取内容的分块描述
+	 *
+	 * @return 不存在或无法读取时返回null
+	 */
+	public SpoolMeta meta(String hash) {
+		if (!isHash(hash)) {
+			return null;
+		}
+		try {
+			return SpoolMeta.load(dir, hash);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * 打开内容用于投递，同时刷新使用时间
+	 */
+	public SpoolFile open(String hash) throws IOException {
+		File file = fileOf(hash);
+		file.setLastModified(System.currentTimeMillis());
+		return SpoolFile.open(file);
+	}
+
+	/**
+	 * 把上传完成的暂存文件存入仓库
+	 *
+	 * @param meta 已记录全部分块CRC的描述
+	 * @return false表示仓库中已有相同内容，调用方应删除自己的暂存文件
+	 */
+	public synchronized boolean commit(String hash, SpoolFile spool, SpoolMeta meta) throws IOException {
+		if (contains(hash, meta.getTotalBytes())) {
+			return false;
+		}
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		// 先写描述再放内容：contains()看到内容时描述一定完整
+		meta.copyTo(dir, hash);
+		spool.renameTo(fileOf(hash));
+		return true;
+	}
+
+	/**
+	 * 允许这些用户下载该内容（null表示所有用户）
+	 */
+	public synchronized void grant(String hash, Collection<String> userIds) throws IOException {
+		if (!isHash(hash)) {
+			return;
+		}
+		Set<String> granted = readGrants(hash);
+		StringBuilder lines = new StringBuilder();
+		if (userIds == null) {
+			if (!granted.contains("")) {
+				lines.append('\n');
+			}
+		} else {
+			for (String userId : userIds) {
+				if (userId != null && !userId.isEmpty() && userId.indexOf('\n') < 0 && granted.add(userId)) {
+					lines.append(userId).append('\n');
+				}
+			}
+		}
+		if (lines.length() == 0) {
+			return;
+		}
+		try (FileOutputStream out = new FileOutputStream(new File(dir, hash + ".acl"), true)) {
+			out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * 该用户是否可以下载该内容
+	 */
+	public synchronized boolean isGranted(String hash, String userId) {
+		if (!isHash(hash)) {
+			return false;
+		}
+		try {
+			Set<String> granted = readGrants(hash);
+			return granted.contains("") || granted.contains(userId);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private Set<String> readGrants(String hash) throws IOException {
+		File file = new File(dir, hash + ".acl");
+		if (!file.isFile()) {
+			return new HashSet<>();
+		}
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		return new HashSet<>(lines);
+	}
+
+	/**
+	 * 删除超过ttlMillis未被使用的内容
+	 *
+	 * @return 删除的个数
+	 */
+	public synchronized int sweep(long ttlMillis) {
+		File[] files = dir.listFiles((d, name) -> isHash(name));
+		if (files == null) {
+			return 0;
+		}
+		long deadline = System.currentTimeMillis() - ttlMillis;
+		int removed = 0;
+		for (File file : files) {
+			if (file.lastModified() < deadline && file.delete()) {
+				SpoolMeta.discard(dir, file.getName());
+				new File(dir, file.getName() + ".acl").delete();
+				removed++;
+			}
+		}
+		return removed;
+	}
+}
@@ -0,0 +1,81 @@
+package server.service;
+
+import common.EncodedFrame;
+import common.Message;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 广播扇出 - 一条消息只序列化一次，发给所有在线用户
+ * <p>
+ * 【核心作用】
+ * 世界聊天和系统广播原先对每个在线用户分别调用send()，同一条消息要被序列化N次，
+ * 一条广播的CPU开销随在线人数线性增长。这里先把消息编码成一个共享的只读帧
+ * （EncodedFrame），再把同一个帧放入每个接收者的发件箱，各连接直接写出这份字节
+ * <p>
+ * 【指标说明】
+ * - 扇出耗时：从开始编码到放入最后一个发件箱的时间（不含网络写出），
+ * 平均/最大值统计上一次describe()以来的广播
+ * - 每人字节：共享帧的大小，即每个接收者实际收到的字节数
+ *
+ * @author ChatRoom Team
+ */
+public class BroadcastFanout {
+
+	private static final AtomicLong broadcasts = new AtomicLong();
+	private static final AtomicLong lastFrameBytes = new AtomicLong();
+	private static final LongAdder windowCount = new LongAdder();
+	private static final LongAdder windowRecipients = new LongAdder();
+	private static final LongAdder windowNanos = new LongAdder();
+	private static final AtomicLong windowMaxNanos = new AtomicLong();
+
+	static {
+		ServerMonitor.register("广播扇出", BroadcastFanout::describe);
+	}
+
+	/**
+	 * 把消息广播给所有在线用户
+	 *
+	 * @param excludeUserId 不发送的用户（通常是发送者本人），可为null
+	 * @return 实际放入发件箱的接收者数
+	 */
+	public static int broadcast(Message msg, String excludeUserId) throws IOException {
+		long start = System.nanoTime();
+		EncodedFrame frame = EncodedFrame.of(msg);
+		int recipients = 0;
+		for (Map.Entry<String, ClientSession> entry : ManageClientThread.getAll().entrySet()) {
+			if (!entry.getKey().equals(excludeUserId)) {
+				entry.getValue().sendFrame(frame);
+				recipients++;
+			}
+		}
+		record(System.nanoTime() - start, recipients, frame.size());
+		return recipients;
+	}
+
+	private static void record(long nanos, int recipients, int frameBytes) {
+		broadcasts.incrementAndGet();
+		lastFrameBytes.set(frameBytes);
+		windowCount.increment();
+		windowRecipients.add(recipients);
+		windowNanos.add(nanos);
+		windowMaxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * 指标描述（用于ServerMonitor），并开始新的统计窗口
+	 */
+	public static String describe() {
+		long count = windowCount.sumThenReset();
+		long recipients = windowRecipients.sumThenReset();
+		long total = windowNanos.sumThenReset();
+		long max = windowMaxNanos.getAndSet(0);
+		double avgUs = count == 0 ? 0 : total / 1e3 / count;
+		double avgRecipients = count == 0 ? 0 : (double) recipients / count;
+		return String.format("累计 %d 条 | 本周期 %d 条 平均 %.1f 人 | 扇出耗时 平均 %.1fus 最大 %.1fus | 每人字节 %d",
+				broadcasts.get(), count, avgRecipients, avgUs, max / 1e3, lastFrameBytes.get());
+	}
+}
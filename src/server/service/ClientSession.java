@@ -0,0 +1,63 @@
+package server.service;
+
+import common.EncodedFrame;
+import common.FileRegion;
+import common.Message;
+
+import java.io.IOException;
+
+/**
+ * 客户端会话接口 - 一个已登录用户在服务端的连接抽象
+ * <p>
+ * 【核心作用】
+ * 屏蔽底层连接模型的差异，消息路由只依赖这个接口：
+ * - ServerConnectClientThread：每连接一线程的阻塞实现
+ * - NioClientSession：基于Selector的非阻塞实现
+ *
+ * @author ChatRoom Team
+ */
+public interface ClientSession {
+
+	/** 获取该会话对应的UserID */
+	String getUserId();
+
+	/**
+	 * 向该用户发送一条消息
+	 * 【线程安全】实现类必须允许多个线程同时调用
+	 * 【非阻塞】实现类只把消息放入该会话的发件箱，由会话自己的写出者写出，
+	 * 不能因为对方网络慢而阻塞调用线程
+	 */
+	void send(Message msg) throws IOException;
+
+	/**
+	 * 发送一个预先编码好的共享帧（广播用），要求同send()
+	 * 【注意】帧可能同时被多个会话写出，实现类不得修改其内容
+	 */
+	void sendFrame(EncodedFrame frame);
+
+	/**
+	 * 发送一个文件区域帧（文件转发用），要求同send()
+	 * 【注意】实现类写出或丢弃后必须调用region.release()
+	 */
+	void sendRegion(FileRegion region);
+
+	/**
+	 * 发往该用户的序列化流中，句柄表仍保留的对象数（用于监控内存占用）
+	 */
+	int getRetainedHandles();
+
+	/** 最后一次收到该客户端数据帧的时刻（System.nanoTime） */
+	long getLastActiveNanos();
+
+	/** 该会话的慢速消费者保护 */
+	SlowConsumerGuard getGuard();
+
+	/** 关闭底层连接 */
+	void close();
+
+	/**
+	 * 强制断开（慢速消费者、超时等），并走与连接异常相同的下线清理流程
+	 * 【线程安全】可在任意线程调用
+	 */
+	void abort();
+}
@@ -0,0 +1,900 @@
+package server.service;
+
+import common.FileChecksums;
+import common.FileRegion;
+import common.Message;
+import common.MessageType;
+import server.view.ServerGUI;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * 文件中转 - 文件先上传到服务端仓库，接收方按需下载，从磁盘零拷贝转发
+ * <p>
+ * 【核心作用】
+ * 原先文件内容以byte[]的形式经过服务端堆，并且不管接收方要不要都推送给对方；
+ * 群聊和世界聊天不能发文件。现在发送和接收分成两步：
+ * - 上传：发送方的每个分块校验CRC32C后写入暂存目录（chat.blob.dir，默认blobs/）的
+ * 传输ID.part文件，写完立即给发送方回ACK，堆中只有正在处理的一个分块；
+ * 上传完成后按摘要存入BlobStore
+ * - 分享：上传完成后，发送方把只含元数据的MESSAGE_FILE_OFFER（文件名、大小、摘要、可选缩略图）
+ * 发到私聊、群聊或世界聊天，由MessageRouter像普通消息一样转发（私聊对方离线时存为离线消息）
+ * - 下载：接收方点击下载时发MESSAGE_FILE_FETCH，服务端从仓库投递：以FileRegion的形式读取分块，
+ * 由FileChannel.transferTo直接写入Socket。一个文件只存一份，只有需要的人才下载
+ * - 旧的整文件MESSAGE_FILE（截图）同样先存入仓库，再以区域帧转发，离线时只保存描述
+ * <p>
+ * 【断点续传】
+ * - 上传：发送方下线时上传只是暂停，暂存文件和已计算的摘要都保留（chat.file.resumeTtl，默认24小时）。
+ * 发送方重新登录后用同一个传输ID再发BEGIN，服务端回MESSAGE_FILE_RESUME告知已落盘的字节数，
+ * 发送方从那里继续。服务端重启后依据SpoolMeta记录的分块CRC逐块核对暂存文件，恢复续传点
+ * - 下载：每次投递都先发BEGIN，接收方回RESUME告知本地已有的字节数，从那里开始发送；
+ * 接收方中途下线后用同一个传输ID重新发FETCH即可续传
+ * - 分块校验失败时同样回RESUME，要求从出错的分块重发，连续失败多次才中止
+ * - 上传结束时比对发送方给出的整文件SHA-256，投递的END也带上该摘要供接收方核对
+ * <p>
+ * 【去重】
+ * BEGIN带有摘要、仓库中已有相同内容并且发送方有权下载它（上传过或收到过分享）时，
+ * 直接回复RESUME告知已收齐，发送方不再上传；否则照常上传，服务端无法确认对方真的持有该内容。
+ * 投递的BEGIN也带上摘要，接收方本地已有时同样跳过下载
+ * <p>
+ * 【下载权限】
+ * 上传完成时上传者、分享被转发时发送方和接收者（私聊对方、群成员，世界聊天为所有用户）
+ * 记入BlobStore的下载权限，FETCH只接受有权限的用户，其他人与文件不存在一样回ABORT
+ * <p>
+ * 【暂存文件的生命周期】
+ * 上传中为"传输ID.part"，旁边的.meta/.crc见SpoolMeta；上传完成后移入BlobStore，
+ * 上传中止或续传超时后删除。仓库中的内容超过 chat.blob.ttl（默认7天）未被使用时删除。
+ * 仍在排队写出的区域帧通过SpoolFile的引用计数保证文件在写完前不被关闭
+ * <p>
+ * 【线程模型】
+ * 上传由发送方会话的读线程处理（同一传输的分块天然有序），投递由接收方的RESUME和ACK推进，
+ * Delivery的方法加锁
+ *
+ * @author ChatRoom Team
+ */
+public class FileRelay {
+	/** 暂存目录 */
+	private static final File BLOB_DIR = new File(System.getProperty("chat.blob.dir", "blobs"));
+	/** 投递窗口：最多允许多少块未被接收方确认 */
+	private static final int WINDOW_CHUNKS = Integer.getInteger("chat.file.window", 8);
+	/** 单个文件大小上限，与客户端一致 */
+	private static final long MAX_FILE_SIZE = Long.getLong("chat.file.maxSize", 4L * 1024 * 1024 * 1024);
+	/** 发送方声明的分块大小范围；上限保证一个分块加消息头放得进一帧 */
+	private static final int MIN_CHUNK_SIZE = 4 * 1024;
+	private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+	/** 暂停的上传保留多久（毫秒），超时后删除 */
+	private static final long RESUME_TTL = Long.getLong("chat.file.resumeTtl", TimeUnit.HOURS.toMillis(24));
+	/** 同一个分块连续校验失败的次数上限 */
+	private static final int MAX_RETRIES = 3;
+	/** 仓库中的内容多久未被使用后删除（毫秒） */
+	private static final long BLOB_TTL = Long.getLong("chat.blob.ttl", TimeUnit.DAYS.toMillis(7));
+	/** 仓库清理的最小间隔 */
+	private static final long SWEEP_INTERVAL_NANOS = TimeUnit.HOURS.toNanos(1);
+	/** 整文件消息存入仓库时记录CRC的分块大小，与客户端默认的分块大小一致 */
+	private static final int WHOLE_FILE_CHUNK_SIZE = 128 * 1024;
+	/** 传输ID同时用作暂存文件名，只允许安全字符 */
+	private static final Pattern ID_PATTERN = Pattern.compile("[A-Za-z0-9-]{1,64}");
+
+	/**
+	 * 一次上传：发送方 → 暂存文件 → 仓库
+	 */
+	private static class Upload {
+		final String id;
+		final String sender;
+		/** 发送方声明的分享对象（用户ID、群聊或世界聊天），只用于日志 */
+		final String receiver;
+		final String fileName;
+		final long totalBytes;
+		final SpoolFile spool;
+		final SpoolMeta meta;
+		/** 已落盘部分的摘要 */
+		final MessageDigest digest;
+		final long startNanos = System.nanoTime();
+		volatile long received;
+		/** 发送方下线的时刻（System.nanoTime），0表示正在上传 */
+		volatile long suspendedAt;
+		/** 当前分块连续校验失败的次数（只在发送方的读线程中访问） */
+		int retries;
+
+		Upload(String id, SpoolMeta meta, SpoolFile spool, MessageDigest digest, long received) {
+			this.id = id;
+			this.sender = meta.getSender();
+			this.receiver = meta.getReceiver();
+			this.fileName = meta.getFileName();
+			this.totalBytes = meta.getTotalBytes();
+			this.spool = spool;
+			this.meta = meta;
+			this.digest = digest;
+			this.received = received;
+		}
+	}
+
+	/**
+	 * 一次投递：仓库 → 请求下载的接收方
+	 * 按仓库中记录的分块边界发送，每块带上上传时记录的CRC
+	 */
+	private class Delivery {
+		final String id;
+		final ClientSession target;
+		/** 分享者（投递消息的sender），只用于显示 */
+		final String sharer;
+		final String fileName;
+		final String hash;
+		final SpoolMeta meta;
+		final SpoolFile spool;
+		final long totalBytes;
+		final long startNanos = System.nanoTime();
+		/** 收到接收方的RESUME（告知本地已有多少）后才开始发送 */
+		boolean started;
+		long sent;
+		long acked;
+		boolean endSent;
+		boolean finished;
+
+		Delivery(String id, ClientSession target, String sharer, String fileName, String hash, SpoolMeta meta,
+				SpoolFile spool) {
+			this.id = id;
+			this.target = target;
+			this.sharer = sharer;
+			this.fileName = fileName;
+			this.hash = hash;
+			this.meta = meta;
+			this.spool = spool;
+			this.totalBytes = meta.getTotalBytes();
+		}
+
+		String receiver() {
+			return target.getUserId();
+		}
+
+		/**
+		 * 不含文件内容的描述消息（MESSAGE_FILE_BEGIN），content为"传输ID|总字节数|分块大小|摘要"
+		 */
+		Message descriptor() {
+			return new Message.Builder()
+					.mesType(MessageType.MESSAGE_FILE_BEGIN)
+					.sender(sharer)
+					.receiver(receiver())
+					.content(id + "|" + totalBytes + "|" + meta.getChunkSize() + "|" + hash)
+					.fileName(fileName)
+					.build();
+		}
+
+		/**
+		 * 在窗口允许的范围内继续投递分块，全部发出后发送END
+		 */
+		synchronized void pump() throws IOException {
+			if (finished || !started) {
+				return;
+			}
+			int chunkSize = meta.getChunkSize();
+			long window = (long) WINDOW_CHUNKS * chunkSize;
+			while (sent < totalBytes && sent - acked < window) {
+				int index = (int) (sent / chunkSize);
+				int n = meta.chunkLength(index);
+				Message chunk = control(MessageType.MESSAGE_FILE_CHUNK, sharer, receiver(),
+						id + "|" + sent + "|" + FileChecksums.crcToString(meta.crcOf(index)));
+				spool.retain();
+				FileRegion region;
+				try {
+					region = FileRegion.of(chunk, spool.channel(), sent, n, spool::release);
+				} catch (IOException e) {
+					spool.release();
+					throw e;
+				}
+				target.sendRegion(region);
+				sent += n;
+				deliveredBytes.add(n);
+				windowOut.add(n);
+			}
+			if (!endSent && sent == totalBytes) {
+				endSent = true;
+				target.send(control(MessageType.MESSAGE_FILE_END, sharer, receiver(),
+						id + "|" + totalBytes + "|" + hash));
+			}
+		}
+
+		/**
+		 * 接收方要求从offset开始发送（开始投递或分块校验失败）
+		 */
+		synchronized void resume(long offset) {
+			int chunkSize = meta.getChunkSize();
+			// 接收方已有全部内容（本地去重）时offset等于总大小，不必对齐
+			long aligned = offset >= totalBytes ? totalBytes : Math.max(0, offset - offset % chunkSize);
+			if (started && aligned < sent) {
+				retransmits.incrementAndGet();
+			}
+			started = true;
+			sent = aligned;
+			acked = aligned;
+			endSent = false;
+		}
+
+		/**
+		 * 接收方确认
+		 *
+		 * @return true表示接收方已确认全部内容，投递完成
+		 */
+		synchronized boolean acknowledge(long bytes) {
+			if (finished) {
+				return false;
+			}
+			acked = Math.max(acked, bytes);
+			if (endSent && acked >= totalBytes) {
+				finished = true;
+				return true;
+			}
+			return false;
+		}
+
+		/** 标记为已结束，之后不再投递；返回false表示已经结束过 */
+		synchronized boolean finish() {
+			if (finished) {
+				return false;
+			}
+			finished = true;
+			return true;
+		}
+	}
+
+	private final ServerGUI gui;
+	private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+	private final Map<String, Delivery> deliveries = new ConcurrentHashMap<>();
+	private final BlobStore blobs = new BlobStore(new File(BLOB_DIR, "sha256"));
+
+	private final AtomicLong uploaded = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong fetches = new AtomicLong();
+	private final AtomicLong queuedOffline = new AtomicLong();
+	private final AtomicLong resumed = new AtomicLong();
+	private final AtomicLong deduplicated = new AtomicLong();
+	private final AtomicLong retransmits = new AtomicLong();
+	private final AtomicLong aborted = new AtomicLong();
+	private final LongAdder receivedBytes = new LongAdder();
+	private final LongAdder deliveredBytes = new LongAdder();
+	private final LongAdder windowIn = new LongAdder();
+	private final LongAdder windowOut = new LongAdder();
+	private long windowStart = System.nanoTime();
+	private volatile long lastSweepNanos = System.nanoTime();
+
+	public FileRelay(ServerGUI gui) {
+		this.gui = gui;
+		sweepStaleUploads();
+		blobs.sweep(BLOB_TTL);
+		ServerMonitor.register("文件中转", this::describe);
+	}
+
+	/** 是否为分块文件传输消息 */
+	public static boolean isFileTransfer(String type) {
+		switch (type) {
+			case MessageType.MESSAGE_FILE_BEGIN:
+			case MessageType.MESSAGE_FILE_CHUNK:
+			case MessageType.MESSAGE_FILE_END:
+			case MessageType.MESSAGE_FILE_ACK:
+			case MessageType.MESSAGE_FILE_ABORT:
+			case MessageType.MESSAGE_FILE_RESUME:
+			case MessageType.MESSAGE_FILE_FETCH:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * 是否为离线消息中的整文件描述（文件内容在仓库中）
+	 */
+	public static boolean isSpooledDescriptor(Message msg) {
+		return MessageType.MESSAGE_FILE.equals(msg.getMesType()) && msg.getFileData() == null;
+	}
+
+	/**
+	 * 分享的文件是否仍在仓库中（转发MESSAGE_FILE_OFFER前检查）
+	 */
+	public boolean hasBlob(String hash, long size) {
+		return blobs.contains(hash, size);
+	}
+
+	/**
+	 * 该用户是否可以分享这个文件（自己上传过或收到过它的分享）
+	 */
+	public boolean mayShare(String hash, String userId) {
+		return blobs.isGranted(hash, userId);
+	}
+
+	/**
+	 * 转发分享前调用：允许这些用户下载该文件
+	 *
+	 * @param userIds null表示所有用户（世界聊天）
+	 */
+	public void grant(String hash, Collection<String> userIds) {
+		try {
+			blobs.grant(hash, userIds);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 处理一条分块文件传输消息
+	 */
+	public void handle(ClientSession session, Message msg) throws IOException {
+		if (msg.getContent() == null) {
+			return;
+		}
+		String[] fields = msg.getContent().split("\\|", 4);
+		if (fields.length < 2) {
+			return;
+		}
+		String id = fields[0];
+		try {
+			switch (msg.getMesType()) {
+				case MessageType.MESSAGE_FILE_BEGIN:
+					beginUpload(session, msg, id, Long.parseLong(fields[1]),
+							fields.length > 2 ? Integer.parseInt(fields[2]) : 0, fields.length > 3 ? fields[3] : null);
+					break;
+				case MessageType.MESSAGE_FILE_CHUNK:
+					onChunk(session, id, Long.parseLong(fields[1]),
+							fields.length > 2 ? FileChecksums.parseCrc(fields[2]) : 0, msg.getFileData());
+					break;
+				case MessageType.MESSAGE_FILE_END:
+					onEnd(session, id, Long.parseLong(fields[1]), fields.length > 2 ? fields[2] : "");
+					break;
+				case MessageType.MESSAGE_FILE_ACK:
+					onAck(session, id, Long.parseLong(fields[1]));
+					break;
+				case MessageType.MESSAGE_FILE_ABORT:
+					onAbort(session, id, msg.getContent().substring(id.length() + 1));
+					break;
+				case MessageType.MESSAGE_FILE_RESUME:
+					onResume(session, id, Long.parseLong(fields[1]));
+					break;
+				case MessageType.MESSAGE_FILE_FETCH:
+					onFetch(session, msg, id, fields[1]);
+					break;
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("无效的文件传输消息: " + msg);
+		}
+	}
+
+	// ==================== 上传 ====================
+
+	/**
+	 * 开始或续传一次上传，回复RESUME告知发送方从哪里继续
+	 *
+	 * @param hash 发送方声明的整文件SHA-256，旧客户端不带时为null
+	 */
+	private void beginUpload(ClientSession session, Message msg, String id, long totalBytes, int chunkSize,
+			String hash) throws IOException {
+		String userId = session.getUserId();
+		String receiverId = msg.getReceiver();
+		expireSuspendedUploads();
+		sweepBlobsIfDue();
+		if (!ID_PATTERN.matcher(id).matches()) {
+			reject(session, msg, id, "无效的传输");
+			return;
+		}
+
+		Upload upload = uploads.get(id);
+		if (upload == null) {
+			SpoolMeta saved = loadMeta(id);
+			if (saved != null && saved.getSender().equals(userId)) {
+				upload = recoverUpload(id, saved);
+				if (upload == null) {
+					reject(session, msg, id, "服务器无法恢复文件");
+					return;
+				}
+				uploads.put(id, upload);
+			} else if (saved != null) {
+				reject(session, msg, id, "无效的传输");
+				return;
+			}
+		}
+		if (upload != null) {
+			if (!upload.sender.equals(userId) || upload.totalBytes != totalBytes
+					|| upload.meta.getChunkSize() != chunkSize) {
+				reject(session, msg, id, "无效的续传");
+				return;
+			}
+			upload.suspendedAt = 0;
+			upload.retries = 0;
+			resumed.incrementAndGet();
+			session.send(control(MessageType.MESSAGE_FILE_RESUME, upload.receiver, userId,
+					id + "|" + upload.received));
+			gui.appendLog(userId + " -> " + upload.receiver + ": [文件续传] " + upload.fileName + " (从 "
+					+ upload.received / 1024 + "KB 继续)");
+			return;
+		}
+
+		if (totalBytes < 0 || totalBytes > MAX_FILE_SIZE || chunkSize < MIN_CHUNK_SIZE
+				|| chunkSize > MAX_CHUNK_SIZE) {
+			reject(session, msg, id, "无效的传输");
+			return;
+		}
+		if (blobs.contains(hash, totalBytes) && blobs.isGranted(hash, userId)) {
+			// 秒传：仓库中已有相同内容且发送方有权下载，直接告知已收齐，由发送方的END结束上传
+			deduplicated.incrementAndGet();
+			session.send(control(MessageType.MESSAGE_FILE_RESUME, receiverId, userId, id + "|" + totalBytes));
+			gui.appendLog(userId + " -> " + receiverId + ": [文件秒传] " + msg.getFileName() + " ("
+					+ totalBytes / 1024 + "KB)");
+			return;
+		}
+		SpoolFile spool;
+		SpoolMeta meta;
+		try {
+			spool = SpoolFile.create(new File(BLOB_DIR, id + ".part"));
+			meta = SpoolMeta.create(BLOB_DIR, id, userId, receiverId, msg.getFileName(), totalBytes, chunkSize);
+		} catch (IOException e) {
+			e.printStackTrace();
+			reject(session, msg, id, "服务器无法保存文件");
+			return;
+		}
+		upload = new Upload(id, meta, spool, FileChecksums.newFileDigest(), 0);
+		uploads.put(id, upload);
+		session.send(control(MessageType.MESSAGE_FILE_RESUME, receiverId, userId, id + "|0"));
+		gui.appendLog(userId + " -> " + receiverId + ": [文件上传开始] " + upload.fileName + " (" + totalBytes / 1024
+				+ "KB)");
+	}
+
+	/**
+	 * 服务端重启后恢复一次未完成的上传：逐块核对CRC，重新计算已落盘部分的摘要
+	 * 【说明】需要读一遍已落盘的内容，只在重启后的第一次续传时发生
+	 *
+	 * @return 无法恢复时返回null
+	 */
+	private Upload recoverUpload(String id, SpoolMeta meta) {
+		File part = new File(BLOB_DIR, id + ".part");
+		try {
+			SpoolFile spool = part.isFile() ? SpoolFile.reopen(part) : SpoolFile.create(part);
+			MessageDigest digest = FileChecksums.newFileDigest();
+			ByteBuffer buffer = ByteBuffer.allocate(meta.getChunkSize());
+			long size = spool.size();
+			long received = 0;
+			for (int index = 0; received < meta.getTotalBytes(); index++) {
+				int n = meta.chunkLength(index);
+				if (received + n > size) {
+					break;
+				}
+				buffer.clear().limit(n);
+				while (buffer.hasRemaining()) {
+					if (spool.channel().read(buffer, received + buffer.position()) < 0) {
+						throw new EOFException();
+					}
+				}
+				if (FileChecksums.crc32c(buffer.array(), 0, n) != meta.crcOf(index)) {
+					break;
+				}
+				digest.update(buffer.array(), 0, n);
+				received += n;
+			}
+			spool.truncate(received);
+			meta.reopenForWrite();
+			return new Upload(id, meta, spool, digest, received);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private void onChunk(ClientSession session, String id, long offset, int crc, byte[] data) throws IOException {
+		Upload upload = uploads.get(id);
+		if (upload == null || data == null || !upload.sender.equals(session.getUserId())) {
+			// 传输已结束或已被中止，残留的分块直接丢弃
+			return;
+		}
+		if (offset != upload.received) {
+			// 要求重发后，在途的后续分块直接丢弃
+			return;
+		}
+		int index = (int) (offset / upload.meta.getChunkSize());
+		if (offset >= upload.totalBytes || data.length != upload.meta.chunkLength(index)) {
+			abortUpload(upload, "分块大小错误", true);
+			return;
+		}
+		if (FileChecksums.crc32c(data) != crc) {
+			if (++upload.retries > MAX_RETRIES) {
+				abortUpload(upload, "分块多次校验失败", true);
+				return;
+			}
+			retransmits.incrementAndGet();
+			session.send(control(MessageType.MESSAGE_FILE_RESUME, upload.receiver, upload.sender,
+					id + "|" + upload.received));
+			return;
+		}
+		upload.retries = 0;
+		try {
+			upload.spool.write(data, offset);
+			upload.meta.setCrc(index, crc);
+		} catch (IOException e) {
+			e.printStackTrace();
+			abortUpload(upload, "服务器写入文件失败", true);
+			return;
+		}
+		upload.digest.update(data);
+		upload.received = offset + data.length;
+		receivedBytes.add(data.length);
+		windowIn.add(data.length);
+		// 落盘即确认
+		session.send(control(MessageType.MESSAGE_FILE_ACK, upload.receiver, upload.sender,
+				id + "|" + upload.received));
+	}
+
+	private void onEnd(ClientSession session, String id, long totalBytes, String digest) throws IOException {
+		Upload upload = uploads.get(id);
+		if (upload == null) {
+			// 秒传，或者上传已完成只是发送方没来得及收到最后的确认
+			if (blobs.contains(digest, totalBytes) && blobs.isGranted(digest, session.getUserId())) {
+				session.send(control(MessageType.MESSAGE_FILE_ACK, "", session.getUserId(), id + "|" + totalBytes));
+			}
+			return;
+		}
+		if (!upload.sender.equals(session.getUserId())) {
+			return;
+		}
+		if (totalBytes != upload.totalBytes || upload.received != totalBytes) {
+			abortUpload(upload, "文件不完整", true);
+			return;
+		}
+		String actual = FileChecksums.toHex(upload.digest.digest());
+		if (!actual.equals(digest)) {
+			abortUpload(upload, "文件校验失败", true);
+			return;
+		}
+		uploads.remove(id);
+		try {
+			upload.meta.complete(actual);
+			if (!blobs.commit(actual, upload.spool, upload.meta)) {
+				// 相同内容已在仓库中（例如同时上传了同一个文件），丢弃本次的暂存文件
+				deduplicated.incrementAndGet();
+				upload.spool.deleteWhenReleased();
+			}
+			blobs.grant(actual, Collections.singletonList(upload.sender));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		upload.meta.delete();
+		upload.spool.release();
+		uploaded.incrementAndGet();
+		// 空文件没有分块，这里补一个确认让发送方结束
+		session.send(control(MessageType.MESSAGE_FILE_ACK, upload.receiver, upload.sender, id + "|" + totalBytes));
+		long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - upload.startNanos));
+		gui.appendLog(upload.sender + " -> " + upload.receiver + ": [文件上传完成] " + upload.fileName + " ("
+				+ totalBytes / 1024 + "KB, 耗时 " + millis + "ms, 平均 " + totalBytes * 1000 / millis / 1024 + "KB/s)");
+	}
+
+	/**
+	 * 中止上传，删除暂存文件
+	 *
+	 * @param notifySender 是否通知发送方（发送方主动中止或已下线时不需要）
+	 */
+	private void abortUpload(Upload upload, String reason, boolean notifySender) {
+		if (uploads.remove(upload.id) == null) {
+			return;
+		}
+		aborted.incrementAndGet();
+		gui.appendLog(upload.sender + " -> " + upload.receiver + ": [文件上传中止] " + upload.fileName + " (" + reason
+				+ ")");
+		if (notifySender) {
+			sendQuietly(upload.sender, control(MessageType.MESSAGE_FILE_ABORT, upload.receiver, upload.sender,
+					upload.id + "|" + reason));
+		}
+		upload.meta.delete();
+		upload.spool.deleteWhenReleased();
+		upload.spool.release();
+	}
+
+	/**
+	 * 删除暂停超过RESUME_TTL的上传
+	 */
+	private void expireSuspendedUploads() {
+		long now = System.nanoTime();
+		for (Upload upload : uploads.values()) {
+			long suspendedAt = upload.suspendedAt;
+			if (suspendedAt != 0 && TimeUnit.NANOSECONDS.toMillis(now - suspendedAt) > RESUME_TTL) {
+				abortUpload(upload, "续传超时", false);
+			}
+		}
+	}
+
+	/**
+	 * 最多每小时清理一次仓库中长期未使用的内容
+	 */
+	private void sweepBlobsIfDue() {
+		long now = System.nanoTime();
+		if (now - lastSweepNanos < SWEEP_INTERVAL_NANOS) {
+			return;
+		}
+		lastSweepNanos = now;
+		int removed = blobs.sweep(BLOB_TTL);
+		if (removed > 0) {
+			gui.appendLog("清理长期未使用的文件: " + removed + " 个");
+		}
+	}
+
+	/**
+	 * 启动时清理过期的未完成上传（服务端重启前暂停、之后一直没有续传的）
+	 */
+	private static void sweepStaleUploads() {
+		File[] parts = BLOB_DIR.listFiles((dir, name) -> name.endsWith(".part"));
+		if (parts == null) {
+			return;
+		}
+		long deadline = System.currentTimeMillis() - RESUME_TTL;
+		for (File part : parts) {
+			if (part.lastModified() < deadline) {
+				String id = part.getName().substring(0, part.getName().length() - ".part".length());
+				part.delete();
+				SpoolMeta.discard(BLOB_DIR, id);
+			}
+		}
+	}
+
+	private static SpoolMeta loadMeta(String id) {
+		try {
+			return SpoolMeta.load(BLOB_DIR, id);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// ==================== 投递 ====================
+
+	/**
+	 * 接收方请求下载（content为"传输ID|摘要"）：先发描述（即MESSAGE_FILE_BEGIN），
+	 * 收到接收方的RESUME后按窗口发分块。同一传输ID重新请求即为续传
+	 */
+	private void onFetch(ClientSession session, Message msg, String id, String hash) throws IOException {
+		String userId = session.getUserId();
+		SpoolMeta meta = blobs.meta(hash);
+		if (!ID_PATTERN.matcher(id).matches() || meta == null || !blobs.fileOf(hash).isFile()
+				|| !blobs.isGranted(hash, userId)) {
+			session.send(control(MessageType.MESSAGE_FILE_ABORT, msg.getReceiver(), userId, id + "|文件已过期或不存在"));
+			return;
+		}
+		Delivery previous = deliveries.get(id);
+		if (previous != null) {
+			if (!previous.receiver().equals(userId)) {
+				session.send(control(MessageType.MESSAGE_FILE_ABORT, msg.getReceiver(), userId, id + "|无效的传输"));
+				return;
+			}
+			// 同一个接收方重新请求：旧的投递作废，从接收方回复的RESUME处重新开始
+			if (previous.finish()) {
+				deliveries.remove(id, previous);
+				previous.spool.release();
+			}
+		}
+		SpoolFile spool = blobs.open(hash);
+		Delivery delivery = new Delivery(id, session, msg.getReceiver(), msg.getFileName(), hash, meta, spool);
+		deliveries.put(id, delivery);
+		fetches.incrementAndGet();
+		session.send(delivery.descriptor());
+	}
+
+	private void onResume(ClientSession session, String id, long offset) throws IOException {
+		Delivery delivery = deliveries.get(id);
+		if (delivery == null || !delivery.receiver().equals(session.getUserId())) {
+			return;
+		}
+		delivery.resume(offset);
+		delivery.pump();
+	}
+
+	private void onAck(ClientSession session, String id, long bytes) throws IOException {
+		Delivery delivery = deliveries.get(id);
+		if (delivery == null || !delivery.receiver().equals(session.getUserId())) {
+			return;
+		}
+		if (!delivery.acknowledge(bytes)) {
+			delivery.pump();
+			return;
+		}
+		deliveries.remove(id, delivery);
+		delivered.incrementAndGet();
+		delivery.spool.release();
+		long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - delivery.startNanos));
+		gui.appendLog(delivery.sharer + " -> " + delivery.receiver() + ": [文件已下载] " + delivery.fileName + " ("
+				+ delivery.totalBytes / 1024 + "KB, 投递耗时 " + millis + "ms)");
+	}
+
+	private void onAbort(ClientSession session, String id, String reason) {
+		String userId = session.getUserId();
+		Upload upload = uploads.get(id);
+		if (upload != null && upload.sender.equals(userId)) {
+			abortUpload(upload, reason, false);
+			return;
+		}
+		Delivery delivery = deliveries.get(id);
+		if (delivery != null && delivery.receiver().equals(userId)) {
+			// 接收方取消下载，仓库中的内容保留
+			abortDelivery(delivery);
+		}
+	}
+
+	/**
+	 * 结束投递，释放本次投递持有的仓库文件引用
+	 */
+	private void abortDelivery(Delivery delivery) {
+		if (!delivery.finish()) {
+			return;
+		}
+		deliveries.remove(delivery.id, delivery);
+		aborted.incrementAndGet();
+		delivery.spool.release();
+	}
+
+	// ==================== 整文件消息（MESSAGE_FILE） ====================
+
+	/**
+	 * 转发整文件消息：内容按摘要存入仓库（已有则不再写盘），再以区域帧转发；接收方离线时只保存描述
+	 */
+	public void relayWholeFile(ClientSession session, Message msg) throws IOException {
+		byte[] data = msg.getFileData();
+		if (data == null) {
+			return;
+		}
+		String hash = FileChecksums.toHex(FileChecksums.newFileDigest().digest(data));
+		if (blobs.contains(hash, data.length)) {
+			deduplicated.incrementAndGet();
+		} else {
+			storeWholeFile(session, msg, hash, data);
+		}
+		blobs.grant(hash, Arrays.asList(session.getUserId(), msg.getReceiver()));
+		receivedBytes.add(data.length);
+		Message descriptor = new Message.Builder()
+				.mesType(MessageType.MESSAGE_FILE)
+				.sender(session.getUserId())
+				.receiver(msg.getReceiver())
+				.content(hash + "|" + data.length)
+				.sendTime(msg.getSendTime())
+				.fileName(msg.getFileName())
+				.build();
+		ClientSession receiver = ManageClientThread.getClientThread(msg.getReceiver());
+		if (receiver != null) {
+			sendWholeFile(receiver, descriptor, blobs.open(hash));
+			gui.appendLog(session.getUserId() + " -> " + msg.getReceiver() + ": [文件传输] " + msg.getFileName() + " ("
+					+ data.length / 1024 + "KB)");
+		} else {
+			queuedOffline.incrementAndGet();
+			ManageClientThread.addOfflineMessage(descriptor.getReceiver(), descriptor);
+			gui.appendLog(session.getUserId() + " -> " + msg.getReceiver() + ": (用户离线，文件已暂存) "
+					+ msg.getFileName());
+		}
+	}
+
+	/**
+	 * 把整文件消息的内容存入仓库，同时按分块记录CRC，之后的分块传输也可以秒传
+	 */
+	private void storeWholeFile(ClientSession session, Message msg, String hash, byte[] data) throws IOException {
+		String id = UUID.randomUUID().toString();
+		SpoolFile spool = SpoolFile.create(new File(BLOB_DIR, id + ".part"));
+		try {
+			spool.write(data, 0);
+			SpoolMeta meta = SpoolMeta.create(BLOB_DIR, id, session.getUserId(), msg.getReceiver(),
+					msg.getFileName(), data.length, WHOLE_FILE_CHUNK_SIZE);
+			for (int index = 0; index < SpoolMeta.chunkCount(data.length, WHOLE_FILE_CHUNK_SIZE); index++) {
+				int offset = index * WHOLE_FILE_CHUNK_SIZE;
+				meta.setCrc(index, FileChecksums.crc32c(data, offset, meta.chunkLength(index)));
+			}
+			meta.complete(hash);
+			if (!blobs.commit(hash, spool, meta)) {
+				spool.deleteWhenReleased();
+			}
+		} catch (IOException e) {
+			spool.deleteWhenReleased();
+			throw e;
+		} finally {
+			SpoolMeta.discard(BLOB_DIR, id);
+			spool.release();
+		}
+	}
+
+	/**
+	 * 以一个区域帧发出整个文件
+	 *
+	 * @param spool 调用方持有的引用转交给区域帧
+	 */
+	private void sendWholeFile(ClientSession target, Message descriptor, SpoolFile spool) throws IOException {
+		FileRegion region;
+		try {
+			region = FileRegion.of(descriptor, spool.channel(), 0, (int) spool.size(), spool::release);
+		} catch (IOException e) {
+			spool.release();
+			throw e;
+		}
+		target.sendRegion(region);
+		deliveredBytes.add(region.fileBytes());
+		windowOut.add(region.fileBytes());
+		delivered.incrementAndGet();
+	}
+
+	/**
+	 * 用户上线后投递一条离线的整文件描述（content为"摘要|大小"）
+	 */
+	public void deliverSpooled(ClientSession session, Message descriptor) throws IOException {
+		String hash = descriptor.getContent().split("\\|")[0];
+		if (!BlobStore.isHash(hash) || !blobs.fileOf(hash).isFile()) {
+			gui.appendLog("离线文件已丢失: " + descriptor.getFileName() + " (" + hash + ")");
+			return;
+		}
+		sendWholeFile(session, descriptor, blobs.open(hash));
+	}
+
+	/**
+	 * 用户下线：其上传暂停等待续传；对其进行中的投递直接结束，重新登录后由客户端重新请求
+	 */
+	public void onSessionClosed(String userId) {
+		for (Upload upload : uploads.values()) {
+			if (upload.sender.equals(userId) && upload.suspendedAt == 0) {
+				upload.suspendedAt = System.nanoTime();
+				gui.appendLog(userId + " -> " + upload.receiver + ": [文件上传暂停，等待续传] " + upload.fileName + " ("
+						+ upload.received / 1024 + "KB/" + upload.totalBytes / 1024 + "KB)");
+			}
+		}
+		for (Delivery delivery : deliveries.values()) {
+			if (delivery.receiver().equals(userId) && delivery.finish()) {
+				deliveries.remove(delivery.id, delivery);
+				delivery.spool.release();
+			}
+		}
+		expireSuspendedUploads();
+	}
+
+	// ==================== 工具方法 ====================
+
+	/** 拒绝一次BEGIN：回ABORT */
+	private static void reject(ClientSession session, Message begin, String id, String reason) throws IOException {
+		session.send(control(MessageType.MESSAGE_FILE_ABORT, begin.getReceiver(), session.getUserId(),
+				id + "|" + reason));
+	}
+
+	private static Message control(String type, String from, String to, String content) {
+		return new Message.Builder()
+				.mesType(type)
+				.sender(from)
+				.receiver(to)
+				.content(content)
+				.build();
+	}
+
+	private static void sendQuietly(String userId, Message msg) {
+		ClientSession session = ManageClientThread.getClientThread(userId);
+		if (session != null) {
+			try {
+				session.send(msg);
+			} catch (IOException e) {
+				// 该会话也已断开
+			}
+		}
+	}
+
+	/**
+	 * 指标描述（用于ServerMonitor），速率统计上一次describe()以来的数据
+	 */
+	public synchronized String describe() {
+		long now = System.nanoTime();
+		double seconds = Math.max(1e-3, (now - windowStart) / 1e9);
+		windowStart = now;
+		long suspended = uploads.values().stream().filter(u -> u.suspendedAt != 0).count();
+		return String.format(
+				"上传中 %d（暂停 %d） 投递中 %d | 上传 %d 秒传 %d 下载请求 %d 送达 %d 离线 %d 续传 %d 重传 %d 中止 %d | 接收 %.1fMB 零拷贝转发 %.1fMB | 速率 入 %.1fKB/s 出 %.1fKB/s",
+				uploads.size(), suspended, deliveries.size(), uploaded.get(), deduplicated.get(), fetches.get(),
+				delivered.get(), queuedOffline.get(), resumed.get(), retransmits.get(), aborted.get(),
+				receivedBytes.sum() / 1024.0 / 1024, deliveredBytes.sum() / 1024.0 / 1024,
+				windowIn.sumThenReset() / 1024.0 / seconds, windowOut.sumThenReset() / 1024.0 / seconds);
+	}
+}
@@ -0,0 +1,239 @@
+package server.service;
+
+import common.MessageType;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 群组登记表 - 服务端为每个群分配数字ID并保存成员，群聊消息只携带群地址
+ * <p>
+ * 【核心作用】
+ * 原先每条群聊消息都在userlist中带上全部群成员，服务端照单转发，
+ * 客户端每收到一条都要重新排序成员拼出聊天key；客户端重启后群聊列表也随之丢失。现在：
+ * - 创建群聊时服务端核对成员（去重、加入创建者、去掉不存在的用户），分配一个群ID
+ * - 群地址为 MessageType.GROUP_ADDRESS_PREFIX + 群ID，群聊消息和分享到群的文件只在receiver中带群地址，
+ * 消息大小与群的人数无关
+ * - 用户登录时服务端把他所在的群逐个发给客户端，客户端不需要自己保存群列表
+ * <p>
+ * 【持久化】
+ * 每个群登记时追加一行到 chat.group.file（默认groups.log）并fsync，之后才回复客户端：
+ *
+ * <pre>
+ * 群ID \t 创建者 \t 成员1,成员2,...
+ * </pre>
+ *
+ * 启动时按顺序读回所有群，下一个群ID从已有的最大ID之后开始。群ID在服务端重启后不会重复使用，
+ * 客户端按群地址保存的聊天记录和离线消息不会落到另一个群里。
+ * 文件末尾不完整的一行（写入中途崩溃）被截掉
+ * <p>
+ * 【说明】
+ * 成员完全相同的群只登记一次，再次创建时返回已有的群
+ *
+ * @author ChatRoom Team
+ */
+public class GroupRegistry {
+	/** 一个群最多的成员数 */
+	private static final int MAX_MEMBERS = Integer.getInteger("chat.group.maxMembers", 500);
+	private static final File FILE = new File(System.getProperty("chat.group.file", "groups.log"));
+
+	/**
+	 * 一个群：ID和排序后的成员（只读）
+	 */
+	public static final class Group {
+		private final long id;
+		private final String creator;
+		private final List<String> members;
+
+		private Group(long id, String creator, List<String> members) {
+			this.id = id;
+			this.creator = creator;
+			this.members = Collections.unmodifiableList(members);
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		/** 群地址，用作群聊消息的receiver和客户端的聊天key */
+		public String getAddress() {
+			return MessageType.GROUP_ADDRESS_PREFIX + id;
+		}
+
+		public String getCreator() {
+			return creator;
+		}
+
+		/** 按UserID排序的成员 */
+		public List<String> getMembers() {
+			return members;
+		}
+
+		public boolean hasMember(String userId) {
+			return Collections.binarySearch(members, userId) >= 0;
+		}
+	}
+
+	/** 下一个群ID，只在群写入文件后才递增 */
+	private final AtomicLong nextId = new AtomicLong(1);
+	/** 群ID → 群，转发消息时按ID查找，不加锁 */
+	private final Map<Long, Group> groups = new ConcurrentHashMap<>();
+	/** 排序后的成员（逗号连接）→ 群，用于合并成员相同的群 */
+	private final Map<String, Group> byMembers = new HashMap<>();
+	/** UserID → 所在的群，登录时同步群列表 */
+	private final Map<String, List<Group>> byUser = new HashMap<>();
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** 追加写入的登记文件 */
+	private final FileOutputStream out;
+
+	public GroupRegistry() {
+		try {
+			load();
+			out = new FileOutputStream(FILE, true);
+		} catch (IOException e) {
+			throw new IllegalStateException("无法打开群组登记文件: " + FILE.getAbsolutePath(), e);
+		}
+		ServerMonitor.register("群组", this::describe);
+	}
+
+	/**
+	 * 读回登记文件中的所有群，截掉末尾不完整的一行
+	 */
+	private void load() throws IOException {
+		if (!FILE.exists()) {
+			return;
+		}
+		byte[] data = Files.readAllBytes(FILE.toPath());
+		int lineStart = 0;
+		for (int i = 0; i < data.length; i++) {
+			if (data[i] != '\n') {
+				continue;
+			}
+			String line = new String(data, lineStart, i - lineStart, StandardCharsets.UTF_8);
+			lineStart = i + 1;
+			String[] fields = line.split("\t", -1);
+			if (fields.length != 3) {
+				System.err.println("跳过无法识别的群组记录: " + line);
+				continue;
+			}
+			long id;
+			try {
+				id = Long.parseLong(fields[0]);
+			} catch (NumberFormatException e) {
+				System.err.println("跳过无法识别的群组记录: " + line);
+				continue;
+			}
+			List<String> members = new ArrayList<>(new TreeSet<>(Arrays.asList(fields[2].split(","))));
+			register(new Group(id, fields[1], members), String.join(",", members));
+			nextId.set(Math.max(nextId.get(), id + 1));
+		}
+		if (lineStart < data.length) {
+			System.err.println("截掉群组登记文件末尾不完整的记录（" + (data.length - lineStart) + "字节）");
+			try (FileChannel channel = FileChannel.open(FILE.toPath(), StandardOpenOption.WRITE)) {
+				channel.truncate(lineStart);
+			}
+		}
+	}
+
+	/**
+	 * 登记一个群：成员去重并加入创建者，去掉不存在的用户
+	 * 【注意】未缓存的成员需要查询数据库，不要在持有其他锁时调用
+	 *
+	 * @return 登记的群（成员相同的群已存在时返回已有的群）；有效成员少于2人或超过上限时返回null
+	 */
+	public Group create(String creator, List<String> requested) {
+		TreeSet<String> resolved = new TreeSet<>();
+		resolved.add(creator);
+		if (requested != null) {
+			for (String userId : requested) {
+				if (userId != null && !resolved.contains(userId) && UserDirectory.get(userId) != null) {
+					resolved.add(userId);
+				}
+			}
+		}
+		if (resolved.size() < 2 || resolved.size() > MAX_MEMBERS) {
+			rejected.incrementAndGet();
+			return null;
+		}
+		List<String> members = new ArrayList<>(resolved);
+		String key = String.join(",", members);
+		synchronized (this) {
+			Group existing = byMembers.get(key);
+			if (existing != null) {
+				reused.incrementAndGet();
+				return existing;
+			}
+			Group group = new Group(nextId.get(), creator, members);
+			try {
+				out.write((group.id + "\t" + creator + "\t" + key + "\n").getBytes(StandardCharsets.UTF_8));
+				out.getFD().sync();
+			} catch (IOException e) {
+				System.err.println("写入群组登记文件失败: " + e.getMessage());
+				rejected.incrementAndGet();
+				return null;
+			}
+			nextId.incrementAndGet();
+			register(group, key);
+			created.incrementAndGet();
+			return group;
+		}
+	}
+
+	private synchronized void register(Group group, String key) {
+		groups.put(group.id, group);
+		byMembers.put(key, group);
+		for (String member : group.members) {
+			byUser.computeIfAbsent(member, k -> new ArrayList<>()).add(group);
+		}
+	}
+
+	/**
+	 * 按群地址查找
+	 *
+	 * @return 地址格式不对或群不存在时返回null
+	 */
+	public Group resolve(String address) {
+		if (address == null || !address.startsWith(MessageType.GROUP_ADDRESS_PREFIX)) {
+			return null;
+		}
+		try {
+			return groups.get(Long.parseLong(address.substring(MessageType.GROUP_ADDRESS_PREFIX.length())));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 该用户所在的全部群，按创建顺序排列
+	 */
+	public synchronized List<Group> groupsOf(String userId) {
+		List<Group> list = byUser.get(userId);
+		return list == null ? Collections.emptyList() : new ArrayList<>(list);
+	}
+
+	/**
+	 * 指标描述（用于ServerMonitor）
+	 */
+	public synchronized String describe() {
+		return String.format("群 %d | 新建 %d 合并 %d 拒绝 %d | 成员上限 %d", groups.size(), created.get(), reused.get(),
+				rejected.get(), MAX_MEMBERS);
+	}
+}
@@ -0,0 +1,163 @@
+package server.service;
+
+import common.FrameConnection;
+import common.Message;
+import common.MessageType;
+import server.view.ServerGUI;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.function.Consumer;
+
+/**
+ * 握手流水线 - 把登录/注册拆成多个阶段，各阶段独立排队、并行处理
+ * <p>
+ * 【阶段划分】
+ *
+ * <pre>
+ * accept → 解码 → 认证(数据库) → 登记会话 → 在线广播
+ * </pre>
+ *
+ * - 解码：读取第一条握手消息（线程模式），带超时，慢客户端不会卡住accept循环
+ * - 认证：在有界线程池中访问数据库，线程数与连接池大小相当
+ * - 登记：推送离线消息、加入在线会话表、启动会话线程
+ * - 在线广播：单线程顺序执行，保证在线列表按登录顺序更新
+ * <p>
+ * 【设计说明】
+ * 原先accept循环在同一线程内依次完成以上所有步骤，一个慢客户端或慢查询
+ * 会阻塞其后所有登录；拆分后服务器重启时的登录风暴可以并行消化。
+ * NIO模式下解码由事件循环完成，从认证阶段进入流水线
+ *
+ * @author ChatRoom Team
+ */
+public class HandshakePipeline {
+	/** 等待第一条握手消息的超时时间（毫秒） */
+	private static final int HANDSHAKE_TIMEOUT = Integer.getInteger("chat.handshake.timeout", 10000);
+
+	private final LoginService loginService;
+	private final ServerGUI gui;
+
+	private final PipelineStage decodeStage;
+	private final PipelineStage authStage;
+	private final PipelineStage registerStage;
+	private final PipelineStage presenceStage;
+
+	public HandshakePipeline(LoginService loginService, ServerGUI gui) {
+		this.loginService = loginService;
+		this.gui = gui;
+		int queueCapacity = Integer.getInteger("chat.handshake.queue", 4096);
+		this.decodeStage = new PipelineStage("decode", Integer.getInteger("chat.handshake.decoders", 8), queueCapacity);
+		// 认证线程数不超过c3p0连接池上限（maxPoolSize=20）
+		this.authStage = new PipelineStage("auth", Integer.getInteger("chat.handshake.auth", 16), queueCapacity);
+		this.registerStage = new PipelineStage("register", 4, queueCapacity);
+		this.presenceStage = new PipelineStage("presence", 1, queueCapacity);
+
+		ServerMonitor.register("握手1-解码", decodeStage::describe);
+		ServerMonitor.register("握手2-认证", authStage::describe);
+		ServerMonitor.register("握手3-登记", registerStage::describe);
+		ServerMonitor.register("握手4-在线广播", presenceStage::describe);
+	}
+
+	/**
+	 * 线程模式入口：新连接从解码阶段进入流水线
+	 *
+	 * @param threads 登录成功后运行会话读循环的线程工厂
+	 */
+	public void accept(Socket socket, MessageRouter router, SessionThreads threads) {
+		if (!decodeStage.submit(() -> decode(socket, router, threads))) {
+			gui.appendLog("握手队列已满，拒绝连接: " + socket.getInetAddress());
+			closeQuietly(socket);
+		}
+	}
+
+	private void decode(Socket socket, MessageRouter router, SessionThreads threads) {
+		FrameConnection connection;
+		Message request;
+		try {
+			socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+			connection = new FrameConnection(socket);
+			request = connection.readMessage();
+			socket.setSoTimeout(0);
+		} catch (Exception e) {
+			gui.appendLog("处理客户端请求异常: " + e.getMessage());
+			closeQuietly(socket);
+			return;
+		}
+
+		authenticate(request, reply -> {
+			try {
+				if (reply == null) {
+					socket.close();
+					return;
+				}
+				connection.writeMessage(reply);
+				if (!MessageType.MESSAGE_LOGIN_SUCCEED.equals(reply.getMesType())) {
+					socket.close();
+					return;
+				}
+				// 登录成功：创建专门为该用户服务的会话，登记后再启动读循环
+				ServerConnectClientThread session = new ServerConnectClientThread(connection, request.getSender(),
+						router, threads.writer());
+				register(session, () -> threads.start(session));
+			} catch (IOException e) {
+				gui.appendLog("处理客户端请求异常: " + e.getMessage());
+				closeQuietly(socket);
+			}
+		});
+	}
+
+	/**
+	 * 认证阶段：在认证线程池中处理登录/注册请求
+	 *
+	 * @param onReply 在认证线程中回调；参数为回复消息，null表示非法请求或处理失败
+	 */
+	public void authenticate(Message request, Consumer<Message> onReply) {
+		boolean accepted = authStage.submit(() -> {
+			Message reply;
+			try {
+				reply = loginService.handle(request);
+			} catch (Exception e) {
+				gui.appendLog("处理客户端请求异常: " + e.getMessage());
+				e.printStackTrace();
+				reply = null;
+			}
+			onReply.accept(reply);
+		});
+		if (!accepted) {
+			gui.appendLog("认证队列已满，拒绝用户 " + request.getSender());
+			onReply.accept(null);
+		}
+	}
+
+	/**
+	 * 登记阶段：推送离线消息并加入在线会话表，之后进入在线广播阶段
+	 *
+	 * @param afterRegister 登记完成后执行（线程模式用于启动读循环），可为null
+	 */
+	public void register(ClientSession session, Runnable afterRegister) {
+		boolean accepted = registerStage.submit(() -> {
+			try {
+				loginService.registerSession(session);
+			} catch (IOException e) {
+				gui.appendLog("推送离线消息失败: " + session.getUserId());
+				session.close();
+				return;
+			}
+			if (afterRegister != null) {
+				afterRegister.run();
+			}
+			presenceStage.submit(() -> loginService.announcePresence(session));
+		});
+		if (!accepted) {
+			gui.appendLog("登记队列已满，断开用户 " + session.getUserId());
+			session.close();
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ignored) {
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package server.service;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 哈希时间轮 - 大量定时任务的O(1)调度器
+ * <p>
+ * 【原理】
+ *
+ * <pre>
+ *        tick →
+ * [0][1][2][3] ... [N-1]      每格是一个桶，指针每tick前进一格
+ *     │
+ *     └─ 任务A(剩余0圈) → 任务B(剩余2圈)
+ * </pre>
+ *
+ * - 延迟d的任务放入 (当前格 + d/tick) % N 号桶，超过一圈的记录剩余圈数
+ * - 添加、取消都是O(1)；每个tick只处理一个桶
+ * - 精度为一个tick，适合心跳超时这类不要求精确的场景
+ * <p>
+ * 【线程模型】
+ * 任意线程都可以添加任务（先放入无锁的待加入队列）；
+ * 桶只由时间轮自己的线程访问，到期任务也在该线程中执行，任务应尽快返回
+ *
+ * @author ChatRoom Team
+ */
+public class HashedTimerWheel {
+
+	/**
+	 * 定时任务句柄
+	 */
+	public static class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private long remainingRounds;
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/** 取消任务；桶中的条目在指针经过时惰性移除 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	private final long tickNanos;
+	private final LinkedList<Timeout>[] wheel;
+	private final int mask;
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	private final Thread worker;
+	private final long startTime;
+	/** 已经处理过的tick数（只在worker线程中访问） */
+	private long tick;
+
+	/**
+	 * @param name          线程名
+	 * @param tickMillis    每格的时长
+	 * @param ticksPerWheel 格数（向上取整为2的幂）
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public HashedTimerWheel(String name, long tickMillis, int ticksPerWheel) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		int size = Integer.highestOneBit(Math.max(ticksPerWheel, 2) - 1) << 1;
+		this.wheel = new LinkedList[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new LinkedList<>();
+		}
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(this::run, name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * 添加一个定时任务
+	 *
+	 * @param delayMillis 延迟（毫秒）
+	 */
+	public Timeout newTimeout(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+		pending.add(timeout);
+		return timeout;
+	}
+
+	private void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			long deadline = tickNanos * (tick + 1);
+			long sleepNanos = deadline - (System.nanoTime() - startTime);
+			if (sleepNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			transferPending();
+			expire(wheel[(int) (tick & mask)]);
+			tick++;
+		}
+	}
+
+	/**
+	 * 把待加入的任务放入对应的桶
+	 */
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			long expireTick = Math.max(timeout.deadline / tickNanos, tick);
+			timeout.remainingRounds = (expireTick - tick) / wheel.length;
+			wheel[(int) (expireTick & mask)].add(timeout);
+		}
+	}
+
+	private void expire(LinkedList<Timeout> bucket) {
+		Iterator<Timeout> it = bucket.iterator();
+		while (it.hasNext()) {
+			Timeout timeout = it.next();
+			if (timeout.cancelled) {
+				it.remove();
+			} else if (timeout.remainingRounds > 0) {
+				timeout.remainingRounds--;
+			} else {
+				it.remove();
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/** 停止时间轮线程 */
+	public void stop() {
+		worker.interrupt();
+	}
+}
@@ -0,0 +1,78 @@
+package server.service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 空闲会话回收器 - 清理心跳超时的半开连接
+ * <p>
+ * 【核心作用】
+ * 对端掉电、拔网线时TCP连接不会立即报错，读线程可能一直阻塞，
+ * 会话留在ManageClientThread中继续接收广播。客户端每隔一段时间发送一次
+ * MESSAGE_PING，服务端超过 chat.idle.timeout（默认30秒）没有收到任何帧，
+ * 就按用户主动退出的流程清理该会话
+ * <p>
+ * 【实现方式】
+ * - 会话每收到一帧只更新一个时间戳（O(1)，不操作时间轮）
+ * - 每个会话在时间轮上只挂一个检查任务：到期时若期间有过活动，
+ * 按最后活动时间重新挂上剩余时长；否则回收
+ * - 回收涉及广播在线列表和数据库查询，交给单独的线程执行，不占用时间轮线程
+ *
+ * @author ChatRoom Team
+ */
+public class IdleReaper {
+	/** 无活动超时（毫秒） */
+	public static final long IDLE_TIMEOUT = Long.getLong("chat.idle.timeout", 30000);
+
+	private final HashedTimerWheel wheel = new HashedTimerWheel("idle-reaper", 500, 128);
+	private final ExecutorService evictor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "idle-evictor");
+		t.setDaemon(true);
+		return t;
+	});
+	private final MessageRouter router;
+	private final AtomicLong watching = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	public IdleReaper(MessageRouter router) {
+		this.router = router;
+		ServerMonitor.register("心跳", this::describe);
+	}
+
+	/**
+	 * 开始监视一个已登录的会话
+	 */
+	public void watch(ClientSession session) {
+		watching.incrementAndGet();
+		schedule(session, IDLE_TIMEOUT);
+	}
+
+	private void schedule(ClientSession session, long delayMillis) {
+		wheel.newTimeout(() -> check(session), delayMillis);
+	}
+
+	private void check(ClientSession session) {
+		if (ManageClientThread.getClientThread(session.getUserId()) != session) {
+			// 会话已下线
+			watching.decrementAndGet();
+			return;
+		}
+		long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - session.getLastActiveNanos());
+		if (idleMillis < IDLE_TIMEOUT) {
+			schedule(session, IDLE_TIMEOUT - idleMillis);
+			return;
+		}
+		watching.decrementAndGet();
+		evicted.incrementAndGet();
+		evictor.execute(() -> router.handleIdleTimeout(session, idleMillis));
+	}
+
+	/**
+	 * 指标描述（用于ServerMonitor）
+	 */
+	public String describe() {
+		return "超时 " + IDLE_TIMEOUT / 1000 + "s | 监视中 " + watching.get() + " | 已回收 " + evicted.get();
+	}
+}
@@ -0,0 +1,164 @@
+package server.service;
+
+import common.Message;
+import common.MessageType;
+import common.User;
+import server.db.UserDao;
+import server.view.ServerGUI;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * 登录注册服务 - 处理连接建立后的第一条握手消息
+ * <p>
+ * 【核心作用】
+ * 1. 校验登录请求（UserID + 密码）并查询昵称
+ * 2. 处理注册请求，生成8位唯一用户ID
+ * 3. 会话上线后登记到ManageClientThread并广播上线增量
+ * <p>
+ * 【设计说明】
+ * 原先这些逻辑写在ServerMain的accept循环里，抽取出来后
+ * 线程模式和NIO模式的握手流程保持一致；各方法由HandshakePipeline
+ * 在对应阶段的线程池中调用，不会阻塞accept循环或事件循环
+ *
+ * @author ChatRoom Team
+ */
+public class LoginService {
+	private final ServerGUI gui;
+	private final MessageRouter router;
+
+	public LoginService(ServerGUI gui, MessageRouter router) {
+		this.gui = gui;
+		this.router = router;
+	}
+
+	/**
+	 * 处理一条握手请求（登录或注册）
+	 * 【注意】包含数据库访问，应在HandshakePipeline的认证线程池中调用
+	 *
+	 * @return 回复给客户端的消息；类型为MESSAGE_LOGIN_SUCCEED时表示登录成功
+	 */
+	public Message handle(Message request) throws SQLException {
+		if (MessageType.MESSAGE_LOGIN.equals(request.getMesType())) {
+			return login(request.getSender(), request.getContent());
+		} else if (MessageType.MESSAGE_REGISTER.equals(request.getMesType())) {
+			return register(request);
+		}
+		gui.appendLog("收到非法的登录请求");
+		return null;
+	}
+
+	/**
+	 * 校验登录请求，一次查询同时完成密码校验和昵称获取
+	 */
+	private Message login(String userId, String pwd) throws SQLException {
+		gui.appendLog("用户 " + userId + " 请求登录");
+		UserDao userDao = new UserDao();
+		User dbUser;
+		try {
+			dbUser = userDao.getUserByIdAndPassword(userId, pwd);
+		} finally {
+			userDao.closeConnection();
+		}
+		if (dbUser == null) {
+			gui.appendLog("用户 " + userId + " 登录失败");
+			return new Message.Builder().mesType(MessageType.MESSAGE_LOGIN_FAIL).build();
+		}
+		gui.appendLog("用户 " + userId + " 登录成功");
+		// 登录时已查出完整资料，顺便刷新用户目录（资料被直接修改过也在这里更新）
+		UserDirectory.put(dbUser);
+
+		// 回复登录成功消息，并在content中携带昵称
+		String nickname = dbUser.getNicname() != null ? dbUser.getNicname() : userId;
+		return new Message.Builder()
+				.mesType(MessageType.MESSAGE_LOGIN_SUCCEED)
+				.content(nickname)
+				.build();
+	}
+
+	/**
+	 * 处理注册请求
+	 *
+	 * @param msg 注册消息，content格式: "昵称|密码|性别"
+	 * @return 回复给客户端的注册结果
+	 */
+	private Message register(Message msg) throws SQLException {
+		String content = msg.getContent();
+		String[] parts = content.split("\\|");
+		if (parts.length != 3) {
+			gui.appendLog("注册信息格式错误");
+			return new Message.Builder()
+					.mesType(MessageType.MESSAGE_REGISTER_FAIL)
+					.content("注册信息格式错误")
+					.build();
+		}
+		String nickname = parts[0];
+		String password = parts[1];
+		String gender = parts[2];
+
+		// 调用注册服务
+		String newUserId = registerUser(nickname, password, gender);
+		if (newUserId != null) {
+			gui.appendLog("用户注册成功: " + nickname + " -> ID: " + newUserId);
+			return new Message.Builder()
+					.mesType(MessageType.MESSAGE_REGISTER_SUCCEED)
+					.content(newUserId)
+					.build();
+		}
+		gui.appendLog("注册失败: " + nickname);
+		return new Message.Builder()
+				.mesType(MessageType.MESSAGE_REGISTER_FAIL)
+				.content("注册失败，请稍后再试或用户ID已存在")
+				.build();
+	}
+
+	/**
+	 * 会话上线：同步群列表、推送离线消息并登记到在线会话表
+	 */
+	public void registerSession(ClientSession session) throws IOException {
+		router.sendGroups(session);
+		router.postPendingMessages(session);
+		gui.appendLog("用户 " + session.getUserId() + " 上线");
+		ManageClientThread.addClientThread(session.getUserId(), session);
+		router.watchIdle(session);
+	}
+
+	/**
+	 * 会话上线后加入在线表，由PresenceTracker合并后广播并刷新GUI
+	 */
+	public void announcePresence(ClientSession session) {
+		router.announceJoin(session);
+	}
+
+	/**
+	 * 注册用户
+	 *
+	 * @param nickname 昵称
+	 * @param password 密码
+	 * @param gender   性别
+	 * @return 生成的8位用户ID，失败返回null
+	 * @throws SQLException
+	 */
+	private String registerUser(String nickname, String password, String gender) throws SQLException {
+		int randomId = 10000000 + (int) (Math.random() * 90000000);
+		String userId = String.valueOf(randomId);
+		UserDao userDao = new UserDao();
+		try {
+			if (userDao.checkIDUnique(userId)) {
+				userDao.RegisterUser(userId, nickname, password, gender);
+				User registered = new User();
+				registered.setUserID(userId);
+				registered.setNicname(nickname);
+				registered.setGender(gender);
+				registered.setAvatar(1);
+				UserDirectory.put(registered);
+				return userId;
+			} else {
+				return registerUser(nickname, password, gender);
+			}
+		} finally {
+			userDao.closeConnection();
+		}
+	}
+}
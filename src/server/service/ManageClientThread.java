@@ -1,50 +1,62 @@
 package server.service;
 
+import common.FrameCodec;
 import common.Message;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * 客户端线程管理器 - 管理所有在线用户的通信线程
+ * 客户端线程管理器 - 管理所有在线用户的会话
  * <p>
  * 【核心作用】
- * 1. 维护在线用户的线程映射表（UserID -> 通信线程）
- * 2. 管理离线消息缓存（用户离线时暂存消息）
+ * 1. 维护在线用户的会话映射表（UserID -> ClientSession）
+ * 2. 离线消息的入口（用户离线时暂存消息，保存在OfflineStore中）
  * 3. 提供线程的添加、查询、移除方法
  * <p>
  * 【线程安全】
  * 使用ConcurrentHashMap保证多线程环境下的安全访问
  * <p>
  * 【离线消息机制】
- * 当目标用户不在线时，消息存入offlineMessages
- * 用户重新上线时，由ServerConnectClientThread推送缓存消息
+ * 当目标用户不在线时，消息追加到OfflineStore的日志中（服务端重启后仍在）
+ * 用户重新上线时，由MessageRouter分批推送缓存消息
  * 
  * @author ChatRoom Team
  */
 public class ManageClientThread {
 
 	/**
-	 * 在线用户线程映射表
+	 * 在线用户会话映射表
 	 * key: UserID（8位数字）
-	 * value: 该用户对应的通信线程
+	 * value: 该用户对应的会话（线程模式或NIO模式）
 	 */
-	private static final ConcurrentHashMap<String, ServerConnectClientThread> clientThreads = new ConcurrentHashMap<>();
-	
+	private static final ConcurrentHashMap<String, ClientSession> clientThreads = new ConcurrentHashMap<>();
+
 	/**
-	 * 离线消息缓存
-	 * key: 接收者UserID
-	 * value: 待发送的消息列表
+	 * 缓存一条离线消息（写入OfflineStore）
 	 */
-	public static Map<String, List<Message>> offlineMessages = new ConcurrentHashMap<>();
+	public static void addOfflineMessage(String userId, Message msg) {
+		OfflineStore.getInstance().append(userId, msg);
+	}
 
-	public static void addClientThread(String userId, ServerConnectClientThread thread) {
-		clientThreads.put(userId, thread);
+	/**
+	 * 取出并移除该用户的全部离线消息，没有时返回空列表
+	 * 【说明】登录时的投递用OfflineStore.peek()/ack()分批进行，这里用于慢速会话恢复后一次取回
+	 */
+	public static List<Message> takeOfflineMessages(String userId) {
+		OfflineStore store = OfflineStore.getInstance();
+		return store.hasPending(userId) ? store.takeAll(userId) : Collections.emptyList();
 	}
 
-	public static ServerConnectClientThread getClientThread(String userId) {
+	public static void addClientThread(String userId, ClientSession session) {
+		clientThreads.put(userId, session);
+	}
+
+	public static ClientSession getClientThread(String userId) {
 		return clientThreads.get(userId);
 	}
 
@@ -52,11 +64,49 @@ public class ManageClientThread {
 		clientThreads.remove(userId);
 	}
 
-	public static ConcurrentHashMap<String, ServerConnectClientThread> getAll() {
+	/**
+	 * 仅当映射表中仍是该会话时才移除，避免误删同一用户重新登录后的新会话
+	 *
+	 * @return false表示该会话已不在映射表中（已被清理过）
+	 */
+	public static boolean removeClientThread(String userId, ClientSession session) {
+		return clientThreads.remove(userId, session);
+	}
+
+	public static ConcurrentHashMap<String, ClientSession> getAll() {
 		return clientThreads;
 	}
 
 	public static List<String> getOnlineUsers() {
 		return new ArrayList<>(clientThreads.keySet());
 	}
+
+	/**
+	 * 序列化流指标（用于ServerMonitor）：重置策略、累计重置次数，
+	 * 以及句柄表保留对象最多的几个会话
+	 */
+	public static String describeStreams() {
+		// 写出线程会同时改变保留句柄数，先取一次快照再汇总和排序，避免比较结果前后不一致
+		List<Map.Entry<String, Integer>> retained = new ArrayList<>();
+		long total = 0;
+		for (ClientSession session : clientThreads.values()) {
+			int handles = session.getRetainedHandles();
+			retained.add(new AbstractMap.SimpleImmutableEntry<>(session.getUserId(), handles));
+			total += handles;
+		}
+		retained.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+		StringBuilder sb = new StringBuilder();
+		sb.append(FrameCodec.describeResetPolicy())
+				.append(" | 累计重置 ").append(FrameCodec.getTotalResets())
+				.append(" | 保留句柄 合计 ").append(total);
+		for (int i = 0; i < Math.min(3, retained.size()); i++) {
+			Map.Entry<String, Integer> entry = retained.get(i);
+			if (entry.getValue() == 0) {
+				break;
+			}
+			sb.append(i == 0 ? " 最多: " : ", ")
+					.append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return sb.toString();
+	}
 }
@@ -0,0 +1,377 @@
+package server.service;
+
+import common.Message;
+import common.MessageType;
+import server.view.ServerGUI;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 消息路由器 - 根据消息类型把消息转发给目标会话
+ * <p>
+ * 【核心作用】
+ * 1. 根据MessageType分发到对应的handle方法
+ * 2. 查询目标用户的会话并转发消息
+ * 3. 处理用户下线和在线列表广播
+ * <p>
+ * 【消息转发逻辑】
+ * - 私聊消息：直接转发给接收者会话，离线则缓存
+ * - 世界聊天：遍历所有会话广播（除发送者外）
+ * - 群聊消息：按群地址从GroupRegistry查出成员后定向转发，创建群聊时由服务端登记成员
+ * - 用户上下线：由PresenceTracker广播在线状态的增量，完整列表只在客户端请求时发送
+ * - 心跳：回复MESSAGE_PONG；心跳超时的会话由IdleReaper按下线流程清理
+ * - 分块文件传输：交给FileRelay，上传存入服务端仓库，下载按接收方的请求投递
+ * - 文件分享：确认文件已在仓库中后，按私聊/群聊/世界聊天转发元数据
+ * <p>
+ * 【设计说明】
+ * 路由逻辑原先写在ServerConnectClientThread中，抽取出来后
+ * 阻塞线程模式和NIO模式共用同一套转发规则
+ *
+ * @author ChatRoom Team
+ */
+public class MessageRouter {
+	private final ServerGUI gui;
+	private final IdleReaper idleReaper;
+	private final FileRelay fileRelay;
+	private final PresenceTracker presence;
+	private final GroupRegistry groups = new GroupRegistry();
+
+	public MessageRouter(ServerGUI gui) {
+		this.gui = gui;
+		this.presence = new PresenceTracker(gui);
+		this.idleReaper = new IdleReaper(this);
+		this.fileRelay = new FileRelay(gui);
+	}
+
+	/**
+	 * 会话登记完成后开始心跳超时监视
+	 */
+	public void watchIdle(ClientSession session) {
+		idleReaper.watch(session);
+	}
+
+	/**
+	 * 分发一条来自已登录会话的消息
+	 *
+	 * @return false表示客户端请求退出，会话应当结束
+	 */
+	public boolean dispatch(ClientSession session, Message msg) throws IOException {
+		String userId = session.getUserId();
+		String type = msg.getMesType();
+		if (MessageType.MESSAGE_PING.equals(type)) {
+			// 心跳很频繁，不打印日志
+			handlePing(session, msg);
+			return true;
+		}
+		if (FileRelay.isFileTransfer(type)) {
+			// 分块很多，日志由FileRelay按传输记录
+			fileRelay.handle(session, msg);
+			return true;
+		}
+		System.out.println("用户 " + userId + " 消息类型: " + type);
+
+		switch (type) {
+			case MessageType.MESSAGE_COMM_MES:
+				handlePrivateMessage(session, msg);
+				break;
+			case MessageType.MESSAGE_WORLD_CHAT:
+				handleWorldMessage(session, msg);
+				break;
+			case MessageType.MESSAGE_GROUP_MES:
+				handleGroupMessage(session, msg);
+				break;
+			case MessageType.MESSAGE_GROUP_CREATE:
+				handleGroupCreate(session, msg);
+				break;
+			case MessageType.MESSAGE_SHAKE:
+				handlePrivateMessage(session, msg);
+				break;
+			case MessageType.MESSAGE_FILE:
+				handleFileMessage(session, msg);
+				break;
+			case MessageType.MESSAGE_FILE_OFFER:
+				handleFileOffer(session, msg);
+				break;
+			case MessageType.MESSAGE_GET_ONLINE_FRIEND:
+				handleOnlineUserRequest(session, msg);
+				break;
+			case MessageType.MESSAGE_CLIENT_EXIT:
+				handleClientExit(session);
+				return false;
+			default:
+				System.out.println("无法处理的消息类型: " + type);
+		}
+		return true;
+	}
+
+	/**
+	 * 登录时把该用户所在的群逐个发给客户端
+	 */
+	public void sendGroups(ClientSession session) throws IOException {
+		for (GroupRegistry.Group group : groups.groupsOf(session.getUserId())) {
+			session.send(groupNotice(group, group.getCreator()));
+		}
+	}
+
+	/**
+	 * 推送该用户的离线消息：按批从OfflineStore读取，每批放入发件箱后确认
+	 * 【说明】离线文件只保存了描述，内容由FileRelay从暂存目录投递
+	 */
+	public void postPendingMessages(ClientSession session) throws IOException {
+		String userId = session.getUserId();
+		OfflineStore store = OfflineStore.getInstance();
+		for (OfflineStore.Batch batch = store.peek(userId, OfflineStore.BATCH); !batch.isEmpty();
+				batch = store.peek(userId, OfflineStore.BATCH)) {
+			for (Message m : batch.getMessages()) {
+				if (FileRelay.isSpooledDescriptor(m)) {
+					fileRelay.deliverSpooled(session, m);
+				} else {
+					session.send(m);
+				}
+			}
+			store.ack(userId, batch.getLastSeq());
+		}
+	}
+
+	private void handlePrivateMessage(ClientSession session, Message msg) throws IOException {
+		String userId = session.getUserId();
+		String receiverId = msg.getReceiver();
+		ClientSession receiver = ManageClientThread.getClientThread(receiverId);
+
+		if (receiverId.equals(userId)) {
+			gui.appendLog(userId + " 给自己发送消息: " + msg.getContent());
+		} else if (receiver != null) {
+			receiver.send(msg);
+			// 记录日志 - 根据消息类型显示不同内容
+			String logMsg = formatMessageLog(msg);
+			gui.appendLog(logMsg);
+		} else {
+			ManageClientThread.addOfflineMessage(receiverId, msg);
+			gui.appendLog(userId + " -> " + receiverId + ": (用户离线，消息已缓存)");
+		}
+	}
+
+	/**
+	 * 整文件消息（截图）：内容先落盘，再由FileRelay转发或暂存
+	 */
+	private void handleFileMessage(ClientSession session, Message msg) throws IOException {
+		String userId = session.getUserId();
+		if (msg.getReceiver().equals(userId)) {
+			gui.appendLog(userId + " 给自己发送文件: " + msg.getFileName());
+			return;
+		}
+		fileRelay.relayWholeFile(session, msg);
+	}
+
+	/**
+	 * 文件分享：消息只含元数据和缩略图，按聊天类型转发，文件内容由接收方按需下载
+	 * 【说明】文件必须已上传到仓库，避免转发一个无法下载的分享；发送方必须自己上传过或收到过该文件，
+	 * 只知道摘要不能分享
+	 */
+	private void handleFileOffer(ClientSession session, Message msg) throws IOException {
+		String userId = session.getUserId();
+		String[] fields = msg.getContent() == null ? new String[0] : msg.getContent().split("\\|");
+		long size;
+		try {
+			size = fields.length == 2 ? Long.parseLong(fields[1]) : -1;
+		} catch (NumberFormatException e) {
+			size = -1;
+		}
+		if (size < 0 || !fileRelay.hasBlob(fields[0], size) || !fileRelay.mayShare(fields[0], userId)) {
+			notifySender(session, "文件分享失败: " + msg.getFileName() + "（服务器上没有该文件）");
+			return;
+		}
+		// 先登记下载权限再转发，接收者收到分享后即可下载
+		if (msg.getReceiver().startsWith(MessageType.GROUP_ADDRESS_PREFIX)) {
+			GroupRegistry.Group group = groupOf(session, msg.getReceiver());
+			if (group != null) {
+				fileRelay.grant(fields[0], group.getMembers());
+				gui.appendLog(userId + " -> " + group.getAddress() + ": [文件分享] " + msg.getFileName() + " ("
+						+ size / 1024 + "KB)");
+				sendToGroup(userId, group.getMembers(), msg);
+			}
+		} else if (MessageType.MESSAGE_WORLD_CHAT.equals(msg.getReceiver())) {
+			fileRelay.grant(fields[0], null);
+			gui.appendLog(userId + ": [世界聊天] [文件分享] " + msg.getFileName() + " (" + size / 1024 + "KB)");
+			BroadcastFanout.broadcast(msg, userId);
+		} else {
+			fileRelay.grant(fields[0], Arrays.asList(userId, msg.getReceiver()));
+			handlePrivateMessage(session, msg);
+		}
+	}
+
+	private void handleWorldMessage(ClientSession session, Message msg) throws IOException {
+		String userId = session.getUserId();
+		gui.appendLog(userId + ": [世界聊天] \"" + msg.getContent() + "\"");
+		// 只序列化一次，共享给所有接收者
+		BroadcastFanout.broadcast(msg, userId);
+	}
+
+	private void handleGroupMessage(ClientSession session, Message msg) throws IOException {
+		String userId = session.getUserId();
+		GroupRegistry.Group group = groupOf(session, msg.getReceiver());
+		if (group == null) {
+			return;
+		}
+		gui.appendLog(userId + " -> " + group.getAddress() + ": [群聊消息] \"" + msg.getContent() + "\"");
+		sendToGroup(userId, group.getMembers(), msg);
+	}
+
+	/**
+	 * 查找发送者所在的群，群不存在（例如服务端重启过）或发送者不是成员时通知发送者
+	 */
+	private GroupRegistry.Group groupOf(ClientSession session, String address) throws IOException {
+		GroupRegistry.Group group = groups.resolve(address);
+		if (group == null || !group.hasMember(session.getUserId())) {
+			notifySender(session, "群聊消息发送失败: 群不存在或你不是该群成员，请重新创建群聊");
+			return null;
+		}
+		return group;
+	}
+
+	/**
+	 * 给发送者回复一条系统消息
+	 */
+	private static void notifySender(ClientSession session, String text) throws IOException {
+		session.send(new Message.Builder()
+				.mesType(MessageType.MESSAGE_SYSTEM_BROADCAST)
+				.sender("系统")
+				.receiver(session.getUserId())
+				.content(text)
+				.build());
+	}
+
+	/**
+	 * 转发给在线的群成员（发送者除外）
+	 */
+	private static void sendToGroup(String userId, List<String> groupMembers, Message msg) throws IOException {
+		for (String member : groupMembers) {
+			if (!member.equals(userId)) {
+				ClientSession target = ManageClientThread.getClientThread(member);
+				if (target != null) {
+					target.send(msg);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 创建群聊：登记成员并分配群ID，把群地址发给在线的群成员（包括创建者）
+	 * 【说明】成员相同的群已存在时返回已有的群，客户端按群地址去重
+	 */
+	private void handleGroupCreate(ClientSession session, Message msg) throws IOException {
+		String userId = session.getUserId();
+		GroupRegistry.Group group = groups.create(userId, msg.getUserlist());
+		if (group == null) {
+			notifySender(session, "创建群聊失败: 群成员无效或超过上限");
+			return;
+		}
+		System.out.println("【创建群聊】" + userId + " 创建群聊 " + group.getAddress() + ": " + group.getMembers());
+		Message notice = groupNotice(group, userId);
+		for (String member : group.getMembers()) {
+			ClientSession target = ManageClientThread.getClientThread(member);
+			if (target != null) {
+				target.send(notice);
+			}
+		}
+	}
+
+	/**
+	 * 群信息通知：content为群地址，userlist为成员，sender为发起者
+	 */
+	private static Message groupNotice(GroupRegistry.Group group, String sender) {
+		return new Message.Builder()
+				.mesType(MessageType.MESSAGE_GROUP_CREATE)
+				.sender(sender)
+				.content(group.getAddress())
+				.setUserlist(group.getMembers())
+				.build();
+	}
+
+	/**
+	 * 客户端请求完整的在线列表（刚登录，或发现增量的版本号不连续）
+	 */
+	private void handleOnlineUserRequest(ClientSession session, Message msg) throws IOException {
+		presence.sendSnapshot(session);
+	}
+
+	/**
+	 * 原样带回content（客户端的发送时间戳），客户端据此计算往返延迟
+	 */
+	private void handlePing(ClientSession session, Message msg) throws IOException {
+		Message pong = new Message.Builder()
+				.mesType(MessageType.MESSAGE_PONG)
+				.content(msg.getContent())
+				.build();
+		session.send(pong);
+	}
+
+	private void handleClientExit(ClientSession session) {
+		removeSession(session, "用户 " + session.getUserId() + " 下线");
+	}
+
+	/**
+	 * 连接异常断开时的清理
+	 */
+	public void handleDisconnect(ClientSession session) {
+		removeSession(session, "用户 " + session.getUserId() + " 连接异常或意外退出");
+	}
+
+	/**
+	 * 心跳超时：按用户退出的流程清理
+	 */
+	public void handleIdleTimeout(ClientSession session, long idleMillis) {
+		gui.appendLog("用户 " + session.getUserId() + " 心跳超时（" + idleMillis / 1000 + "秒无响应）");
+		handleClientExit(session);
+	}
+
+	/**
+	 * 下线清理；同一会话可能被多条路径（退出、读异常、心跳超时）重复清理，只有第一次生效
+	 */
+	private void removeSession(ClientSession session, String log) {
+		boolean removed = ManageClientThread.removeClientThread(session.getUserId(), session);
+		session.close();
+		if (!removed) {
+			return;
+		}
+		fileRelay.onSessionClosed(session.getUserId());
+		gui.appendLog(log);
+		presence.leave(session.getUserId());
+	}
+
+	/**
+	 * 会话登记完成后加入在线表（在合并窗口结束时广播）
+	 */
+	public void announceJoin(ClientSession session) {
+		presence.join(session);
+	}
+
+	/**
+	 * 获取详细的在线用户列表（格式："昵称(UserID)"），不查询数据库
+	 */
+	public List<String> getDetailedOnlineUsers() {
+		return presence.snapshot();
+	}
+
+	/**
+	 * 格式化消息日志
+	 */
+	private String formatMessageLog(Message msg) {
+		String sender = msg.getSender();
+		String receiver = msg.getReceiver();
+		String type = msg.getMesType();
+
+		switch (type) {
+			case MessageType.MESSAGE_COMM_MES:
+				return sender + " -> " + receiver + ": [普通文字] \"" + msg.getContent() + "\"";
+			case MessageType.MESSAGE_SHAKE:
+				return sender + " -> " + receiver + ": [窗口抖动]";
+			case MessageType.MESSAGE_FILE_OFFER:
+				return sender + " -> " + receiver + ": [文件分享] " + msg.getFileName();
+			default:
+				return sender + " -> " + receiver + ": [" + type + "]";
+		}
+	}
+}
@@ -0,0 +1,622 @@
+package server.service;
+
+import common.BinaryMessageCodec;
+import common.FileChecksums;
+import common.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 离线消息仓库 - 按接收者排队的离线消息，写入只追加的分段日志，服务端重启后不丢失
+ * <p>
+ * 【核心作用】
+ * 原先离线消息放在内存中的 Map&lt;String, ArrayList&gt;，多个发送者同时追加会相互覆盖，
+ * 服务端重启后全部丢失，长期不上线的用户还会一直占用内存。现在：
+ * - 每条离线消息以二进制格式（BinaryMessageCodec）追加到 offline/segment-编号.log，
+ * 内存中只保存每个接收者的索引（所在分段、偏移、长度），不保存消息内容
+ * - 分段写满（chat.offline.segmentBytes，默认16MB）后封存，封存的分段用内存映射读取
+ * - 后台线程每 chat.offline.syncMillis（默认20ms）对本窗口内的所有追加做一次fsync（组提交），
+ * 断电时最多丢失这一窗口内的消息
+ * - 登录时MessageRouter按批（chat.offline.batch，默认100条）读取并投递，每批投递后追加一条"已取走"记录
+ * <p>
+ * 【配额和过期】
+ * - 每个用户最多 chat.offline.maxPerUser 条（默认1000）、chat.offline.maxBytesPerUser 字节（默认16MB），
+ * 超过时丢弃该用户最早的消息
+ * - 所有未取走的消息总大小超过 chat.offline.maxBytes（默认1GB）时拒绝新的离线消息。
+ * 按未取走的消息而不是分段文件计算：一个长期不上线的用户在最早的分段中留下一条消息，
+ * 之后已取完的分段都删不掉，磁盘占用可能远大于积压，但这不应该让其他人收不到离线消息
+ * - 超过 chat.offline.ttl（默认7天）未取走的消息过期丢弃
+ * <p>
+ * 【记录格式】
+ *
+ * <pre>
+ * int 长度 | int CRC32C | byte 类型 | long 序号 | long 写入时间 | short 用户ID长度 | 用户ID | 消息（仅类型0）
+ * </pre>
+ *
+ * 类型0为一条消息；类型1表示该用户序号不大于记录中序号的消息已被取走、丢弃或过期。
+ * 启动时按顺序重放所有分段重建索引，最后一个分段末尾不完整或校验失败的记录（写入中途崩溃）被截掉。
+ * 只有最早的分段中已没有未取走的消息时才删除它，因此"已取走"记录总是比它覆盖的消息保留得更久
+ *
+ * @author ChatRoom Team
+ */
+public class OfflineStore {
+	private static final File DIR = new File(System.getProperty("chat.offline.dir", "offline"));
+	/** 分段大小，写满后封存 */
+	private static final long SEGMENT_BYTES = Long.getLong("chat.offline.segmentBytes", 16L * 1024 * 1024);
+	/** 组提交间隔（毫秒） */
+	private static final long SYNC_MILLIS = Long.getLong("chat.offline.syncMillis", 20);
+	private static final int MAX_PER_USER = Integer.getInteger("chat.offline.maxPerUser", 1000);
+	private static final long MAX_BYTES_PER_USER = Long.getLong("chat.offline.maxBytesPerUser", 16L * 1024 * 1024);
+	private static final long MAX_TOTAL_BYTES = Long.getLong("chat.offline.maxBytes", 1024L * 1024 * 1024);
+	private static final long TTL = Long.getLong("chat.offline.ttl", TimeUnit.DAYS.toMillis(7));
+	/** 登录时每批投递的条数 */
+	public static final int BATCH = Integer.getInteger("chat.offline.batch", 100);
+
+	/** 记录头：长度 + CRC32C */
+	private static final int HEADER = 8;
+	/** 记录体中用户ID之前的固定部分：类型 + 序号 + 时间 + ID长度 */
+	private static final int BODY_FIXED = 1 + 8 + 8 + 2;
+	private static final byte KIND_MESSAGE = 0;
+	private static final byte KIND_CONSUMED = 1;
+
+	/**
+	 * 一个分段文件
+	 */
+	private static final class Segment {
+		final long id;
+		final File file;
+		final FileChannel channel;
+		long size;
+		/** 分段中未取走的消息数 */
+		int live;
+		/** 封存后的只读映射，第一次读取时建立 */
+		MappedByteBuffer mapped;
+		boolean sealed;
+
+		Segment(long id, File file, FileChannel channel, long size) {
+			this.id = id;
+			this.file = file;
+			this.channel = channel;
+			this.size = size;
+		}
+
+		/** 读取一段内容：封存的分段从映射中复制，活动分段按位置读 */
+		byte[] read(long offset, int length) throws IOException {
+			byte[] data = new byte[length];
+			if (sealed) {
+				if (mapped == null) {
+					mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				}
+				ByteBuffer view = mapped.duplicate();
+				view.position((int) offset);
+				view.get(data);
+				return data;
+			}
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, offset + buf.position()) < 0) {
+					throw new StreamCorruptedException("离线消息分段不完整: " + file.getName());
+				}
+			}
+			return data;
+		}
+	}
+
+	/**
+	 * 一条离线消息的索引
+	 */
+	private static final class Entry {
+		final long seq;
+		final long time;
+		final Segment segment;
+		/** 消息内容在分段中的位置 */
+		final long dataOffset;
+		final int dataLength;
+		/** 整条记录的字节数（计入配额） */
+		final int recordSize;
+
+		Entry(long seq, long time, Segment segment, long dataOffset, int dataLength, int recordSize) {
+			this.seq = seq;
+			this.time = time;
+			this.segment = segment;
+			this.dataOffset = dataOffset;
+			this.dataLength = dataLength;
+			this.recordSize = recordSize;
+		}
+	}
+
+	/**
+	 * 一个用户的离线消息队列
+	 */
+	private static final class Mailbox {
+		final ArrayDeque<Entry> entries = new ArrayDeque<>();
+		long bytes;
+	}
+
+	/**
+	 * 一批离线消息：投递后用lastSeq调用ack()
+	 */
+	public static final class Batch {
+		private final List<Message> messages;
+		private final long lastSeq;
+
+		private Batch(List<Message> messages, long lastSeq) {
+			this.messages = messages;
+			this.lastSeq = lastSeq;
+		}
+
+		public List<Message> getMessages() {
+			return messages;
+		}
+
+		public long getLastSeq() {
+			return lastSeq;
+		}
+
+		public boolean isEmpty() {
+			return lastSeq < 0;
+		}
+	}
+
+	/** 单例实例 */
+	private static OfflineStore instance;
+
+	/** 分段，按编号排列，最后一个是活动分段 */
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	private final Map<String, Mailbox> mailboxes = new HashMap<>();
+	private long nextSeq = 1;
+	private long diskBytes;
+	/** 所有未取走的消息的记录大小之和（总配额按此计算） */
+	private long liveBytes;
+	/** 上次fsync之后有新的追加 */
+	private boolean dirty;
+	private long pendingAppends;
+
+	private final AtomicLong appended = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong syncs = new AtomicLong();
+	private final AtomicLong syncedAppends = new AtomicLong();
+
+	private OfflineStore() {
+		DIR.mkdirs();
+		try {
+			recover();
+		} catch (IOException e) {
+			throw new IllegalStateException("无法打开离线消息目录: " + DIR.getAbsolutePath(), e);
+		}
+		ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "offline-sync");
+			t.setDaemon(true);
+			return t;
+		});
+		syncer.scheduleWithFixedDelay(this::sync, SYNC_MILLIS, SYNC_MILLIS, TimeUnit.MILLISECONDS);
+		syncer.scheduleWithFixedDelay(this::expireAll, 1, 1, TimeUnit.MINUTES);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::sync, "offline-sync-shutdown"));
+		ServerMonitor.register("离线消息", this::describe);
+	}
+
+	/** 获取单例实例（第一次调用时重放日志） */
+	public static synchronized OfflineStore getInstance() {
+		if (instance == null) {
+			instance = new OfflineStore();
+		}
+		return instance;
+	}
+
+	/**
+	 * 追加一条离线消息
+	 *
+	 * @return false表示超过总配额或写入失败，消息被丢弃
+	 */
+	public boolean append(String userId, Message msg) {
+		byte[] data = BinaryMessageCodec.encode(msg);
+		byte[] id = userId.getBytes(StandardCharsets.UTF_8);
+		synchronized (this) {
+			if (liveBytes + HEADER + BODY_FIXED + id.length + data.length > MAX_TOTAL_BYTES) {
+				rejected.incrementAndGet();
+				System.err.println("离线消息仓库已满，丢弃发给 " + userId + " 的消息");
+				return false;
+			}
+			long seq = nextSeq++;
+			long now = System.currentTimeMillis();
+			Entry entry;
+			try {
+				entry = write(KIND_MESSAGE, seq, now, id, data);
+			} catch (IOException e) {
+				rejected.incrementAndGet();
+				e.printStackTrace();
+				return false;
+			}
+			Mailbox mailbox = mailboxes.computeIfAbsent(userId, k -> new Mailbox());
+			add(mailbox, entry);
+			appended.incrementAndGet();
+			// 超过个人配额：丢弃最早的消息
+			long dropTo = -1;
+			Iterator<Entry> it = mailbox.entries.iterator();
+			int count = mailbox.entries.size();
+			long bytes = mailbox.bytes;
+			while ((count > MAX_PER_USER || bytes > MAX_BYTES_PER_USER) && it.hasNext()) {
+				Entry oldest = it.next();
+				dropTo = oldest.seq;
+				count--;
+				bytes -= oldest.recordSize;
+			}
+			if (dropTo >= 0) {
+				evicted.addAndGet(consume(userId, dropTo));
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * 读取该用户最早的至多max条离线消息（不移除，投递后调用ack）
+	 */
+	public Batch peek(String userId, int max) {
+		List<byte[]> payloads = new ArrayList<>();
+		long lastSeq = -1;
+		synchronized (this) {
+			expire(userId, System.currentTimeMillis());
+			Mailbox mailbox = mailboxes.get(userId);
+			if (mailbox != null) {
+				for (Entry entry : mailbox.entries) {
+					if (payloads.size() >= max) {
+						break;
+					}
+					try {
+						payloads.add(entry.segment.read(entry.dataOffset, entry.dataLength));
+					} catch (IOException e) {
+						// 读不出来的消息跳过，随这一批一起确认
+						e.printStackTrace();
+						payloads.add(null);
+					}
+					lastSeq = entry.seq;
+				}
+			}
+		}
+		// 解码在锁外进行
+		List<Message> messages = new ArrayList<>(payloads.size());
+		for (byte[] payload : payloads) {
+			if (payload == null) {
+				continue;
+			}
+			try {
+				messages.add(BinaryMessageCodec.decode(payload));
+			} catch (StreamCorruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		return new Batch(messages, lastSeq);
+	}
+
+	/**
+	 * 确认已投递到lastSeq（含）为止的消息
+	 */
+	public synchronized void ack(String userId, long lastSeq) {
+		delivered.addAndGet(consume(userId, lastSeq));
+	}
+
+	/**
+	 * 取出并移除该用户的全部离线消息
+	 */
+	public List<Message> takeAll(String userId) {
+		List<Message> all = new ArrayList<>();
+		for (Batch batch = peek(userId, BATCH); !batch.isEmpty(); batch = peek(userId, BATCH)) {
+			all.addAll(batch.getMessages());
+			ack(userId, batch.getLastSeq());
+		}
+		return all;
+	}
+
+	/**
+	 * 该用户是否有离线消息
+	 */
+	public synchronized boolean hasPending(String userId) {
+		return mailboxes.containsKey(userId);
+	}
+
+	// ==================== 日志写入 ====================
+
+	/**
+	 * 追加一条记录，写满时先换一个新分段
+	 */
+	private Entry write(byte kind, long seq, long time, byte[] id, byte[] data) throws IOException {
+		int bodyLength = BODY_FIXED + id.length + (data == null ? 0 : data.length);
+		ByteBuffer record = ByteBuffer.allocate(HEADER + bodyLength);
+		record.position(HEADER);
+		record.put(kind).putLong(seq).putLong(time).putShort((short) id.length).put(id);
+		if (data != null) {
+			record.put(data);
+		}
+		record.putInt(0, bodyLength);
+		record.putInt(4, FileChecksums.crc32c(record.array(), HEADER, bodyLength));
+		record.position(0);
+
+		Segment active = segments.peekLast();
+		if (active == null || active.size > 0 && active.size + record.remaining() > SEGMENT_BYTES) {
+			active = roll();
+		}
+		long position = active.size;
+		while (record.hasRemaining()) {
+			active.channel.write(record, position + record.position());
+		}
+		active.size += record.capacity();
+		diskBytes += record.capacity();
+		dirty = true;
+		pendingAppends++;
+		long dataOffset = position + HEADER + BODY_FIXED + id.length;
+		return new Entry(seq, time, active, dataOffset, data == null ? 0 : data.length, record.capacity());
+	}
+
+	/**
+	 * 封存当前分段（先fsync），打开下一个分段
+	 */
+	private Segment roll() throws IOException {
+		Segment last = segments.peekLast();
+		long id = 1;
+		if (last != null) {
+			last.channel.force(false);
+			last.sealed = true;
+			id = last.id + 1;
+		}
+		Segment segment = openSegment(id);
+		segments.addLast(segment);
+		return segment;
+	}
+
+	private static Segment openSegment(long id) throws IOException {
+		File file = new File(DIR, String.format("segment-%012d.log", id));
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		return new Segment(id, file, channel, channel.size());
+	}
+
+	/**
+	 * 组提交：对上次以来的所有追加做一次fsync
+	 */
+	private void sync() {
+		Segment active;
+		long batch;
+		synchronized (this) {
+			if (!dirty) {
+				return;
+			}
+			dirty = false;
+			batch = pendingAppends;
+			pendingAppends = 0;
+			active = segments.peekLast();
+		}
+		try {
+			// 活动分段在写入期间也可以force；换分段时旧分段已在roll()中force过
+			active.channel.force(false);
+			syncs.incrementAndGet();
+			syncedAppends.addAndGet(batch);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// ==================== 索引维护 ====================
+
+	private void add(Mailbox mailbox, Entry entry) {
+		mailbox.entries.addLast(entry);
+		mailbox.bytes += entry.recordSize;
+		liveBytes += entry.recordSize;
+		entry.segment.live++;
+	}
+
+	/**
+	 * 移除该用户序号不大于seq的消息，记一条"已取走"记录，并删除已经没有消息的最早分段
+	 *
+	 * @return 移除的条数
+	 */
+	private int consume(String userId, long seq) {
+		int removed = dropPrefix(userId, seq);
+		if (removed == 0) {
+			return 0;
+		}
+		try {
+			write(KIND_CONSUMED, seq, System.currentTimeMillis(), userId.getBytes(StandardCharsets.UTF_8), null);
+		} catch (IOException e) {
+			// 记录写不进去时，重启后这些消息会再投递一次
+			e.printStackTrace();
+		}
+		reclaim();
+		return removed;
+	}
+
+	private int dropPrefix(String userId, long seq) {
+		Mailbox mailbox = mailboxes.get(userId);
+		if (mailbox == null) {
+			return 0;
+		}
+		int removed = 0;
+		while (!mailbox.entries.isEmpty() && mailbox.entries.peekFirst().seq <= seq) {
+			Entry entry = mailbox.entries.pollFirst();
+			mailbox.bytes -= entry.recordSize;
+			liveBytes -= entry.recordSize;
+			entry.segment.live--;
+			removed++;
+		}
+		if (mailbox.entries.isEmpty()) {
+			mailboxes.remove(userId);
+		}
+		return removed;
+	}
+
+	/**
+	 * 从最早的分段开始，删除已经没有未取走消息的封存分段
+	 */
+	private void reclaim() {
+		while (segments.size() > 1 && segments.peekFirst().live == 0) {
+			Segment segment = segments.pollFirst();
+			diskBytes -= segment.size;
+			segment.mapped = null;
+			try {
+				segment.channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if (!segment.file.delete()) {
+				System.err.println("无法删除离线消息分段: " + segment.file.getAbsolutePath());
+			}
+		}
+	}
+
+	/** 丢弃该用户超过TTL的消息 */
+	private void expire(String userId, long now) {
+		Mailbox mailbox = mailboxes.get(userId);
+		if (mailbox == null) {
+			return;
+		}
+		long dropTo = -1;
+		for (Entry entry : mailbox.entries) {
+			if (now - entry.time < TTL) {
+				break;
+			}
+			dropTo = entry.seq;
+		}
+		if (dropTo >= 0) {
+			expired.addAndGet(consume(userId, dropTo));
+		}
+	}
+
+	/** 定时清理所有用户的过期消息 */
+	private synchronized void expireAll() {
+		long now = System.currentTimeMillis();
+		for (String userId : new ArrayList<>(mailboxes.keySet())) {
+			expire(userId, now);
+		}
+	}
+
+	// ==================== 启动重放 ====================
+
+	/**
+	 * 按编号顺序重放所有分段，重建索引
+	 */
+	private void recover() throws IOException {
+		File[] files = DIR.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+		long[] ids = new long[files == null ? 0 : files.length];
+		int count = 0;
+		for (int i = 0; i < ids.length; i++) {
+			String name = files[i].getName();
+			try {
+				ids[count] = Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+				count++;
+			} catch (NumberFormatException e) {
+				System.err.println("忽略无法识别的离线消息文件: " + name);
+			}
+		}
+		ids = Arrays.copyOf(ids, count);
+		Arrays.sort(ids);
+		for (int i = 0; i < ids.length; i++) {
+			Segment segment = openSegment(ids[i]);
+			segments.addLast(segment);
+			scan(segment, i == ids.length - 1);
+			diskBytes += segment.size;
+		}
+		Segment last = segments.peekLast();
+		if (last == null || last.size >= SEGMENT_BYTES) {
+			roll();
+		}
+		long now = System.currentTimeMillis();
+		for (String userId : new ArrayList<>(mailboxes.keySet())) {
+			expire(userId, now);
+		}
+		reclaim();
+		if (!mailboxes.isEmpty()) {
+			System.out.println("已恢复离线消息: " + mailboxes.size() + " 个用户, " + segments.size() + " 个分段");
+		}
+	}
+
+	/**
+	 * 顺序读取一个分段的记录；遇到不完整或校验失败的记录时停止，最后一个分段截掉损坏的尾部
+	 */
+	private void scan(Segment segment, boolean last) throws IOException {
+		long fileSize = segment.channel.size();
+		if (fileSize == 0) {
+			return;
+		}
+		MappedByteBuffer buf = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+		int pos = 0;
+		while (pos + HEADER <= fileSize) {
+			int bodyLength = buf.getInt(pos);
+			if (bodyLength < BODY_FIXED || pos + HEADER + (long) bodyLength > fileSize) {
+				break;
+			}
+			byte[] body = new byte[bodyLength];
+			ByteBuffer view = buf.duplicate();
+			view.position(pos + HEADER);
+			view.get(body);
+			if (FileChecksums.crc32c(body) != buf.getInt(pos + 4)) {
+				break;
+			}
+			ByteBuffer fields = ByteBuffer.wrap(body);
+			byte kind = fields.get();
+			long seq = fields.getLong();
+			long time = fields.getLong();
+			int idLength = fields.getShort() & 0xFFFF;
+			if (BODY_FIXED + idLength > bodyLength) {
+				break;
+			}
+			String userId = new String(body, BODY_FIXED, idLength, StandardCharsets.UTF_8);
+			if (kind == KIND_MESSAGE) {
+				int dataOffset = BODY_FIXED + idLength;
+				add(mailboxes.computeIfAbsent(userId, k -> new Mailbox()), new Entry(seq, time, segment,
+						pos + HEADER + dataOffset, bodyLength - dataOffset, HEADER + bodyLength));
+				nextSeq = Math.max(nextSeq, seq + 1);
+			} else if (kind == KIND_CONSUMED) {
+				dropPrefix(userId, seq);
+			}
+			pos += HEADER + bodyLength;
+		}
+		if (pos < fileSize) {
+			System.err.println("离线消息分段 " + segment.file.getName() + " 在 " + pos + " 处损坏，之后的 "
+					+ (fileSize - pos) + " 字节已忽略");
+			if (last) {
+				// 写入中途崩溃留下的半条记录：截掉后继续追加
+				segment.channel.truncate(pos);
+			}
+		}
+		segment.size = last ? pos : fileSize;
+		if (!last) {
+			segment.sealed = true;
+			segment.mapped = buf;
+		}
+	}
+
+	/**
+	 * 指标描述（用于ServerMonitor）
+	 */
+	public synchronized String describe() {
+		long messages = 0;
+		for (Mailbox mailbox : mailboxes.values()) {
+			messages += mailbox.entries.size();
+		}
+		long s = syncs.get();
+		return String.format("用户 %d 消息 %d 共 %dKB | 分段 %d 共 %dKB | 写入 %d 投递 %d 超额丢弃 %d 过期 %d 拒绝 %d | fsync %d 平均每次 %.1f条",
+				mailboxes.size(), messages, liveBytes / 1024, segments.size(), diskBytes / 1024, appended.get(),
+				delivered.get(), evicted.get(), expired.get(), rejected.get(), s,
+				s == 0 ? 0.0 : syncedAppends.get() / (double) s);
+	}
+}
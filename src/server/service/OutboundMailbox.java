@@ -0,0 +1,186 @@
+package server.service;
+
+import common.EncodedFrame;
+import common.FileRegion;
+import common.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 会话发件箱 - 每个会话一个，多个发送线程入队、唯一的写出者出队
+ * <p>
+ * 【核心作用】
+ * 1. 路由线程只把消息放入接收者的发件箱，不再直接写对方的Socket，
+ * 接收者网络慢时不会拖住发送者
+ * 2. 同一时刻只有一个写出者在处理某个发件箱，写出天然有序，
+ * 不会出现多个线程同时写同一条流导致的数据错乱
+ * 3. 写出者一次取出一批消息，合并成一次Socket写
+ * <p>
+ * 【队列元素】
+ * - Message：由写出者用该连接自己的FrameCodec编码
+ * - EncodedFrame：广播时预先编码好的共享帧，写出者原样写出
+ * - FileRegion：文件转发的区域帧，写出者写完后负责release()
+ * <p>
+ * 【积压统计】
+ * 记录排队的条数和字节数（Message按内容估算，共享帧按实际大小，
+ * 文件区域只计内存中的前缀，文件内容在磁盘上），
+ * 供SlowConsumerGuard判断会话是否超过水位线
+ * <p>
+ * 【使用方式】
+ *
+ * <pre>
+ * if (mailbox.offer(msg)) {
+ * 	// 发件箱从空闲变为待写出，由调用方安排一次写出
+ * 	executor.execute(this::drain);
+ * }
+ * // 写出者：
+ * do {
+ * 	mailbox.drainTo(batch, 64);
+ * 	... 写出batch ...
+ * } while (mailbox.hasMoreAfterRelease());
+ * </pre>
+ *
+ * @author ChatRoom Team
+ */
+public class OutboundMailbox {
+	/** 无锁的多生产者单消费者队列 */
+	private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	/** 是否已有写出者持有发件箱（已安排或正在写出） */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	/**
+	 * 放入一条待发送消息
+	 *
+	 * @return true表示调用方获得了写出权，需要安排一次写出
+	 */
+	public boolean offer(Message msg) {
+		return enqueue(msg);
+	}
+
+	/**
+	 * 放入一个预先编码好的共享帧
+	 *
+	 * @return true表示调用方获得了写出权，需要安排一次写出
+	 */
+	public boolean offer(EncodedFrame frame) {
+		return enqueue(frame);
+	}
+
+	/**
+	 * 放入一个文件区域帧
+	 *
+	 * @return true表示调用方获得了写出权，需要安排一次写出
+	 */
+	public boolean offer(FileRegion region) {
+		return enqueue(region);
+	}
+
+	private boolean enqueue(Object item) {
+		queue.add(item);
+		size.incrementAndGet();
+		bytes.addAndGet(sizeOf(item));
+		return scheduled.compareAndSet(false, true);
+	}
+
+	/**
+	 * 取出一个元素（Message、EncodedFrame或FileRegion），没有时返回null
+	 * 【注意】只能由持有写出权的写出者调用
+	 */
+	public Object poll() {
+		Object item = queue.poll();
+		if (item != null) {
+			size.decrementAndGet();
+			bytes.addAndGet(-sizeOf(item));
+		}
+		return item;
+	}
+
+	/**
+	 * 最多取出max个元素放入batch
+	 *
+	 * @return 实际取出的个数
+	 */
+	public int drainTo(List<Object> batch, int max) {
+		int n = 0;
+		Object item;
+		while (n < max && (item = poll()) != null) {
+			batch.add(item);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * 写出者处理完当前批次后调用：释放写出权；
+	 * 若释放期间又有新消息入队且重新抢到写出权，返回true，写出者应继续处理
+	 */
+	public boolean hasMoreAfterRelease() {
+		scheduled.set(false);
+		return !queue.isEmpty() && scheduled.compareAndSet(false, true);
+	}
+
+	/** 当前排队的消息数 */
+	public int size() {
+		return size.get();
+	}
+
+	/** 当前排队的字节数（估算） */
+	public long bytes() {
+		return bytes.get();
+	}
+
+	/** 丢弃所有排队消息（连接关闭时调用），文件区域随之释放 */
+	public void clear() {
+		Object item;
+		while ((item = poll()) != null) {
+			if (item instanceof FileRegion) {
+				((FileRegion) item).release();
+			}
+		}
+	}
+
+	/**
+	 * 取出所有排队的元素（转存离线消息时调用）
+	 * 【注意】其中的文件区域由调用方释放
+	 */
+	public List<Object> drainAll() {
+		List<Object> items = new ArrayList<>();
+		Object item;
+		while ((item = poll()) != null) {
+			items.add(item);
+		}
+		return items;
+	}
+
+	/**
+	 * 估算一个元素编码后的字节数
+	 */
+	static int sizeOf(Object item) {
+		if (item instanceof EncodedFrame) {
+			return ((EncodedFrame) item).size();
+		}
+		if (item instanceof FileRegion) {
+			return ((FileRegion) item).headSize();
+		}
+		Message msg = (Message) item;
+		int size = 64;
+		if (msg.getContent() != null) {
+			size += msg.getContent().length() * 3;
+		}
+		if (msg.getFileData() != null) {
+			size += msg.getFileData().length;
+		}
+		if (msg.getUserlist() != null) {
+			size += msg.getUserlist().size() * 24;
+		}
+		return size;
+	}
+}
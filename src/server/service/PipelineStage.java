@@ -0,0 +1,98 @@
+package server.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 流水线阶段 - 一个有界队列加固定大小的工作线程池
+ * <p>
+ * 【核心作用】
+ * 1. 各阶段拥有独立的队列和线程，一个阶段变慢不会占用其他阶段的线程
+ * 2. 队列有界，积压超过容量时拒绝新任务，防止无限堆积
+ * 3. 统计队列深度、处理中任务数和延迟（从入队到执行完毕）
+ * <p>
+ * 【指标说明】
+ * 平均/最大延迟统计的是上一次describe()以来完成的任务，
+ * 配合ServerMonitor的定时刷新即为最近一个刷新周期的延迟
+ *
+ * @author ChatRoom Team
+ */
+public class PipelineStage {
+	private final String name;
+	private final ThreadPoolExecutor executor;
+
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final LongAdder windowCount = new LongAdder();
+	private final LongAdder windowLatencyNanos = new LongAdder();
+	private final AtomicLong windowMaxNanos = new AtomicLong();
+
+	/**
+	 * @param name     阶段名称（用于线程名和指标）
+	 * @param threads  工作线程数
+	 * @param capacity 队列容量
+	 */
+	public PipelineStage(String name, int threads, int capacity) {
+		this.name = name;
+		AtomicInteger seq = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(capacity), r -> {
+					Thread t = new Thread(r, "handshake-" + name + "-" + seq.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	/**
+	 * 提交任务
+	 *
+	 * @return false表示队列已满被拒绝
+	 */
+	public boolean submit(Runnable task) {
+		long enqueuedAt = System.nanoTime();
+		try {
+			executor.execute(() -> {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				} finally {
+					record(System.nanoTime() - enqueuedAt);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	private void record(long nanos) {
+		completed.incrementAndGet();
+		windowCount.increment();
+		windowLatencyNanos.add(nanos);
+		windowMaxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * 指标描述（用于ServerMonitor），并开始新的统计窗口
+	 */
+	public String describe() {
+		long count = windowCount.sumThenReset();
+		long total = windowLatencyNanos.sumThenReset();
+		long max = windowMaxNanos.getAndSet(0);
+		double avgMs = count == 0 ? 0 : total / 1e6 / count;
+		return String.format("排队 %d 处理中 %d 完成 %d 拒绝 %d | 延迟 平均 %.1fms 最大 %.1fms",
+				executor.getQueue().size(), executor.getActiveCount(), completed.get(), rejected.get(),
+				avgMs, max / 1e6);
+	}
+}
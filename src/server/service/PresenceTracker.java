@@ -0,0 +1,192 @@
+package server.service;
+
+import common.Message;
+import common.MessageType;
+import server.view.ServerGUI;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在线状态 - 维护带版本号的在线用户表，上下线时只广播增量
+ * <p>
+ * 【核心作用】
+ * 原先每次有人上线或下线，都要重新查出完整的在线列表发给每个在线用户，
+ * N个人在线时一次状态变化要发N份长度为N的列表（O(N²)），客户端再清空重建整个列表。现在：
+ * - 每次上下线版本号加一，广播一条MESSAGE_PRESENCE_DELTA，只含变化的用户
+ * - 完整列表（MESSAGE_RET_ONLINE_FRIEND，content为版本号）只在客户端请求时发送：
+ * 刚登录时，或者客户端发现版本号不连续（增量被丢弃）时
+ * - 在线用户的显示名（"昵称(UserID)"）在上线时从UserDirectory取一次（登录时已写入，不查库）
+ * <p>
+ * 【合并窗口】
+ * 服务端重启后成百上千的客户端同时重连，逐个广播时每次登录都是一次全员扇出。
+ * 现在一个窗口（chat.presence.coalesceMillis，默认100ms，0表示不合并）内的变化合并成一条增量：
+ * 同一用户在窗口内先上线后下线（或相反）互相抵消，只广播窗口结束时与开始时相比的差异。
+ * 服务端界面的在线列表也在窗口结束时刷新一次
+ * <p>
+ * 【一致性】
+ * 版本号递增、增量的广播和快照的发送都在同一把锁内，
+ * 因此每个会话发件箱中的增量和快照按版本号的顺序排列
+ *
+ * @author ChatRoom Team
+ */
+public class PresenceTracker {
+	/** 合并窗口（毫秒），0表示每次变化立即广播 */
+	private static final long COALESCE_MILLIS = Long.getLong("chat.presence.coalesceMillis", 100);
+
+	private final ServerGUI gui;
+	/** UserID → 显示名，按上线顺序排列 */
+	private final Map<String, String> online = new LinkedHashMap<>();
+	/** 本窗口内发生变化的用户 → 窗口开始时的显示名（null表示当时不在线） */
+	private final Map<String, String> windowStart = new LinkedHashMap<>();
+	private long version;
+	/** 已安排窗口结束时的广播 */
+	private boolean flushScheduled;
+	private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "presence-coalescer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final AtomicLong changes = new AtomicLong();
+	private final AtomicLong deltas = new AtomicLong();
+	private final AtomicLong snapshots = new AtomicLong();
+
+	public PresenceTracker(ServerGUI gui) {
+		this.gui = gui;
+		ServerMonitor.register("在线状态", this::describe);
+	}
+
+	/**
+	 * 会话上线：加入在线表，窗口结束时广播
+	 * 【说明】显示名在锁外查询；会话在此之前已经下线时不加入
+	 */
+	public void join(ClientSession session) {
+		String userId = session.getUserId();
+		String display = UserDirectory.displayName(userId);
+		synchronized (this) {
+			if (ManageClientThread.getClientThread(userId) != session) {
+				return;
+			}
+			String previous = online.put(userId, display);
+			if (display.equals(previous)) {
+				// 同一用户重新登录，列表没有变化
+				return;
+			}
+			record(userId, previous);
+		}
+	}
+
+	/**
+	 * 用户下线：移出在线表，窗口结束时广播
+	 */
+	public synchronized void leave(String userId) {
+		String previous = online.remove(userId);
+		if (previous != null) {
+			record(userId, previous);
+		}
+	}
+
+	/**
+	 * 给一个会话发送完整的在线列表，content为当前版本号
+	 * 【说明】先把本窗口内未广播的变化广播出去，保证列表与版本号一致
+	 */
+	public synchronized void sendSnapshot(ClientSession session) throws IOException {
+		flushLocked();
+		snapshots.incrementAndGet();
+		session.send(new Message.Builder()
+				.mesType(MessageType.MESSAGE_RET_ONLINE_FRIEND)
+				.content(String.valueOf(version))
+				.setUserlist(new ArrayList<>(online.values()))
+				.receiver(session.getUserId())
+				.build());
+	}
+
+	/**
+	 * 当前的在线列表（格式："昵称(UserID)"）
+	 */
+	public synchronized List<String> snapshot() {
+		return new ArrayList<>(online.values());
+	}
+
+	/**
+	 * 记下一次变化：窗口内第一次变化时记录该用户原来的状态，并安排窗口结束时的广播
+	 */
+	private void record(String userId, String previous) {
+		changes.incrementAndGet();
+		if (!windowStart.containsKey(userId)) {
+			windowStart.put(userId, previous);
+		}
+		if (COALESCE_MILLIS <= 0) {
+			flushLocked();
+		} else if (!flushScheduled) {
+			flushScheduled = true;
+			flusher.schedule(this::flush, COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/** 窗口结束 */
+	private synchronized void flush() {
+		flushScheduled = false;
+		flushLocked();
+	}
+
+	/**
+	 * 广播本窗口内的净变化（与窗口开始时相比），并刷新服务端界面
+	 */
+	private void flushLocked() {
+		if (windowStart.isEmpty()) {
+			return;
+		}
+		List<String> delta = new ArrayList<>();
+		for (Map.Entry<String, String> entry : windowStart.entrySet()) {
+			String now = online.get(entry.getKey());
+			if (!Objects.equals(now, entry.getValue())) {
+				delta.add(now != null ? "+" + now : "-" + entry.getKey());
+			}
+		}
+		windowStart.clear();
+		if (delta.isEmpty()) {
+			return;
+		}
+		broadcast(delta);
+		gui.updateUserList(new ArrayList<>(online.values()));
+	}
+
+	/**
+	 * 版本号加一并广播一条增量（content为"上一版本|新版本"）
+	 */
+	private void broadcast(List<String> changes) {
+		long base = version++;
+		deltas.incrementAndGet();
+		Message delta = new Message.Builder()
+				.mesType(MessageType.MESSAGE_PRESENCE_DELTA)
+				.content(base + "|" + version)
+				.setUserlist(changes)
+				.build();
+		try {
+			BroadcastFanout.broadcast(delta, null);
+		} catch (IOException e) {
+			// 编码失败时客户端会在下一条增量处发现版本不连续，重新请求完整列表
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 指标描述（用于ServerMonitor）
+	 */
+	public synchronized String describe() {
+		long changed = changes.get();
+		long sent = deltas.get();
+		return String.format("版本 %d | 在线 %d | 变化 %d 广播增量 %d 合并节省 %d | 快照 %d | 窗口 %dms", version,
+				online.size(), changed, sent, Math.max(0, changed - sent), snapshots.get(), COALESCE_MILLIS);
+	}
+}
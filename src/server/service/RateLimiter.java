@@ -0,0 +1,203 @@
+package server.service;
+
+import common.Message;
+import common.MessageType;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 入站限流 - 每个会话一组令牌桶，按消息类别分别限速
+ * <p>
+ * 【消息类别与默认限额】（每秒速率/突发容量）
+ * - chat：私聊、世界聊天、群聊、创建群聊、文件分享，5/20
+ * - file：文件传输（整文件消息、分块上传的开始或下载请求），1/3
+ * - shake：窗口抖动，1/3
+ * - presence：获取在线列表，2/5
+ * 心跳和退出请求不限流；文件分块、确认等由发送窗口控制速率，也不限流。限额可通过 -Dchat.rate.<类别>=速率/容量 修改，
+ * 例如 -Dchat.rate.chat=10/30
+ * <p>
+ * 【设计说明】
+ * - 在会话读循环中、交给MessageRouter之前检查，超限的消息直接丢弃，
+ * 不会触发广播扇出和服务端日志
+ * - 被限流时给客户端回一条系统提示，每个会话每5秒最多一条，避免提示本身刷屏
+ * - 同一会话的消息只由一个线程读取，令牌桶无需加锁
+ *
+ * @author ChatRoom Team
+ */
+public class RateLimiter {
+
+	/** 消息类别 */
+	private enum Category {
+		CHAT("chat", "5/20"), FILE("file", "1/3"), SHAKE("shake", "1/3"), PRESENCE("presence", "2/5");
+
+		final String key;
+		final double rate;
+		final double burst;
+		final LongAdder allowed = new LongAdder();
+		final LongAdder throttled = new LongAdder();
+
+		Category(String key, String defaultLimit) {
+			this.key = key;
+			String value = System.getProperty("chat.rate." + key, defaultLimit);
+			double[] limit = parseLimit(value);
+			if (limit == null) {
+				System.err.println("无法识别的 chat.rate." + key + ": " + value + "，使用默认值 " + defaultLimit);
+				limit = parseLimit(defaultLimit);
+			}
+			this.rate = limit[0];
+			this.burst = limit[1];
+		}
+
+		/**
+		 * 解析"速率/容量"（容量可省略，等于速率）；不是有限的正数时返回null，
+		 * 不让一个拼写错误导致类初始化失败、所有会话都无法收消息
+		 */
+		private static double[] parseLimit(String value) {
+			String[] parts = value.trim().split("/");
+			if (parts.length > 2) {
+				return null;
+			}
+			try {
+				double rate = Double.parseDouble(parts[0]);
+				double burst = parts.length > 1 ? Double.parseDouble(parts[1]) : rate;
+				if (!(rate > 0) || !(burst > 0) || Double.isInfinite(rate) || Double.isInfinite(burst)) {
+					return null;
+				}
+				return new double[] { rate, burst };
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+
+	/** 限流提示的最小间隔 */
+	private static final long NOTICE_INTERVAL_NANOS = 5_000_000_000L;
+
+	static {
+		ServerMonitor.register("入站限流", RateLimiter::describe);
+	}
+
+	private final TokenBucket[] buckets = new TokenBucket[Category.values().length];
+	private long lastNoticeAt;
+
+	public RateLimiter() {
+		for (Category c : Category.values()) {
+			buckets[c.ordinal()] = new TokenBucket(c.rate, c.burst);
+		}
+	}
+
+	/**
+	 * 检查一条入站消息是否放行；超限时按需给客户端回一条提示
+	 *
+	 * @return false表示已超限，调用方应丢弃该消息
+	 */
+	public boolean admit(ClientSession session, Message msg) throws IOException {
+		if (tryAcquire(msg)) {
+			return true;
+		}
+		if (shouldNotify()) {
+			session.send(throttledNotice(msg));
+		}
+		return false;
+	}
+
+	private boolean tryAcquire(Message msg) {
+		Category c = categoryOf(msg.getMesType());
+		if (c == null) {
+			return true;
+		}
+		if (buckets[c.ordinal()].tryAcquire()) {
+			c.allowed.increment();
+			return true;
+		}
+		c.throttled.increment();
+		return false;
+	}
+
+	/**
+	 * 被限流后是否需要提示客户端（每5秒最多一次）
+	 */
+	private boolean shouldNotify() {
+		long now = System.nanoTime();
+		if (lastNoticeAt != 0 && now - lastNoticeAt < NOTICE_INTERVAL_NANOS) {
+			return false;
+		}
+		lastNoticeAt = now;
+		return true;
+	}
+
+	/**
+	 * 发给被限流客户端的提示
+	 */
+	private static Message throttledNotice(Message msg) {
+		return new Message.Builder()
+				.mesType(MessageType.MESSAGE_SYSTEM_BROADCAST)
+				.sender("系统")
+				.content("发送过于频繁，部分消息未送达（" + msg.getMesType() + "）")
+				.build();
+	}
+
+	private static Category categoryOf(String type) {
+		switch (type) {
+			case MessageType.MESSAGE_COMM_MES:
+			case MessageType.MESSAGE_WORLD_CHAT:
+			case MessageType.MESSAGE_GROUP_MES:
+			case MessageType.MESSAGE_GROUP_CREATE:
+			case MessageType.MESSAGE_FILE_OFFER:
+				return Category.CHAT;
+			case MessageType.MESSAGE_FILE:
+			case MessageType.MESSAGE_FILE_BEGIN:
+			case MessageType.MESSAGE_FILE_FETCH:
+				return Category.FILE;
+			case MessageType.MESSAGE_SHAKE:
+				return Category.SHAKE;
+			case MessageType.MESSAGE_GET_ONLINE_FRIEND:
+				return Category.PRESENCE;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * 指标描述（用于ServerMonitor）
+	 */
+	public static String describe() {
+		StringBuilder sb = new StringBuilder();
+		for (Category c : Category.values()) {
+			if (sb.length() > 0) {
+				sb.append(" | ");
+			}
+			sb.append(c.key).append(' ').append(c.allowed.sum()).append('/').append(c.throttled.sum());
+		}
+		return sb.append(" （放行/限流）").toString();
+	}
+
+	/**
+	 * 令牌桶：按固定速率补充令牌，最多累积到突发容量
+	 * 【说明】补充按需计算，不需要定时线程
+	 */
+	private static class TokenBucket {
+		private final double ratePerNano;
+		private final double capacity;
+		private double tokens;
+		private long lastRefill = System.nanoTime();
+
+		TokenBucket(double ratePerSecond, double capacity) {
+			this.ratePerNano = ratePerSecond / 1e9;
+			this.capacity = capacity;
+			this.tokens = capacity;
+		}
+
+		boolean tryAcquire() {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerNano);
+			lastRefill = now;
+			if (tokens >= 1) {
+				tokens -= 1;
+				return true;
+			}
+			return false;
+		}
+	}
+}
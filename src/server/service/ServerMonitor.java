@@ -0,0 +1,73 @@
+package server.service;
+
+import server.view.ServerGUI;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 服务端运行指标汇总 - 定时把各模块的指标刷新到ServerGUI
+ * <p>
+ * 【使用方式】
+ * 各模块在启动时注册一个指标来源，返回一行描述文字：
+ *
+ * <pre>
+ * ServerMonitor.register("会话线程", () -> "存活 " + alive.get());
+ * </pre>
+ * <p>
+ * 【设计说明】
+ * - 指标按名称排序显示，同名注册会覆盖旧的来源
+ * - 刷新在独立的守护线程中进行，不占用业务线程
+ *
+ * @author ChatRoom Team
+ */
+public class ServerMonitor {
+
+	/** 指标来源：名称 -> 返回一行指标文字 */
+	private static final Map<String, Supplier<String>> sources = new ConcurrentSkipListMap<>();
+
+	private static ScheduledExecutorService scheduler;
+
+	public static void register(String name, Supplier<String> source) {
+		sources.put(name, source);
+	}
+
+	/**
+	 * 生成当前所有指标的快照
+	 */
+	public static String snapshot() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Supplier<String>> entry : sources.entrySet()) {
+			String line;
+			try {
+				line = entry.getValue().get();
+			} catch (RuntimeException e) {
+				line = "获取失败: " + e.getMessage();
+			}
+			sb.append(entry.getKey()).append(": ").append(line).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 启动定时刷新
+	 *
+	 * @param periodMillis 刷新间隔（毫秒）
+	 */
+	public static synchronized void start(ServerGUI gui, long periodMillis) {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "server-monitor");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleAtFixedRate(() -> gui.updateStatus(snapshot()), periodMillis, periodMillis,
+				TimeUnit.MILLISECONDS);
+	}
+}
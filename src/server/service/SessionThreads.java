@@ -0,0 +1,178 @@
+package server.service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 会话线程工厂 - 为线程模式创建会话读循环所在的线程
+ * <p>
+ * 【两种线程】
+ * - 平台线程（thread模式）：每个会话占用一个操作系统线程和独立线程栈
+ * - 虚拟线程（virtual模式）：阻塞在readMessage()时自动让出载体线程，
+ * 单进程可容纳数万会话而不会耗尽本地线程
+ * <p>
+ * 【兼容性】
+ * 项目以Java 17编译，虚拟线程API（Thread.ofVirtual，JDK 21+）通过反射获取；
+ * 运行在不支持的JDK上时退回平台线程并给出提示
+ * <p>
+ * 【写出线程】
+ * 会话的发件箱由writer()提供的执行器写出：虚拟线程模式下每次写出一个虚拟线程，
+ * 平台线程模式下使用按需扩展的线程池，只有正在写出的会话才占用线程
+ * <p>
+ * 【载体线程指标】
+ * - 已挂载：正在处理消息（未阻塞在读上）的会话线程数
+ * - 钉住：正在synchronized写出中的虚拟线程数；synchronized块内的阻塞IO
+ * 会把虚拟线程钉在载体线程上，无法让出
+ *
+ * @author ChatRoom Team
+ */
+public class SessionThreads {
+
+	/** 存活的会话线程数 */
+	private static final AtomicInteger alive = new AtomicInteger();
+	/** 当前挂载在载体线程上执行的会话数 */
+	private static final AtomicInteger mounted = new AtomicInteger();
+	/** 当前因synchronized写出被钉住的虚拟线程数 */
+	private static final AtomicInteger pinned = new AtomicInteger();
+	/** 累计钉住次数 */
+	private static final AtomicLong pinnedTotal = new AtomicLong();
+
+	private static final Method IS_VIRTUAL = findIsVirtual();
+
+	private final ThreadFactory factory;
+	private final boolean virtual;
+	private final Executor writer;
+
+	private SessionThreads(ThreadFactory factory, boolean virtual, Executor writer) {
+		this.factory = factory;
+		this.virtual = virtual;
+		this.writer = writer;
+	}
+
+	/**
+	 * 平台线程工厂
+	 */
+	public static SessionThreads platform() {
+		AtomicInteger seq = new AtomicInteger();
+		AtomicInteger writerSeq = new AtomicInteger();
+		ExecutorService writer = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "session-writer-" + writerSeq.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+		return new SessionThreads(r -> new Thread(r, "session-" + seq.getAndIncrement()), false, writer);
+	}
+
+	/**
+	 * 虚拟线程工厂，JDK不支持时返回null
+	 */
+	public static SessionThreads virtual() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "vsession-", 0L);
+			ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+			return new SessionThreads(factory, true, r -> factory.newThread(r).start());
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * 在新线程中运行会话读循环
+	 */
+	public void start(Runnable session) {
+		factory.newThread(() -> {
+			alive.incrementAndGet();
+			try {
+				session.run();
+			} finally {
+				alive.decrementAndGet();
+			}
+		}).start();
+	}
+
+	/**
+	 * 发件箱写出使用的执行器
+	 */
+	public Executor writer() {
+		return writer;
+	}
+
+	/** 开始处理一条消息（线程已挂载） */
+	static void onMounted() {
+		mounted.incrementAndGet();
+	}
+
+	/** 消息处理完毕，回到阻塞读 */
+	static void onUnmounted() {
+		mounted.decrementAndGet();
+	}
+
+	/**
+	 * 进入synchronized写出前调用
+	 *
+	 * @return 当前线程是否为虚拟线程（需要在写出后调用onUnpinned）
+	 */
+	static boolean onPinned() {
+		if (!isCurrentThreadVirtual()) {
+			return false;
+		}
+		pinned.incrementAndGet();
+		pinnedTotal.incrementAndGet();
+		return true;
+	}
+
+	static void onUnpinned() {
+		pinned.decrementAndGet();
+	}
+
+	/**
+	 * 当前线程是否为虚拟线程
+	 */
+	static boolean isCurrentThreadVirtual() {
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(Thread.currentThread());
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 指标描述（用于ServerMonitor）
+	 */
+	public String describe() {
+		String carriers = System.getProperty("jdk.virtualThreadScheduler.parallelism",
+				String.valueOf(Runtime.getRuntime().availableProcessors()));
+		StringBuilder sb = new StringBuilder();
+		sb.append(virtual ? "虚拟线程" : "平台线程")
+				.append(" 存活 ").append(alive.get())
+				.append(" 已挂载 ").append(mounted.get());
+		if (virtual) {
+			sb.append(" 钉住 ").append(pinned.get())
+					.append(" (累计 ").append(pinnedTotal.get()).append(")")
+					.append(" 载体线程 ").append(carriers);
+		}
+		return sb.toString();
+	}
+
+	private static Method findIsVirtual() {
+		try {
+			return Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
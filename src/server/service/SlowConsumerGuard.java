@@ -0,0 +1,297 @@
+package server.service;
+
+import common.EncodedFrame;
+import common.FileRegion;
+import common.Message;
+import common.MessageType;
+import server.view.ServerGUI;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 慢速消费者保护 - 每个会话一个，限制发件箱积压并处理读得慢或卡死的客户端
+ * <p>
+ * 【水位线】
+ * - 高水位：排队条数超过 chat.slow.highFrames（默认1024）或字节数超过
+ * chat.slow.highBytes（默认8MB），或一次写出阻塞超过 chat.slow.writeTimeout（默认15秒），
+ * 会话被标记为慢速
+ * - 低水位：条数和字节数都回落到高水位的一半以下且写出不再阻塞，取消慢速标记
+ * <p>
+ * 【慢速会话的处理策略】（chat.slow.policy）
+ * - drop（默认）：丢弃低优先级消息（世界聊天、在线列表、在线状态增量），其他消息照常排队；
+ * 丢弃增量后客户端会发现版本号不连续，重新请求完整列表。
+ * 积压达到高水位的两倍时断开
+ * - spill：丢弃低优先级消息，其他消息转存到离线消息，会话恢复后重新投递
+ * - disconnect：直接断开
+ * 写出阻塞超时一律断开；spill策略下断开前把发件箱中的消息转存为离线消息
+ * <p>
+ * 文件传输的消息和区域帧不受水位线约束、也不转存：积压由传输窗口限制，
+ * 文件内容在磁盘上，断开后由FileRelay重新登记为离线文件
+ * <p>
+ * 【巡检】
+ * 后台线程每秒检查一次所有会话：处理写超时、恢复慢速会话、
+ * 把慢速会话列表同步到ServerGUI
+ *
+ * @author ChatRoom Team
+ */
+public class SlowConsumerGuard {
+
+	/** 慢速会话的处理策略 */
+	public enum Policy {
+		DROP, SPILL, DISCONNECT
+	}
+
+	private static final int HIGH_FRAMES = Integer.getInteger("chat.slow.highFrames", 1024);
+	private static final long HIGH_BYTES = Long.getLong("chat.slow.highBytes", 8L * 1024 * 1024);
+	private static final long WRITE_TIMEOUT = Long.getLong("chat.slow.writeTimeout", 15000);
+	private static final Policy POLICY = parsePolicy(System.getProperty("chat.slow.policy", "drop"));
+
+	private static final AtomicLong totalDropped = new AtomicLong();
+	private static final AtomicLong totalSpilled = new AtomicLong();
+	private static final AtomicLong totalDisconnected = new AtomicLong();
+
+	private static ScheduledExecutorService watchdog;
+	private static volatile Set<String> lastSlowUsers = Collections.emptySet();
+
+	private final ClientSession session;
+	private final OutboundMailbox mailbox;
+
+	/** 是否处于慢速状态 */
+	private volatile boolean slow;
+	/** 当前这次写出开始的时间（纳秒），0表示没有阻塞中的写出 */
+	private volatile long writeStartedAt;
+	/** 已因超限而断开，不再接收消息 */
+	private volatile boolean aborted;
+
+	public SlowConsumerGuard(ClientSession session, OutboundMailbox mailbox) {
+		this.session = session;
+		this.mailbox = mailbox;
+	}
+
+	/**
+	 * 解析chat.slow.policy；无法识别时使用DROP，不让一个拼写错误导致类初始化失败
+	 */
+	private static Policy parsePolicy(String value) {
+		try {
+			return Policy.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println("无法识别的 chat.slow.policy: " + value + "，使用 DROP");
+			return Policy.DROP;
+		}
+	}
+
+	/**
+	 * 入队前调用：判断这条消息是否可以进入发件箱
+	 *
+	 * @return false表示消息已被丢弃或转存，调用方不应再入队
+	 */
+	public boolean admit(Object item) {
+		if (aborted) {
+			return false;
+		}
+		if (isFileTransfer(item)) {
+			return true;
+		}
+		if (!slow) {
+			if (!overHighWatermark()) {
+				return true;
+			}
+			slow = true;
+		}
+
+		Message msg = item instanceof EncodedFrame ? ((EncodedFrame) item).getMessage() : (Message) item;
+		if (POLICY == Policy.DISCONNECT) {
+			abort("发件箱积压超过高水位");
+			return false;
+		}
+		if (isLowPriority(msg)) {
+			totalDropped.incrementAndGet();
+			return false;
+		}
+		if (POLICY == Policy.SPILL) {
+			spill(msg);
+			return false;
+		}
+		if (mailbox.size() >= 2L * HIGH_FRAMES || mailbox.bytes() >= 2 * HIGH_BYTES) {
+			abort("发件箱积压超过高水位的两倍");
+			return false;
+		}
+		return true;
+	}
+
+	/** 写出者开始一次（可能阻塞的）写出 */
+	public void onWriteStart() {
+		if (writeStartedAt == 0) {
+			writeStartedAt = System.nanoTime();
+		}
+	}
+
+	/** 本次写出已全部完成 */
+	public void onWriteEnd() {
+		writeStartedAt = 0;
+	}
+
+	/** 当前写出已阻塞的毫秒数 */
+	public long stalledMillis() {
+		long started = writeStartedAt;
+		return started == 0 ? 0 : (System.nanoTime() - started) / 1_000_000;
+	}
+
+	public boolean isSlow() {
+		return slow;
+	}
+
+	private boolean overHighWatermark() {
+		return mailbox.size() >= HIGH_FRAMES || mailbox.bytes() >= HIGH_BYTES || stalledMillis() >= WRITE_TIMEOUT;
+	}
+
+	private boolean belowLowWatermark() {
+		return mailbox.size() < HIGH_FRAMES / 2 && mailbox.bytes() < HIGH_BYTES / 2 && stalledMillis() == 0;
+	}
+
+	/**
+	 * 巡检：处理写超时，慢速会话回落到低水位后取消标记
+	 */
+	void check() {
+		if (aborted) {
+			return;
+		}
+		if (stalledMillis() >= WRITE_TIMEOUT) {
+			abort("写出阻塞超过 " + WRITE_TIMEOUT + "ms");
+			return;
+		}
+		if (slow && belowLowWatermark()) {
+			slow = false;
+			if (POLICY == Policy.SPILL) {
+				// 恢复后重新投递转存的消息
+				for (Message msg : ManageClientThread.takeOfflineMessages(session.getUserId())) {
+					if (FileRelay.isSpooledDescriptor(msg)) {
+						// 离线文件的内容在暂存目录中，留到下次登录时由FileRelay投递
+						ManageClientThread.addOfflineMessage(session.getUserId(), msg);
+						continue;
+					}
+					try {
+						session.send(msg);
+					} catch (Exception e) {
+						ManageClientThread.addOfflineMessage(session.getUserId(), msg);
+					}
+				}
+			}
+		} else if (!slow && overHighWatermark()) {
+			slow = true;
+		}
+	}
+
+	/**
+	 * 断开会话；spill策略下先把发件箱中的消息转存为离线消息
+	 */
+	private void abort(String reason) {
+		if (aborted) {
+			return;
+		}
+		aborted = true;
+		slow = true;
+		totalDisconnected.incrementAndGet();
+		if (POLICY == Policy.SPILL) {
+			for (Object item : mailbox.drainAll()) {
+				if (item instanceof FileRegion) {
+					((FileRegion) item).release();
+					continue;
+				}
+				Message msg = item instanceof EncodedFrame ? ((EncodedFrame) item).getMessage() : (Message) item;
+				if (!isLowPriority(msg) && !isFileTransfer(msg)) {
+					spill(msg);
+				}
+			}
+		}
+		System.out.println("断开慢速会话 " + session.getUserId() + ": " + reason);
+		session.abort();
+	}
+
+	private void spill(Message msg) {
+		totalSpilled.incrementAndGet();
+		ManageClientThread.addOfflineMessage(session.getUserId(), msg);
+	}
+
+	private static boolean isFileTransfer(Object item) {
+		if (item instanceof FileRegion) {
+			return true;
+		}
+		Message msg = item instanceof EncodedFrame ? ((EncodedFrame) item).getMessage() : (Message) item;
+		return FileRelay.isFileTransfer(msg.getMesType());
+	}
+
+	/**
+	 * 低优先级消息：过时即失去意义，积压时可以直接丢弃
+	 */
+	static boolean isLowPriority(Message msg) {
+		String type = msg.getMesType();
+		return MessageType.MESSAGE_WORLD_CHAT.equals(type) || MessageType.MESSAGE_RET_ONLINE_FRIEND.equals(type)
+				|| MessageType.MESSAGE_PRESENCE_DELTA.equals(type);
+	}
+
+	/**
+	 * 启动巡检线程
+	 */
+	public static synchronized void startWatchdog(ServerGUI gui) {
+		if (watchdog != null) {
+			return;
+		}
+		watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "slow-consumer-watchdog");
+			t.setDaemon(true);
+			return t;
+		});
+		watchdog.scheduleWithFixedDelay(() -> scan(gui), 1, 1, TimeUnit.SECONDS);
+		ServerMonitor.register("慢速会话", SlowConsumerGuard::describe);
+	}
+
+	private static void scan(ServerGUI gui) {
+		Set<String> slowUsers = new TreeSet<>();
+		for (ClientSession session : ManageClientThread.getAll().values()) {
+			SlowConsumerGuard guard = session.getGuard();
+			try {
+				guard.check();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			if (guard.isSlow()) {
+				slowUsers.add(session.getUserId());
+			}
+		}
+		if (!slowUsers.equals(lastSlowUsers)) {
+			Set<String> added = new TreeSet<>(slowUsers);
+			added.removeAll(lastSlowUsers);
+			if (!added.isEmpty()) {
+				gui.appendLog("慢速会话: " + added);
+			}
+			lastSlowUsers = slowUsers;
+			gui.markSlowUsers(slowUsers);
+		}
+	}
+
+	/**
+	 * 指标描述（用于ServerMonitor）
+	 */
+	public static String describe() {
+		List<String> details = new ArrayList<>();
+		for (String userId : lastSlowUsers) {
+			ClientSession session = ManageClientThread.getClientThread(userId);
+			if (session != null) {
+				SlowConsumerGuard guard = session.getGuard();
+				details.add(String.format("%s(%d条/%dKB/阻塞%dms)", userId, guard.mailbox.size(),
+						guard.mailbox.bytes() / 1024, guard.stalledMillis()));
+			}
+		}
+		return String.format("策略 %s | 当前 %d %s | 丢弃 %d 转存 %d 断开 %d", POLICY.name().toLowerCase(),
+				details.size(), details, totalDropped.get(), totalSpilled.get(), totalDisconnected.get());
+	}
+}
@@ -0,0 +1,125 @@
+package server.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 服务端文件暂存 - 一个落盘的文件及其共享的文件通道
+ * <p>
+ * 【核心作用】
+ * 客户端上传的文件内容边收边写入暂存目录，转发时由FileRegion从这里零拷贝写出，
+ * 堆中只保留正在处理的一个分块
+ * <p>
+ * 【引用计数】
+ * 创建者持有一个引用；每个排队中的FileRegion再持有一个引用（retain），
+ * 写出或丢弃后释放。引用归零时关闭通道，若已标记deleteWhenReleased则删除文件
+ *
+ * @author ChatRoom Team
+ */
+public class SpoolFile {
+	private volatile File file;
+	private final FileChannel channel;
+	private final AtomicInteger refs = new AtomicInteger(1);
+	private volatile boolean deleteWhenReleased;
+
+	private SpoolFile(File file, FileChannel channel) {
+		this.file = file;
+		this.channel = channel;
+	}
+
+	/**
+	 * 创建（或截断）一个用于写入的暂存文件
+	 */
+	public static SpoolFile create(File file) throws IOException {
+		File dir = file.getParentFile();
+		if (dir != null && !dir.exists()) {
+			dir.mkdirs();
+		}
+		return new SpoolFile(file, FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE));
+	}
+
+	/**
+	 * 重新打开一个未完成的暂存文件用于续写（不截断）
+	 */
+	public static SpoolFile reopen(File file) throws IOException {
+		return new SpoolFile(file, FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+	}
+
+	/**
+	 * 打开一个已存在的暂存文件（只读）
+	 */
+	public static SpoolFile open(File file) throws IOException {
+		return new SpoolFile(file, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public FileChannel channel() {
+		return channel;
+	}
+
+	/** 当前文件长度 */
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	/**
+	 * 在指定位置写入一段数据
+	 */
+	public void write(byte[] data, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	/**
+	 * 截断到指定长度（续传时丢弃未通过校验的尾部）
+	 */
+	public void truncate(long size) throws IOException {
+		channel.truncate(size);
+	}
+
+	/**
+	 * 改名（例如去掉.part后缀）；已打开的通道不受影响
+	 */
+	public void renameTo(File target) throws IOException {
+		Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		file = target;
+	}
+
+	/** 增加一个引用，供排队中的FileRegion持有 */
+	public SpoolFile retain() {
+		refs.incrementAndGet();
+		return this;
+	}
+
+	/** 释放一个引用；归零时关闭通道，按需删除文件 */
+	public void release() {
+		if (refs.decrementAndGet() != 0) {
+			return;
+		}
+		try {
+			channel.close();
+			if (deleteWhenReleased) {
+				Files.deleteIfExists(file.toPath());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** 最后一个引用释放后删除文件 */
+	public void deleteWhenReleased() {
+		deleteWhenReleased = true;
+	}
+}
@@ -0,0 +1,222 @@
+package server.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * 暂存文件的描述 - 续传和投递所需的状态，与暂存文件一起落盘
+ * <p>
+ * 【文件】（与暂存文件同目录，以传输ID命名）
+ * - 传输ID.meta：发送方、接收方、文件名、总大小、分块大小；上传完成后加上SHA-256
+ * - 传输ID.crc：每个分块的CRC32C（4字节大端），第i块在偏移i*4处
+ * <p>
+ * 【设计说明】
+ * - .meta只在开始和完成时各写一次；每个分块只多写4字节的CRC，不重写整个描述
+ * - 已落盘的字节数不单独记录：服务端重启后按.part的长度和CRC逐块核对得出
+ * - 投递时按上传的分块边界发送，直接带上这里记录的CRC，不需要重新读取文件内容计算
+ * - 上传完成后复制一份到BlobStore（以摘要命名），原位置的描述随即删除
+ *
+ * @author ChatRoom Team
+ */
+public class SpoolMeta {
+	private final File metaFile;
+	private final File crcFile;
+	private final String sender;
+	private final String receiver;
+	private final String fileName;
+	private final long totalBytes;
+	private final int chunkSize;
+	private final int[] crcs;
+	private volatile String digest;
+	private FileChannel crcChannel;
+
+	private SpoolMeta(File dir, String id, String sender, String receiver, String fileName, long totalBytes,
+			int chunkSize, String digest) {
+		this.metaFile = new File(dir, id + ".meta");
+		this.crcFile = new File(dir, id + ".crc");
+		this.sender = sender;
+		this.receiver = receiver;
+		this.fileName = fileName;
+		this.totalBytes = totalBytes;
+		this.chunkSize = chunkSize;
+		this.crcs = new int[chunkCount(totalBytes, chunkSize)];
+		this.digest = digest;
+	}
+
+	/**
+	 * 新建描述并落盘
+	 */
+	public static SpoolMeta create(File dir, String id, String sender, String receiver, String fileName,
+			long totalBytes, int chunkSize) throws IOException {
+		SpoolMeta meta = new SpoolMeta(dir, id, sender, receiver, fileName, totalBytes, chunkSize, null);
+		meta.store();
+		meta.crcChannel = FileChannel.open(meta.crcFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		return meta;
+	}
+
+	/**
+	 * 读取已落盘的描述
+	 *
+	 * @return 不存在时返回null
+	 */
+	public static SpoolMeta load(File dir, String id) throws IOException {
+		File metaFile = new File(dir, id + ".meta");
+		if (!metaFile.isFile()) {
+			return null;
+		}
+		Properties props = new Properties();
+		try (InputStream in = new FileInputStream(metaFile)) {
+			props.load(in);
+		}
+		SpoolMeta meta;
+		try {
+			meta = new SpoolMeta(dir, id, props.getProperty("sender"), props.getProperty("receiver"),
+					props.getProperty("fileName"), Long.parseLong(props.getProperty("totalBytes")),
+					Integer.parseInt(props.getProperty("chunkSize")), props.getProperty("digest"));
+		} catch (RuntimeException e) {
+			throw new IOException("无效的暂存描述: " + metaFile, e);
+		}
+		if (meta.crcFile.isFile()) {
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(meta.crcFile.toPath()));
+			for (int i = 0; i < meta.crcs.length && buffer.remaining() >= 4; i++) {
+				meta.crcs[i] = buffer.getInt();
+			}
+		}
+		return meta;
+	}
+
+	/**
+	 * 续传前重新打开CRC文件用于写入
+	 */
+	public void reopenForWrite() throws IOException {
+		if (crcChannel == null) {
+			crcChannel = FileChannel.open(crcFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		}
+	}
+
+	private void store() throws IOException {
+		Properties props = new Properties();
+		props.setProperty("sender", sender);
+		props.setProperty("receiver", receiver);
+		props.setProperty("fileName", fileName == null ? "" : fileName);
+		props.setProperty("totalBytes", String.valueOf(totalBytes));
+		props.setProperty("chunkSize", String.valueOf(chunkSize));
+		if (digest != null) {
+			props.setProperty("digest", digest);
+		}
+		File dir = metaFile.getParentFile();
+		if (dir != null && !dir.exists()) {
+			dir.mkdirs();
+		}
+		try (OutputStream out = new FileOutputStream(metaFile)) {
+			props.store(out, null);
+		}
+	}
+
+	/**
+	 * 记录第index块的CRC（内存和.crc文件）
+	 */
+	public void setCrc(int index, int crc) throws IOException {
+		crcs[index] = crc;
+		ByteBuffer buffer = ByteBuffer.allocate(4).putInt(0, crc);
+		while (buffer.hasRemaining()) {
+			crcChannel.write(buffer, (long) index * 4 + buffer.position());
+		}
+	}
+
+	/**
+	 * 上传完成：记录整文件摘要，关闭CRC文件
+	 */
+	public void complete(String digest) throws IOException {
+		this.digest = digest;
+		store();
+		close();
+	}
+
+	/** 关闭CRC文件（描述仍保留在磁盘上） */
+	public void close() {
+		if (crcChannel == null) {
+			return;
+		}
+		try {
+			crcChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		crcChannel = null;
+	}
+
+	/**
+	 * 把描述（包括全部分块CRC）复制到另一个目录，以name命名
+	 */
+	public void copyTo(File dir, String name) throws IOException {
+		SpoolMeta copy = new SpoolMeta(dir, name, sender, receiver, fileName, totalBytes, chunkSize, digest);
+		copy.store();
+		ByteBuffer buffer = ByteBuffer.allocate(crcs.length * 4);
+		buffer.asIntBuffer().put(crcs);
+		Files.write(copy.crcFile.toPath(), buffer.array());
+	}
+
+	/** 删除.meta和.crc */
+	public void delete() {
+		close();
+		metaFile.delete();
+		crcFile.delete();
+	}
+
+	/** 删除dir中名为id的描述（不需要先读取） */
+	public static void discard(File dir, String id) {
+		new File(dir, id + ".meta").delete();
+		new File(dir, id + ".crc").delete();
+	}
+
+	public String getSender() {
+		return sender;
+	}
+
+	public String getReceiver() {
+		return receiver;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/** 第index块的CRC32C */
+	public int crcOf(int index) {
+		return crcs[index];
+	}
+
+	/** 整文件SHA-256，上传完成前为null */
+	public String getDigest() {
+		return digest;
+	}
+
+	/** 第index块的长度（最后一块可能不足chunkSize） */
+	public int chunkLength(int index) {
+		return (int) Math.min(chunkSize, totalBytes - (long) index * chunkSize);
+	}
+
+	/** 分块数 */
+	public static int chunkCount(long totalBytes, int chunkSize) {
+		return (int) ((totalBytes + chunkSize - 1) / chunkSize);
+	}
+}
@@ -0,0 +1,161 @@
+package server.service;
+
+import common.User;
+import server.db.UserDao;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 用户目录缓存 - 按UserID缓存用户资料（昵称、性别、头像），在线状态和界面不再逐个查库
+ * <p>
+ * 【核心作用】
+ * 原先每次广播在线列表都要为每个在线用户新建一个UserDao、借一个连接查一次昵称，
+ * 1000人在线时一次登录就是1000次SELECT；服务端界面查看用户详情时还在EDT中查库。现在：
+ * - 登录成功（已查出完整资料）和注册成功时直接写入缓存
+ * - 其他情况未命中时查一次数据库并缓存
+ * - 修改资料后调用invalidate()使条目失效，下次使用时重新查询
+ * <p>
+ * 【容量】
+ * 按访问顺序淘汰（LRU），条目数上限 chat.userCache.max（默认10000）；
+ * 缓存的副本不含密码，每个条目只有几十字节
+ * <p>
+ * 【线程安全】
+ * 读写在同一把锁内，数据库查询在锁外进行；同一用户同时未命中时可能重复查询一次，结果相同
+ *
+ * @author ChatRoom Team
+ */
+public class UserDirectory {
+	/** 缓存的条目数上限 */
+	private static final int MAX_ENTRIES = Integer.getInteger("chat.userCache.max", 10000);
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+	private static final AtomicLong invalidations = new AtomicLong();
+
+	/** UserID → 用户资料（不含密码），按访问顺序排列 */
+	private static final Map<String, User> cache = new LinkedHashMap<String, User>(256, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, User> eldest) {
+			if (size() > MAX_ENTRIES) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	static {
+		ServerMonitor.register("用户目录", UserDirectory::describe);
+	}
+
+	private UserDirectory() {
+	}
+
+	/**
+	 * 写入或更新一个用户的资料（登录、注册时调用）
+	 */
+	public static void put(User user) {
+		if (user == null || user.getUserID() == null) {
+			return;
+		}
+		User copy = copyOf(user);
+		synchronized (cache) {
+			cache.put(copy.getUserID(), copy);
+		}
+	}
+
+	/**
+	 * 获取用户资料，未命中时查询数据库
+	 * 【注意】未命中时会访问数据库，不要在EDT中调用，界面应先用getIfPresent()
+	 *
+	 * @return 用户不存在或查询失败时返回null
+	 */
+	public static User get(String userId) {
+		User user = getIfPresent(userId);
+		if (user != null) {
+			return user;
+		}
+		misses.incrementAndGet();
+		try {
+			UserDao userDao = new UserDao();
+			try {
+				user = userDao.getUserById(userId);
+			} finally {
+				userDao.closeConnection();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return null;
+		}
+		put(user);
+		return user == null ? null : copyOf(user);
+	}
+
+	/**
+	 * 只查缓存，不访问数据库
+	 *
+	 * @return 未缓存时返回null
+	 */
+	public static User getIfPresent(String userId) {
+		User user;
+		synchronized (cache) {
+			user = cache.get(userId);
+		}
+		if (user == null) {
+			return null;
+		}
+		hits.incrementAndGet();
+		return copyOf(user);
+	}
+
+	/**
+	 * 用户资料已修改：移除缓存条目，下次使用时重新查询
+	 */
+	public static void invalidate(String userId) {
+		synchronized (cache) {
+			if (cache.remove(userId) != null) {
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * 显示名："昵称(UserID)"，没有昵称或查询失败时只显示ID
+	 */
+	public static String displayName(String userId) {
+		User user = get(userId);
+		if (user != null && user.getNicname() != null) {
+			return user.getNicname() + "(" + userId + ")";
+		}
+		return userId;
+	}
+
+	/** 不含密码的副本：缓存中保存的和返回给调用方的都是副本，调用方修改不影响缓存 */
+	private static User copyOf(User user) {
+		User copy = new User();
+		copy.setUserID(user.getUserID());
+		copy.setNicname(user.getNicname());
+		copy.setGender(user.getGender());
+		copy.setAvatar(user.getAvatar());
+		return copy;
+	}
+
+	/**
+	 * 指标描述（用于ServerMonitor）
+	 */
+	public static String describe() {
+		int size;
+		synchronized (cache) {
+			size = cache.size();
+		}
+		long h = hits.get();
+		long m = misses.get();
+		double hitRate = h + m == 0 ? 0 : h * 100.0 / (h + m);
+		return String.format("条目 %d/%d | 命中 %d 未命中 %d 命中率 %.1f%% | 淘汰 %d 失效 %d", size, MAX_ENTRIES, h, m,
+				hitRate, evictions.get(), invalidations.get());
+	}
+}
@@ -1,9 +1,8 @@
 package server.view;
 
 import common.User;
-import server.db.UserDao;
-import server.service.ManageClientThread;
-import server.service.ServerConnectClientThread;
+import server.service.BroadcastFanout;
+import server.service.UserDirectory;
 import common.Message;
 import common.MessageType;
 
@@ -11,10 +10,12 @@ import javax.swing.*;
 import javax.swing.border.TitledBorder;
 import java.awt.*;
 import java.io.IOException;
-import java.sql.SQLException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 /**
  * 服务器GUI管理界面
@@ -26,6 +27,10 @@ public class ServerGUI extends JFrame {
     private final JList<String> userListComponent;
     /** 用户列表数据模型 */
     private final DefaultListModel<String> userListModel;
+    /** 最近一次的在线用户列表（"昵称(UserID)"） */
+    private List<String> onlineUsers = new ArrayList<>();
+    /** 被标记为慢速的用户ID */
+    private Set<String> slowUsers = Collections.emptySet();
     /** 用户详情显示区域 */
     private final JTextArea userDetailArea;
 
@@ -35,6 +40,8 @@ public class ServerGUI extends JFrame {
     // 第三部分：系统广播（右下）
     private final JTextField broadcastInput;
     private final JButton broadcastButton;
+    /** 运行指标显示区域（由ServerMonitor定时刷新） */
+    private final JTextArea statusArea;
 
     public ServerGUI() {
         // 设置UTF-8编码
@@ -114,6 +121,12 @@ public class ServerGUI extends JFrame {
 
         broadcastPanel.add(broadcastInputPanel, BorderLayout.NORTH);
 
+        statusArea = new JTextArea();
+        statusArea.setEditable(false);
+        statusArea.setFont(new Font("Microsoft YaHei", Font.PLAIN, 12));
+        statusArea.setBorder(new TitledBorder("运行指标"));
+        broadcastPanel.add(new JScrollPane(statusArea), BorderLayout.CENTER);
+
         // 添加发送广播功能
         broadcastButton.addActionListener(e -> broadcastSystemMessage());
         broadcastInput.addActionListener(e -> broadcastSystemMessage());
@@ -142,36 +155,76 @@ public class ServerGUI extends JFrame {
      */
     public void updateUserList(List<String> users) {
         SwingUtilities.invokeLater(() -> {
-            userListModel.clear();
-            for (String user : users) {
-                userListModel.addElement(user + " [在线]");
-            }
-            if (userListModel.isEmpty()) {
-                userListModel.addElement("暂无在线用户");
-            }
+            onlineUsers = new ArrayList<>(users);
+            renderUserList();
+        });
+    }
+
+    /**
+     * 标记慢速会话（由SlowConsumerGuard巡检时调用）
+     */
+    public void markSlowUsers(Set<String> userIds) {
+        SwingUtilities.invokeLater(() -> {
+            slowUsers = userIds;
+            renderUserList();
         });
     }
 
+    private void renderUserList() {
+        userListModel.clear();
+        for (String user : onlineUsers) {
+            boolean slow = slowUsers.contains(extractUserId(user));
+            userListModel.addElement(user + (slow ? " [慢速]" : " [在线]"));
+        }
+        if (userListModel.isEmpty()) {
+            userListModel.addElement("暂无在线用户");
+        }
+    }
+
+    /**
+     * 刷新运行指标
+     */
+    public void updateStatus(String status) {
+        SwingUtilities.invokeLater(() -> statusArea.setText(status));
+    }
+
     /**
      * 显示用户详细信息
+     * 【说明】在线用户的资料登录时已在UserDirectory中；未缓存时在后台线程查询，不阻塞EDT
      */
     private void showUserDetail(String userId) {
-        try {
-            UserDao dao = new UserDao();
-            User user = dao.getUserById(userId);
-            dao.closeConnection();
-
-            if (user != null) {
-                userDetailArea.setText(
-                        "账号: " + user.getUserID() + "\n" +
-                                "昵称: " + user.getNicname() + "\n" +
-                                "性别: " + user.getGender() + "\n" +
-                                "头像: " + user.getAvatar() + "\n");
-            }
-        } catch (SQLException e) {
+        User cached = UserDirectory.getIfPresent(userId);
+        if (cached != null) {
+            renderUserDetail(cached);
+            return;
+        }
+        userDetailArea.setText("正在查询用户信息...");
+        new Thread(() -> {
+            User user = UserDirectory.get(userId);
+            SwingUtilities.invokeLater(() -> {
+                // 查询期间可能已经选中了其他用户，只显示仍被选中的用户
+                if (userId.equals(selectedUserId())) {
+                    renderUserDetail(user);
+                }
+            });
+        }, "UserDetailThread").start();
+    }
+
+    private String selectedUserId() {
+        String selected = userListComponent.getSelectedValue();
+        return selected == null ? null : extractUserId(selected);
+    }
+
+    private void renderUserDetail(User user) {
+        if (user == null) {
             userDetailArea.setText("用户信息查询失败");
-            e.printStackTrace();
+            return;
         }
+        userDetailArea.setText(
+                "账号: " + user.getUserID() + "\n" +
+                        "昵称: " + user.getNicname() + "\n" +
+                        "性别: " + user.getGender() + "\n" +
+                        "头像: " + user.getAvatar() + "\n");
     }
 
     /**
@@ -202,15 +255,12 @@ public class ServerGUI extends JFrame {
                 .content(content)
                 .build();
 
-        // 发送给所有在线用户
+        // 发送给所有在线用户（只序列化一次）
         int count = 0;
-        for (ServerConnectClientThread thread : ManageClientThread.getAll().values()) {
-            try {
-                thread.getOOS().writeObject(sysMsg);
-                count++;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        try {
+            count = BroadcastFanout.broadcast(sysMsg, null);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
 
         appendLog("【系统广播】发送给 " + count + " 个用户: \"" + content + "\"");
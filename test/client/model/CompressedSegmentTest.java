@@ -0,0 +1,212 @@
+package client.model;
+
+import common.Message;
+import common.MessageType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+import static client.model.HistoryLogTest.check;
+import static client.model.HistoryLogTest.expectRange;
+import static client.model.HistoryLogTest.files;
+import static client.model.HistoryLogTest.message;
+import static client.model.HistoryLogTest.tempDir;
+
+/**
+ * 压缩分段的往返测试：按列拆开的字段（内容、发送时间）原样拼回，整理前后读取结果一致，
+ * 整理中途退出留下的文件按约定处理
+ * <p>
+ * 【运行】见技术文档"测试"一节；每个用例使用一个新的临时目录
+ *
+ * @author ChatRoom Team
+ */
+public class CompressedSegmentTest {
+
+	public static void main(String[] args) throws Exception {
+		// 分段大小在类初始化时读取，必须在第一次使用HistoryLog之前设置
+		System.setProperty("chat.history.segmentBytes", "4096");
+
+		preservesEveryField();
+		compactsColdSegments();
+		prefersPackedOverLeftoverLog();
+		rejectsCorruptBlock();
+		System.out.println("CompressedSegmentTest 通过");
+	}
+
+	/**
+	 * 各种字段组合（内容为null和空串、没有发送时间、时间倒退、成员列表、文件）写入后逐字段一致，
+	 * 跨块的任意范围都能读回
+	 */
+	private static void preservesEveryField() throws Exception {
+		List<Message> messages = new ArrayList<>();
+		for (int i = 0; i < 300; i++) {
+			Message.Builder builder = new Message.Builder()
+					.mesType(i % 3 == 0 ? MessageType.MESSAGE_GROUP_MES : MessageType.MESSAGE_COMM_MES)
+					.sender("user" + i % 4)
+					.receiver(MessageType.GROUP_ADDRESS_PREFIX + 7)
+					.fontColor(i % 2 == 0 ? "#000000" : "#FF0000")
+					.bold(i % 5 == 0)
+					.fontSize(12 + i % 3);
+			switch (i % 6) {
+				case 0:
+					builder.content(null);
+					break;
+				case 1:
+					builder.content("");
+					break;
+				default:
+					builder.content("消息 " + i + " 😀 haha".repeat(i % 4));
+			}
+			if (i % 7 != 0) {
+				// 时间有时倒退，差值为负
+				builder.sendTime(new Date(1700000000000L + (i % 10 == 0 ? -i : i) * 60000L));
+			}
+			if (i % 11 == 0) {
+				builder.setUserlist(Arrays.asList("a", "b", "c" + i));
+			}
+			if (i % 13 == 0) {
+				builder.fileName("f" + i + ".png").fileData(new byte[] { 1, 2, (byte) i });
+			}
+			messages.add(builder.build());
+		}
+		File dir = tempDir();
+		check(dir.mkdirs(), "创建目录");
+		File file = new File(dir, "0000000000000000" + CompressedSegment.SUFFIX);
+		CompressedSegment.write(messages, file);
+		check(!new File(file.getPath() + ".tmp").exists(), "临时文件已改名");
+
+		CompressedSegment segment = new CompressedSegment(file);
+		check(segment.count() == 300, "条数");
+		List<Message> all = new ArrayList<>();
+		segment.read(0, 300, all);
+		check(all.size() == 300, "读回300条，实际 " + all.size());
+		for (int i = 0; i < all.size(); i++) {
+			expectSame(messages.get(i), all.get(i), i);
+		}
+		List<Message> range = new ArrayList<>();
+		segment.read(120, 260, range);
+		check(range.size() == 140, "跨块范围的条数");
+		for (int i = 0; i < range.size(); i++) {
+			expectSame(messages.get(120 + i), range.get(i), 120 + i);
+		}
+		file.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 整理所有冷分段后读取结果不变，重新打开后仍一致，最后一个分段保持原样并可以继续追加
+	 */
+	private static void compactsColdSegments() throws Exception {
+		File dir = tempDir();
+		HistoryLog log = new HistoryLog(dir);
+		for (int i = 0; i < 400; i++) {
+			log.append(message(i));
+		}
+		int logs = files(dir, ".log").length;
+		check(logs > 3, "写入跨越多个分段");
+		check(HistoryLog.hasColdSegments(dir, 1), "有可以整理的分段");
+
+		int compacted = 0;
+		HistoryLog.Compaction result;
+		while ((result = log.compactNext(1)) != null) {
+			check(result.getRecords() > 0 && result.getCompressedBytes() > 0, "整理结果");
+			compacted++;
+			expectRange(log, 0, 400);
+		}
+		check(compacted == logs - 2, "除最后一个和最近1个分段外都已整理，实际 " + compacted);
+		check(!HistoryLog.hasColdSegments(dir, 1), "没有剩余的冷分段");
+		check(files(dir, CompressedSegment.SUFFIX).length == compacted, "压缩分段数");
+		check(files(dir, ".log").length == 2, "原分段已删除");
+		check(log.append(message(400)) == 400, "整理后继续追加");
+		log.close();
+
+		HistoryLog reopened = new HistoryLog(dir);
+		check(reopened.size() == 401, "重新打开后的条数");
+		expectRange(reopened, 0, 401);
+		expectRange(reopened, 95, 170);
+		reopened.delete();
+	}
+
+	/**
+	 * 整理换入时退出：同一序号的.zlog和.log都在时以.zlog为准并删除.log；未改名的.tmp被删除
+	 */
+	private static void prefersPackedOverLeftoverLog() throws Exception {
+		File dir = tempDir();
+		HistoryLog log = new HistoryLog(dir);
+		for (int i = 0; i < 300; i++) {
+			log.append(message(i));
+		}
+		File first = files(dir, ".log")[0];
+		File firstIndex = files(dir, ".idx")[0];
+		byte[] raw = Files.readAllBytes(first.toPath());
+		byte[] index = Files.readAllBytes(firstIndex.toPath());
+		check(log.compactNext(1) != null, "整理第一个分段");
+		log.close();
+		// 还原原分段，相当于改名之后、删除原分段之前退出；原分段的内容改坏，读到它就会出错
+		Arrays.fill(raw, 8, raw.length, (byte) 0x5A);
+		Files.write(first.toPath(), raw);
+		Files.write(firstIndex.toPath(), index);
+		File tmp = new File(dir, "0000000000000999" + CompressedSegment.SUFFIX + ".tmp");
+		Files.write(tmp.toPath(), new byte[] { 1, 2, 3 });
+
+		HistoryLog reopened = new HistoryLog(dir);
+		check(!first.exists() && !firstIndex.exists(), "遗留的原分段被删除");
+		check(!tmp.exists(), "遗留的临时文件被删除");
+		check(reopened.size() == 300, "条数不变，实际 " + reopened.size());
+		expectRange(reopened, 0, 300);
+		reopened.delete();
+	}
+
+	/**
+	 * 块内容损坏时读取报错，而不是返回错乱的消息
+	 */
+	private static void rejectsCorruptBlock() throws Exception {
+		File dir = tempDir();
+		check(dir.mkdirs(), "创建目录");
+		List<Message> messages = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			messages.add(message(i));
+		}
+		File file = new File(dir, "0000000000000000" + CompressedSegment.SUFFIX);
+		CompressedSegment.write(messages, file);
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			out.seek(10);
+			int b = out.read();
+			out.seek(10);
+			out.write(b ^ 0xFF);
+		}
+		CompressedSegment segment = new CompressedSegment(file);
+		try {
+			segment.read(0, 10, new ArrayList<>());
+			throw new AssertionError("损坏的块应当读取失败");
+		} catch (IOException expected) {
+			// 块校验失败
+		}
+		List<Message> second = new ArrayList<>();
+		segment.read(150, 200, second);
+		check(second.size() == 50, "其他块不受影响");
+		file.delete();
+		dir.delete();
+	}
+
+	private static void expectSame(Message expected, Message actual, int i) {
+		check(Objects.equals(expected.getContent(), actual.getContent()), "#" + i + " 内容: " + actual.getContent());
+		check(Objects.equals(expected.getSendTime(), actual.getSendTime()), "#" + i + " 发送时间");
+		check(Objects.equals(expected.getSender(), actual.getSender()), "#" + i + " 发送者");
+		check(Objects.equals(expected.getReceiver(), actual.getReceiver()), "#" + i + " 接收者");
+		check(Objects.equals(expected.getMesType(), actual.getMesType()), "#" + i + " 类型");
+		check(Objects.equals(expected.getUserlist(), actual.getUserlist()), "#" + i + " 成员列表");
+		check(Objects.equals(expected.getFontColor(), actual.getFontColor()), "#" + i + " 颜色");
+		check(expected.isBold() == actual.isBold(), "#" + i + " 粗体");
+		check(expected.getFontSize() == actual.getFontSize(), "#" + i + " 字号");
+		check(Objects.equals(expected.getFileName(), actual.getFileName()), "#" + i + " 文件名");
+		check(Arrays.equals(expected.getFileData(), actual.getFileData()), "#" + i + " 文件内容");
+	}
+}
@@ -0,0 +1,186 @@
+package client.model;
+
+import common.Message;
+import common.MessageType;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * HistoryLog的往返测试：跨分段写入后按序号读回，重新打开后一致，最后一个分段损坏的尾部被截掉
+ * <p>
+ * 【运行】见技术文档"测试"一节；每个用例使用一个新的临时目录
+ *
+ * @author ChatRoom Team
+ */
+public class HistoryLogTest {
+
+	public static void main(String[] args) throws Exception {
+		// 分段大小在类初始化时读取，必须在第一次使用HistoryLog之前设置
+		System.setProperty("chat.history.segmentBytes", "2048");
+
+		readsBackAcrossSegments();
+		truncatesTornTail();
+		truncatesCorruptLastRecord();
+		rebuildsLostIndex();
+		System.out.println("HistoryLogTest 通过");
+	}
+
+	/**
+	 * 跨多个分段写入，任意范围读回的内容和顺序不变，重新打开后相同
+	 */
+	private static void readsBackAcrossSegments() throws Exception {
+		File dir = tempDir();
+		HistoryLog log = new HistoryLog(dir);
+		for (int i = 0; i < 300; i++) {
+			check(log.append(message(i)) == i, "第" + i + "条的序号");
+		}
+		log.close();
+		check(files(dir, ".log").length > 1, "写入跨越多个分段");
+
+		HistoryLog reopened = new HistoryLog(dir);
+		check(reopened.size() == 300, "重新打开后有300条，实际 " + reopened.size());
+		expectRange(reopened, 0, 300);
+		expectRange(reopened, 31, 33);
+		expectRange(reopened, 250, 300);
+		check(reopened.read(290, 400).size() == 10, "超出末尾的范围只读到已有的记录");
+		reopened.delete();
+	}
+
+	/**
+	 * 最后一条记录只写了一半：重新打开时截掉，之前的记录完整，之后的追加接着编号
+	 */
+	private static void truncatesTornTail() throws Exception {
+		File dir = tempDir();
+		HistoryLog log = new HistoryLog(dir);
+		for (int i = 0; i < 10; i++) {
+			log.append(message(i));
+		}
+		log.close();
+		File last = lastSegment(dir);
+		long intact = last.length();
+		try (FileOutputStream out = new FileOutputStream(last, true)) {
+			// 长度字段声明了200字节，实际只写了一部分
+			out.write(new byte[] { 0, 0, 0, (byte) 200, 9, 9, 9, 9, 1, 2, 3 });
+		}
+
+		HistoryLog reopened = new HistoryLog(dir);
+		check(last.length() == intact, "损坏的尾部被截掉");
+		check(reopened.size() == 10, "保留10条，实际 " + reopened.size());
+		check(reopened.append(message(10)) == 10, "恢复后的追加接着编号");
+		reopened.close();
+		HistoryLog again = new HistoryLog(dir);
+		expectRange(again, 0, 11);
+		again.delete();
+	}
+
+	/**
+	 * 最后一条记录长度完整但校验失败（内容写了一半）：从这条开始截掉
+	 */
+	private static void truncatesCorruptLastRecord() throws Exception {
+		File dir = tempDir();
+		HistoryLog log = new HistoryLog(dir);
+		for (int i = 0; i < 40; i++) {
+			log.append(message(i));
+		}
+		log.close();
+		File last = lastSegment(dir);
+		try (RandomAccessFile file = new RandomAccessFile(last, "rw")) {
+			// 改坏最后一个字节
+			file.seek(file.length() - 1);
+			int b = file.read();
+			file.seek(file.length() - 1);
+			file.write(b ^ 0xFF);
+		}
+
+		HistoryLog reopened = new HistoryLog(dir);
+		check(reopened.size() == 39, "校验失败的最后一条被截掉，实际 " + reopened.size());
+		expectRange(reopened, 0, 39);
+		reopened.delete();
+	}
+
+	/**
+	 * 封存分段的索引文件丢失时顺序扫描重建，读取结果不变
+	 */
+	private static void rebuildsLostIndex() throws Exception {
+		File dir = tempDir();
+		HistoryLog log = new HistoryLog(dir);
+		for (int i = 0; i < 200; i++) {
+			log.append(message(i));
+		}
+		log.close();
+		File firstIndex = files(dir, ".idx")[0];
+		check(firstIndex.delete(), "删除第一个分段的索引");
+
+		HistoryLog reopened = new HistoryLog(dir);
+		expectRange(reopened, 0, 200);
+		expectRange(reopened, 40, 45);
+		reopened.delete();
+	}
+
+	// ==================== 工具 ====================
+
+	/**
+	 * 读取 [from, to) 并核对每条的内容、发送者和时间
+	 */
+	static void expectRange(HistoryLog log, long from, long to) throws IOException {
+		List<Message> messages = log.read(from, to);
+		check(messages.size() == to - from, "[" + from + ", " + to + ") 应有 " + (to - from) + " 条，实际 "
+				+ messages.size());
+		for (int i = 0; i < messages.size(); i++) {
+			expectMessage(messages.get(i), (int) from + i);
+		}
+	}
+
+	static void expectMessage(Message actual, int i) {
+		Message expected = message(i);
+		check(expected.getContent().equals(actual.getContent()), "#" + i + " 内容: " + actual.getContent());
+		check(expected.getSender().equals(actual.getSender()), "#" + i + " 发送者");
+		check(expected.getSendTime().equals(actual.getSendTime()), "#" + i + " 发送时间");
+		check(expected.getMesType().equals(actual.getMesType()), "#" + i + " 类型");
+	}
+
+	/** 第i条测试消息：内容和时间随i变化 */
+	static Message message(int i) {
+		return new Message.Builder()
+				.mesType(MessageType.MESSAGE_COMM_MES)
+				.sender(i % 2 == 0 ? "alice" : "bob")
+				.receiver(i % 2 == 0 ? "bob" : "alice")
+				.content("第" + i + "条消息 " + "hello ".repeat(i % 7))
+				.sendTime(new Date(1700000000000L + i * 1000L))
+				.build();
+	}
+
+	static File tempDir() throws IOException {
+		File dir = Files.createTempDirectory("history-test").toFile();
+		// 让HistoryLog自己创建聊天目录
+		File chat = new File(dir, "chat");
+		chat.deleteOnExit();
+		dir.deleteOnExit();
+		return chat;
+	}
+
+	static File[] files(File dir, String suffix) {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(suffix));
+		check(files != null, "无法列出 " + dir);
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static File lastSegment(File dir) {
+		File[] logs = files(dir, ".log");
+		return logs[logs.length - 1];
+	}
+
+	static void check(boolean condition, String what) {
+		if (!condition) {
+			throw new AssertionError(what);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package server.service;
+
+import common.Message;
+import common.MessageType;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * OfflineStore的重放测试：写入、确认、重新打开后索引一致，写入中途崩溃留下的半条记录被截掉
+ * <p>
+ * 【运行】见技术文档"测试"一节；每次运行使用一个新的临时目录
+ *
+ * @author ChatRoom Team
+ */
+public class OfflineStoreTest {
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("offline-test").toFile();
+		// 目录和分段大小在类初始化时读取，必须在第一次使用OfflineStore之前设置
+		System.setProperty("chat.offline.dir", dir.getPath());
+		System.setProperty("chat.offline.segmentBytes", "4096");
+
+		try {
+			replaysAppendedAndAcknowledged(dir);
+			truncatesTornTail(dir);
+		} finally {
+			for (File file : segments(dir)) {
+				file.delete();
+			}
+			dir.delete();
+		}
+		System.out.println("OfflineStoreTest 通过");
+	}
+
+	/**
+	 * 跨多个分段写入、部分确认，重新打开后只剩未确认的消息，顺序不变
+	 */
+	private static void replaysAppendedAndAcknowledged(File dir) throws Exception {
+		OfflineStore store = open();
+		for (int i = 0; i < 100; i++) {
+			check(store.append("alice", message("alice-" + i)), "写入alice的第" + i + "条");
+			check(store.append("bob", message("bob-" + i)), "写入bob的第" + i + "条");
+		}
+		check(segments(dir).length > 1, "写入跨越多个分段");
+		OfflineStore.Batch first = store.peek("alice", 30);
+		check(first.getMessages().size() == 30, "第一批30条");
+		store.ack("alice", first.getLastSeq());
+		store.takeAll("bob");
+
+		OfflineStore reopened = open();
+		check(!reopened.hasPending("bob"), "bob已全部取走");
+		List<Message> alice = reopened.takeAll("alice");
+		check(alice.size() == 70, "alice剩70条，实际 " + alice.size());
+		for (int i = 0; i < alice.size(); i++) {
+			check(("alice-" + (i + 30)).equals(alice.get(i).getContent()), "alice第" + i + "条的内容和顺序");
+		}
+		check(!open().hasPending("alice"), "取走后重新打开不再有alice的消息");
+	}
+
+	/**
+	 * 最后一个分段末尾的半条记录被截掉，之前的消息完整保留，之后可以继续追加
+	 */
+	private static void truncatesTornTail(File dir) throws Exception {
+		OfflineStore store = open();
+		for (int i = 0; i < 5; i++) {
+			store.append("carol", message("carol-" + i));
+		}
+		File[] files = segments(dir);
+		File last = files[files.length - 1];
+		long intact = last.length();
+		try (FileOutputStream out = new FileOutputStream(last, true)) {
+			// 长度字段声明了100字节，实际只写了一部分
+			out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3, 4, 0, 0 });
+		}
+
+		OfflineStore reopened = open();
+		check(last.length() == intact, "损坏的尾部被截掉");
+		check(reopened.append("carol", message("carol-5")), "恢复后继续追加");
+		List<Message> carol = open().takeAll("carol");
+		check(carol.size() == 6, "carol有6条，实际 " + carol.size());
+		for (int i = 0; i < carol.size(); i++) {
+			check(("carol-" + i).equals(carol.get(i).getContent()), "carol第" + i + "条");
+		}
+	}
+
+	/**
+	 * 新建一个实例重放目录中的日志，相当于服务端重启（getInstance()是单例，测试绕过它）
+	 */
+	private static OfflineStore open() throws Exception {
+		Constructor<OfflineStore> constructor = OfflineStore.class.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		return constructor.newInstance();
+	}
+
+	private static File[] segments(File dir) throws IOException {
+		File[] files = dir.listFiles((d, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+		if (files == null) {
+			throw new IOException("无法列出 " + dir);
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static Message message(String content) {
+		return new Message.Builder()
+				.mesType(MessageType.MESSAGE_COMM_MES)
+				.sender("sender")
+				.content(content)
+				.build();
+	}
+
+	private static void check(boolean condition, String what) {
+		if (!condition) {
+			throw new AssertionError(what);
+		}
+	}
+}